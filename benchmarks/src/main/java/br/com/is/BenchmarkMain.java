@@ -0,0 +1,46 @@
+/* Copyright (C) 2013 Leonardo Bispo de Oliveira
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package br.com.is;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.openjdk.jmh.Main;
+
+/**
+ * Entry point of the benchmarks jar. Same command line as the JMH one, but the GC profiler is enabled unless
+ * another profiler is requested, so allocation rates are always part of the results.
+ * 
+ * @author Leonardo Bispo de Oliveira.
+ *
+ */
+public final class BenchmarkMain {
+  private BenchmarkMain() {
+  }
+
+  public static void main(final String args[]) throws Exception {
+    final List<String> arguments = new ArrayList<>(Arrays.asList(args));
+    if (!arguments.contains("-prof") && !arguments.contains("-h") && !arguments.contains("-l")
+      && !arguments.contains("-lp") && !arguments.contains("-lprof")) {
+      arguments.add(0, "-prof");
+      arguments.add(1, "gc");
+    }
+
+    Main.main(arguments.toArray(new String[arguments.size()]));
+  }
+}
@@ -0,0 +1,71 @@
+/* Copyright (C) 2013 Leonardo Bispo de Oliveira
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package br.com.is.http.server;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Set-Cookie rendering for a session cookie and for a cookie with every attribute.
+ * 
+ * @author Leonardo Bispo de Oliveira.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CookieBenchmark {
+  private Cookie session;
+  private Cookie full;
+
+  @Setup
+  public void setup() {
+    session = new Cookie("ISSESSIONID", "8F2A9C0E4B7D1F3A5C6E8B0D2F4A6C8E");
+
+    full = new Cookie("preferences", "theme=dark|lang=pt-BR");
+    full.setComment("User preferences");
+    full.setDomain("example.com");
+    full.setPath("/app");
+    full.setMaxAge(3600);
+    full.setSecure(true);
+    full.setHttpOnly(true);
+    full.setVersion(1);
+  }
+
+  @Benchmark
+  public String sessionCookie() {
+    return session.toString();
+  }
+
+  @Benchmark
+  public String fullCookie() {
+    return full.toString();
+  }
+}
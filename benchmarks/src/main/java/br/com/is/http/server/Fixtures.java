@@ -0,0 +1,255 @@
+/* Copyright (C) 2013 Leonardo Bispo de Oliveira
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package br.com.is.http.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Fixtures shared by the benchmarks. The files come from the server test resources, which the benchmark build
+ * packages as class path resources.
+ * 
+ * @author Leonardo Bispo de Oliveira.
+ *
+ */
+public final class Fixtures {
+  private Fixtures() {
+  }
+
+  /**
+   * Load a file from the server test resources.
+   * 
+   * @param name File name, like lorem.txt.
+   * 
+   * @return The file content.
+   * 
+   */
+  public static byte[] load(final String name) {
+    try (InputStream is = open(name)) {
+      final ByteArrayOutputStream os = new ByteArrayOutputStream();
+      final byte buffer[] = new byte[8192];
+      int read;
+      while ((read = is.read(buffer)) != -1)
+        os.write(buffer, 0, read);
+
+      return os.toByteArray();
+    }
+    catch (IOException e) {
+      throw new RuntimeException("Problems to load the fixture " + name, e);
+    }
+  }
+
+  private static InputStream open(final String name) throws FileNotFoundException {
+    final InputStream is = Fixtures.class.getClassLoader().getResourceAsStream(name);
+    if (is != null)
+      return is;
+
+    for (final String dir : new String[] { "src/test/resources", "../src/test/resources" }) {
+      final File file = new File(dir, name);
+      if (file.isFile())
+        return new FileInputStream(file);
+    }
+
+    throw new FileNotFoundException(name);
+  }
+
+  /**
+   * Request with a fixed URI, headers, parameters and body.
+   * 
+   */
+  public static class Request implements HTTPRequest {
+    private final String              uri;
+    private final Map<String, String> header;
+    private final Map<String, String> params;
+    private InputStream               body;
+
+    public Request(final String uri, final Map<String, String> header, final Map<String, String> params) {
+      this.uri    = uri;
+      this.header = header == null ? new Hashtable<String, String>() : header;
+      this.params = params == null ? new Hashtable<String, String>() : params;
+    }
+
+    public Request setBody(final InputStream body) {
+      this.body = body;
+      return this;
+    }
+
+    @Override
+    public List<Cookie> getCookies() {
+      return Collections.emptyList();
+    }
+
+    @Override
+    public String getHeader(final String name) {
+      return header.get(name);
+    }
+
+    @Override
+    public Enumeration<String> getHeaderNames() {
+      return Collections.enumeration(header.keySet());
+    }
+
+    @Override
+    public RequestMethod getMethod() {
+      return RequestMethod.GET;
+    }
+
+    @Override
+    public Part getPart(final String name) {
+      return null;
+    }
+
+    @Override
+    public String getRequestedSessionId() {
+      return null;
+    }
+
+    @Override
+    public String getRequestURI() {
+      return uri;
+    }
+
+    @Override
+    public StringBuffer getRequestURL() {
+      return new StringBuffer(uri);
+    }
+
+    @Override
+    public HTTPSession getSession() {
+      return null;
+    }
+
+    @Override
+    public boolean hasSession() {
+      return false;
+    }
+
+    @Override
+    public String getParameter(final String name) {
+      return params.get(name);
+    }
+
+    @Override
+    public String[] getParameterValues(final String name) {
+      final String value = params.get(name);
+      return value == null ? null : new String[] { value };
+    }
+
+    @Override
+    public Enumeration<String> getParameterNames() {
+      return Collections.enumeration(params.keySet());
+    }
+
+    @Override
+    public InputStream getInputStream() {
+      return body;
+    }
+  }
+
+  /**
+   * Response that counts and discards the body.
+   * 
+   */
+  public static class Response implements HTTPResponse {
+    private final Hashtable<String, String> header = new Hashtable<>();
+    private int                             status = 200;
+    private long                            written;
+
+    private final OutputStream os = new OutputStream() {
+      @Override
+      public void write(final int b) {
+        ++written;
+      }
+
+      @Override
+      public void write(final byte b[], final int offset, final int length) {
+        written += length;
+      }
+    };
+
+    public long getWritten() {
+      return written;
+    }
+
+    public Response reset() {
+      header.clear();
+      status  = 200;
+      written = 0;
+      return this;
+    }
+
+    @Override
+    public void addCookie(final Cookie cookie) {
+    }
+
+    @Override
+    public void addHeader(final String name, final String value) {
+      header.put(name, value);
+    }
+
+    @Override
+    public boolean containsHeader(final String name) {
+      return header.containsKey(name);
+    }
+
+    @Override
+    public String getHeader(final String name) {
+      return header.get(name);
+    }
+
+    @Override
+    public Enumeration<String> getHeaderNames() {
+      return header.keys();
+    }
+
+    @Override
+    public int getStatus() {
+      return status;
+    }
+
+    @Override
+    public void sendRedirect(final String location) {
+      status = HTTPStatus.TEMPORARY_REDIRECT.getValue();
+    }
+
+    @Override
+    public void setStatus(final HTTPStatus sc) {
+      status = sc.getValue();
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+      return os;
+    }
+
+    @Override
+    public PrintWriter getWriter() {
+      return new PrintWriter(os);
+    }
+  }
+}
@@ -0,0 +1,82 @@
+/* Copyright (C) 2013 Leonardo Bispo de Oliveira
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package br.com.is.http.server;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Per call overhead of the annotated context dispatch, against the old Method.invoke path and a plain call.
+ * 
+ * @author Leonardo Bispo de Oliveira.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HTTPAnnotatedContextBenchmark {
+  public static final class Handler {
+    private long calls;
+
+    public void get(final HTTPRequest req, final HTTPResponse resp) {
+      ++calls;
+    }
+  }
+
+  private final Handler        handler = new Handler();
+  private Method               method;
+  private HTTPAnnotatedContext context;
+
+  @Setup
+  public void setup() throws NoSuchMethodException {
+    method  = Handler.class.getMethod("get", HTTPRequest.class, HTTPResponse.class);
+    context = new HTTPAnnotatedContext(handler, "/", method, null, null, null, null);
+  }
+
+  @Benchmark
+  public long direct() {
+    handler.get(null, null);
+    return handler.calls;
+  }
+
+  @Benchmark
+  public long methodHandle() {
+    context.doGet(null, null);
+    return handler.calls;
+  }
+
+  @Benchmark
+  public long reflection() throws IllegalAccessException, InvocationTargetException {
+    method.invoke(handler, null, null);
+    return handler.calls;
+  }
+}
@@ -0,0 +1,125 @@
+/* Copyright (C) 2013 Leonardo Bispo de Oliveira
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package br.com.is.http.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Hashtable;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import br.com.is.http.server.exception.BadRequestException;
+import br.com.is.http.server.session.MemorySessionStore;
+import br.com.is.http.server.session.SecureSessionIdGenerator;
+import br.com.is.nio.EventLoop;
+
+/**
+ * Request header parsing and context lookup of the request handler, without a connection.
+ * 
+ * @author Leonardo Bispo de Oliveira.
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HTTPRequestHandlerBenchmark {
+  private static final String BROWSER_REQUEST =
+    "GET /static/css/site/main.css?v=1.2.3&theme=dark HTTP/1.1\r\n"
+    + "Host: localhost:9999\r\n"
+    + "Connection: keep-alive\r\n"
+    + "User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/120.0 Safari/537.36\r\n"
+    + "Accept: text/css,*/*;q=0.1\r\n"
+    + "Referer: http://localhost:9999/static/index.html\r\n"
+    + "Accept-Encoding: gzip, deflate, br\r\n"
+    + "Accept-Language: en-US,en;q=0.9,pt-BR;q=0.8\r\n"
+    + "Cookie: ISSESSIONID=8F2A9C0E4B7D1F3A5C6E8B0D2F4A6C8E; theme=dark; tracking=abc123\r\n"
+    + "If-None-Match: \"5d8c72a5\"\r\n"
+    + "\r\n";
+
+  private static final String CURL_REQUEST =
+    "GET /index.html HTTP/1.1\r\n"
+    + "Host: localhost:9999\r\n"
+    + "User-Agent: curl/8.0\r\n"
+    + "Accept: */*\r\n"
+    + "\r\n";
+
+  @State(Scope.Thread)
+  public static class Lookup {
+    @Param({ "/index.html", "/static/css/site/main.css", "/missing/deep/path/file.txt" })
+    public String uri;
+  }
+
+  private EventLoop                         loop;
+  private SocketChannel                     socket;
+  private HTTPRequestHandler                handler;
+  private ByteBuffer                        browser;
+  private ByteBuffer                        curl;
+  private final Hashtable<String, HTTPContext> contexts = new Hashtable<>();
+
+  @Setup
+  public void setup() throws IOException {
+    final String patterns[] = { "/", "/index.html", "/static/", "/api/", "/api/users/", "/upload.html", "/metrics" };
+    for (final String pattern : patterns)
+      contexts.put(pattern, new HTTPContext() {});
+
+    loop    = new EventLoop(10);
+    socket  = SocketChannel.open();
+    handler = new HTTPRequestHandler(new HTTPChannel(socket, null, loop, null, null, null), contexts,
+      new MemorySessionStore(), new SecureSessionIdGenerator(), loop, null, null, null);
+
+    browser = ByteBuffer.wrap(BROWSER_REQUEST.getBytes(StandardCharsets.ISO_8859_1));
+    curl    = ByteBuffer.wrap(CURL_REQUEST.getBytes(StandardCharsets.ISO_8859_1));
+  }
+
+  @TearDown
+  public void tearDown() throws IOException, InterruptedException {
+    socket.close();
+    loop.stop(1);
+  }
+
+  @Benchmark
+  public boolean parseBrowserHeader() throws IOException, BadRequestException {
+    return handler.parseHeader(browser.duplicate());
+  }
+
+  @Benchmark
+  public boolean parseCurlHeader() throws IOException, BadRequestException {
+    return handler.parseHeader(curl.duplicate());
+  }
+
+  @Benchmark
+  public HTTPContext contextLookup(final Lookup lookup) {
+    return HTTPRequestHandler.findContext(contexts, lookup.uri);
+  }
+}
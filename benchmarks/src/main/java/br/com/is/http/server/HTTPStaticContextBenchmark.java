@@ -0,0 +1,106 @@
+/* Copyright (C) 2013 Leonardo Bispo de Oliveira
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package br.com.is.http.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Hashtable;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Static file serving from a directory holding the test fixtures: a full response, a conditional request
+ * answered with 304 and a range request.
+ * 
+ * @author Leonardo Bispo de Oliveira.
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HTTPStaticContextBenchmark {
+  @Param({ "static.html", "tux.png", "lorem.txt" })
+  public String file;
+
+  private File              directory;
+  private HTTPStaticContext context;
+  private Fixtures.Request  full;
+  private Fixtures.Request  conditional;
+  private Fixtures.Request  range;
+  private Fixtures.Response response;
+
+  @Setup
+  public void setup() throws IOException {
+    directory = Files.createTempDirectory("static-benchmark").toFile();
+    for (final String name : new String[] { "static.html", "tux.png", "lorem.txt" })
+      Files.write(new File(directory, name).toPath(), Fixtures.load(name));
+
+    context  = new HTTPStaticContext(directory.getPath());
+    response = new Fixtures.Response();
+    full     = new Fixtures.Request("/" + file, null, null);
+
+    context.doGet(full, response);
+    final Hashtable<String, String> etag = new Hashtable<>();
+    etag.put("if-none-match", response.getHeader("ETag"));
+    conditional = new Fixtures.Request("/" + file, etag, null);
+
+    final Hashtable<String, String> bytes = new Hashtable<>();
+    bytes.put("range", "bytes=0-1023");
+    range = new Fixtures.Request("/" + file, bytes, null);
+  }
+
+  @TearDown
+  public void tearDown() {
+    for (final File child : directory.listFiles())
+      child.delete();
+    directory.delete();
+  }
+
+  @Benchmark
+  public long fullResponse() {
+    context.doGet(full, response.reset());
+    return response.getWritten();
+  }
+
+  @Benchmark
+  public int notModified() {
+    context.doGet(conditional, response.reset());
+    return response.getStatus();
+  }
+
+  @Benchmark
+  public long rangeResponse() {
+    context.doGet(range, response.reset());
+    return response.getWritten();
+  }
+}
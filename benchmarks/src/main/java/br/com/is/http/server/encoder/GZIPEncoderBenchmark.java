@@ -0,0 +1,83 @@
+/* Copyright (C) 2013 Leonardo Bispo de Oliveira
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package br.com.is.http.server.encoder;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import br.com.is.http.server.Fixtures;
+
+/**
+ * Compression cost per flush, as done by HTTPOutputStream for each chunk of a gzip response. The text
+ * fixture compresses well, the PNG fixture does not.
+ * 
+ * @author Leonardo Bispo de Oliveira.
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GZIPEncoderBenchmark {
+  @Param({ "lorem.txt", "tux.png" })
+  public String fixture;
+
+  @Param({ "1024", "16384" })
+  public int chunkSize;
+
+  private byte        data[];
+  private int         offset;
+  private GZIPEncoder encoder;
+
+  @Setup
+  public void setup() {
+    data    = Fixtures.load(fixture);
+    encoder = new GZIPEncoder();
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    encoder.close();
+  }
+
+  @Benchmark
+  public byte[] compressAndFlush() throws IOException {
+    final int length = Math.min(chunkSize, data.length - offset);
+    encoder.compress(data, offset, length);
+
+    offset += length;
+    if (offset == data.length)
+      offset = 0;
+
+    return encoder.flush();
+  }
+}
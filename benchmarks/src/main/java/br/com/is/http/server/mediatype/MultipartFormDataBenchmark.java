@@ -0,0 +1,96 @@
+/* Copyright (C) 2013 Leonardo Bispo de Oliveira
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package br.com.is.http.server.mediatype;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Hashtable;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import br.com.is.http.server.Fixtures;
+import br.com.is.http.server.HTTPContext;
+import br.com.is.http.server.HTTPRequest;
+import br.com.is.http.server.HTTPResponse;
+import br.com.is.http.server.Parameters;
+import br.com.is.http.server.Part;
+import br.com.is.http.server.exception.HTTPRequestException;
+
+/**
+ * A whole multipart/form-data upload through MultipartFormData, as a browser form sends it: a few text fields,
+ * an image kept in memory and a text file big enough to be spilled to the temporary directory.
+ * 
+ * @author Leonardo Bispo de Oliveira.
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MultipartFormDataBenchmark {
+  private static final String BOUNDARY = "----WebKitFormBoundary7MA4YWxkTrZu0gW";
+
+  private final HTTPContext context = new HTTPContext() {
+    @Override
+    public void doPost(final HTTPRequest req, final HTTPResponse resp) {
+    }
+  };
+
+  private byte body[];
+
+  @Setup
+  public void setup() throws IOException {
+    final ByteArrayOutputStream os = new ByteArrayOutputStream();
+    for (final String field : new String[] { "title", "author", "description" }) {
+      os.write(("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"" + field + "\"\r\n\r\n").getBytes());
+      os.write(("value of " + field + "\r\n").getBytes());
+    }
+
+    for (final String file : new String[] { "tux.png", "lorem.txt" }) {
+      os.write(("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"" + file + "\"; filename=\"" + file
+        + "\"\r\nContent-Type: application/octet-stream\r\n\r\n").getBytes());
+      os.write(Fixtures.load(file));
+      os.write("\r\n".getBytes());
+    }
+
+    os.write(("--" + BOUNDARY + "--\r\n").getBytes());
+    body = os.toByteArray();
+  }
+
+  @Benchmark
+  public int upload() throws HTTPRequestException {
+    final Hashtable<String, Part> parts = new Hashtable<>();
+    final Parameters params = new Parameters(context.getMaxParameterCount(), context.getMaxParameterSize());
+    final HTTPRequest request = new Fixtures.Request("/upload.html", null, null).setBody(new ByteArrayInputStream(body));
+
+    new MultipartFormData().process(context, request, null, "boundary=" + BOUNDARY, params, parts);
+    return parts.size() + params.size();
+  }
+}
@@ -0,0 +1,116 @@
+/* Copyright (C) 2013 Leonardo Bispo de Oliveira
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package br.com.is.http.server.mediatype;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Hashtable;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import br.com.is.http.server.exception.HTTPRequestException;
+
+/**
+ * Measure the multipart parser over a body with many small form fields and over a body with one large file.
+ * 
+ * @author Leonardo Bispo de Oliveira.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MultipartParserBenchmark {
+  private static final String BOUNDARY    = "----WebKitFormBoundary7MA4YWxkTrZu0gW";
+  private static final int    FIELDS      = 50;
+  private static final int    FILE_SIZE   = 16 * 1024 * 1024;
+  private static final int    BUFFER_SIZE = 65536;
+  
+  private byte smallFields[];
+  private byte largeFile[];
+  
+  @Setup
+  public void setUp() throws IOException {
+    final ByteArrayOutputStream small = new ByteArrayOutputStream();
+    for (int i = 0; i < FIELDS; ++i) {
+      small.write(("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"field" + i + "\"\r\n\r\n").getBytes());
+      small.write(("value of the field number " + i).getBytes());
+      small.write("\r\n".getBytes());
+    }
+    small.write(("--" + BOUNDARY + "--\r\n").getBytes());
+    smallFields = small.toByteArray();
+    
+    final byte content[] = new byte[FILE_SIZE];
+    new Random(42).nextBytes(content);
+    
+    final ByteArrayOutputStream large = new ByteArrayOutputStream();
+    large.write(("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"file\"; filename=\"file.bin\"\r\n").getBytes());
+    large.write("Content-Type: application/octet-stream\r\n\r\n".getBytes());
+    large.write(content);
+    large.write(("\r\n--" + BOUNDARY + "--\r\n").getBytes());
+    largeFile = large.toByteArray();
+  }
+  
+  @Benchmark
+  public long smallFields() throws HTTPRequestException {
+    return parse(smallFields);
+  }
+  
+  @Benchmark
+  public long largeFile() throws HTTPRequestException {
+    return parse(largeFile);
+  }
+  
+  private static long parse(final byte body[]) throws HTTPRequestException {
+    final CountingHandler handler = new CountingHandler();
+    new MultipartParser(BOUNDARY, new ByteArrayInputStream(body), BUFFER_SIZE).parse(handler);
+    return handler.bytes;
+  }
+  
+  private static final class CountingHandler implements MultipartParser.Handler {
+    private long bytes = 0;
+    
+    @Override
+    public void partBegin(final Hashtable<String, String> header) {
+      bytes += header.size();
+    }
+
+    @Override
+    public void partData(final ByteBuffer data) {
+      bytes += data.remaining();
+    }
+
+    @Override
+    public void partEnd() {
+    }
+  }
+}
@@ -0,0 +1,91 @@
+/* Copyright (C) 2013 Leonardo Bispo de Oliveira
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package br.com.is.http.server.session;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compare the session id generator against the old per call SecureRandom + MD5 implementation.
+ * 
+ * @author Leonardo Bispo de Oliveira.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SessionIdGeneratorBenchmark {
+  private final SessionIdGenerator generator = new SecureSessionIdGenerator();
+  
+  @Benchmark
+  public String secureGenerator() {
+    return generator.generate();
+  }
+  
+  @Benchmark
+  @Threads(4)
+  public String secureGeneratorContended() {
+    return generator.generate();
+  }
+  
+  @Benchmark
+  public String legacyGenerator() throws NoSuchAlgorithmException {
+    final Random random = new SecureRandom();
+    random.setSeed(System.currentTimeMillis());
+    
+    final int length = 30;
+    byte[] buffer = new byte[length];
+    
+    final StringBuffer reply = new StringBuffer();
+    final MessageDigest digest = MessageDigest.getInstance("MD5");
+    
+    int resultLenBytes = 0;
+    while (resultLenBytes < length) {
+      random.nextBytes(buffer);
+      buffer = digest.digest(buffer);
+      
+      for (int j = 0; j < buffer.length && resultLenBytes < length; ++j) {
+        byte b1 = (byte) ((buffer[j] & 0xf0) >> 4);
+        reply.append((char) (b1 < 10 ? '0' + b1 : 'A' + (b1 - 10)));
+        
+        byte b2 = (byte) (buffer[j] & 0x0f);
+        reply.append((char) (b2 < 10 ? '0' + b2 : 'A' + (b2 - 10)));
+        
+        ++resultLenBytes;
+      }
+    }
+    
+    return reply.toString();
+  }
+}
@@ -0,0 +1,74 @@
+/* Copyright (C) 2013 Leonardo Bispo de Oliveira
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package br.com.is.nio;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Buffer churn through the FIFO: the event loop filling MSS sized chunks and the context handler draining
+ * them. The producer/consumer pair is not measured concurrently because the FIFO is unbounded, a faster
+ * producer only measures the heap.
+ * 
+ * @author Leonardo Bispo de Oliveira.
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ByteBufferFifoBenchmark {
+  private static final byte CHUNK[] = new byte[1460];
+
+  private final ByteBufferFifo fifo = new ByteBufferFifo();
+
+  @Benchmark
+  public int fillAndDrain() {
+    final int written = write(fifo) + write(fifo) + write(fifo);
+    fifo.invalidateWriteBuffer();
+
+    int read = 0;
+    while (read < written)
+      read += fifo.getReadBuffer().remaining();
+
+    return read;
+  }
+
+  private static int write(final ByteBufferFifo fifo) {
+    int offset = 0;
+    while (offset < CHUNK.length) {
+      final ByteBuffer buffer = fifo.getWriteBuffer();
+      final int length = Math.min(buffer.remaining(), CHUNK.length - offset);
+      buffer.put(CHUNK, offset, length);
+      offset += length;
+    }
+
+    return offset;
+  }
+}
@@ -0,0 +1,88 @@
+/* Copyright (C) 2013 Leonardo Bispo de Oliveira
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package br.com.is.nio;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import br.com.is.nio.listener.TimerListener;
+
+/**
+ * Timer registration, update and cancellation with a number of timers already pending, like the per
+ * connection timeouts of a busy server.
+ * 
+ * @author Leonardo Bispo de Oliveira.
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventLoopBenchmark {
+  private static final int TIMEOUT = 60000;
+
+  @Param({ "0", "1000", "10000" })
+  public int pending;
+
+  private EventLoop     loop;
+  private TimerListener listener;
+
+  @Setup
+  public void setup() {
+    loop = new EventLoop(10);
+    for (int i = 0; i < pending; ++i)
+      loop.registerTimer(TIMEOUT + i, new Noop());
+
+    listener = new Noop();
+  }
+
+  @TearDown
+  public void tearDown() throws InterruptedException {
+    loop.stop(1);
+  }
+
+  @Benchmark
+  public void registerAndCancel() {
+    loop.registerTimer(TIMEOUT, listener);
+    loop.cancelTimer(listener);
+  }
+
+  @Benchmark
+  public void update() {
+    loop.updateTimer(TIMEOUT, listener);
+  }
+
+  private static final class Noop implements TimerListener {
+    @Override
+    public void timeout() {
+    }
+  }
+}
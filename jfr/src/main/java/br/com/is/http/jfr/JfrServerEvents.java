@@ -0,0 +1,136 @@
+/* Copyright (C) 2013 Leonardo Bispo de Oliveira
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package br.com.is.http.jfr;
+
+import java.net.SocketAddress;
+
+import javax.net.ssl.SSLSession;
+
+import br.com.is.events.ServerEvents;
+
+/**
+ * ServerEvents provider that emits JDK Flight Recorder events. Each method checks if its event is enabled before
+ * filling it, and the event objects do not escape, so the JIT removes them when no recording is running.
+ * 
+ * @author Leonardo Bispo de Oliveira.
+ *
+ */
+public final class JfrServerEvents implements ServerEvents {
+  @Override
+  public void connectionAccepted(final SocketAddress remote, final boolean ssl) {
+    final ConnectionAcceptedEvent event = new ConnectionAcceptedEvent();
+    if (!event.isEnabled())
+      return;
+
+    event.remote = String.valueOf(remote);
+    event.ssl    = ssl;
+    event.commit();
+  }
+
+  @Override
+  public void connectionClosed(final SocketAddress remote, final boolean ssl, final long bytesReceived,
+    final long bytesSent, final long duration) {
+    final ConnectionClosedEvent event = new ConnectionClosedEvent();
+    if (!event.isEnabled())
+      return;
+
+    event.remote        = String.valueOf(remote);
+    event.ssl           = ssl;
+    event.bytesReceived = bytesReceived;
+    event.bytesSent     = bytesSent;
+    event.lifetime      = duration;
+    event.commit();
+  }
+
+  @Override
+  public Object requestStarted() {
+    final RequestEvent event = new RequestEvent();
+    if (!event.isEnabled())
+      return null;
+
+    event.begin();
+    return event;
+  }
+
+  @Override
+  public void requestFinished(final Object token, final String method, final String uri, final Class<?> context,
+    final int status, final long bytes, final long accept, final long parse, final long queue, final long handler,
+    final long write) {
+    final RequestEvent event = (RequestEvent) token;
+    event.end();
+    if (!event.shouldCommit())
+      return;
+
+    event.method  = method;
+    event.uri     = uri;
+    event.context = context;
+    event.status  = status;
+    event.bytes   = bytes;
+    event.accept  = accept;
+    event.parse   = parse;
+    event.queue   = queue;
+    event.handler = handler;
+    event.write   = write;
+    event.commit();
+  }
+
+  @Override
+  public void tlsHandshake(final SocketAddress remote, final SSLSession session, final long duration,
+    final boolean success) {
+    final TlsHandshakeEvent event = new TlsHandshakeEvent();
+    if (!event.isEnabled())
+      return;
+
+    event.remote        = String.valueOf(remote);
+    event.handshakeTime = duration;
+    event.success       = success;
+    if (session != null) {
+      event.protocol    = session.getProtocol();
+      event.cipherSuite = session.getCipherSuite();
+    }
+    event.commit();
+  }
+
+  @Override
+  public void sessionCreated(final String id) {
+    final SessionCreatedEvent event = new SessionCreatedEvent();
+    if (!event.isEnabled())
+      return;
+
+    event.idHash = id.hashCode();
+    event.commit();
+  }
+
+  @Override
+  public void sessionExpired(final String id) {
+    final SessionExpiredEvent event = new SessionExpiredEvent();
+    if (!event.isEnabled())
+      return;
+
+    event.idHash = id.hashCode();
+    event.commit();
+  }
+
+  @Override
+  public void executorRejected() {
+    final ExecutorRejectedEvent event = new ExecutorRejectedEvent();
+    if (!event.isEnabled())
+      return;
+
+    event.commit();
+  }
+}
@@ -0,0 +1,81 @@
+/* Copyright (C) 2013 Leonardo Bispo de Oliveira
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package br.com.is.http.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * An HTTP request. The event spans the worker thread part of the request (handler and write phases); the phases
+ * spent before, in the event loop and in the executor queue, are in the fields.
+ * 
+ * @author Leonardo Bispo de Oliveira.
+ *
+ */
+@Name("br.com.is.http.Request")
+@Label("HTTP Request")
+@Category({ "HTTP Server", "Request" })
+@Description("An HTTP request handled by a context, with the time spent in each phase")
+@StackTrace(false)
+final class RequestEvent extends Event {
+  @Label("Method")
+  String method;
+
+  @Label("URI")
+  String uri;
+
+  @Label("Context")
+  Class<?> context;
+
+  @Label("Status")
+  int status;
+
+  @Label("Bytes Sent")
+  @DataAmount
+  long bytes;
+
+  @Label("Accept")
+  @Description("From the connection accept to the first request byte")
+  @Timespan
+  long accept;
+
+  @Label("Parse")
+  @Description("Parsing the request header")
+  @Timespan
+  long parse;
+
+  @Label("Queue")
+  @Description("Waiting for a worker thread")
+  @Timespan
+  long queue;
+
+  @Label("Handler")
+  @Description("Running the context, without the socket writes")
+  @Timespan
+  long handler;
+
+  @Label("Write")
+  @Description("Writing the response to the socket")
+  @Timespan
+  long write;
+}
@@ -0,0 +1,40 @@
+/* Copyright (C) 2013 Leonardo Bispo de Oliveira
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package br.com.is.http.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * An HTTP session has been created. The session id is a credential, so only its hash is recorded.
+ * 
+ * @author Leonardo Bispo de Oliveira.
+ *
+ */
+@Name("br.com.is.http.SessionCreated")
+@Label("Session Created")
+@Category({ "HTTP Server", "Session" })
+@Description("A new HTTP session has been created")
+@StackTrace(false)
+final class SessionCreatedEvent extends Event {
+  @Label("Session Id Hash")
+  int idHash;
+}
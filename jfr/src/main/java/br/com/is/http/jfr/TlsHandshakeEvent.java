@@ -0,0 +1,54 @@
+/* Copyright (C) 2013 Leonardo Bispo de Oliveira
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package br.com.is.http.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * A TLS handshake has finished. The handshake runs over several event loop dispatches, so its duration is a field.
+ * 
+ * @author Leonardo Bispo de Oliveira.
+ *
+ */
+@Name("br.com.is.http.TlsHandshake")
+@Label("TLS Handshake")
+@Category({ "HTTP Server", "Connection" })
+@Description("A TLS handshake with a client has finished")
+@StackTrace(false)
+final class TlsHandshakeEvent extends Event {
+  @Label("Remote Address")
+  String remote;
+
+  @Label("Protocol")
+  String protocol;
+
+  @Label("Cipher Suite")
+  String cipherSuite;
+
+  @Label("Handshake Time")
+  @Timespan
+  long handshakeTime;
+
+  @Label("Success")
+  boolean success;
+}
@@ -0,0 +1,130 @@
+package br.com.is.http.jfr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import org.junit.Test;
+
+import br.com.is.events.Events;
+import br.com.is.http.server.HTTPContext;
+import br.com.is.http.server.HTTPRequest;
+import br.com.is.http.server.HTTPResponse;
+import br.com.is.http.server.HTTPServer;
+
+public final class JfrServerEventsTest {
+  private static final class HelloContext extends HTTPContext {
+    @Override
+    public void doGet(final HTTPRequest req, final HTTPResponse resp) {
+      resp.getWriter().print("hello");
+    }
+  }
+
+  @Test
+  public void testProvider() {
+    assertTrue(Events.get() instanceof JfrServerEvents);
+  }
+
+  @Test
+  public void testDisabled() {
+    assertNull(new JfrServerEvents().requestStarted());
+  }
+
+  @Test
+  public void testRequest() throws Exception {
+    final HTTPServer server = new HTTPServer(new InetSocketAddress("localhost", 9995), 10);
+    server.addContext("/hello", new HelloContext());
+    new Thread(server).start();
+    Thread.sleep(500);
+
+    final List<RecordedEvent> events;
+    try (Recording recording = new Recording()) {
+      recording.enable(RequestEvent.class);
+      recording.enable(ConnectionAcceptedEvent.class);
+      recording.enable(ConnectionClosedEvent.class);
+      recording.start();
+
+      try (InputStream is = new URL("http://localhost:9995/hello").openStream()) {
+        while (is.read() != -1);
+      }
+      Thread.sleep(200);
+
+      recording.stop();
+      events = read(recording);
+    }
+    finally {
+      server.stop(1);
+    }
+
+    final RecordedEvent request = find(events, "br.com.is.http.Request");
+    assertEquals("GET", request.getString("method"));
+    assertEquals("/hello", request.getString("uri"));
+    assertEquals(200, request.getInt("status"));
+    assertEquals(HelloContext.class.getName(), request.getClass("context").getName());
+    assertTrue(request.getLong("bytes") > 5);
+    assertTrue(request.getDuration().toNanos() > 0);
+
+    assertTrue(find(events, "br.com.is.http.ConnectionAccepted").getString("remote").contains("127.0.0.1"));
+    assertTrue(find(events, "br.com.is.http.ConnectionClosed").getLong("bytesSent") > 5);
+  }
+
+  @Test
+  public void testInstantEvents() throws Exception {
+    final JfrServerEvents provider = new JfrServerEvents();
+
+    final List<RecordedEvent> events;
+    try (Recording recording = new Recording()) {
+      recording.enable(TlsHandshakeEvent.class);
+      recording.enable(SessionCreatedEvent.class);
+      recording.enable(SessionExpiredEvent.class);
+      recording.enable(ExecutorRejectedEvent.class);
+      recording.start();
+
+      provider.tlsHandshake(new InetSocketAddress("127.0.0.1", 1234), null, 1000000, false);
+      provider.sessionCreated("session");
+      provider.sessionExpired("session");
+      provider.executorRejected();
+
+      recording.stop();
+      events = read(recording);
+    }
+
+    final RecordedEvent handshake = find(events, "br.com.is.http.TlsHandshake");
+    assertEquals(1000000, handshake.getDuration("handshakeTime").toNanos());
+    assertEquals(false, handshake.getBoolean("success"));
+    assertEquals("session".hashCode(), find(events, "br.com.is.http.SessionCreated").getInt("idHash"));
+    assertEquals("session".hashCode(), find(events, "br.com.is.http.SessionExpired").getInt("idHash"));
+    find(events, "br.com.is.http.ExecutorRejected");
+  }
+
+  private static List<RecordedEvent> read(final Recording recording) throws Exception {
+    final File file = File.createTempFile("events", ".jfr");
+    try {
+      recording.dump(file.toPath());
+      return new ArrayList<>(RecordingFile.readAllEvents(file.toPath()));
+    }
+    finally {
+      file.delete();
+    }
+  }
+
+  private static RecordedEvent find(final List<RecordedEvent> events, final String name) {
+    for (RecordedEvent event : events) {
+      if (event.getEventType().getName().equals(name))
+        return event;
+    }
+
+    throw new AssertionError("No " + name + " event in " + events);
+  }
+}
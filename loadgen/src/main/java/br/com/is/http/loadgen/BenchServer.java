@@ -0,0 +1,176 @@
+/* Copyright (C) 2013 Leonardo Bispo de Oliveira
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package br.com.is.http.loadgen;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import br.com.is.http.server.HTTPContext;
+import br.com.is.http.server.HTTPRequest;
+import br.com.is.http.server.HTTPResponse;
+import br.com.is.http.server.HTTPServer;
+import br.com.is.http.server.Part;
+
+/**
+ * Server with the contexts used by the load generator scenarios, so every run measures the same content:
+ * static.html and lorem.txt served from a generated folder, a small dynamic /hello context and an /upload
+ * multipart context. The HTTPS server is started when a key store is available.
+ * 
+ * @author Leonardo Bispo de Oliveira.
+ *
+ */
+public final class BenchServer {
+  private static final String USAGE =
+    "Usage: benchserver [--host <host>] [--http <port>] [--https <port>] [--keystore <file>] [--password <pass>]";
+
+  private static final String KEYSTORE = "src/test/resources/testkeys";
+
+  private BenchServer() {}
+
+  public static void main(final String args[]) throws Exception {
+    String host     = "localhost";
+    int    http     = 9999;
+    int    https    = 9991;
+    String keystore = null;
+    String password = "password";
+
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      switch (args[i]) {
+        case "--host":     host     = args[i + 1]; break;
+        case "--http":     http     = Integer.parseInt(args[i + 1]); break;
+        case "--https":    https    = Integer.parseInt(args[i + 1]); break;
+        case "--keystore": keystore = args[i + 1]; break;
+        case "--password": password = args[i + 1]; break;
+        default:
+          System.err.println(USAGE);
+          System.exit(2);
+      }
+    }
+
+    if (args.length % 2 != 0) {
+      System.err.println(USAGE);
+      System.exit(2);
+    }
+
+    final File root = createContent();
+
+    start(new HTTPServer(new InetSocketAddress(host, http), 128, root.getPath()));
+    System.err.println("HTTP server on " + host + ":" + http + " serving " + root);
+
+    final File keys = findKeyStore(keystore);
+    if (keys != null) {
+      start(new HTTPServer(new InetSocketAddress(host, https), 128, root.getPath(), keys, password));
+      System.err.println("HTTPS server on " + host + ":" + https + " using " + keys);
+    }
+    else
+      System.err.println("No key store found, HTTPS disabled");
+  }
+
+  private static void start(final HTTPServer server) {
+    server.addContext("/hello", new HTTPContext() {
+      @Override
+      public void doGet(final HTTPRequest req, final HTTPResponse resp) {
+        String name = req.getParameter("name");
+        if (name == null)
+          name = "world";
+
+        try {
+          resp.getOutputStream().write(("Hello, " + name + "!").getBytes(StandardCharsets.UTF_8));
+        }
+        catch (IOException e) {
+          throw new RuntimeException("Problems to write the response", e);
+        }
+      }
+    });
+
+    server.addContext("/upload", new HTTPContext() {
+      @Override
+      public void doPost(final HTTPRequest req, final HTTPResponse resp) {
+        final Part part = req.getPart("file");
+
+        long length = 0;
+        if (part != null) {
+          final byte buffer[] = new byte[8192];
+          try (final InputStream is = part.getInputStream()) {
+            int read;
+            while ((read = is.read(buffer)) != -1)
+              length += read;
+          }
+          catch (IOException e) {
+            throw new RuntimeException("Problems to read the uploaded file", e);
+          }
+        }
+
+        try {
+          resp.getOutputStream().write(Long.toString(length).getBytes(StandardCharsets.US_ASCII));
+        }
+        catch (IOException e) {
+          throw new RuntimeException("Problems to write the response", e);
+        }
+      }
+    });
+
+    final Thread thread = new Thread(server, "bench-server-" + server.getType());
+    thread.start();
+  }
+
+  private static File findKeyStore(final String keystore) {
+    if (keystore != null)
+      return new File(keystore);
+
+    for (final String prefix : new String[] { "", "../" }) {
+      final File file = new File(prefix + KEYSTORE);
+      if (file.isFile())
+        return file;
+    }
+
+    return null;
+  }
+
+  private static File createContent() throws IOException {
+    final File root = Files.createTempDirectory("benchserver").toFile();
+    root.deleteOnExit();
+
+    final StringBuilder html = new StringBuilder("<!DOCTYPE html>\n<html><head><title>tinyhttp</title></head><body>\n");
+    for (int i = 0; i < 40; i++)
+      html.append("<p>Static content line ").append(i).append(" of the load generator page.</p>\n");
+    html.append("</body></html>\n");
+    write(new File(root, "static.html"), html.toString());
+
+    final String sentence = "Lorem ipsum dolor sit amet, consectetur adipiscing elit, sed do eiusmod tempor "
+      + "incididunt ut labore et dolore magna aliqua.\n";
+    final StringBuilder text = new StringBuilder();
+    while (text.length() < 64 * 1024)
+      text.append(sentence);
+    write(new File(root, "lorem.txt"), text.toString());
+
+    return root;
+  }
+
+  private static void write(final File file, final String content) throws IOException {
+    file.deleteOnExit();
+    try (final OutputStream os = new FileOutputStream(file)) {
+      os.write(content.getBytes(StandardCharsets.UTF_8));
+    }
+  }
+}
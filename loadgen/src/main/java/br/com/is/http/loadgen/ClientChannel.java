@@ -0,0 +1,276 @@
+/* Copyright (C) 2013 Leonardo Bispo de Oliveira
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package br.com.is.http.loadgen;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLEngineResult.Status;
+
+/**
+ * Non blocking client side of a connection. Plain connections go straight to the socket, HTTPS connections
+ * are driven through an SSLEngine. No method ever blocks: when the socket cannot take more data the remaining
+ * bytes stay in this channel until {@link #flush()} is called again on the next OP_WRITE event.
+ * 
+ * @author Leonardo Bispo de Oliveira.
+ *
+ */
+final class ClientChannel {
+  private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+  private final SocketChannel channel;
+  private final SSLEngine     sslEngine;
+
+  private ByteBuffer netIn;
+  private ByteBuffer netOut;
+  private ByteBuffer appIn;
+
+  private boolean handshakeCompleted;
+
+  /**
+   * Constructor.
+   * 
+   * @param channel Connected socket channel.
+   * @param sslEngine Client mode engine for HTTPS connections, or null for HTTP.
+   * 
+   * @throws IOException
+   * 
+   */
+  ClientChannel(final SocketChannel channel, final SSLEngine sslEngine) throws IOException {
+    this.channel   = channel;
+    this.sslEngine = sslEngine;
+
+    if (sslEngine != null) {
+      final int packetSize = sslEngine.getSession().getPacketBufferSize();
+
+      netIn  = ByteBuffer.allocate(packetSize);
+      netOut = ByteBuffer.allocate(packetSize);
+      appIn  = ByteBuffer.allocate(sslEngine.getSession().getApplicationBufferSize());
+
+      netOut.limit(0);
+      appIn.limit(0);
+
+      sslEngine.beginHandshake();
+    }
+    else
+      handshakeCompleted = true;
+  }
+
+  SocketChannel getSocketChannel() {
+    return channel;
+  }
+
+  /**
+   * Advance the SSL handshake as far as the socket allows.
+   * 
+   * @return True if the handshake is done. Plain connections are always done.
+   * 
+   * @throws IOException
+   * 
+   */
+  boolean handshake() throws IOException {
+    while (!handshakeCompleted) {
+      if (!flush())
+        return false;
+
+      switch (sslEngine.getHandshakeStatus()) {
+        case NEED_WRAP:
+          wrap(EMPTY);
+        break;
+        case NEED_TASK:
+          executeTasks();
+        break;
+        case NOT_HANDSHAKING:
+        case FINISHED:
+          handshakeCompleted = true;
+        break;
+        default:
+          if (!unwrap() && !fill())
+            return false;
+        break;
+      }
+    }
+
+    return flush();
+  }
+
+  /**
+   * Read the available application data.
+   * 
+   * @param dst Buffer that will receive the data.
+   * 
+   * @return Number of bytes read, 0 if nothing is available yet or -1 at the end of the connection.
+   * 
+   * @throws IOException
+   * 
+   */
+  int read(final ByteBuffer dst) throws IOException {
+    if (sslEngine == null)
+      return channel.read(dst);
+
+    for (;;) {
+      if (appIn.hasRemaining()) {
+        final int length = Math.min(appIn.remaining(), dst.remaining());
+        final int limit  = appIn.limit();
+        appIn.limit(appIn.position() + length);
+        dst.put(appIn);
+        appIn.limit(limit);
+
+        return length;
+      }
+
+      if (sslEngine.isInboundDone())
+        return -1;
+
+      if (!unwrap()) {
+        try {
+          if (!fill())
+            return 0;
+        }
+        catch (EOFException e) {
+          return -1;
+        }
+      }
+    }
+  }
+
+  /**
+   * Write as much of the source as the socket accepts.
+   * 
+   * @param src Data to be written.
+   * 
+   * @return Number of source bytes consumed.
+   * 
+   * @throws IOException
+   * 
+   */
+  int write(final ByteBuffer src) throws IOException {
+    if (sslEngine == null)
+      return channel.write(src);
+
+    int consumed = 0;
+    while (src.hasRemaining() && flush())
+      consumed += wrap(src);
+
+    flush();
+    return consumed;
+  }
+
+  /**
+   * Write the encrypted data that did not fit in the socket.
+   * 
+   * @return True if nothing is left to be written.
+   * 
+   * @throws IOException
+   * 
+   */
+  boolean flush() throws IOException {
+    if (netOut == null || !netOut.hasRemaining())
+      return true;
+
+    channel.write(netOut);
+    return !netOut.hasRemaining();
+  }
+
+  /**
+   * Close the connection, sending the SSL close notify when possible.
+   * 
+   */
+  void close() {
+    if (sslEngine != null && handshakeCompleted) {
+      sslEngine.closeOutbound();
+      try {
+        if (flush()) {
+          wrap(EMPTY);
+          flush();
+        }
+      }
+      catch (IOException e) {}
+    }
+
+    try {
+      channel.close();
+    }
+    catch (IOException e) {}
+  }
+
+  private int wrap(final ByteBuffer src) throws IOException {
+    netOut.clear();
+    final SSLEngineResult result = sslEngine.wrap(src, netOut);
+    netOut.flip();
+
+    if (result.getStatus() == Status.BUFFER_OVERFLOW)
+      throw new IOException("SSL packet bigger than the session packet size");
+
+    if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK)
+      executeTasks();
+
+    return result.bytesConsumed();
+  }
+
+  private boolean unwrap() throws IOException {
+    final HandshakeStatus before = sslEngine.getHandshakeStatus();
+
+    netIn.flip();
+    appIn.compact();
+    final SSLEngineResult result;
+    try {
+      result = sslEngine.unwrap(netIn, appIn);
+    }
+    finally {
+      appIn.flip();
+      netIn.compact();
+    }
+
+    switch (result.getStatus()) {
+      case BUFFER_UNDERFLOW:
+        if (!netIn.hasRemaining())
+          throw new IOException("SSL packet bigger than the session packet size");
+        return false;
+      case BUFFER_OVERFLOW:
+        throw new IOException("SSL record bigger than the session application buffer size");
+      case CLOSED:
+        return true;
+      default:
+      break;
+    }
+
+    if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK)
+      executeTasks();
+
+    return result.bytesConsumed() > 0 || result.bytesProduced() > 0 || sslEngine.getHandshakeStatus() != before;
+  }
+
+  private boolean fill() throws IOException {
+    final int read = channel.read(netIn);
+    if (read == -1)
+      throw new EOFException("Connection closed by the server");
+
+    return read > 0;
+  }
+
+  private void executeTasks() {
+    Runnable task;
+    while ((task = sslEngine.getDelegatedTask()) != null)
+      task.run();
+  }
+}
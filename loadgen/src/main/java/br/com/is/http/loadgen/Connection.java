@@ -0,0 +1,360 @@
+/* Copyright (C) 2013 Leonardo Bispo de Oliveira
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package br.com.is.http.loadgen;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+
+import br.com.is.nio.EventLoop;
+import br.com.is.nio.listener.ConnectListener;
+import br.com.is.nio.listener.ReaderListener;
+import br.com.is.nio.listener.WriterListener;
+
+/**
+ * One client connection slot. The connection is opened on the first request and reopened whenever the server
+ * closes it. Up to pipeline requests are written without waiting for the responses, which are matched in order.
+ * All methods run on the event loop thread.
+ * 
+ * @author Leonardo Bispo de Oliveira.
+ *
+ */
+final class Connection implements ConnectListener, ReaderListener, WriterListener {
+  private enum State { CLOSED, CONNECTING, HANDSHAKING, OPEN }
+
+  private final LoadGenerator     generator;
+  private final EventLoop         loop;
+  private final InetSocketAddress address;
+  private final SSLContext        sslContext;
+  private final boolean           resumeSessions;
+  private final byte              payload[];
+  private final int               pipeline;
+
+  private final ArrayDeque<Request>    requests = new ArrayDeque<>();
+  private final ArrayDeque<ByteBuffer> output   = new ArrayDeque<>();
+  private final ResponseParser         parser   = new ResponseParser();
+  private final ByteBuffer             input    = ByteBuffer.allocate(16384);
+
+  private ClientChannel channel;
+  private State         state            = State.CLOSED;
+  private int           responses        = 0;
+  private long          connectStart     = 0;
+  private boolean       writerRegistered = false;
+
+  boolean idle = false;
+
+  /**
+   * Constructor.
+   * 
+   * @param generator Generator that receives the connection events.
+   * @param loop Event loop running the client.
+   * @param address Server address.
+   * @param sslContext SSL context for HTTPS, or null for HTTP.
+   * @param resumeSessions Let the SSL engine resume sessions instead of doing a full handshake on each connection.
+   * @param payload Request bytes.
+   * @param pipeline Max number of requests written before the first response.
+   * 
+   */
+  Connection(final LoadGenerator generator, final EventLoop loop, final InetSocketAddress address,
+    final SSLContext sslContext, final boolean resumeSessions, final byte payload[], final int pipeline) {
+    this.generator      = generator;
+    this.loop           = loop;
+    this.address        = address;
+    this.sslContext     = sslContext;
+    this.resumeSessions = resumeSessions;
+    this.payload        = payload;
+    this.pipeline       = pipeline;
+  }
+
+  /**
+   * Return if the connection takes one more request.
+   * 
+   * @return True if less than pipeline requests are waiting for a response.
+   * 
+   */
+  boolean hasCapacity() {
+    return requests.size() < pipeline;
+  }
+
+  /**
+   * Return the send time of the oldest request without response.
+   * 
+   * @return The send time in nanoseconds, or -1 if no request is waiting.
+   * 
+   */
+  long getOldestSent() {
+    final Request request = requests.peek();
+    return request == null ? -1 : request.sent;
+  }
+
+  /**
+   * Queue a request. It is written right away if the connection is open, otherwise the connection is opened.
+   * 
+   * @param request Request to be sent.
+   * 
+   */
+  void send(final Request request) {
+    request.sent = System.nanoTime();
+    requests.add(request);
+
+    if (state == State.OPEN) {
+      output.add(ByteBuffer.wrap(payload));
+      flushOutput();
+    }
+    else if (state == State.CLOSED)
+      open();
+  }
+
+  /**
+   * Abort the connection. Requests without response are given back to the generator.
+   * 
+   * @param error Reason of the abort.
+   * @param timeout True if the abort is caused by a request timeout.
+   * 
+   */
+  void abort(final IOException error, final boolean timeout) {
+    if (state == State.CLOSED)
+      return;
+
+    closeChannel();
+
+    final List<Request> failed = new ArrayList<>(requests);
+    requests.clear();
+    generator.closed(this, failed, error, timeout);
+  }
+
+  /**
+   * Close the connection at the end of the run, dropping the requests without response.
+   * 
+   */
+  void close() {
+    if (state != State.CLOSED)
+      closeChannel();
+
+    requests.clear();
+  }
+
+  @Override
+  public void connect(final SocketChannel ch, final EventLoop manager) {
+    try {
+      ch.finishConnect();
+      connected();
+    }
+    catch (IOException e) {
+      abort(e, false);
+    }
+  }
+
+  @Override
+  public void read(final SelectableChannel ch, final EventLoop manager) {
+    if (state == State.HANDSHAKING) {
+      handshake();
+      return;
+    }
+
+    if (state != State.OPEN)
+      return;
+
+    final ClientChannel current = channel;
+    try {
+      for (;;) {
+        final int read = current.read(input);
+        if (read == 0)
+          return;
+
+        if (read == -1) {
+          if (parser.end())
+            complete();
+          else
+            eof();
+
+          return;
+        }
+
+        generator.received(read);
+
+        input.flip();
+        while (input.hasRemaining()) {
+          if (requests.isEmpty())
+            throw new IOException("Response received without a request");
+
+          if (parser.parse(input))
+            complete();
+
+          // The completion may have closed this connection and opened the next one.
+          if (channel != current || state != State.OPEN)
+            return;
+        }
+        input.clear();
+      }
+    }
+    catch (IOException e) {
+      abort(e, false);
+    }
+  }
+
+  @Override
+  public void write(final SelectableChannel ch, final EventLoop manager) {
+    if (state == State.HANDSHAKING)
+      handshake();
+    else if (state == State.OPEN)
+      flushOutput();
+  }
+
+  private void open() {
+    state        = State.CONNECTING;
+    connectStart = System.nanoTime();
+    responses    = 0;
+    parser.reset();
+    output.clear();
+    input.clear();
+
+    try {
+      final SocketChannel socket = SocketChannel.open();
+      socket.configureBlocking(false);
+      socket.socket().setTcpNoDelay(true);
+
+      SSLEngine sslEngine = null;
+      if (sslContext != null) {
+        sslEngine = resumeSessions ? sslContext.createSSLEngine(address.getHostString(), address.getPort())
+          : sslContext.createSSLEngine();
+        sslEngine.setUseClientMode(true);
+      }
+
+      channel = new ClientChannel(socket, sslEngine);
+      if (socket.connect(address))
+        connected();
+      else
+        loop.registerConnectListener(socket, this);
+    }
+    catch (IOException e) {
+      abort(e, false);
+    }
+  }
+
+  private void connected() {
+    loop.registerReaderListener(channel.getSocketChannel(), this);
+
+    if (sslContext != null) {
+      state = State.HANDSHAKING;
+      handshake();
+    }
+    else
+      opened();
+  }
+
+  private void handshake() {
+    try {
+      if (channel.handshake()) {
+        unregisterWriter();
+        opened();
+      }
+      else
+        registerWriter();
+    }
+    catch (IOException e) {
+      abort(e, false);
+    }
+  }
+
+  private void opened() {
+    state = State.OPEN;
+    generator.opened(this, System.nanoTime() - connectStart);
+
+    for (int i = 0; i < requests.size(); i++)
+      output.add(ByteBuffer.wrap(payload));
+
+    flushOutput();
+  }
+
+  private void complete() {
+    final Request request   = requests.poll();
+    final int status        = parser.getStatus();
+    final long length       = parser.getBodyLength();
+    final boolean keepAlive = parser.isKeepAlive();
+
+    responses++;
+    parser.reset();
+
+    if (!keepAlive)
+      eof();
+
+    generator.completed(this, request, status, length);
+  }
+
+  private void eof() {
+    if (responses == 0)
+      abort(new IOException("Connection closed by the server without a response"), false);
+    else {
+      closeChannel();
+
+      final List<Request> unanswered = new ArrayList<>(requests);
+      requests.clear();
+      generator.closed(this, unanswered, null, false);
+    }
+  }
+
+  private void flushOutput() {
+    try {
+      while (!output.isEmpty()) {
+        final ByteBuffer buffer = output.peek();
+        generator.sent(channel.write(buffer));
+        if (buffer.hasRemaining())
+          break;
+
+        output.poll();
+      }
+
+      if (output.isEmpty() && channel.flush())
+        unregisterWriter();
+      else
+        registerWriter();
+    }
+    catch (IOException e) {
+      abort(e, false);
+    }
+  }
+
+  private void registerWriter() {
+    if (!writerRegistered) {
+      loop.registerWriterListener(channel.getSocketChannel(), this);
+      writerRegistered = true;
+    }
+  }
+
+  private void unregisterWriter() {
+    if (writerRegistered) {
+      loop.unregisterWriterListener(channel.getSocketChannel());
+      writerRegistered = false;
+    }
+  }
+
+  private void closeChannel() {
+    state            = State.CLOSED;
+    writerRegistered = false;
+    if (channel != null)
+      channel.close();
+  }
+}
@@ -0,0 +1,251 @@
+/* Copyright (C) 2013 Leonardo Bispo de Oliveira
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package br.com.is.http.loadgen;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Log-linear histogram in the HdrHistogram layout: values below 2 * 10^digits are counted exactly and every
+ * power of two above that is split into the same number of linear sub buckets, so every recorded value keeps
+ * the requested number of significant digits with a fixed memory footprint. Not thread safe, every histogram
+ * is owned by the event loop thread.
+ * 
+ * @author Leonardo Bispo de Oliveira.
+ *
+ */
+final class Histogram {
+  private static final int PERCENTILE_TICKS_PER_HALF_DISTANCE = 5;
+
+  private final long   highestTrackableValue;
+  private final int    subBucketHalfCountMagnitude;
+  private final int    subBucketHalfCount;
+  private final long   subBucketMask;
+  private final long[] counts;
+
+  private long totalCount = 0;
+  private long minValue   = Long.MAX_VALUE;
+  private long maxValue   = 0;
+  private long overflow   = 0;
+  private double sum      = 0;
+  private double sumOfSquares = 0;
+
+  /**
+   * Constructor.
+   * 
+   * @param highestTrackableValue Highest value to be tracked. Bigger values are recorded as this one.
+   * @param significantDigits Number of significant decimal digits kept for each value (1 to 5).
+   * 
+   */
+  Histogram(final long highestTrackableValue, final int significantDigits) {
+    if (highestTrackableValue < 2)
+      throw new IllegalArgumentException("Highest trackable value must be bigger than 1");
+
+    if (significantDigits < 1 || significantDigits > 5)
+      throw new IllegalArgumentException("Significant digits must be between 1 and 5");
+
+    final long largestValueWithSingleUnitResolution = 2 * (long) Math.pow(10, significantDigits);
+    final int subBucketCountMagnitude = 64 - Long.numberOfLeadingZeros(largestValueWithSingleUnitResolution - 1);
+
+    this.highestTrackableValue  = highestTrackableValue;
+    subBucketHalfCountMagnitude = subBucketCountMagnitude - 1;
+    subBucketHalfCount          = 1 << subBucketHalfCountMagnitude;
+    subBucketMask               = (1L << subBucketCountMagnitude) - 1;
+
+    long smallestUntrackableValue = 1L << subBucketCountMagnitude;
+    int  bucketCount              = 1;
+    while (smallestUntrackableValue <= highestTrackableValue) {
+      if (smallestUntrackableValue > Long.MAX_VALUE / 2) {
+        bucketCount++;
+        break;
+      }
+
+      smallestUntrackableValue <<= 1;
+      bucketCount++;
+    }
+
+    counts = new long[(bucketCount + 1) * subBucketHalfCount];
+  }
+
+  /**
+   * Record a value.
+   * 
+   * @param value Value to be recorded. Negative values are recorded as zero.
+   * 
+   */
+  void recordValue(long value) {
+    if (value < 0)
+      value = 0;
+
+    if (value > highestTrackableValue) {
+      overflow++;
+      value = highestTrackableValue;
+    }
+
+    counts[countsIndex(value)]++;
+    totalCount++;
+
+    if (value < minValue)
+      minValue = value;
+
+    if (value > maxValue)
+      maxValue = value;
+
+    sum          += value;
+    sumOfSquares += (double) value * value;
+  }
+
+  /**
+   * Forget all recorded values.
+   * 
+   */
+  void reset() {
+    Arrays.fill(counts, 0);
+    totalCount   = 0;
+    minValue     = Long.MAX_VALUE;
+    maxValue     = 0;
+    overflow     = 0;
+    sum          = 0;
+    sumOfSquares = 0;
+  }
+
+  long getTotalCount() {
+    return totalCount;
+  }
+
+  long getMinValue() {
+    return totalCount == 0 ? 0 : minValue;
+  }
+
+  long getMaxValue() {
+    return maxValue;
+  }
+
+  /**
+   * Number of values bigger than the highest trackable value. They are counted as the highest trackable value.
+   * 
+   * @return Number of clamped values.
+   * 
+   */
+  long getOverflowCount() {
+    return overflow;
+  }
+
+  double getMean() {
+    return totalCount == 0 ? 0 : sum / totalCount;
+  }
+
+  double getStdDeviation() {
+    if (totalCount == 0)
+      return 0;
+
+    final double mean = getMean();
+    return Math.sqrt(Math.max(0, sumOfSquares / totalCount - mean * mean));
+  }
+
+  /**
+   * Return the value that the given percentage of the recorded values are smaller or equivalent to.
+   * 
+   * @param percentile Percentile between 0 and 100.
+   * 
+   * @return The highest value equivalent to the percentile bucket, or 0 if nothing was recorded.
+   * 
+   */
+  long getValueAtPercentile(final double percentile) {
+    if (totalCount == 0)
+      return 0;
+
+    final double requested = Math.min(Math.max(percentile, 0), 100);
+    final long countAtPercentile = Math.max(1, (long) Math.ceil(requested / 100 * totalCount));
+
+    long total = 0;
+    for (int i = 0; i < counts.length; i++) {
+      total += counts[i];
+      if (total >= countAtPercentile)
+        return Math.min(highestEquivalentValue(i), maxValue);
+    }
+
+    return maxValue;
+  }
+
+  /**
+   * Print the percentile distribution in the HdrHistogram text format, so the output can be plotted with the
+   * HdrHistogram tools.
+   * 
+   * @param out Stream to receive the distribution.
+   * @param scale Divide every value by this scale before printing.
+   * 
+   */
+  void outputPercentileDistribution(final PrintStream out, final double scale) {
+    out.println(String.format(Locale.ROOT, "%12s %14s %10s %14s", "Value", "Percentile", "TotalCount", "1/(1-Percentile)"));
+    out.println();
+
+    if (totalCount == 0)
+      return;
+
+    double percentile = 0;
+    for (;;) {
+      final long value = getValueAtPercentile(percentile);
+      final long count = getCountAtOrBelow(value);
+      final double at  = (double) count / totalCount;
+
+      if (count >= totalCount) {
+        out.println(String.format(Locale.ROOT, "%12.3f %2.12f %10d", value / scale, 1.0, count));
+        break;
+      }
+
+      out.println(String.format(Locale.ROOT, "%12.3f %2.12f %10d %14.2f", value / scale, at, count, 1 / (1 - at)));
+
+      final long halfDistance = 1L << (int) (Math.log(100 / (100 - percentile)) / Math.log(2) + 1);
+      percentile += 100.0 / (halfDistance * PERCENTILE_TICKS_PER_HALF_DISTANCE);
+    }
+
+    out.println(String.format(Locale.ROOT, "#[Mean    = %12.3f, StdDeviation   = %12.3f]", getMean() / scale,
+      getStdDeviation() / scale));
+    out.println(String.format(Locale.ROOT, "#[Max     = %12.3f, Total count    = %12d]", maxValue / scale, totalCount));
+    out.println(String.format(Locale.ROOT, "#[Buckets = %12d, SubBuckets     = %12d]",
+      counts.length / subBucketHalfCount - 1, subBucketHalfCount * 2));
+  }
+
+  private long getCountAtOrBelow(final long value) {
+    final int index = countsIndex(Math.min(value, highestTrackableValue));
+    long total = 0;
+    for (int i = 0; i <= index; i++)
+      total += counts[i];
+
+    return total;
+  }
+
+  private int countsIndex(final long value) {
+    final int bucketIndex    = 63 - subBucketHalfCountMagnitude - Long.numberOfLeadingZeros(value | subBucketMask);
+    final int subBucketIndex = (int) (value >>> bucketIndex);
+
+    return ((bucketIndex + 1) << subBucketHalfCountMagnitude) + (subBucketIndex - subBucketHalfCount);
+  }
+
+  private long highestEquivalentValue(final int index) {
+    int bucketIndex    = (index >> subBucketHalfCountMagnitude) - 1;
+    int subBucketIndex = (index & (subBucketHalfCount - 1)) + subBucketHalfCount;
+    if (bucketIndex < 0) {
+      subBucketIndex -= subBucketHalfCount;
+      bucketIndex     = 0;
+    }
+
+    return ((long) subBucketIndex << bucketIndex) + (1L << bucketIndex) - 1;
+  }
+}
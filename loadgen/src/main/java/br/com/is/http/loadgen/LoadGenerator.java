@@ -0,0 +1,425 @@
+/* Copyright (C) 2013 Leonardo Bispo de Oliveira
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package br.com.is.http.loadgen;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import br.com.is.nio.EventLoop;
+import br.com.is.nio.listener.TimerListener;
+
+/**
+ * HTTP load generator built on the server event loop. In the closed loop mode each connection sends the next
+ * request as soon as it has room for it. In the open loop mode requests are created at a constant rate no matter
+ * how fast the server answers, and the latency is measured from the time the request should have been sent, so
+ * a server stall is accounted for every request it delayed (coordinated omission correction).
+ * 
+ * Every state of the run is owned by the event loop thread; the main thread only starts the run and prints the
+ * report after the loop is stopped.
+ * 
+ * @author Leonardo Bispo de Oliveira.
+ *
+ */
+public final class LoadGenerator {
+  private static final long HIGHEST_TRACKABLE_US = TimeUnit.HOURS.toMicros(1);
+  private static final int  SIGNIFICANT_DIGITS   = 3;
+  private static final int  SWEEP_INTERVAL_MS    = 100;
+  private static final int  LOOP_THREADS         = 10;
+
+  private enum Phase { WARMUP, MEASURE, DRAIN, DONE }
+
+  private final Options      options;
+  private final EventLoop    loop;
+  private final Connection   connections[];
+  private final CountDownLatch done = new CountDownLatch(1);
+
+  private final ArrayDeque<Request>    pending = new ArrayDeque<>();
+  private final ArrayDeque<Connection> idle    = new ArrayDeque<>();
+
+  private final Histogram latency = new Histogram(HIGHEST_TRACKABLE_US, SIGNIFICANT_DIGITS);
+  private final Histogram service = new Histogram(HIGHEST_TRACKABLE_US, SIGNIFICANT_DIGITS);
+  private final Histogram connect = new Histogram(HIGHEST_TRACKABLE_US, SIGNIFICANT_DIGITS);
+
+  private final long statuses[] = new long[6];
+
+  private Phase       phase = Phase.WARMUP;
+  private long        start;
+  private long        measureStart;
+  private long        measureEnd;
+  private long        issued;
+  private long        completed;
+  private long        errors;
+  private long        timeouts;
+  private long        reconnects;
+  private long        unfinished;
+  private long        bytesReceived;
+  private long        bytesSent;
+  private IOException lastError;
+
+  /**
+   * Constructor.
+   * 
+   * @param options Run options.
+   * 
+   * @throws GeneralSecurityException If the SSL context cannot be created.
+   * 
+   */
+  LoadGenerator(final Options options) throws GeneralSecurityException {
+    this.options = options;
+    // The client runs on the selector thread, the loop executor is never used.
+    this.loop    = new EventLoop(LOOP_THREADS);
+
+    final SSLContext sslContext = options.isHTTPS() ? createSSLContext(options) : null;
+    final InetSocketAddress address = new InetSocketAddress(options.url.getHost(), options.getPort());
+
+    String host = options.url.getHost();
+    if (options.url.getPort() != -1)
+      host += ":" + options.url.getPort();
+
+    final byte payload[] = options.scenario.request(host, options.path, options.keepAlive);
+
+    connections = new Connection[options.connections];
+    for (int i = 0; i < connections.length; i++) {
+      connections[i] = new Connection(this, loop, address, sslContext, options.resume, payload,
+        options.pipeline);
+    }
+  }
+
+  /**
+   * Run the warmup and the measurement, returning when the last response arrived or timed out.
+   * 
+   * @throws InterruptedException
+   * 
+   */
+  void run() throws InterruptedException {
+    final Thread thread = new Thread(loop, "loadgen-event-loop");
+    thread.setDaemon(true);
+    thread.start();
+
+    loop.registerTimer(0, new TimerListener() {
+      @Override
+      public void timeout() {
+        begin();
+      }
+    });
+
+    done.await();
+    loop.stop(1000);
+  }
+
+  /**
+   * Print the run summary.
+   * 
+   * @param out Stream to receive the report.
+   * 
+   */
+  void report(final PrintStream out) {
+    final double seconds = (measureEnd - measureStart) / 1e9;
+
+    out.println(String.format(Locale.ROOT, "Scenario %s against %s, %s, %d connections, pipeline %d, %s",
+      options.scenario.name().toLowerCase(Locale.ROOT), options.url,
+      options.isOpenLoop() ? String.format(Locale.ROOT, "open loop at %.1f req/s", options.rate) : "closed loop",
+      options.connections, options.pipeline, options.keepAlive ? "keep-alive" : "connection per request"));
+    out.println(String.format(Locale.ROOT, "  %d responses in %.3fs, %.1f req/s, %.2f MB read, %.2f MB written",
+      completed, seconds, completed / seconds, bytesReceived / 1048576.0, bytesSent / 1048576.0));
+    out.println(String.format(Locale.ROOT, "  status 1xx=%d 2xx=%d 3xx=%d 4xx=%d 5xx=%d other=%d", statuses[1],
+      statuses[2], statuses[3], statuses[4], statuses[5], statuses[0]));
+    out.println(String.format(Locale.ROOT, "  errors=%d timeouts=%d closed by server=%d unsent=%d unfinished=%d",
+      errors, timeouts, reconnects, pending.size(), unfinished));
+    if (lastError != null)
+      out.println("  last error: " + lastError);
+
+    if (options.isOpenLoop())
+      printPercentiles(out, "Latency from the intended send time (corrected for coordinated omission)", latency);
+
+    printPercentiles(out, "Latency from the actual send time", service);
+    printPercentiles(out, options.isHTTPS() ? "Connect and SSL handshake" : "Connect", connect);
+  }
+
+  /**
+   * Write the latency distribution in the HdrHistogram text format, in milliseconds.
+   * 
+   * @param file Destination file.
+   * 
+   * @throws IOException
+   * 
+   */
+  void writeDistribution(final String file) throws IOException {
+    try (final PrintStream out = new PrintStream(new FileOutputStream(file), false, "UTF-8")) {
+      (options.isOpenLoop() ? latency : service).outputPercentileDistribution(out, 1000.0);
+    }
+  }
+
+  void opened(final Connection connection, final long nanos) {
+    connect.recordValue(nanos / 1000);
+  }
+
+  void completed(final Connection connection, final Request request, final int status, final long length) {
+    final long now = System.nanoTime();
+
+    latency.recordValue((now - request.intended) / 1000);
+    service.recordValue((now - request.sent) / 1000);
+
+    completed++;
+    statuses[status >= 100 && status < 600 ? status / 100 : 0]++;
+
+    fill(connection);
+  }
+
+  void closed(final Connection connection, final List<Request> requests, final IOException error,
+    final boolean timeout) {
+    int first = 0;
+    if (error != null) {
+      lastError = error;
+      if (!requests.isEmpty()) {
+        if (timeout)
+          timeouts++;
+        else
+          errors++;
+
+        first = 1;
+      }
+    }
+    else
+      reconnects++;
+
+    for (int i = requests.size() - 1; i >= first; i--)
+      pending.addFirst(requests.get(i));
+
+    // A failed connection waits for the next sweep, a server that refuses connections would spin otherwise.
+    if (error != null)
+      markIdle(connection);
+    else
+      fill(connection);
+  }
+
+  void received(final int bytes) {
+    bytesReceived += bytes;
+  }
+
+  void sent(final int bytes) {
+    bytesSent += bytes;
+  }
+
+  private void begin() {
+    start = System.nanoTime();
+    if (options.warmup == 0)
+      measure(start);
+
+    for (final Connection connection : connections)
+      fill(connection);
+
+    if (options.isOpenLoop())
+      loop.registerTimer(0, new Pacer());
+
+    loop.registerTimer(SWEEP_INTERVAL_MS, new Sweeper());
+  }
+
+  private void measure(final long now) {
+    latency.reset();
+    service.reset();
+    connect.reset();
+
+    for (int i = 0; i < statuses.length; i++)
+      statuses[i] = 0;
+
+    completed = errors = timeouts = reconnects = bytesReceived = bytesSent = 0;
+    lastError    = null;
+    measureStart = now;
+    phase        = Phase.MEASURE;
+  }
+
+  private void fill(final Connection connection) {
+    if (phase == Phase.DRAIN || phase == Phase.DONE)
+      return;
+
+    while (!connection.idle && connection.hasCapacity()) {
+      Request request = pending.poll();
+      if (request == null) {
+        if (options.isOpenLoop()) {
+          markIdle(connection);
+          return;
+        }
+
+        request = new Request(System.nanoTime());
+      }
+
+      connection.send(request);
+    }
+  }
+
+  private void markIdle(final Connection connection) {
+    if (!connection.idle) {
+      connection.idle = true;
+      idle.add(connection);
+    }
+  }
+
+  private void fillIdle() {
+    Connection connection;
+    while ((options.isOpenLoop() ? !pending.isEmpty() : true) && (connection = idle.poll()) != null) {
+      connection.idle = false;
+      fill(connection);
+    }
+  }
+
+  private void finish() {
+    phase = Phase.DONE;
+    for (final Connection connection : connections) {
+      if (connection.getOldestSent() != -1)
+        unfinished++;
+
+      connection.close();
+    }
+
+    done.countDown();
+  }
+
+  private static SSLContext createSSLContext(final Options options) throws GeneralSecurityException {
+    final SSLContext sslContext = SSLContext.getInstance(options.tlsProtocol == null ? "TLS" : options.tlsProtocol);
+
+    TrustManager trustManagers[] = null;
+    if (options.insecure) {
+      trustManagers = new TrustManager[] { new X509TrustManager() {
+        @Override
+        public void checkClientTrusted(final X509Certificate chain[], final String authType) {}
+
+        @Override
+        public void checkServerTrusted(final X509Certificate chain[], final String authType) {}
+
+        @Override
+        public X509Certificate[] getAcceptedIssuers() {
+          return new X509Certificate[0];
+        }
+      }};
+    }
+
+    sslContext.init(null, trustManagers, null);
+    return sslContext;
+  }
+
+  private static void printPercentiles(final PrintStream out, final String title, final Histogram histogram) {
+    out.println(title + " (ms):");
+    out.println(String.format(Locale.ROOT, "  min %10.3f  mean %10.3f  stddev %10.3f  max %10.3f  count %d",
+      histogram.getMinValue() / 1000.0, histogram.getMean() / 1000.0, histogram.getStdDeviation() / 1000.0,
+      histogram.getMaxValue() / 1000.0, histogram.getTotalCount()));
+
+    final double percentiles[] = { 50, 75, 90, 99, 99.9, 99.99, 99.999, 100 };
+    for (final double percentile : percentiles) {
+      out.println(String.format(Locale.ROOT, "  %8.3f%% %10.3f", percentile,
+        histogram.getValueAtPercentile(percentile) / 1000.0));
+    }
+  }
+
+  /**
+   * Create the open loop requests at the requested rate, with ms timer resolution.
+   * 
+   */
+  private final class Pacer implements TimerListener {
+    @Override
+    public void timeout() {
+      if (phase == Phase.DRAIN || phase == Phase.DONE)
+        return;
+
+      final long now = System.nanoTime();
+      for (;;) {
+        final long intended = start + (long) (issued * 1e9 / options.rate);
+        if (intended > now)
+          break;
+
+        pending.add(new Request(intended));
+        issued++;
+      }
+
+      fillIdle();
+
+      final long next = start + (long) (issued * 1e9 / options.rate);
+      loop.registerTimer((int) Math.max(1, (next - now) / 1000000), this);
+    }
+  }
+
+  /**
+   * Move the run between the phases, expire the requests and give failed connections another try.
+   * 
+   */
+  private final class Sweeper implements TimerListener {
+    @Override
+    public void timeout() {
+      final long now = System.nanoTime();
+
+      if (phase == Phase.WARMUP && now - start >= TimeUnit.SECONDS.toNanos(options.warmup))
+        measure(now);
+      else if (phase == Phase.MEASURE && now - measureStart >= TimeUnit.SECONDS.toNanos(options.duration)) {
+        measureEnd = now;
+        phase      = Phase.DRAIN;
+      }
+
+      final long expired = now - TimeUnit.MILLISECONDS.toNanos(options.timeout);
+      boolean waiting = false;
+      for (final Connection connection : connections) {
+        final long sent = connection.getOldestSent();
+        if (sent != -1 && sent <= expired)
+          connection.abort(new IOException("Request timed out after " + options.timeout + "ms"), true);
+        else if (sent != -1)
+          waiting = true;
+      }
+
+      if (phase == Phase.DRAIN && (!waiting || now - measureEnd >= TimeUnit.MILLISECONDS.toNanos(options.timeout))) {
+        finish();
+        return;
+      }
+
+      fillIdle();
+      loop.registerTimer(SWEEP_INTERVAL_MS, this);
+    }
+  }
+
+  public static void main(final String args[]) throws Exception {
+    final Options options;
+    try {
+      options = Options.parse(args);
+    }
+    catch (IllegalArgumentException e) {
+      System.err.println(e.getMessage());
+      System.err.print(Options.USAGE);
+      System.exit(2);
+      return;
+    }
+
+    final LoadGenerator generator = new LoadGenerator(options);
+    System.err.println(String.format(Locale.ROOT, "Warming up for %ds, measuring for %ds", options.warmup,
+      options.duration));
+    generator.run();
+    generator.report(System.out);
+
+    if (options.hgrm != null)
+      generator.writeDistribution(options.hgrm);
+  }
+}
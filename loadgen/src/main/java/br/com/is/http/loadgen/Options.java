@@ -0,0 +1,150 @@
+/* Copyright (C) 2013 Leonardo Bispo de Oliveira
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package br.com.is.http.loadgen;
+
+import java.net.URI;
+import java.util.Locale;
+
+/**
+ * Command line options of the load generator.
+ * 
+ * @author Leonardo Bispo de Oliveira.
+ *
+ */
+final class Options {
+  static final String USAGE =
+    "Usage: loadgen [options]\n"
+    + "  --url <url>            Server base url (default http://localhost:9999, https://localhost:9991 for handshake)\n"
+    + "  --scenario <name>      static, dynamic, gzip, multipart or handshake (default static)\n"
+    + "  --path <path>          Override the scenario request path\n"
+    + "  --rate <req/s>         Open loop at a constant arrival rate, latency corrected for coordinated omission\n"
+    + "                         (without it the run is closed loop: each connection sends as fast as it gets answers)\n"
+    + "  --connections <n>      Number of connections (default 16)\n"
+    + "  --pipeline <n>         Requests written before waiting for a response, keep-alive only (default 1)\n"
+    + "  --no-keep-alive        Open a new connection for each request\n"
+    + "  --duration <s>         Measured seconds (default 30)\n"
+    + "  --warmup <s>           Seconds run before the measurement starts (default 10)\n"
+    + "  --timeout <ms>         Request timeout (default 5000)\n"
+    + "  --insecure             Trust any server certificate\n"
+    + "  --tls-protocol <name>  Enabled SSL protocol, e.g. TLSv1.2\n"
+    + "  --resume               Allow SSL session resumption (the handshake scenario does full handshakes otherwise)\n"
+    + "  --hgrm <file>          Write the latency percentile distribution in the HdrHistogram format\n";
+
+  URI      url;
+  Scenario scenario    = Scenario.STATIC;
+  String   path        = null;
+  double   rate        = 0;
+  int      connections = 16;
+  int      pipeline    = 1;
+  boolean  keepAlive   = true;
+  int      duration    = 30;
+  int      warmup      = 10;
+  int      timeout     = 5000;
+  boolean  insecure    = false;
+  String   tlsProtocol = null;
+  boolean  resume      = false;
+  String   hgrm        = null;
+
+  /**
+   * Parse the command line.
+   * 
+   * @param args Command line arguments.
+   * 
+   * @return The parsed options.
+   * 
+   * @throws IllegalArgumentException If an option is unknown or has an invalid value.
+   * 
+   */
+  static Options parse(final String args[]) {
+    final Options options = new Options();
+    String url = null;
+
+    for (int i = 0; i < args.length; i++) {
+      switch (args[i]) {
+        case "--url":           url                 = value(args, ++i); break;
+        case "--scenario":      options.scenario    = scenario(value(args, ++i)); break;
+        case "--path":          options.path        = value(args, ++i); break;
+        case "--rate":          options.rate        = Double.parseDouble(value(args, ++i)); break;
+        case "--connections":   options.connections = Integer.parseInt(value(args, ++i)); break;
+        case "--pipeline":      options.pipeline    = Integer.parseInt(value(args, ++i)); break;
+        case "--no-keep-alive": options.keepAlive   = false; break;
+        case "--duration":      options.duration    = Integer.parseInt(value(args, ++i)); break;
+        case "--warmup":        options.warmup      = Integer.parseInt(value(args, ++i)); break;
+        case "--timeout":       options.timeout     = Integer.parseInt(value(args, ++i)); break;
+        case "--insecure":      options.insecure    = true; break;
+        case "--tls-protocol":  options.tlsProtocol = value(args, ++i); break;
+        case "--resume":        options.resume      = true; break;
+        case "--hgrm":          options.hgrm        = value(args, ++i); break;
+        default:
+          throw new IllegalArgumentException("Unknown option: " + args[i]);
+      }
+    }
+
+    if (options.scenario.isHandshake())
+      options.keepAlive = false;
+
+    if (url == null)
+      url = options.scenario.isHandshake() ? "https://localhost:9991" : "http://localhost:9999";
+
+    options.url = URI.create(url);
+    if (!"http".equals(options.url.getScheme()) && !"https".equals(options.url.getScheme()))
+      throw new IllegalArgumentException("Only http and https urls are supported: " + url);
+
+    if (options.scenario.isHandshake() && !options.isHTTPS())
+      throw new IllegalArgumentException("The handshake scenario needs an https url");
+
+    if (options.rate < 0 || options.connections < 1 || options.pipeline < 1 || options.duration < 1
+      || options.warmup < 0 || options.timeout < 1)
+      throw new IllegalArgumentException("Rate, connections, pipeline, duration, warmup and timeout must be positive");
+
+    if (!options.keepAlive)
+      options.pipeline = 1;
+
+    return options;
+  }
+
+  boolean isHTTPS() {
+    return "https".equals(url.getScheme());
+  }
+
+  boolean isOpenLoop() {
+    return rate > 0;
+  }
+
+  int getPort() {
+    if (url.getPort() != -1)
+      return url.getPort();
+
+    return isHTTPS() ? 443 : 80;
+  }
+
+  private static String value(final String args[], final int index) {
+    if (index >= args.length)
+      throw new IllegalArgumentException("Missing value for " + args[index - 1]);
+
+    return args[index];
+  }
+
+  private static Scenario scenario(final String name) {
+    try {
+      return Scenario.valueOf(name.toUpperCase(Locale.ROOT));
+    }
+    catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException("Unknown scenario: " + name);
+    }
+  }
+}
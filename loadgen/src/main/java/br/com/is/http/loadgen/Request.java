@@ -0,0 +1,33 @@
+/* Copyright (C) 2013 Leonardo Bispo de Oliveira
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package br.com.is.http.loadgen;
+
+/**
+ * One request of the run. The intended time is when the request should have been sent: the pacer time in the
+ * open loop mode, so the latency measured from it includes the time spent waiting behind slow responses.
+ * 
+ * @author Leonardo Bispo de Oliveira.
+ *
+ */
+final class Request {
+  final long intended;
+  long       sent;
+
+  Request(final long intended) {
+    this.intended = intended;
+  }
+}
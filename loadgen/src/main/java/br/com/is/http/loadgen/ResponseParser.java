@@ -0,0 +1,259 @@
+/* Copyright (C) 2013 Leonardo Bispo de Oliveira
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package br.com.is.http.loadgen;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Incremental HTTP/1.x response parser. Data is fed as it arrives from the socket and the parser stops at the
+ * end of each response, leaving the bytes of pipelined responses in the buffer. The body is counted, never
+ * stored.
+ * 
+ * @author Leonardo Bispo de Oliveira.
+ *
+ */
+final class ResponseParser {
+  private static final int MAX_LINE_LENGTH = 8192;
+
+  private enum State { STATUS, HEADER, BODY, CHUNK_SIZE, CHUNK_DATA, CHUNK_END, TRAILER, UNTIL_CLOSE, DONE }
+
+  private final StringBuilder line = new StringBuilder();
+
+  private State   state;
+  private int     status;
+  private boolean keepAlive;
+  private boolean chunked;
+  private long    contentLength;
+  private long    remaining;
+  private long    bodyLength;
+
+  ResponseParser() {
+    reset();
+  }
+
+  /**
+   * Prepare the parser for the next response on the same connection.
+   * 
+   */
+  void reset() {
+    line.setLength(0);
+    state         = State.STATUS;
+    status        = 0;
+    keepAlive     = true;
+    chunked       = false;
+    contentLength = -1;
+    remaining     = 0;
+    bodyLength    = 0;
+  }
+
+  /**
+   * Consume response bytes.
+   * 
+   * @param data Bytes read from the connection. Bytes after the end of the response are left in the buffer.
+   * 
+   * @return True when a complete response was parsed.
+   * 
+   * @throws IOException If the response is malformed.
+   * 
+   */
+  boolean parse(final ByteBuffer data) throws IOException {
+    while (state != State.DONE && data.hasRemaining()) {
+      switch (state) {
+        case STATUS:
+          if (readLine(data))
+            parseStatus();
+        break;
+        case HEADER:
+          if (readLine(data))
+            parseHeader();
+        break;
+        case BODY:
+        case CHUNK_DATA:
+          final int length = (int) Math.min(remaining, data.remaining());
+          data.position(data.position() + length);
+          remaining  -= length;
+          bodyLength += length;
+          if (remaining == 0)
+            state = state == State.BODY ? State.DONE : State.CHUNK_END;
+        break;
+        case CHUNK_SIZE:
+          if (readLine(data))
+            parseChunkSize();
+        break;
+        case CHUNK_END:
+          if (readLine(data)) {
+            if (line.length() != 0)
+              throw new IOException("Missing CRLF after chunk data");
+            state = State.CHUNK_SIZE;
+          }
+        break;
+        case TRAILER:
+          if (readLine(data)) {
+            if (line.length() == 0)
+              state = State.DONE;
+            line.setLength(0);
+          }
+        break;
+        case UNTIL_CLOSE:
+          bodyLength += data.remaining();
+          data.position(data.limit());
+        break;
+        default:
+        break;
+      }
+    }
+
+    return state == State.DONE;
+  }
+
+  /**
+   * Signal the end of the connection.
+   * 
+   * @return True if the connection end completes a response delimited by the connection close.
+   * 
+   */
+  boolean end() {
+    if (state == State.UNTIL_CLOSE) {
+      state = State.DONE;
+      return true;
+    }
+
+    return false;
+  }
+
+  /**
+   * Return if the parser is in the middle of a response.
+   * 
+   * @return True if at least one byte of the current response was consumed.
+   * 
+   */
+  boolean isStarted() {
+    return state != State.STATUS || line.length() != 0;
+  }
+
+  int getStatus() {
+    return status;
+  }
+
+  boolean isKeepAlive() {
+    return keepAlive;
+  }
+
+  long getBodyLength() {
+    return bodyLength;
+  }
+
+  private boolean readLine(final ByteBuffer data) throws IOException {
+    while (data.hasRemaining()) {
+      final char c = (char) (data.get() & 0xFF);
+      if (c == '\n') {
+        final int last = line.length() - 1;
+        if (last >= 0 && line.charAt(last) == '\r')
+          line.setLength(last);
+
+        return true;
+      }
+
+      if (line.length() == MAX_LINE_LENGTH)
+        throw new IOException("Response line is too long");
+
+      line.append(c);
+    }
+
+    return false;
+  }
+
+  private void parseStatus() throws IOException {
+    if (line.length() < 12 || !line.toString().startsWith("HTTP/1."))
+      throw new IOException("Invalid status line: " + line);
+
+    try {
+      status = Integer.parseInt(line.substring(9, 12));
+    }
+    catch (NumberFormatException e) {
+      throw new IOException("Invalid status line: " + line);
+    }
+
+    keepAlive = line.charAt(7) != '0';
+    line.setLength(0);
+    state = State.HEADER;
+  }
+
+  private void parseHeader() throws IOException {
+    if (line.length() == 0) {
+      startBody();
+      return;
+    }
+
+    final int colon = line.indexOf(":");
+    if (colon > 0) {
+      final String name  = line.substring(0, colon).trim();
+      final String value = line.substring(colon + 1).trim();
+
+      if (name.equalsIgnoreCase("Content-Length")) {
+        try {
+          contentLength = Long.parseLong(value);
+        }
+        catch (NumberFormatException e) {
+          throw new IOException("Invalid Content-Length: " + value);
+        }
+      }
+      else if (name.equalsIgnoreCase("Transfer-Encoding"))
+        chunked = value.toLowerCase().contains("chunked");
+      else if (name.equalsIgnoreCase("Connection")) {
+        if (value.equalsIgnoreCase("close"))
+          keepAlive = false;
+        else if (value.equalsIgnoreCase("keep-alive"))
+          keepAlive = true;
+      }
+    }
+
+    line.setLength(0);
+  }
+
+  private void startBody() {
+    if ((status >= 100 && status < 200) || status == 204 || status == 304)
+      state = State.DONE;
+    else if (chunked)
+      state = State.CHUNK_SIZE;
+    else if (contentLength >= 0) {
+      remaining = contentLength;
+      state     = remaining == 0 ? State.DONE : State.BODY;
+    }
+    else {
+      keepAlive = false;
+      state     = State.UNTIL_CLOSE;
+    }
+  }
+
+  private void parseChunkSize() throws IOException {
+    int end = line.indexOf(";");
+    if (end == -1)
+      end = line.length();
+
+    try {
+      remaining = Long.parseLong(line.substring(0, end).trim(), 16);
+    }
+    catch (NumberFormatException e) {
+      throw new IOException("Invalid chunk size: " + line);
+    }
+
+    line.setLength(0);
+    state = remaining == 0 ? State.TRAILER : State.CHUNK_DATA;
+  }
+}
@@ -0,0 +1,126 @@
+/* Copyright (C) 2013 Leonardo Bispo de Oliveira
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package br.com.is.http.loadgen;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Request mixes of the load generator. The default paths match the contexts registered by {@link BenchServer}.
+ * 
+ * @author Leonardo Bispo de Oliveira.
+ *
+ */
+enum Scenario {
+  STATIC("GET", "/static.html", false, false),
+  DYNAMIC("GET", "/hello?name=loadgen", false, false),
+  GZIP("GET", "/lorem.txt", true, false),
+  MULTIPART("POST", "/upload", false, false),
+  HANDSHAKE("GET", "/hello?name=loadgen", false, true);
+
+  static final int UPLOAD_SIZE = 64 * 1024;
+
+  private static final String BOUNDARY = "----loadgen7MA4YWxkTrZu0gW";
+
+  private final String  method;
+  private final String  path;
+  private final boolean gzip;
+  private final boolean handshake;
+
+  private Scenario(final String method, final String path, final boolean gzip, final boolean handshake) {
+    this.method    = method;
+    this.path      = path;
+    this.gzip      = gzip;
+    this.handshake = handshake;
+  }
+
+  String getPath() {
+    return path;
+  }
+
+  /**
+   * Return if the scenario measures the SSL handshake. It runs on HTTPS with a new connection per request.
+   * 
+   * @return True for the handshake scenario.
+   * 
+   */
+  boolean isHandshake() {
+    return handshake;
+  }
+
+  /**
+   * Build the bytes of the scenario request.
+   * 
+   * @param host Host header value.
+   * @param path Request path, or null for the scenario default.
+   * @param keepAlive Ask the server to keep the connection open.
+   * 
+   * @return The complete request.
+   * 
+   */
+  byte[] request(final String host, final String path, final boolean keepAlive) {
+    final StringBuilder sb = new StringBuilder();
+    sb.append(method).append(' ').append(path == null ? this.path : path).append(" HTTP/1.1\r\n")
+      .append("Host: ").append(host).append("\r\n")
+      .append("User-Agent: tinyhttp-loadgen\r\n")
+      .append("Accept: */*\r\n")
+      .append("Connection: ").append(keepAlive ? "keep-alive" : "close").append("\r\n");
+
+    if (gzip)
+      sb.append("Accept-Encoding: gzip\r\n");
+
+    byte body[] = null;
+    if (this == MULTIPART) {
+      body = multipartBody();
+      sb.append("Content-Type: multipart/form-data; boundary=").append(BOUNDARY).append("\r\n")
+        .append("Content-Length: ").append(body.length).append("\r\n");
+    }
+
+    sb.append("\r\n");
+
+    final ByteArrayOutputStream os = new ByteArrayOutputStream();
+    final byte header[] = sb.toString().getBytes(StandardCharsets.ISO_8859_1);
+    os.write(header, 0, header.length);
+    if (body != null)
+      os.write(body, 0, body.length);
+
+    return os.toByteArray();
+  }
+
+  private static byte[] multipartBody() {
+    final byte file[] = new byte[UPLOAD_SIZE];
+    new Random(42).nextBytes(file);
+
+    final String field = "--" + BOUNDARY + "\r\n"
+      + "Content-Disposition: form-data; name=\"name\"\r\n\r\n"
+      + "loadgen\r\n"
+      + "--" + BOUNDARY + "\r\n"
+      + "Content-Disposition: form-data; name=\"file\"; filename=\"upload.bin\"\r\n"
+      + "Content-Type: application/octet-stream\r\n\r\n";
+    final String end = "\r\n--" + BOUNDARY + "--\r\n";
+
+    final ByteArrayOutputStream os = new ByteArrayOutputStream();
+    final byte head[] = field.getBytes(StandardCharsets.ISO_8859_1);
+    final byte tail[] = end.getBytes(StandardCharsets.ISO_8859_1);
+    os.write(head, 0, head.length);
+    os.write(file, 0, file.length);
+    os.write(tail, 0, tail.length);
+
+    return os.toByteArray();
+  }
+}
@@ -0,0 +1,86 @@
+package br.com.is.http.loadgen;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import org.junit.Test;
+
+public final class HistogramTest {
+  @Test
+  public void testExactBelowSubBucketCount() {
+    final Histogram histogram = new Histogram(3600000000L, 3);
+    for (int i = 1; i <= 1000; i++)
+      histogram.recordValue(i);
+
+    assertEquals(1000, histogram.getTotalCount());
+    assertEquals(1, histogram.getMinValue());
+    assertEquals(1000, histogram.getMaxValue());
+    assertEquals(500, histogram.getValueAtPercentile(50));
+    assertEquals(990, histogram.getValueAtPercentile(99));
+    assertEquals(1000, histogram.getValueAtPercentile(100));
+    assertEquals(500.5, histogram.getMean(), 0.001);
+  }
+
+  @Test
+  public void testSignificantDigits() {
+    final Histogram histogram = new Histogram(3600000000L, 3);
+    final long values[] = { 2047, 2048, 123456, 98765432, 3599999999L };
+    for (final long value : values) {
+      histogram.reset();
+      histogram.recordValue(value);
+
+      final long recorded = histogram.getValueAtPercentile(100);
+      assertEquals(value, recorded);
+
+      histogram.recordValue(value + 1);
+      final long median = histogram.getValueAtPercentile(50);
+      assertTrue("value " + value + " recorded as " + median, Math.abs(median - value) <= value / 1000);
+    }
+  }
+
+  @Test
+  public void testOverflowIsClamped() {
+    final Histogram histogram = new Histogram(1000, 2);
+    histogram.recordValue(10);
+    histogram.recordValue(5000);
+
+    assertEquals(1, histogram.getOverflowCount());
+    assertEquals(1000, histogram.getMaxValue());
+    assertEquals(1000, histogram.getValueAtPercentile(100));
+  }
+
+  @Test
+  public void testReset() {
+    final Histogram histogram = new Histogram(1000, 2);
+    histogram.recordValue(10);
+    histogram.reset();
+
+    assertEquals(0, histogram.getTotalCount());
+    assertEquals(0, histogram.getMaxValue());
+    assertEquals(0, histogram.getValueAtPercentile(99));
+  }
+
+  @Test
+  public void testPercentileDistribution() throws Exception {
+    final Histogram histogram = new Histogram(3600000000L, 3);
+    for (int i = 0; i < 10000; i++)
+      histogram.recordValue(1000 + i);
+
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    histogram.outputPercentileDistribution(new PrintStream(bytes, true, "UTF-8"), 1000.0);
+
+    final String lines[] = bytes.toString("UTF-8").split("\n");
+    assertTrue(lines[0].contains("Percentile"));
+    assertTrue(lines[2].trim().startsWith("1.000 0.0001"));
+    assertTrue(bytes.toString("UTF-8").contains("1.000000000000      10000"));
+    assertTrue(lines[lines.length - 2].contains("Total count    =        10000"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidDigits() {
+    new Histogram(1000, 6);
+  }
+}
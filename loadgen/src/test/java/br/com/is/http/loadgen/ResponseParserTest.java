@@ -0,0 +1,75 @@
+package br.com.is.http.loadgen;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public final class ResponseParserTest {
+  private static ByteBuffer wrap(final String data) {
+    return ByteBuffer.wrap(data.getBytes(StandardCharsets.ISO_8859_1));
+  }
+
+  @Test
+  public void testContentLengthPipelined() throws Exception {
+    final ResponseParser parser = new ResponseParser();
+    final ByteBuffer data = wrap("HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\nhello"
+      + "HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\n\r\n");
+
+    assertTrue(parser.parse(data));
+    assertEquals(200, parser.getStatus());
+    assertEquals(5, parser.getBodyLength());
+    assertTrue(parser.isKeepAlive());
+
+    parser.reset();
+    assertTrue(parser.parse(data));
+    assertEquals(404, parser.getStatus());
+    assertEquals(0, parser.getBodyLength());
+    assertFalse(data.hasRemaining());
+  }
+
+  @Test
+  public void testChunkedSplitAcrossReads() throws Exception {
+    final ResponseParser parser = new ResponseParser();
+    final String response = "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\nContent-Encoding: gzip\r\n\r\n"
+      + "4\r\nabcd\r\na;ext=1\r\n0123456789\r\n0\r\nX-Trailer: 1\r\n\r\n";
+
+    for (int i = 0; i < response.length() - 1; i++) {
+      assertFalse(parser.parse(wrap(response.substring(i, i + 1))));
+      assertTrue(parser.isStarted());
+    }
+
+    assertTrue(parser.parse(wrap(response.substring(response.length() - 1))));
+    assertEquals(14, parser.getBodyLength());
+  }
+
+  @Test
+  public void testBodyUntilClose() throws Exception {
+    final ResponseParser parser = new ResponseParser();
+
+    assertFalse(parser.parse(wrap("HTTP/1.1 200 OK\r\nConnection: close\r\n\r\nsome body")));
+    assertFalse(parser.isKeepAlive());
+    assertTrue(parser.end());
+    assertEquals(9, parser.getBodyLength());
+  }
+
+  @Test
+  public void testNoBodyStatus() throws Exception {
+    final ResponseParser parser = new ResponseParser();
+
+    assertTrue(parser.parse(wrap("HTTP/1.0 304 Not Modified\r\nETag: \"x\"\r\n\r\n")));
+    assertEquals(304, parser.getStatus());
+    assertFalse(parser.isKeepAlive());
+    assertFalse(parser.end());
+  }
+
+  @Test(expected = IOException.class)
+  public void testInvalidStatusLine() throws Exception {
+    new ResponseParser().parse(wrap("SSH-2.0-OpenSSH\r\n"));
+  }
+}
@@ -0,0 +1,99 @@
+/* Copyright (C) 2013 Leonardo Bispo de Oliveira
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package br.com.is.events;
+
+import java.net.SocketAddress;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.net.ssl.SSLSession;
+
+/**
+ * Holder of the ServerEvents implementation. The first provider found by the ServiceLoader is used, otherwise the
+ * events are discarded by an empty implementation that the JIT inlines away.
+ * 
+ * @author Leonardo Bispo de Oliveira.
+ *
+ */
+public final class Events {
+  private static final Logger LOGGER = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+
+  private static final ServerEvents EVENTS = load();
+
+  private Events() {}
+
+  /**
+   * Returns the events implementation.
+   * 
+   * @return The ServerEvents provider, never null.
+   * 
+   */
+  public static ServerEvents get() {
+    return EVENTS;
+  }
+
+  private static ServerEvents load() {
+    try {
+      for (ServerEvents events : ServiceLoader.load(ServerEvents.class, Events.class.getClassLoader())) {
+        if (LOGGER.isLoggable(Level.INFO))
+          LOGGER.info("Using server events provider: " + events.getClass().getName());
+
+        return events;
+      }
+    }
+    catch (ServiceConfigurationError e) {
+      if (LOGGER.isLoggable(Level.WARNING))
+        LOGGER.log(Level.WARNING, "Problems to load the server events provider", e);
+    }
+
+    return new NoEvents();
+  }
+
+  private static final class NoEvents implements ServerEvents {
+    @Override
+    public void connectionAccepted(final SocketAddress remote, final boolean ssl) {}
+
+    @Override
+    public void connectionClosed(final SocketAddress remote, final boolean ssl, final long bytesReceived,
+      final long bytesSent, final long duration) {}
+
+    @Override
+    public Object requestStarted() {
+      return null;
+    }
+
+    @Override
+    public void requestFinished(final Object token, final String method, final String uri, final Class<?> context,
+      final int status, final long bytes, final long accept, final long parse, final long queue, final long handler,
+      final long write) {}
+
+    @Override
+    public void tlsHandshake(final SocketAddress remote, final SSLSession session, final long duration,
+      final boolean success) {}
+
+    @Override
+    public void sessionCreated(final String id) {}
+
+    @Override
+    public void sessionExpired(final String id) {}
+
+    @Override
+    public void executorRejected() {}
+  }
+}
@@ -0,0 +1,119 @@
+/* Copyright (C) 2013 Leonardo Bispo de Oliveira
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package br.com.is.events;
+
+import java.net.SocketAddress;
+
+import javax.net.ssl.SSLSession;
+
+/**
+ * Service provider interface notified of the server lifecycle events, used to feed profilers such as the JDK Flight
+ * Recorder. The implementation is looked up with the ServiceLoader, see {@link Events}.
+ * 
+ * The methods are called from the event loop and worker threads on the request path, so an implementation must
+ * return quickly and must check if its events are enabled before doing any work. The arguments are the objects the
+ * server already has at hand; converting them (e.g. the socket address to a string) is left to the implementation.
+ * 
+ * @author Leonardo Bispo de Oliveira.
+ *
+ */
+public interface ServerEvents {
+  /**
+   * Called when a connection has been accepted.
+   * 
+   * @param remote Client address.
+   * @param ssl True if it is an HTTPS connection.
+   * 
+   */
+  public void connectionAccepted(final SocketAddress remote, final boolean ssl);
+
+  /**
+   * Called when a connection has been closed.
+   * 
+   * @param remote Client address.
+   * @param ssl True if it is an HTTPS connection.
+   * @param bytesReceived Bytes read from the connection.
+   * @param bytesSent Bytes written to the connection.
+   * @param duration Connection lifetime in nanoseconds.
+   * 
+   */
+  public void connectionClosed(final SocketAddress remote, final boolean ssl, final long bytesReceived,
+    final long bytesSent, final long duration);
+
+  /**
+   * Called by the worker thread when it starts handling a request.
+   * 
+   * @return A token passed back to requestFinished, or null if the request events are disabled.
+   * 
+   */
+  public Object requestStarted();
+
+  /**
+   * Called by the same worker thread when the response has been written. Not called if requestStarted returned null.
+   * 
+   * @param token The value returned by requestStarted.
+   * @param method Request method.
+   * @param uri Request URI, without the query string.
+   * @param context Class of the context that handled the request.
+   * @param status Response status.
+   * @param bytes Bytes written to the client, headers included.
+   * @param accept Nanoseconds from the connection accept to the first request byte.
+   * @param parse Nanoseconds parsing the request header.
+   * @param queue Nanoseconds waiting for a worker thread.
+   * @param handler Nanoseconds running the context, without the socket writes.
+   * @param write Nanoseconds writing the response to the socket.
+   * 
+   */
+  public void requestFinished(final Object token, final String method, final String uri, final Class<?> context,
+    final int status, final long bytes, final long accept, final long parse, final long queue, final long handler,
+    final long write);
+
+  /**
+   * Called when a TLS handshake has finished.
+   * 
+   * @param remote Client address.
+   * @param session The negotiated session. Its protocol and cipher suite are not valid if the handshake failed.
+   * @param duration Nanoseconds from the first handshake record to the end of the handshake.
+   * @param success False if the handshake failed.
+   * 
+   */
+  public void tlsHandshake(final SocketAddress remote, final SSLSession session, final long duration,
+    final boolean success);
+
+  /**
+   * Called when a new HTTP session has been created.
+   * 
+   * @param id Session id.
+   * 
+   */
+  public void sessionCreated(final String id);
+
+  /**
+   * Called when a session store discards an expired session.
+   * 
+   * @param id Session id.
+   * 
+   */
+  public void sessionExpired(final String id);
+
+  /**
+   * Called when the executor rejects a task because all the threads are busy and its queue is full. The task is kept
+   * in the event loop overflow queue and dispatched later.
+   * 
+   */
+  public void executorRejected();
+}
@@ -0,0 +1,153 @@
+/* Copyright (C) 2013 Leonardo Bispo de Oliveira
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package br.com.is.http.server;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Response kept by the {@link HTTPResponseCache}: the status, the headers and the body exactly as it was written to the
+ * socket (already compressed and chunked when an encoder was used), in pages of the cache {@link PagePool}. The
+ * pages are reference counted, the cache holds one reference while the entry is live and every request serving it
+ * holds another one, so an evicted entry is only recycled after the last request finished writing it.
+ * 
+ * @author Leonardo Bispo de Oliveira.
+ *
+ */
+final class CachedResponse {
+  enum Queue { WINDOW, PROBATION, PROTECTED }
+
+  final String key;
+  final int    status;
+  final String headers[];
+  final String etag;
+  final int    length;
+  final int    weight;
+
+  private final PagePool      pool;
+  private final int           pages[];
+  private final ByteBuffer    views[];
+  private final AtomicInteger references = new AtomicInteger(1);
+
+  private volatile long storedAt;
+  private volatile long expiresAt;
+
+  String                     primary;
+  HTTPResponseCache.Variants variants;
+  Queue                      queue;
+  CachedResponse             previous;
+  CachedResponse             next;
+
+  /**
+   * Constructor. The new entry holds the reference owned by the cache.
+   * 
+   * @param key Cache key.
+   * @param status Response status.
+   * @param headers Response header names and values, alternated.
+   * @param etag Entity tag, or null.
+   * @param pool Pool owning the body pages.
+   * @param pages Body pages.
+   * @param length Body length in bytes.
+   * @param storedAt Time the response was produced, in {@link System#nanoTime()} units.
+   * @param expiresAt Time the response becomes stale, in {@link System#nanoTime()} units.
+   * 
+   */
+  CachedResponse(final String key, final int status, final String headers[], final String etag, final PagePool pool,
+    final int pages[], final int length, final long storedAt, final long expiresAt) {
+    this.key       = key;
+    this.status    = status;
+    this.headers   = headers;
+    this.etag      = etag;
+    this.pool      = pool;
+    this.pages     = pages;
+    this.length    = length;
+    this.weight    = Math.max(1, pages.length) * PagePool.PAGE_SIZE;
+    this.storedAt  = storedAt;
+    this.expiresAt = expiresAt;
+
+    views = new ByteBuffer[pages.length];
+    for (int i = 0; i < pages.length; i++) {
+      views[i] = pool.page(pages[i]);
+      views[i].limit(Math.min(PagePool.PAGE_SIZE, length - i * PagePool.PAGE_SIZE));
+    }
+  }
+
+  /**
+   * Take a reference to the body.
+   * 
+   * @return False if the entry was already released and its pages may have been reused.
+   * 
+   */
+  boolean retain() {
+    for (;;) {
+      final int current = references.get();
+      if (current == 0)
+        return false;
+
+      if (references.compareAndSet(current, current + 1))
+        return true;
+    }
+  }
+
+  /**
+   * Drop a reference, returning the pages to the pool with the last one.
+   * 
+   */
+  void release() {
+    if (references.decrementAndGet() == 0)
+      pool.release(pages, pages.length);
+  }
+
+  /**
+   * Return the body pages, each one limited to the bytes it holds. The caller must hold a reference.
+   * 
+   * @return Independent views over the body pages.
+   * 
+   */
+  ByteBuffer[] body() {
+    final ByteBuffer body[] = new ByteBuffer[views.length];
+    for (int i = 0; i < views.length; i++)
+      body[i] = views[i].duplicate();
+
+    return body;
+  }
+
+  /**
+   * Extend the freshness of the entry after the origin confirmed it did not change.
+   * 
+   * @param now Current time, in {@link System#nanoTime()} units.
+   * @param expiresAt Time the response becomes stale again.
+   * 
+   */
+  void refresh(final long now, final long expiresAt) {
+    this.storedAt  = now;
+    this.expiresAt = expiresAt;
+  }
+
+  long age(final long now) {
+    return Math.max(0, now - storedAt);
+  }
+
+  boolean isFresh(final long now) {
+    return now - expiresAt < 0;
+  }
+
+  static int spread(final int hash) {
+    final int h = hash * 0x9e3779b9;
+    return h ^ (h >>> 16);
+  }
+}
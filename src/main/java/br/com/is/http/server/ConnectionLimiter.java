@@ -0,0 +1,145 @@
+/* Copyright (C) 2013 Leonardo Bispo de Oliveira
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package br.com.is.http.server;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import br.com.is.metrics.Counter;
+import br.com.is.metrics.Gauge;
+import br.com.is.metrics.Histogram;
+import br.com.is.metrics.MetricsRegistry;
+
+/**
+ * Count the open connections, globally and per client address, against the server limits. Connections are acquired
+ * by the event loop when they are accepted and released by whichever thread closes them. An address is forgotten as
+ * soon as its last connection is closed.
+ * 
+ * @author Leonardo Bispo de Oliveira.
+ *
+ */
+final class ConnectionLimiter {
+  private final AtomicInteger                        open      = new AtomicInteger(0);
+  private final ConcurrentMap<String, AtomicInteger> addresses = new ConcurrentHashMap<>();
+
+  private int maxConnections = 0;
+  private int maxPerAddress  = 0;
+
+  final Counter   rejected;
+  final Histogram paused;
+
+  /**
+   * Constructor.
+   * 
+   * @param registry Registry that receives the limiter metrics.
+   * 
+   */
+  ConnectionLimiter(final MetricsRegistry registry) {
+    rejected = registry.counter("tinyhttp_connections_rejected_total",
+      "Connections closed on accept because their address reached the connection limit.");
+    paused   = registry.histogram("tinyhttp_accept_paused_seconds",
+      "Time the server stopped accepting connections, at the connection limit or out of file descriptors.");
+
+    registry.gauge("tinyhttp_connection_addresses", "Client addresses with open connections.", new Gauge() {
+      @Override
+      public long get() {
+        return addresses.size();
+      }
+    });
+  }
+
+  void setMaxConnections(final int max) {
+    if (max < 0)
+      throw new IllegalArgumentException("Maximum connections cannot be negative");
+
+    maxConnections = max;
+  }
+
+  void setMaxConnectionsPerAddress(final int max) {
+    if (max < 0)
+      throw new IllegalArgumentException("Maximum connections per address cannot be negative");
+
+    maxPerAddress = max;
+  }
+
+  /**
+   * Return if the server reached the global connection limit, in which case it must stop accepting.
+   * 
+   * @return True if no connection can be opened, otherwise false.
+   * 
+   */
+  boolean isFull() {
+    return maxConnections > 0 && open.get() >= maxConnections;
+  }
+
+  /**
+   * Account a new connection.
+   * 
+   * @param address Client address.
+   * 
+   * @return True if the connection may be opened, false if its address reached the limit.
+   * 
+   */
+  boolean acquire(final String address) {
+    if (maxPerAddress > 0) {
+      for (;;) {
+        AtomicInteger count = addresses.get(address);
+        if (count == null) {
+          final AtomicInteger created = new AtomicInteger(0);
+          count = addresses.putIfAbsent(address, created);
+          if (count == null)
+            count = created;
+        }
+
+        final int current = count.get();
+        if (current < 0)
+          continue;
+
+        if (current >= maxPerAddress) {
+          rejected.increment();
+          return false;
+        }
+
+        if (count.compareAndSet(current, current + 1))
+          break;
+      }
+    }
+
+    open.incrementAndGet();
+    return true;
+  }
+
+  /**
+   * Account a closed connection.
+   * 
+   * @param address Client address.
+   * 
+   */
+  void release(final String address) {
+    open.decrementAndGet();
+    if (maxPerAddress > 0) {
+      final AtomicInteger count = addresses.get(address);
+      if (count != null && count.decrementAndGet() == 0 && count.compareAndSet(0, -1))
+        addresses.remove(address, count);
+    }
+  }
+
+  int getOpenConnections() {
+    return open.get();
+  }
+}
@@ -0,0 +1,255 @@
+/* Copyright (C) 2013 Leonardo Bispo de Oliveira
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package br.com.is.http.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import br.com.is.metrics.Counter;
+import br.com.is.metrics.MetricsRegistry;
+import br.com.is.nio.EventLoop;
+import br.com.is.nio.listener.TimerListener;
+
+/**
+ * Deadlines of the connections, so a client cannot hold a connection by sending its request, or reading its
+ * response, slowly. Each connection has one deadline, for the phase it is in: idle before the request, reading the
+ * header, reading the body or writing the response.
+ * 
+ * The deadlines are kept in a timing wheel driven by an event loop timer, so arming a deadline is a volatile write
+ * and a queue insert, and a deadline pushed forward is only moved to its new slot when its old slot expires. A
+ * deadline pulled back is inserted again in its earlier slot, and the copy left in the later slot is dropped when
+ * that slot expires. A body deadline is a throughput check: each time it expires the connection must have received
+ * a minimum number of bytes, otherwise it is closed.
+ * 
+ * @author Leonardo Bispo de Oliveira.
+ *
+ */
+final class ConnectionTimeouts implements TimerListener {
+  enum Type { IDLE, HEADER, BODY, WRITE }
+
+  private static final Logger LOGGER = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+
+  private static final int TICK_MS = 250;
+  private static final int SLOTS   = 256;
+
+  private static final ByteBuffer REQUEST_TIMEOUT;
+
+  static {
+    final String body = HTTPStatus.REQUEST_TIMEOUT.getValue() + " " + HTTPStatus.REQUEST_TIMEOUT + "\n";
+    final String response = "HTTP/1.1 " + HTTPStatus.REQUEST_TIMEOUT.getValue() + " " + HTTPStatus.REQUEST_TIMEOUT
+      + "\r\nContent-Type: text/plain\r\nContent-Length: " + body.length() + "\r\nConnection: close\r\n\r\n" + body;
+
+    REQUEST_TIMEOUT = ByteBuffer.wrap(response.getBytes(Charset.forName("US-ASCII"))).asReadOnlyBuffer();
+  }
+
+  private final EventLoop                       loop;
+  private final ConcurrentLinkedQueue<Deadline> wheel[];
+  private final Counter                         expired[] = new Counter[Type.values().length];
+  private final long                            origin    = System.nanoTime();
+  private volatile long                         tick      = 0;
+  private volatile boolean                      started   = false;
+
+  private final long timeouts[]  = { 60000, 20000, 20000, 60000 };
+  private long       minBodyRate = 100;
+
+  /**
+   * Deadline of one connection. It is live in at most one slot of the wheel at a time, the one of the queued tick.
+   * 
+   * @author Leonardo Bispo de Oliveira.
+   *
+   */
+  static final class Deadline {
+    private final HTTPChannel channel;
+    private final AtomicLong  queued = new AtomicLong(-1);
+    private volatile Type     type   = null;
+    private volatile long     at     = 0;
+    private long              mark   = 0;
+
+    Deadline(final HTTPChannel channel) {
+      this.channel = channel;
+    }
+
+    Type getType() {
+      return type;
+    }
+
+    void clear() {
+      type = null;
+    }
+  }
+
+  /**
+   * Constructor.
+   * 
+   * @param loop Event loop that drives the wheel.
+   * @param registry Registry that receives the timeout counters.
+   * 
+   */
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  ConnectionTimeouts(final EventLoop loop, final MetricsRegistry registry) {
+    this.loop  = loop;
+    this.wheel = new ConcurrentLinkedQueue[SLOTS];
+    for (int i = 0; i < SLOTS; ++i)
+      wheel[i] = new ConcurrentLinkedQueue<>();
+
+    for (Type type : Type.values()) {
+      expired[type.ordinal()] = registry.counter("tinyhttp_connection_timeouts_total",
+        "Connections closed because a deadline expired.", "type", type.name().toLowerCase());
+    }
+  }
+
+  /**
+   * Set the time a connection may stay in a phase.
+   * 
+   * @param type Connection phase. For the body it is the window over which the throughput is checked.
+   * @param millis Timeout in milliseconds, zero disables it.
+   * 
+   */
+  void setTimeout(final Type type, final long millis) {
+    if (millis < 0)
+      throw new IllegalArgumentException("Timeout cannot be negative");
+
+    timeouts[type.ordinal()] = millis;
+  }
+
+  /**
+   * Set the throughput a connection must keep while the request body is read.
+   * 
+   * @param bytesPerSecond Minimum body throughput, zero only requires some progress on each window.
+   * 
+   */
+  void setMinBodyRate(final long bytesPerSecond) {
+    if (bytesPerSecond < 0)
+      throw new IllegalArgumentException("Minimum body rate cannot be negative");
+
+    minBodyRate = bytesPerSecond;
+  }
+
+  /**
+   * Start driving the wheel, if any timeout is enabled.
+   * 
+   */
+  void start() {
+    if (started)
+      return;
+
+    for (long timeout : timeouts) {
+      if (timeout > 0) {
+        started = true;
+        tick    = now() / TICK_MS;
+        loop.registerTimer(TICK_MS, this);
+        return;
+      }
+    }
+  }
+
+  /**
+   * Move a connection to a new phase, replacing its current deadline.
+   * 
+   * @param deadline The connection deadline.
+   * @param type The new phase.
+   * 
+   */
+  void arm(final Deadline deadline, final Type type) {
+    final long timeout = timeouts[type.ordinal()];
+    if (timeout == 0 || !started) {
+      deadline.type = null;
+      return;
+    }
+
+    deadline.mark = deadline.channel.getBytesReceived();
+    deadline.at   = now() + timeout;
+    deadline.type = type;
+    schedule(deadline);
+  }
+
+  @Override
+  public void timeout() {
+    final long now = now();
+    for (long target = now / TICK_MS; tick <= target;) {
+      final long current = tick;
+      final ConcurrentLinkedQueue<Deadline> slot = wheel[(int) (current % SLOTS)];
+      tick = current + 1;
+
+      // Deadlines moved to this slot while it is walked belong to the next turn of the wheel.
+      for (int count = slot.size(); count > 0; --count) {
+        final Deadline deadline = slot.poll();
+        if (deadline == null)
+          break;
+
+        final long queued = deadline.queued.get();
+        if (queued > current) {
+          // Queued for a later turn of this slot, or a stale copy of a deadline pulled back to an earlier slot.
+          if (queued % SLOTS == current % SLOTS)
+            slot.add(deadline);
+        }
+        else if (queued != -1 && deadline.queued.compareAndSet(queued, -1))
+          expire(deadline, now);
+      }
+    }
+
+    loop.registerTimer(TICK_MS, this);
+  }
+
+  private void expire(final Deadline deadline, final long now) {
+    final Type type = deadline.type;
+    if (type == null)
+      return;
+
+    if (deadline.at > now) {
+      schedule(deadline);
+      return;
+    }
+
+    final long progress = deadline.channel.getBytesReceived() - deadline.mark;
+    if (type == Type.BODY && progress >= Math.max(1, minBodyRate * timeouts[Type.BODY.ordinal()] / 1000)) {
+      arm(deadline, Type.BODY);
+      return;
+    }
+
+    deadline.type = null;
+    expired[type.ordinal()].increment();
+    if (LOGGER.isLoggable(Level.FINE))
+      LOGGER.fine("Closing the connection from " + deadline.channel.getRemoteAddress() + ", " + type.name().toLowerCase()
+        + " timeout expired");
+
+    deadline.channel.expire(type == Type.HEADER ? REQUEST_TIMEOUT.duplicate() : null);
+  }
+
+  private void schedule(final Deadline deadline) {
+    final long target = Math.max(deadline.at / TICK_MS + 1, tick);
+    for (;;) {
+      final long queued = deadline.queued.get();
+      if (queued != -1 && queued <= target)
+        return;
+
+      if (deadline.queued.compareAndSet(queued, target)) {
+        wheel[(int) (target % SLOTS)].add(deadline);
+        return;
+      }
+    }
+  }
+
+  private long now() {
+    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - origin);
+  }
+}
@@ -0,0 +1,64 @@
+/* Copyright (C) 2013 Leonardo Bispo de Oliveira
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package br.com.is.http.server;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import br.com.is.metrics.Histogram;
+import br.com.is.metrics.MetricsRegistry;
+
+/**
+ * Request duration histograms of one context, one per status class. The histograms are created on the first
+ * request of each class, most contexts never answer with every class.
+ * 
+ * @author Leonardo Bispo de Oliveira.
+ *
+ */
+final class ContextMetrics {
+  static final String REQUEST_DURATION = "tinyhttp_request_duration_seconds";
+
+  private static final String HELP      = "Time from the first request byte to the end of the response.";
+  private static final String CLASSES[] = { "other", "1xx", "2xx", "3xx", "4xx", "5xx" };
+
+  private final MetricsRegistry                 registry;
+  private final String                          context;
+  private final AtomicReferenceArray<Histogram> durations = new AtomicReferenceArray<>(CLASSES.length);
+
+  ContextMetrics(final MetricsRegistry registry, final String context) {
+    this.registry = registry;
+    this.context  = context;
+  }
+
+  /**
+   * Record a finished request.
+   * 
+   * @param status Response status.
+   * @param nanos Request duration in nanoseconds.
+   * 
+   */
+  void record(final int status, final long nanos) {
+    final int statusClass = status >= 100 && status < 600 ? status / 100 : 0;
+
+    Histogram histogram = durations.get(statusClass);
+    if (histogram == null) {
+      histogram = registry.histogram(REQUEST_DURATION, HELP, "context", context, "class", CLASSES[statusClass]);
+      durations.set(statusClass, histogram);
+    }
+
+    histogram.record(nanos / 1000);
+  }
+}
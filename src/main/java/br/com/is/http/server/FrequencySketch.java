@@ -0,0 +1,106 @@
+/* Copyright (C) 2013 Leonardo Bispo de Oliveira
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package br.com.is.http.server;
+
+/**
+ * Count-min sketch of 4-bit counters estimating how often a key was seen recently. Each long holds 16 counters and
+ * every key touches four of them. When the number of increments reaches ten times the table size all counters are
+ * halved, so old popularity fades out. Not thread safe, the caller serializes the access.
+ * 
+ * @author Leonardo Bispo de Oliveira.
+ *
+ */
+final class FrequencySketch {
+  private static final long SEEDS[]    = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL,
+    0xcbf29ce484222325L };
+  private static final long RESET_MASK = 0x7777777777777777L;
+
+  private final long table[];
+  private final int  sampleSize;
+  private int        additions = 0;
+
+  /**
+   * Constructor.
+   * 
+   * @param maximumSize Expected number of distinct keys.
+   * 
+   */
+  FrequencySketch(final int maximumSize) {
+    final int size = Math.max(16, Integer.highestOneBit(Math.max(1, Math.min(maximumSize, 1 << 28)) - 1) << 1);
+    table      = new long[size];
+    sampleSize = 10 * size;
+  }
+
+  /**
+   * Return the estimated number of occurrences of a key, up to 15.
+   * 
+   * @param hash Key hash.
+   * 
+   * @return Estimated frequency.
+   * 
+   */
+  int frequency(final int hash) {
+    final int start = (hash & 3) << 2;
+    int frequency = Integer.MAX_VALUE;
+    for (int i = 0; i < 4; i++) {
+      final int index = indexOf(hash, i);
+      final int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xfL);
+      frequency = Math.min(frequency, count);
+    }
+
+    return frequency;
+  }
+
+  /**
+   * Count one more occurrence of a key.
+   * 
+   * @param hash Key hash.
+   * 
+   */
+  void increment(final int hash) {
+    final int start = (hash & 3) << 2;
+    boolean added = false;
+    for (int i = 0; i < 4; i++) {
+      final int  index  = indexOf(hash, i);
+      final int  offset = (start + i) << 2;
+      final long mask   = 0xfL << offset;
+      if ((table[index] & mask) != mask) {
+        table[index] += 1L << offset;
+        added = true;
+      }
+    }
+
+    if (added && ++additions == sampleSize)
+      reset();
+  }
+
+  private void reset() {
+    int odd = 0;
+    for (int i = 0; i < table.length; i++) {
+      odd     += Long.bitCount(table[i] & 0x1111111111111111L);
+      table[i] = (table[i] >>> 1) & RESET_MASK;
+    }
+
+    additions = (additions - (odd >>> 2)) >>> 1;
+  }
+
+  private int indexOf(final int hash, final int i) {
+    long h = (hash + SEEDS[i]) * SEEDS[i];
+    h += h >>> 32;
+    return ((int) h) & (table.length - 1);
+  }
+}
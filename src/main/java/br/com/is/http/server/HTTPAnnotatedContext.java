@@ -16,89 +16,133 @@
  */
 package br.com.is.http.server;
 
-import java.lang.reflect.InvocationTargetException;
+import java.lang.invoke.MethodHandle;
 import java.lang.reflect.Method;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
+import br.com.is.http.server.exception.HTTPRequestException;
+
+/**
+ * Context created from a class annotated with {@link br.com.is.http.server.annotation.Context}.
+ * 
+ * The annotated methods are resolved once by {@link HandlerBinder} into method handles bound to the context
+ * instance and adapted to <code>(HTTPRequest, HTTPResponse)void</code>, so every request is an
+ * <code>invokeExact</code> call, without the access checks, argument arrays and exception wrapping of
+ * <code>Method.invoke</code>.
+ * 
+ * @author Leonardo Bispo de Oliveira.
+ *
+ */
 final class HTTPAnnotatedContext extends HTTPContext {
-  protected final Object clazz;
-  protected final Method deleteMethod;
-  protected final Method getMethod;
-  protected final Method postMethod;
-  protected final Method putMethod;
-  protected final Method traceMethod;
+  private static final Logger LOGGER = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+
+  protected final Object       clazz;
+  protected final PathTemplate template;
+  protected final String       registration;
+  protected final MethodHandle deleteMethod;
+  protected final MethodHandle getMethod;
+  protected final MethodHandle postMethod;
+  protected final MethodHandle putMethod;
+  protected final MethodHandle traceMethod;
+  protected final boolean      postBody;
   
-  protected HTTPAnnotatedContext(final Object clazz, final Method getMethod, Method postMethod, Method deleteMethod, Method traceMethod,
-    Method putMethod) {
+  protected HTTPAnnotatedContext(final Object clazz, final String urlPattern, final Method getMethod, Method postMethod,
+    Method deleteMethod, Method traceMethod, Method putMethod) {
     this.clazz        = clazz;
-    this.getMethod    = getMethod;
-    this.postMethod   = postMethod;
-    this.deleteMethod = deleteMethod;
-    this.traceMethod  = traceMethod;
-    this.putMethod    = putMethod;
+    this.template     = PathTemplate.isTemplate(urlPattern) ? new PathTemplate(urlPattern) : null;
+    this.registration = template == null ? urlPattern : template.getPrefix();
+    this.getMethod    = HandlerBinder.bind(clazz, getMethod, template, this);
+    this.postMethod   = HandlerBinder.bind(clazz, postMethod, template, this);
+    this.deleteMethod = HandlerBinder.bind(clazz, deleteMethod, template, this);
+    this.traceMethod  = HandlerBinder.bind(clazz, traceMethod, template, this);
+    this.putMethod    = HandlerBinder.bind(clazz, putMethod, template, this);
+    this.postBody     = HandlerBinder.readsBody(postMethod);
+  }
+
+  /**
+   * @return The key used to register this context, the literal prefix of the url pattern.
+   * 
+   */
+  String getRegistrationPattern() {
+    return registration;
+  }
+
+  /**
+   * @return True if the POST method reads the raw body with @Body, so it accepts any media type.
+   * 
+   */
+  boolean readsPostBody() {
+    return postBody;
   }
   
   public void doDelete(final HTTPRequest req, final HTTPResponse resp) {
-    if (deleteMethod != null) {
-      try {
-        deleteMethod.invoke(clazz, req, resp);
-      }
-      catch (IllegalAccessException | IllegalArgumentException | InvocationTargetException e) {
-        resp.setStatus(HTTPStatus.INTERNAL_SERVER_ERROR);
-      }
-    }
+    if (deleteMethod != null)
+      invoke(template, deleteMethod, req, resp);
     else
       super.doDelete(req, resp);
   }
   
   public void doGet(final HTTPRequest req, final HTTPResponse resp) { 
-    if (getMethod != null) {
-      try {
-        getMethod.invoke(clazz, req, resp);
-      }
-      catch (IllegalAccessException | IllegalArgumentException | InvocationTargetException e) {
-        resp.setStatus(HTTPStatus.INTERNAL_SERVER_ERROR);
-      }
-    }
+    if (getMethod != null)
+      invoke(template, getMethod, req, resp);
     else
       super.doGet(req, resp);
   }
 
   public void doPost(final HTTPRequest req, final HTTPResponse resp) {
-    if (postMethod != null) {
-      try {
-        postMethod.invoke(clazz, req, resp);
-      }
-      catch (IllegalAccessException | IllegalArgumentException | InvocationTargetException e) {
-        resp.setStatus(HTTPStatus.INTERNAL_SERVER_ERROR);
-      }
-    }
+    if (postMethod != null)
+      invoke(template, postMethod, req, resp);
     else
       super.doPost(req, resp);
   }
 
   public void doPut(final HTTPRequest req, final HTTPResponse resp) {
-    if (putMethod != null) {
-      try {
-        putMethod.invoke(clazz, req, resp);
-      }
-      catch (IllegalAccessException | IllegalArgumentException | InvocationTargetException e) {
-        resp.setStatus(HTTPStatus.INTERNAL_SERVER_ERROR);
-      }
-    }
+    if (putMethod != null)
+      invoke(template, putMethod, req, resp);
     else
       super.doPut(req, resp);
   }
   
   public void doTrace(final HTTPRequest req, final HTTPResponse resp) {
-    if (traceMethod != null) {
-      try {
-        traceMethod.invoke(clazz, req, resp);
-      }
-      catch (IllegalAccessException | IllegalArgumentException | InvocationTargetException e) {
-        resp.setStatus(HTTPStatus.INTERNAL_SERVER_ERROR);
-      }
-    }
+    if (traceMethod != null)
+      invoke(template, traceMethod, req, resp);
     else
       super.doTrace(req, resp);
   }
-}
\ No newline at end of file
+
+  /**
+   * Call the handler. An {@link HTTPRequestException} thrown by the handler, or by the binding of its
+   * parameters, sets its own status, any other exception is logged and answered with 500. Errors are not
+   * handled here.
+   * 
+   * @param template Url pattern with variables, or null.
+   * @param handler Handler to be called.
+   * @param req The HTTP request.
+   * @param resp The HTTP response.
+   * 
+   */
+  private static void invoke(final PathTemplate template, final MethodHandle handler, final HTTPRequest req,
+    final HTTPResponse resp) {
+    if (template != null && !template.matches(req.getRequestURI())) {
+      resp.setStatus(HTTPStatus.NOT_FOUND);
+      return;
+    }
+
+    try {
+      handler.invokeExact(req, resp);
+    }
+    catch (HTTPRequestException e) {
+      resp.setStatus(e.getError());
+    }
+    catch (Error e) {
+      throw e;
+    }
+    catch (Throwable e) {
+      if (LOGGER.isLoggable(Level.WARNING))
+        LOGGER.log(Level.WARNING, "Annotated context handler failed", e);
+
+      resp.setStatus(HTTPStatus.INTERNAL_SERVER_ERROR);
+    }
+  }
+}
@@ -17,12 +17,18 @@
 package br.com.is.http.server;
 
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLException;
 
+import br.com.is.events.Events;
 import br.com.is.nio.EventLoop;
 
 /**
@@ -32,12 +38,23 @@ import br.com.is.nio.EventLoop;
  *
  */
 final class HTTPChannel {
-  private final SocketChannel channel;
-  private final SSLContext    sslContext;
-  private final EventLoop     manager;
-  private ByteBuffer          remainingData;
+  private static final Logger LOGGER = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+
+  private final SocketChannel               channel;
+  private final SSLContext                  sslContext;
+  private final EventLoop                   manager;
+  private final ServerMetrics               metrics;
+  private final ConnectionLimiter           limiter;
+  private final ConnectionTimeouts          timeouts;
+  private final ConnectionTimeouts.Deadline deadline;
+  private final AtomicBoolean               closed = new AtomicBoolean(false);
+  private ByteBuffer                        remainingData;
+  private String                            remoteAddress = null;
+  private final long                        acceptedAt    = System.nanoTime();
+  private volatile long                     bytesReceived = 0;
+  private long                              bytesSent     = 0;
   
-  private SSLChannel          sslChannel;
+  private SSLChannel                        sslChannel;
   
   /**
    * Constructor.
@@ -45,15 +62,31 @@ final class HTTPChannel {
    * @param channel Connection channel.
    * @param sslContext The ssl context if this is an HTTPS channel.
    * @param manager Event loop manager.
+   * @param metrics Server metrics, or null if this channel is not measured.
+   * @param limiter Connection limiter that accounted this channel, or null. It is released when the channel closes.
+   * @param timeouts Connection deadlines, or null if this channel never times out. The channel starts idle.
    */
-  HTTPChannel(final SocketChannel channel, final SSLContext sslContext, final EventLoop manager) {
+  HTTPChannel(final SocketChannel channel, final SSLContext sslContext, final EventLoop manager,
+    final ServerMetrics metrics, final ConnectionLimiter limiter, final ConnectionTimeouts timeouts) {
     this.channel    = channel;
     this.sslContext = sslContext;
     this.manager    = manager;
+    this.metrics    = metrics;
+    this.limiter    = limiter;
+    this.timeouts   = timeouts;
+    this.deadline   = timeouts == null ? null : new ConnectionTimeouts.Deadline(this);
+    if (metrics != null) {
+      metrics.connections.increment();
+      metrics.activeConnections.increment();
+    }
+
+    Events.get().connectionAccepted(channel.socket().getRemoteSocketAddress(), sslContext != null);
     if (sslContext != null)
       sslChannel = new SSLChannel(channel, sslContext, manager);
     else
       sslChannel = null;
+
+    setTimeout(ConnectionTimeouts.Type.IDLE);
   }
   
   void resetSslContext() {
@@ -70,6 +103,72 @@ final class HTTPChannel {
     return channel;
   }
 
+  /**
+   * Returns the client address.
+   * 
+   * @return The client IP address, or an empty string if the channel is not connected.
+   * 
+   */
+  String getRemoteAddress() {
+    if (remoteAddress == null) {
+      final InetAddress address = channel.socket().getInetAddress();
+      remoteAddress = address == null ? "" : address.getHostAddress();
+    }
+
+    return remoteAddress;
+  }
+
+  /**
+   * Move this channel to a new phase, with the deadline configured for it.
+   * 
+   * @param type The new phase.
+   * 
+   */
+  void setTimeout(final ConnectionTimeouts.Type type) {
+    if (timeouts != null)
+      timeouts.arm(deadline, type);
+  }
+
+  /**
+   * Returns the phase this channel has a deadline for.
+   * 
+   * @return The phase, or null if there is no deadline.
+   * 
+   */
+  ConnectionTimeouts.Type getTimeout() {
+    return deadline == null ? null : deadline.getType();
+  }
+
+  void clearTimeout() {
+    if (deadline != null)
+      deadline.clear();
+  }
+
+  /**
+   * Close this channel because its deadline expired. Called by the event loop.
+   * 
+   * @param response Response to try to write before closing, or null. It is not retried if the socket is full.
+   * 
+   */
+  void expire(final ByteBuffer response) {
+    try {
+      if (response != null && sslChannel == null)
+        write(response);
+    }
+    catch (IOException e) {
+      if (LOGGER.isLoggable(Level.FINE))
+        LOGGER.log(Level.FINE, "Problems to write the timeout response", e);
+    }
+
+    try {
+      close();
+    }
+    catch (IOException e) {
+      if (LOGGER.isLoggable(Level.WARNING))
+        LOGGER.log(Level.WARNING, "Problems to close the channel", e);
+    }
+  }
+
   /**
    * Execute the SSL handshake. It it is an HTTP connection, it will just ignore it.
    * 
@@ -102,9 +201,9 @@ final class HTTPChannel {
       return moveRemaining(dst, -1);
     
     if (sslChannel != null)
-      return sslChannel.read(dst);
+      return received(sslChannel.read(dst));
     
-    return channel.read(dst);
+    return received(channel.read(dst));
   }
 
   /**
@@ -131,7 +230,8 @@ final class HTTPChannel {
       len = sslChannel.read(dst);
     else
       len = channel.read(dst);
-    
+
+    received(len);
     if (len > maxLength) {
       remainingData = ByteBuffer.allocate(dst.limit());
       try {
@@ -164,10 +264,19 @@ final class HTTPChannel {
     if (buffer == null)
       return -1;
     
+    final long len;
     if (sslChannel != null)
-      return sslChannel.write(buffer);
+      len = sslChannel.write(buffer);
+    else
+      len = channel.write(buffer);
+
+    if (len > 0) {
+      bytesSent += len;
+      if (metrics != null)
+        metrics.bytesSent.add(len);
+    }
 
-    return channel.write(buffer);    
+    return len;
   }
 
   /**
@@ -177,14 +286,31 @@ final class HTTPChannel {
    * 
    */
   void close() throws IOException {
+    clearTimeout();
     if (sslChannel != null)
       sslChannel.shutdown();
 
     manager.unregisterWriterListener(channel);
     manager.unregisterReaderListener(channel);
+    final SocketAddress remote  = channel.socket().getRemoteSocketAddress();
+    final String        address = getRemoteAddress();
     channel.close();
+
+    if (closed.compareAndSet(false, true)) {
+      if (metrics != null)
+        metrics.activeConnections.decrement();
+
+      if (limiter != null)
+        limiter.release(address);
+
+      Events.get().connectionClosed(remote, sslContext != null, bytesReceived, bytesSent, System.nanoTime() - acceptedAt);
+    }
   }
   
+  long getBytesReceived() {
+    return bytesReceived;
+  }
+
   /**
    * Put a remaining read data to the beginning of this channel.
    * 
@@ -206,6 +332,16 @@ final class HTTPChannel {
     return sslContext != null;
   }
   
+  private int received(final int len) {
+    if (len > 0) {
+      bytesReceived += len;
+      if (metrics != null)
+        metrics.bytesReceived.add(len);
+    }
+
+    return len;
+  }
+
   /**
    * Move remaining bytes in this class. This can be happen when the read buffer is not big enough.
    * 
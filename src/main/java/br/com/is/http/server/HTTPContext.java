@@ -17,9 +17,19 @@
 package br.com.is.http.server;
 
 public abstract class HTTPContext {
+  private static final int RATE_LIMIT_KEYS = 16384;
+
   private boolean codeEncoding = true;
   private long length          = Long.MAX_VALUE;
   private String tempDirectory = System.getProperty("java.io.tmpdir");
+  private int multipartBuffer  = 65536;
+  private int memoryThreshold  = 65536;
+  private int maxParameters    = 1000;
+  private int parametersSize   = 2097152;
+  private long coalesceTimeout = 0;
+  private int autoETagLimit    = 0;
+  private RateLimiter rateLimiter = null;
+  private PartListener partListener = null;
   
   public void doDelete(final HTTPRequest req, final HTTPResponse resp) {
     resp.setStatus(HTTPStatus.METHOD_NOT_ALLOWED);
@@ -57,6 +67,99 @@ public abstract class HTTPContext {
     return length;
   }
   
+  public void setMultipartBufferSize(final int size) {
+    if (size <= 0)
+      throw new IllegalArgumentException("Multipart buffer size must be bigger than zero");
+    
+    this.multipartBuffer = size;
+  }
+  
+  public int getMultipartBufferSize() {
+    return multipartBuffer;
+  }
+  
+  public void setMultipartMemoryThreshold(final int threshold) {
+    if (threshold < 0)
+      throw new IllegalArgumentException("Multipart memory threshold cannot be negative");
+    
+    this.memoryThreshold = threshold;
+  }
+  
+  public int getMultipartMemoryThreshold() {
+    return memoryThreshold;
+  }
+  
+  public void setMaxParameterCount(final int count) {
+    if (count <= 0)
+      throw new IllegalArgumentException("Maximum number of parameters must be bigger than zero");
+    
+    this.maxParameters = count;
+  }
+  
+  public int getMaxParameterCount() {
+    return maxParameters;
+  }
+  
+  public void setMaxParameterSize(final int size) {
+    if (size <= 0)
+      throw new IllegalArgumentException("Maximum parameter size must be bigger than zero");
+    
+    this.parametersSize = size;
+  }
+  
+  public int getMaxParameterSize() {
+    return parametersSize;
+  }
+  
+  public void setPartListener(final PartListener listener) {
+    this.partListener = listener;
+  }
+  
+  public PartListener getPartListener() {
+    return partListener;
+  }
+  
+  public void setCoalesceTimeout(final long millis) {
+    if (millis < 0)
+      throw new IllegalArgumentException("Coalesce timeout cannot be negative");
+
+    this.coalesceTimeout = millis;
+  }
+
+  public long getCoalesceTimeout() {
+    return coalesceTimeout;
+  }
+
+  public void setAutoETagLimit(final int limit) {
+    if (limit < 0)
+      throw new IllegalArgumentException("Auto ETag limit cannot be negative");
+
+    this.autoETagLimit = limit;
+  }
+
+  public int getAutoETagLimit() {
+    return autoETagLimit;
+  }
+
+  public void setRateLimit(final double permitsPerSecond, final int burst) {
+    setRateLimit(permitsPerSecond, burst, rateLimiter == null ? null : rateLimiter.getHeader());
+  }
+
+  public void setRateLimit(final double permitsPerSecond, final int burst, final String header) {
+    if (permitsPerSecond < 0 || burst < 0)
+      throw new IllegalArgumentException("Rate limit cannot be negative");
+
+    if (permitsPerSecond == 0)
+      rateLimiter = null;
+    else
+      rateLimiter = new RateLimiter(permitsPerSecond, burst == 0 ? (int) Math.ceil(permitsPerSecond) : burst,
+        header == null || header.isEmpty() ? null : header, RATE_LIMIT_KEYS);
+  }
+
+  RateLimiter getRateLimiter() {
+    return rateLimiter;
+  }
+
   public void setUseCodeEncoding(boolean codeEncoding) {
     this.codeEncoding = codeEncoding;
   }
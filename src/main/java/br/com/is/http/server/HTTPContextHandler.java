@@ -21,9 +21,7 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.StringReader;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
@@ -31,9 +29,8 @@ import java.util.Enumeration;
 import java.util.Hashtable;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
 import java.util.StringTokenizer;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -45,47 +42,61 @@ import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.stream.StreamResult;
 import javax.xml.transform.stream.StreamSource;
 
+import br.com.is.events.Events;
+import br.com.is.http.server.accesslog.AccessLog;
 import br.com.is.http.server.encoder.Encoder;
 import br.com.is.http.server.encoder.GZIPEncoder;
 import br.com.is.http.server.exception.HTTPRequestException;
 import br.com.is.http.server.mediatype.ApplicationXwwwFormURLEncode;
 import br.com.is.http.server.mediatype.HTTPMediaType;
 import br.com.is.http.server.mediatype.MultipartFormData;
+import br.com.is.http.server.session.SessionIdGenerator;
+import br.com.is.http.server.session.SessionStore;
 import br.com.is.nio.EventLoop;
 import br.com.is.nio.listener.ReaderListener;
 
 final class HTTPContextHandler implements Runnable {
   private static final Logger LOGGER = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
 
-  private static int TIME_TO_EXPIRE_SESSION_MS              = 600000;
-  private static final String M_DIGEST_ALGORITHM            = "MD5";
-  
   private static final String SESSION_COOKIE_NAME           = "ISSESSIONID";
   
   private static final String ACCEPT_ENCODING               = "accept-encoding";
   private static final String CONTENT_LENGTH                = "content-length";
   private static final String CONTENT_TYPE                  = "content-type";
+  private static final String HTTP_VERSION                  = "HTTP-Version";
+  private static final String IF_NONE_MATCH                 = "if-none-match";
+  private static final String REFERER                       = "referer";
+  private static final String USER_AGENT                    = "user-agent";
   
   private static final String MULTIPART_FORM_DATA           = "multipart/form-data";
   private static final String APPLICATION_X_FORM_URL_ENCODE = "application/x-www-form-urlencoded";
   
   private static final String GZIP_ENCODER                  = "gzip";
+
+  private static final Charset ISO_8859_1                   = Charset.forName("ISO-8859-1");
   
   private enum OutputType { NONE, OUTPUT_STREAM, PRINT_WRITER };
 
   private HTTPSession                                  session = null;
+  private HTTPInputStream                              input   = null;
   
   private final HTTPRequest.RequestMethod              method;
   private final String                                 uri;
   private final HTTPContext                            context;
   private final HTTPChannel                            channel;
   private final EventLoop                              manager;
-  private final ConcurrentHashMap<String, HTTPSession> sessions;
+  private final SessionStore                           sessions;
+  private final SessionIdGenerator                     sessionIds;
   private final Hashtable<String, Cookie>              requestCookies;
   private final Hashtable<String, String>              requestHeader;
   private final Hashtable<String, Part>                requestParts = new Hashtable<>();
-  private final Hashtable<String, String>              params;
+  private final Parameters                             params;
+  private final String                                 query;
   private final ReaderListener                         keepAlive;
+  private final ServerMetrics                          metrics;
+  private final AccessLog                              accessLog;
+  private final HTTPResponseCache                      cache;
+  private final RequestTimeline                        timeline;
   
   private final AtomicInteger                         responseStatus  = new AtomicInteger(200);
   private final List<Cookie>                          responseCookies = new ArrayList<>();
@@ -106,33 +117,31 @@ final class HTTPContextHandler implements Runnable {
   }
   
   public HTTPContextHandler(final HTTPRequest.RequestMethod method, final String uri, final HTTPContext context, final HTTPChannel channel, final EventLoop manager,
-    final ConcurrentHashMap<String, HTTPSession> sessions, final Hashtable<String, Cookie> cookies, final Hashtable<String, String> header,
-    final Hashtable<String, String> params, final HTTPOutputStream os, final ReaderListener keepALive) {
+    final SessionStore sessions, final SessionIdGenerator sessionIds, final Hashtable<String, Cookie> cookies, final Hashtable<String, String> header,
+    final String query, final HTTPOutputStream os, final ReaderListener keepALive, final ServerMetrics metrics, final AccessLog accessLog,
+    final HTTPResponseCache cache, final RequestTimeline timeline) {
     this.method         = method;
     this.uri            = uri;
     this.context        = context;
     this.channel        = channel;
     this.manager        = manager;
     this.sessions       = sessions;
+    this.sessionIds     = sessionIds;
     this.requestCookies = cookies;
     this.requestHeader  = header;
     
-    if (params == null)
-      this.params = new Hashtable<>();
-    else
-      this.params = params;
-    
+    this.query          = query;
+    this.params         = new Parameters(context.getMaxParameterCount(), context.getMaxParameterSize());
     this.os             = os;
     this.keepAlive      = keepALive;
+    this.metrics        = metrics;
+    this.accessLog      = accessLog;
+    this.cache          = cache;
+    this.timeline       = timeline;
     
     Cookie sessionCookie = requestCookies.get(SESSION_COOKIE_NAME);
-    if (sessionCookie != null) {
+    if (sessionCookie != null)
       session = sessions.get(sessionCookie.getValue()); //TODO: Must check if it is not a hijack!!
-      if (session != null) {
-        manager.updateTimer(TIME_TO_EXPIRE_SESSION_MS, session);
-        session.setLastAccessTime(System.currentTimeMillis());
-      }
-    }
     else
       session = null;
     
@@ -146,6 +155,11 @@ final class HTTPContextHandler implements Runnable {
 
   @Override
   public void run() {
+    timeline.started();
+    final Object event = Events.get().requestStarted();
+
+    String encoding = null;
+
     if (requestHeader.containsKey(ACCEPT_ENCODING) && context.useCodeEncoding()) {
       List<HTTPEncoder> list = parseEncoder(requestHeader.get(ACCEPT_ENCODING));
       for (HTTPEncoder encoder : list) {
@@ -155,6 +169,7 @@ final class HTTPContextHandler implements Runnable {
           try {
             toUse = toUse.getClass().newInstance();
             os.setEncoder(toUse);
+            encoding = toUse.getType();
             break;
           }
           catch (InstantiationException  | IllegalAccessException e) {
@@ -165,48 +180,68 @@ final class HTTPContextHandler implements Runnable {
       }
     }
 
+    if (context.getAutoETagLimit() > 0 && (method == HTTPRequest.RequestMethod.GET || method == HTTPRequest.RequestMethod.HEAD))
+      os.setAutoETag(context.getAutoETagLimit(), requestHeader.get(IF_NONE_MATCH));
+
+    final HTTPResponseCache.Exchange exchange = cache == null ? null : cache.begin(method, uri, query, requestHeader,
+      encoding, context.getCoalesceTimeout());
+
     try {
-      switch (method) {
-        case HEAD:
-          os.setIgnoreData(true);
-        case GET: {
-          HTTPResponseImpl response = new HTTPResponseImpl();
-          context.doGet(new HTTPRequestImpl(new HTTPInputStream(channel, manager)), response);
-          if (response.getStatus() >= 400)
-            os.sendError(HTTPStatus.fromInt(response.getStatus()));
-          else if (response.type == OutputType.PRINT_WRITER) {
-            response.writer.flush();
-            response.writer.close();
-          }
-        }
-        break;
-        case POST:
-          processPOST();
-        break;
-        case PUT:
-          processPUT();
-        break;
-        case DELETE: {
-          HTTPResponseImpl response = new HTTPResponseImpl();
-          context.doDelete(new HTTPRequestImpl(new HTTPInputStream(channel, manager)), response);
-          if (response.getStatus() >= 400)
-            os.sendError(HTTPStatus.fromInt(response.getStatus()));
-          else if (response.type == OutputType.PRINT_WRITER) {
-            response.writer.flush();
-            response.writer.close();
-          }
+      try {
+        if (exchange == null || !exchange.serve(os, responseStatus, responseHeader))
+          process(exchange);
+        
+        if (session != null && session.isModified()) {
+          sessions.save(session);
+          session.clearModified();
         }
-        break;
-        case TRACE:
-          processTRACE();
-        break;
       }
+      catch (HTTPRequestException e) {
+        if (LOGGER.isLoggable(Level.WARNING))
+          LOGGER.log(Level.WARNING, e.getMessage(), e);
+
+        os.sendError(e.getError());
+      }
+      catch (RuntimeException e) {
+         os.sendError(HTTPStatus.INTERNAL_SERVER_ERROR);
+      }
+
+      os.close();
+
+      if (exchange != null)
+        exchange.finish(responseStatus.get(), responseHeader, responseCookies);
+    }
+    finally {
+      // An Error thrown by the handler must not leave the identical requests waiting for this one.
+      if (exchange != null)
+        exchange.abort();
     }
-    catch (RuntimeException e) {
-       os.sendError(HTTPStatus.INTERNAL_SERVER_ERROR);
+
+    timeline.finished(os.getWriteTime());
+    if (metrics != null) {
+      metrics.record(context, responseStatus.get(), timeline);
+
+      if (metrics.isSlow(timeline) && LOGGER.isLoggable(Level.WARNING)) {
+        LOGGER.warning("Slow request: " + method + " " + uri + " " + responseStatus.get() + " from "
+          + channel.getSocketChannel().socket().getRemoteSocketAddress() + (channel.isSSL() ? " (HTTPS) " : " ")
+          + timeline);
+      }
+    }
+
+    if (event != null) {
+      Events.get().requestFinished(event, method.name(), uri, context.getClass(), responseStatus.get(),
+        os.getBytesWritten(), timeline.get(RequestTimeline.Phase.ACCEPT), timeline.get(RequestTimeline.Phase.PARSE),
+        timeline.get(RequestTimeline.Phase.QUEUE), timeline.get(RequestTimeline.Phase.HANDLER),
+        timeline.get(RequestTimeline.Phase.WRITE));
     }
 
-    os.close();
+    if (accessLog != null) {
+      final long duration = timeline.getDuration();
+      accessLog.log(System.currentTimeMillis() - TimeUnit.NANOSECONDS.toMillis(duration), duration,
+        os.getBytesWritten(), responseStatus.get(), channel.getRemoteAddress(), method.name(),
+        query == null ? uri : uri + '?' + query, requestHeader.get(HTTP_VERSION), requestHeader.get(REFERER),
+        requestHeader.get(USER_AGENT));
+    }
 
 //TODO: Fix the Keep alive code!
 //    if (keepAlive != null) {
@@ -221,6 +256,61 @@ final class HTTPContextHandler implements Runnable {
           LOGGER.log(Level.WARNING, "Problems to close the HTTP Channel", e);
       }
 //    }
+
+    os.discard();
+    if (input != null)
+      input.discard();
+  }
+
+  private HTTPRequestImpl request(final HTTPInputStream is) {
+    input = is;
+    return new HTTPRequestImpl(is);
+  }
+
+  private void process(final HTTPResponseCache.Exchange exchange) throws HTTPRequestException {
+    if (query != null) {
+      final byte[] data = query.getBytes(ISO_8859_1);
+      params.parse(data, 0, data.length);
+    }
+
+    switch (method) {
+      case HEAD:
+        os.setIgnoreData(true);
+      case GET: {
+        HTTPResponseImpl response = new HTTPResponseImpl();
+        context.doGet(request(new HTTPInputStream(channel, manager)), response);
+        if (exchange != null && exchange.revalidated(os, responseStatus, responseHeader))
+          return;
+
+        if (response.getStatus() >= 400)
+          os.sendError(HTTPStatus.fromInt(response.getStatus()));
+        else if (response.type == OutputType.PRINT_WRITER) {
+          response.writer.flush();
+          response.writer.close();
+        }
+      }
+      break;
+      case POST:
+        processPOST();
+      break;
+      case PUT:
+        processPUT();
+      break;
+      case DELETE: {
+        HTTPResponseImpl response = new HTTPResponseImpl();
+        context.doDelete(request(new HTTPInputStream(channel, manager)), response);
+        if (response.getStatus() >= 400)
+          os.sendError(HTTPStatus.fromInt(response.getStatus()));
+        else if (response.type == OutputType.PRINT_WRITER) {
+          response.writer.flush();
+          response.writer.close();
+        }
+      }
+      break;
+      case TRACE:
+        processTRACE();
+      break;
+    }
   }
 
   private void processPUT() {
@@ -245,7 +335,7 @@ final class HTTPContextHandler implements Runnable {
     }
     
     HTTPResponseImpl response = new HTTPResponseImpl();
-    context.doPut(new HTTPRequestImpl(new HTTPInputStream(channel, manager, contentLength)), response);
+    context.doPut(request(new HTTPInputStream(channel, manager, contentLength)), response);
     if (response.getStatus() >= 400)
       os.sendError(HTTPStatus.fromInt(response.getStatus()));
     else if (response.type == OutputType.PRINT_WRITER) {
@@ -276,7 +366,7 @@ final class HTTPContextHandler implements Runnable {
     }
     
     HTTPResponseImpl response = new HTTPResponseImpl();
-    context.doTrace(new HTTPRequestImpl(new HTTPInputStream(channel, manager, contentLength)), response);
+    context.doTrace(request(new HTTPInputStream(channel, manager, contentLength)), response);
     if (response.getStatus() >= 400)
       os.sendError(HTTPStatus.fromInt(response.getStatus()));
     else if (response.type == OutputType.PRINT_WRITER) {
@@ -325,7 +415,7 @@ final class HTTPContextHandler implements Runnable {
       try {
         final HTTPResponseImpl response = new HTTPResponseImpl();
         mediaType = mediaType.getClass().newInstance();
-        mediaType.process(context, new HTTPRequestImpl(new HTTPInputStream(channel, manager, contentLength)),
+        mediaType.process(context, request(new HTTPInputStream(channel, manager, contentLength)),
           response, parameter, params, requestParts);
         
         if (response.type == OutputType.PRINT_WRITER) {
@@ -346,6 +436,16 @@ final class HTTPContextHandler implements Runnable {
         os.sendError(HTTPStatus.INTERNAL_SERVER_ERROR);
       }
     }
+    else if (context instanceof HTTPAnnotatedContext && ((HTTPAnnotatedContext) context).readsPostBody()) {
+      final HTTPResponseImpl response = new HTTPResponseImpl();
+      context.doPost(request(new HTTPInputStream(channel, manager, contentLength)), response);
+      if (response.getStatus() >= 400)
+        os.sendError(HTTPStatus.fromInt(response.getStatus()));
+      else if (response.type == OutputType.PRINT_WRITER) {
+        response.writer.flush();
+        response.writer.close();
+      }
+    }
     else
       os.sendError(HTTPStatus.UNSUPORTED_MEDIA_TYPE);
   }
@@ -433,10 +533,10 @@ final class HTTPContextHandler implements Runnable {
     @Override
     public HTTPSession getSession() {
       if (session == null) {
-        session = new HTTPSession(generateUID(), sessions, manager);
-        sessions.put(session.getId(), session);
+        session = new HTTPSession(sessionIds.generate(), sessions);
+        sessions.add(session);
+        Events.get().sessionCreated(session.getId());
 
-        manager.registerTimer(TIME_TO_EXPIRE_SESSION_MS, session);
         responseCookies.add(new Cookie(SESSION_COOKIE_NAME, session.getId()));
       }
       
@@ -445,71 +545,23 @@ final class HTTPContextHandler implements Runnable {
 
     @Override
     public String getParameter(final String name) {
-      if (params == null)
-        return null;
-      
       return params.get(name);
     }
 
+    @Override
+    public String[] getParameterValues(final String name) {
+      return params.getValues(name);
+    }
+
     @Override
     public Enumeration<String> getParameterNames() {
-      if (params == null)
-        return null;
-      
-      return params.keys();
+      return params.getNames();
     }
 
     @Override
     public InputStream getInputStream() {
       return is;
     }
-    
-    /**
-     * Copied from: http://www.java2s.com/Code/Java/Development-Class/SessionIDgenerator.htm
-     * 
-     * @return
-     * 
-     */
-    private String generateUID() {
-      final Random random = new SecureRandom();
-      random.setSeed(System.currentTimeMillis());
-      
-      final int length = 30;
-      byte[] buffer = new byte[length];
-
-      StringBuffer reply = new StringBuffer();
-
-      MessageDigest digest = null;
-      try {
-        digest = MessageDigest.getInstance(M_DIGEST_ALGORITHM);
-      } 
-      catch (NoSuchAlgorithmException e) {
-        return "";
-      }
-      
-      int resultLenBytes = 0;
-      while (resultLenBytes < length) {
-        random.nextBytes(buffer);
-        buffer = digest.digest(buffer);
-
-        for (int j = 0; j < buffer.length && resultLenBytes < length; ++j) {
-          byte b1 = (byte) ((buffer[j] & 0xf0) >> 4);
-          if (b1 < 10)
-            reply.append((char) ('0' + b1));
-          else
-            reply.append((char) ('A' + (b1 - 10)));
-
-          byte b2 = (byte) (buffer[j] & 0x0f);
-          if (b2 < 10)
-            reply.append((char) ('0' + b2));
-          else
-            reply.append((char) ('A' + (b2 - 10)));
-
-          ++resultLenBytes;
-        }
-      }
-      return reply.toString();
-    }
   }
 
   private final class HTTPResponseImpl implements HTTPResponse {
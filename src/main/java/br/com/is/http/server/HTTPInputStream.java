@@ -21,6 +21,7 @@ import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectableChannel;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import br.com.is.nio.ByteBufferFifo;
 import br.com.is.nio.EventLoop;
@@ -33,6 +34,9 @@ import br.com.is.nio.listener.ReaderListener;
  *
  */
 final class HTTPInputStream extends InputStream implements ReaderListener {
+  private static final long HIGH_WATERMARK = 256 * 1024;
+  private static final long LOW_WATERMARK  = 64 * 1024;
+  
   private long                 availableRead;
   private final HTTPChannel    channel;
 
@@ -40,6 +44,9 @@ final class HTTPInputStream extends InputStream implements ReaderListener {
 
   protected AtomicBoolean      isEof  = new AtomicBoolean(false);
   private ByteBuffer           buffer = null;
+  
+  private final AtomicLong buffered = new AtomicLong();
+  private volatile boolean paused   = false;
 
   private final EventLoop manager;
   /**
@@ -65,6 +72,9 @@ final class HTTPInputStream extends InputStream implements ReaderListener {
     this.channel       = channel;
     this.availableRead = contentLength;
     this.manager       = manager;
+
+    if (contentLength > 0)
+      channel.setTimeout(ConnectionTimeouts.Type.BODY);
     
     read(channel.getSocketChannel(), manager);    
     manager.registerReaderListener(channel.getSocketChannel(), this);  
@@ -162,6 +172,8 @@ final class HTTPInputStream extends InputStream implements ReaderListener {
         buffer.get(dest, offset, size);
         if (!buffer.hasRemaining())
           buffer = null;
+        
+        consumed(size);
 
         offset        += size;
         length        -= size;
@@ -189,11 +201,21 @@ final class HTTPInputStream extends InputStream implements ReaderListener {
    */
   @Override
   public synchronized void read(SelectableChannel ch, EventLoop manager) {
+    if (isEof.get())
+      return;
+
     long length = -1;
 
     try {
       length = channel.read(fifo.getWriteBuffer(), availableRead > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) availableRead);
       availableRead -= length;
+      
+      // Stop reading from the socket while the consumer is behind, so the client is slowed down by TCP.
+      if (length > 0 && buffered.addAndGet(length) > HIGH_WATERMARK && !paused && availableRead > 0) {
+        paused = true;
+        manager.unregisterReaderListener(channel.getSocketChannel());
+        channel.clearTimeout();
+      }
     }
     catch (IOException e) {
       length = -1;
@@ -202,6 +224,31 @@ final class HTTPInputStream extends InputStream implements ReaderListener {
     if (length == -1 || availableRead <= 0) {
       fifo.stop();
       isEof.set(true);
+      channel.clearTimeout();
+    }
+  }
+
+  /**
+   * Drop the body not read by the context, once the request is finished.
+   * 
+   */
+  synchronized void discard() {
+    isEof.set(true);
+    fifo.discard();
+  }
+
+  private void consumed(final int size) {
+    if (buffered.addAndGet(-size) < LOW_WATERMARK && paused)
+      resume();
+  }
+  
+  private synchronized void resume() {
+    if (paused) {
+      paused = false;
+      if (!isEof.get()) {
+        channel.setTimeout(ConnectionTimeouts.Type.BODY);
+        manager.registerReaderListener(channel.getSocketChannel(), this);
+      }
     }
   }
 }
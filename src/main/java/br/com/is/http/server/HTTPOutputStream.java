@@ -29,6 +29,7 @@ import java.nio.charset.Charset;
 import java.nio.charset.CharsetEncoder;
 import java.sql.Timestamp;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Hashtable;
 import java.util.List;
 import java.util.Map;
@@ -37,6 +38,7 @@ import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.CRC32;
 
 import javax.xml.transform.Source;
 import javax.xml.transform.Transformer;
@@ -77,6 +79,16 @@ final class HTTPOutputStream extends OutputStream implements WriterListener {
   private boolean ignoreData    = false;
 
   private Encoder encoder       = null;
+  private long    writeTime     = 0;
+  private long    bytesWritten  = 0;
+
+  private HTTPResponseCache.Recorder recorder = null;
+
+  private int    etagLimit   = 0;
+  private String ifNoneMatch = null;
+  private byte   body[]      = null;
+  private int    bodyLength  = 0;
+  private CRC32  checksum    = null;
   
   public HTTPOutputStream(final HTTPChannel channel, final EventLoop manager) {
     this.channel = channel;
@@ -87,9 +99,19 @@ final class HTTPOutputStream extends OutputStream implements WriterListener {
 
   @Override
   public void write(int b) throws IOException {
+    if (checksum != null) {
+      write(new byte[] { (byte) b }, 0, 1);
+      return;
+    }
+
     if (ignoreData)
       return;
 
+    if (recorder != null) {
+      recorder.abort();
+      recorder = null;
+    }
+
     for (;;) {
       ByteBuffer next = fifo.getWriteBuffer();
       if (next == null)
@@ -107,6 +129,15 @@ final class HTTPOutputStream extends OutputStream implements WriterListener {
 
   @Override                                                              
   public void write(byte[] source, int offset, int length) {
+    if (checksum != null) {
+      if (bodyLength + length <= etagLimit) {
+        buffer(source, offset, length);
+        return;
+      }
+
+      spill();
+    }
+
     if (encoder != null) {
       try {
         encoder.compress(source, offset, length);
@@ -121,6 +152,9 @@ final class HTTPOutputStream extends OutputStream implements WriterListener {
   
   @Override
   public void flush() {
+    if (checksum != null)
+      return;
+
     if (!headerCreated) {
       final StringBuilder sb = new StringBuilder();
       sb.append("HTTP/1.1 ")
@@ -182,11 +216,7 @@ final class HTTPOutputStream extends OutputStream implements WriterListener {
       writeImpl("\r\n".getBytes(), 0, "\r\n".length());
     }
 
-    write(channel.getSocketChannel(), manager);
-    try {
-      sem.acquire();
-    }
-    catch (InterruptedException e) {}
+    drain();
   }
 
   @Override
@@ -203,7 +233,9 @@ final class HTTPOutputStream extends OutputStream implements WriterListener {
         break;
  
       try {
-        channel.write(buffer);
+        final long written = channel.write(buffer);
+        if (written > 0)
+          bytesWritten += written;
       }
       catch (IOException e) {
         if (LOGGER.isLoggable(Level.WARNING))
@@ -236,6 +268,10 @@ final class HTTPOutputStream extends OutputStream implements WriterListener {
   }
   
   public void sendError(HTTPStatus error) {
+    checksum   = null;
+    body       = null;
+    bodyLength = 0;
+
     if (responseStatus == null)
       responseStatus = new AtomicInteger(error.getValue());
     else
@@ -264,10 +300,13 @@ final class HTTPOutputStream extends OutputStream implements WriterListener {
   }
   
   public void close() {
+    if (checksum != null)
+      finishBody();
+
     flush();
     if (encoder != null) {
       writeImpl("0\r\n\r\n".getBytes(), 0, "0\r\n\r\n".length());
-      write(channel.getSocketChannel(), manager);
+      drain();
       try {
         encoder.close();
       }
@@ -286,6 +325,9 @@ final class HTTPOutputStream extends OutputStream implements WriterListener {
     if (ignoreData) 
       return;
     
+    if (recorder != null && !recorder.write(source, offset, length))
+      recorder = null;
+
     while (length > 0) {
       ByteBuffer next = fifo.getWriteBuffer();
       if (next == null)
@@ -301,9 +343,216 @@ final class HTTPOutputStream extends OutputStream implements WriterListener {
     }
   }
 
+  /**
+   * Hold the response body in memory, up to the given size, and hash it while it is written. If the whole body fits,
+   * the response gets an ETag and an exact Content-Length when it is closed, or a 304 without body when the ETag
+   * matches If-None-Match. A bigger body is sent as usual, without ETag.
+   * 
+   * @param limit Maximum body size held, in bytes.
+   * @param ifNoneMatch If-None-Match header of the request, or null.
+   * 
+   */
+  void setAutoETag(final int limit, final String ifNoneMatch) {
+    this.etagLimit   = limit;
+    this.ifNoneMatch = ifNoneMatch;
+    this.body        = new byte[Math.min(limit, 4096)];
+    this.checksum    = new CRC32();
+  }
+
+  private void buffer(final byte source[], final int offset, final int length) {
+    if (bodyLength + length > body.length)
+      body = Arrays.copyOf(body, Math.min(etagLimit, Math.max(body.length * 2, bodyLength + length)));
+
+    System.arraycopy(source, offset, body, bodyLength, length);
+    bodyLength += length;
+    checksum.update(source, offset, length);
+  }
+
+  /**
+   * Stop holding the body, sending what was held so far.
+   * 
+   */
+  private void spill() {
+    final byte held[] = body;
+    final int  length = bodyLength;
+
+    checksum   = null;
+    body       = null;
+    bodyLength = 0;
+
+    if (length > 0)
+      write(held, 0, length);
+  }
+
+  /**
+   * Send the held body with its ETag and length, or a 304 if the client already has it.
+   * 
+   */
+  private void finishBody() {
+    if (responseStatus.get() != HTTPStatus.OK.getValue() || headerCreated) {
+      spill();
+      return;
+    }
+
+    String etag = null;
+    for (Map.Entry<String, String> entry : responseHeader.entrySet()) {
+      if (entry.getKey().equalsIgnoreCase("ETag"))
+        etag = entry.getValue();
+    }
+
+    if (etag == null) {
+      etag = '"' + Long.toHexString(checksum.getValue()) + '-' + Integer.toHexString(bodyLength)
+        + (encoder != null ? '-' + encoder.getType() : "") + '"';
+      responseHeader.put("ETag", etag);
+    }
+
+    if (ifNoneMatch != null && HTTPResponseCache.matches(ifNoneMatch, etag)) {
+      checksum   = null;
+      body       = null;
+      bodyLength = 0;
+
+      responseStatus.set(HTTPStatus.NOT_MODIFIED.getValue());
+      encoder    = null;
+      ignoreData = true;
+      return;
+    }
+
+    byte data[] = body;
+    int  length = bodyLength;
+
+    checksum   = null;
+    body       = null;
+    bodyLength = 0;
+
+    if (encoder != null && length > 0) {
+      try {
+        encoder.compress(data, 0, length);
+        data   = encoder.flush();
+        length = data.length;
+        encoder.close();
+      }
+      catch (IOException e) {
+        throw new RuntimeException("Problems to compress data using an encoder.", e);
+      }
+
+      responseHeader.put("Content-Encoding", encoder.getType());
+    }
+
+    encoder = null;
+    responseHeader.put("Content-Length", Integer.toString(length));
+    writeImpl(data, 0, length);
+  }
+
+  /**
+   * Write bytes that are already encoded, as kept by the response cache. The bytes skip the encoder, the automatic
+   * ETag and the recorder.
+   * 
+   * @param body Buffers to be written, from their position to their limit.
+   * 
+   */
+  void writeRaw(final ByteBuffer body[]) {
+    checksum    = null;
+    this.body   = null;
+    bodyLength  = 0;
+
+    if (ignoreData)
+      return;
+
+    for (ByteBuffer source : body) {
+      while (source.hasRemaining()) {
+        final ByteBuffer next = fifo.getWriteBuffer();
+        if (next == null)
+          return;
+
+        if (next.remaining() < source.remaining()) {
+          final ByteBuffer slice = source.duplicate();
+          slice.limit(slice.position() + next.remaining());
+          source.position(slice.limit());
+          next.put(slice);
+        }
+        else
+          next.put(source);
+      }
+    }
+  }
+
+  /**
+   * Send a response rendered beforehand, status line and headers included, and ignore anything written afterwards.
+   * 
+   * @param response Buffer with the whole response, from its position to its limit.
+   * 
+   */
+  void sendRendered(final ByteBuffer response) {
+    checksum      = null;
+    body          = null;
+    bodyLength    = 0;
+    header        = response;
+    headerCreated = true;
+    ignoreData    = true;
+
+    drain();
+  }
+
+  /**
+   * Copy everything written to the response, after encoding, to a response cache recorder.
+   * 
+   * @param recorder Recorder, or null to stop recording.
+   * 
+   */
+  void setRecorder(final HTTPResponseCache.Recorder recorder) {
+    this.recorder = recorder;
+  }
+
+  /**
+   * Write the pending buffers to the socket and wait for the writer to finish.
+   * 
+   */
+  private void drain() {
+    final long begin = System.nanoTime();
+
+    channel.setTimeout(ConnectionTimeouts.Type.WRITE);
+    write(channel.getSocketChannel(), manager);
+    try {
+      sem.acquire();
+    }
+    catch (InterruptedException e) {}
+
+    channel.clearTimeout();
+
+    writeTime += System.nanoTime() - begin;
+  }
+
+  /**
+   * Returns the time spent draining the response to the socket.
+   * 
+   * @return Time in nanoseconds.
+   * 
+   */
+  long getWriteTime() {
+    return writeTime;
+  }
+
+  /**
+   * Returns the number of bytes written to the socket, headers included.
+   * 
+   * @return Written bytes.
+   * 
+   */
+  long getBytesWritten() {
+    return bytesWritten;
+  }
+
   void clear() {
     fifo.clear();  
   }
+
+  /**
+   * Drop the buffers not written, once the connection is closed.
+   * 
+   */
+  void discard() {
+    fifo.discard();
+  }
   
   boolean isHeaderCreated() {
     return headerCreated;
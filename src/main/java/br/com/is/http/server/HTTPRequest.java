@@ -45,6 +45,8 @@ public interface HTTPRequest {
   
   public String getParameter(final String name);
 
+  public String[] getParameterValues(final String name);
+
   public Enumeration<String> getParameterNames();
   
   public InputStream getInputStream();
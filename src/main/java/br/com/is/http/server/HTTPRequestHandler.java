@@ -19,15 +19,21 @@ package br.com.is.http.server;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectableChannel;
+import java.nio.charset.Charset;
 import java.util.Hashtable;
+import java.util.Map;
 import java.util.StringTokenizer;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.net.ssl.SSLException;
 
+import br.com.is.http.server.accesslog.AccessLog;
 import br.com.is.http.server.exception.BadRequestException;
+import br.com.is.http.server.session.SessionIdGenerator;
+import br.com.is.http.server.session.SessionStore;
+import br.com.is.nio.ByteBufferPool;
 import br.com.is.nio.EventLoop;
 import br.com.is.nio.listener.ReaderListener;
 
@@ -47,47 +53,68 @@ final class HTTPRequestHandler implements ReaderListener {
   
   private static final String COOKIE = "cookie";
 
+  private static final ByteBufferPool BUFFERS = new ByteBufferPool(BUFFER_SIZE, 1024);
+
+  // Shared by the connections that have not sent a header field or a cookie yet, so they are never modified.
+  private static final Hashtable<String, String> NO_HEADER  = new Hashtable<>(1);
+  private static final Hashtable<String, Cookie> NO_COOKIES = new Hashtable<>(1);
+
   private final EventLoop                              manager;
   private final HTTPChannel                            channel;
   private final Hashtable<String, HTTPContext>         contexts;
-  private final ConcurrentHashMap<String, HTTPSession> sessions;
+  private final SessionStore                           sessions;
+  private final SessionIdGenerator                     sessionIds;
+  private final ServerMetrics                          metrics;
+  private final AccessLog                              accessLog;
+  private final HTTPResponseCache                      cache;
 
   private String                          uri             = null;
   private HeaderType                      type            = HeaderType.METHOD;
   private String                          headerField     = "";
 
-  private ByteBuffer                      buffer          = ByteBuffer.allocate(BUFFER_SIZE);  
+  private ByteBuffer                      buffer          = null;
 
-  private Hashtable<String, Cookie>       cookies         = new Hashtable<>();
-  private Hashtable<String, String>       params          = null;
-  private Hashtable<String, String>       header          = new Hashtable<>();
+  private Hashtable<String, Cookie>       cookies         = NO_COOKIES;
+  private String                          query           = null;
+  private Hashtable<String, String>       header          = NO_HEADER;
   private boolean                         keepAlive       = false;
   private HTTPRequest.RequestMethod       method;
+  private RequestTimeline                 timeline        = new RequestTimeline(System.nanoTime());
 
   private HTTPOutputStream os;
 
   private static final String CONNECTION            = "connection";
   private static final String CONNECTION_KEEP_ALIVE = "keep-alive";
+  private static final String HTTP_VERSION          = "HTTP-Version";
+  private static final String REFERER               = "referer";
+  private static final String USER_AGENT            = "user-agent";
+
+  private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+  private static final Charset UTF8       = Charset.forName("UTF-8");
   
   /**
    * Constructor.
    * 
    * @param channel The HTTP channel handler. The HTTP channel support SSL Connection as well.
    * @param contexts All HTTP Contexts registered on HTTP Server class before the run method has been called.
-   * @param sessions All HTTP Sessions registered on HTTP Server class.
+   * @param sessions Store that keeps all HTTP Sessions registered on HTTP Server class.
+   * @param sessionIds Generator used to create new HTTP Session ids.
+   * @param metrics Server metrics, or null if the requests are not measured.
+   * @param accessLog Access log, or null if the requests are not logged.
+   * @param cache Response cache, or null if the responses are not cached.
    * 
    */
   HTTPRequestHandler(final HTTPChannel channel, final Hashtable<String, HTTPContext> contexts, 
-    final ConcurrentHashMap<String, HTTPSession> sessions, final EventLoop manager) {
+    final SessionStore sessions, final SessionIdGenerator sessionIds, final EventLoop manager,
+    final ServerMetrics metrics, final AccessLog accessLog, final HTTPResponseCache cache) {
     this.manager        = manager;
     this.channel        = channel;
     this.contexts       = contexts;
     this.sessions       = sessions;
-    
-    if (channel.isSSL())
-      os = null;
-    else    
-      os = new HTTPOutputStream(channel, manager);
+    this.sessionIds     = sessionIds;
+    this.metrics        = metrics;
+    this.accessLog      = accessLog;
+    this.cache          = cache;
   }
 
   /**
@@ -114,6 +141,9 @@ final class HTTPRequestHandler implements ReaderListener {
       return;
     }
 
+    if (buffer == null)
+      buffer = BUFFERS.acquire();
+
     long length = 0;
     do {
       try {
@@ -130,6 +160,11 @@ final class HTTPRequestHandler implements ReaderListener {
           manager.registerReaderListener(channel.getSocketChannel(), this);
           keepAlive = false;
         }
+
+        timeline.received();
+
+        if (type == HeaderType.METHOD && channel.getTimeout() != ConnectionTimeouts.Type.HEADER)
+          channel.setTimeout(ConnectionTimeouts.Type.HEADER);
         
         if (type != HeaderType.BODY) {
           try {
@@ -159,31 +194,39 @@ final class HTTPRequestHandler implements ReaderListener {
         }
 
         if (type == HeaderType.BODY) {
-          String      tmp = uri;
-          HTTPContext ctx = null;
-          while (!tmp.isEmpty()) {
-            if ((ctx = contexts.get(tmp)) != null)
-              break;
-            
-            int idx;
-            for(idx =  tmp.length() - 2; idx >= 0; --idx)
-              if (tmp.charAt(idx) == '/') break;
-            
-            tmp = (idx >= 0) ? tmp.substring(0, idx) + '/' : "";
-          }
-          
+          timeline.parsed();
+
+          final HTTPContext ctx = findContext(contexts, uri);
           if (ctx == null) {
             sendError("Cannot find the context for: " + uri, HTTPStatus.NOT_FOUND);
             return;
           }
 
+          final RateLimiter limiter = ctx.getRateLimiter();
+          if (limiter != null) {
+            final long retryAfter = limiter.acquire(channel.getRemoteAddress(),
+              limiter.getHeader() == null ? null : header.get(limiter.getHeader()));
+
+            if (retryAfter > 0) {
+              reject(retryAfter);
+              return;
+            }
+          }
+
           buffer.flip();
-          channel.setRemaining(buffer);
+          if (buffer.hasRemaining())
+            channel.setRemaining(buffer);
+          else
+            BUFFERS.release(buffer);
+
+          buffer = null;
           manager.unregisterReaderListener(channel.getSocketChannel());
+          channel.clearTimeout();
 
           keepAlive = header.get(CONNECTION).equalsIgnoreCase(CONNECTION_KEEP_ALIVE);
+          timeline.queued();
           manager.registerThreadListener(new HTTPContextHandler(method, uri, ctx, this.channel, manager, sessions,
-            cookies, header, params, os, keepAlive ? this : null));
+            sessionIds, cookies, header, query, os, keepAlive ? this : null, metrics, accessLog, cache, timeline));
 
           return;
         }
@@ -198,6 +241,12 @@ final class HTTPRequestHandler implements ReaderListener {
         }
       }
     } while (length > 0);
+
+    // Nothing of the next request has been read, so an idle connection does not keep a buffer.
+    if (buffer != null && buffer.position() == 0 && type == HeaderType.METHOD) {
+      BUFFERS.release(buffer);
+      buffer = null;
+    }
   }
 
   /**
@@ -249,9 +298,10 @@ final class HTTPRequestHandler implements ReaderListener {
           sendError("Request method not recognized", HTTPStatus.METHOD_NOT_ALLOWED);
 
         uri = decodeUri(method[1]);
-        os.setUri(uri);
+        if (os != null)
+          os.setUri(uri);
         
-        header.put("HTTP-Version", method[2].trim());
+        putHeader(HTTP_VERSION, method[2].trim());
         
         type = HeaderType.ATTRIBUTE;
       }
@@ -279,6 +329,7 @@ final class HTTPRequestHandler implements ReaderListener {
       LOGGER.log(Level.WARNING, message);
     
     os.sendError(error);
+    recordError(error);
     try {
       channel.close();
     }
@@ -286,6 +337,7 @@ final class HTTPRequestHandler implements ReaderListener {
       if (LOGGER.isLoggable(Level.WARNING))
         LOGGER.log(Level.WARNING, "Problems to close the channel", e);
     }
+    os.discard();
   }
   
   /**
@@ -304,6 +356,7 @@ final class HTTPRequestHandler implements ReaderListener {
     }
 
     os.sendError(error);
+    recordError(error);
     try {
       channel.close();
     }
@@ -311,6 +364,47 @@ final class HTTPRequestHandler implements ReaderListener {
       if (LOGGER.isLoggable(Level.WARNING))
         LOGGER.log(Level.WARNING, "Problems to close the channel", ioe);
     }
+    os.discard();
+  }
+
+  /**
+   * Refuse a request over the rate limit of its context with a 429 rendered beforehand, without going through the
+   * executor, and close the communication.
+   * 
+   * @param retryAfter Milliseconds until the client may send another request.
+   * 
+   */
+  private void reject(final long retryAfter) {
+    if (LOGGER.isLoggable(Level.FINE))
+      LOGGER.fine("Rate limit exceeded by " + channel.getRemoteAddress() + " for: " + uri);
+
+    os.sendRendered(RateLimiter.response(retryAfter));
+    recordError(HTTPStatus.TOO_MANY_REQUESTS);
+    try {
+      channel.close();
+    }
+    catch (IOException e) {
+      if (LOGGER.isLoggable(Level.WARNING))
+        LOGGER.log(Level.WARNING, "Problems to close the channel", e);
+    }
+  }
+
+  /**
+   * Account and log a request that has been refused before reaching a context.
+   * 
+   * @param error The response status.
+   * 
+   */
+  private void recordError(final HTTPStatus error) {
+    final long duration = timeline.getDuration();
+    if (metrics != null)
+      metrics.unmatched.record(error.getValue(), duration);
+
+    if (accessLog != null) {
+      accessLog.log(System.currentTimeMillis() - TimeUnit.NANOSECONDS.toMillis(duration), duration,
+        os.getBytesWritten(), error.getValue(), channel.getRemoteAddress(), method == null ? null : method.name(),
+        query == null ? uri : uri + '?' + query, header.get(HTTP_VERSION), header.get(REFERER), header.get(USER_AGENT));
+    }
   }
 
   /**
@@ -324,9 +418,16 @@ final class HTTPRequestHandler implements ReaderListener {
     if (key.equals(COOKIE))
       parseCookies(value);
     else
-      header.put(key, value);
+      putHeader(key, value);
   }
   
+  private void putHeader(final String key, final String value) {
+    if (header == NO_HEADER)
+      header = new Hashtable<>();
+
+    header.put(key, value);
+  }
+
   /**
    * Parse a Cookie header and create a list of cookies to be used by the HTTP Context.
    * 
@@ -341,6 +442,9 @@ final class HTTPRequestHandler implements ReaderListener {
         int idx = tmp.indexOf('=');
         if (idx >= 0) {
           String key = tmp.substring(0, idx).trim();
+          if (cookies == NO_COOKIES)
+            cookies = new Hashtable<>();
+
           cookies.put(key, new Cookie(key, tmp.substring(idx +1)));
         }
       } while (st.hasMoreTokens());
@@ -348,26 +452,7 @@ final class HTTPRequestHandler implements ReaderListener {
   }
   
   /**
-   * Parse the get/post params and add it to the params map.
-   * 
-   * @param src Data to be parsed.
-   * 
-   */
-  private void parseParams(final String src) {
-    final StringTokenizer st = new StringTokenizer(src, "&");
-    if (st.hasMoreTokens()) {
-      params = new Hashtable<>();
-      do {
-        final String tmp = st.nextToken();
-        int idx = tmp.indexOf('=');
-        if (idx >= 0)
-          params.put(decodeHEXUri(tmp.substring(0, idx)).trim(), decodeHEXUri(tmp.substring(idx +1)));
-      } while (st.hasMoreTokens());
-    }
-  }
-
-  /**
-   * Decode the URI string.
+   * Decode the URI string. The query string is kept encoded and is only parsed by the context handler.
    * 
    * @param src URI to be decoded.
    * 
@@ -377,7 +462,7 @@ final class HTTPRequestHandler implements ReaderListener {
   private String decodeUri(final String src) {
     final int idx = src.indexOf('?');
     if (idx >= 0) {
-      parseParams(src.substring(idx + 1));
+      query = src.substring(idx + 1);
       return decodeHEXUri(src.substring(0, idx));
     }
 
@@ -385,7 +470,8 @@ final class HTTPRequestHandler implements ReaderListener {
   }
   
   /**
-   * Decode the HEX URI data.
+   * Decode the HEX URI data. The request line octets are kept as ISO-8859-1 chars, so the escapes are
+   * decoded back into octets and the result is read as UTF-8.
    * 
    * @param src Data to be decoded.
    * 
@@ -393,33 +479,19 @@ final class HTTPRequestHandler implements ReaderListener {
    * 
    */
   private String decodeHEXUri(final String src) {
-    final StringBuilder sb = new StringBuilder();
-    
+    final byte[] data = src.getBytes(ISO_8859_1);
+    final int    end  = Parameters.decode(data, 0, data.length);
+
+    int length = 0;
     boolean isSlash = false;
-    for (int i = 0; i < src.length(); ++i) {
-      char ch = src.charAt(i);
-      switch (ch) {
-        case '+':
-          sb.append(' ');
-          isSlash = false;
-          break;
-        case '/':
-          if (!isSlash)
-            sb.append(ch);
-          isSlash = true;
-        break;
-        case '%':
-          sb.append((char) Integer.parseInt(src.substring(i + 1, i + 3), 16));
-          i += 2;
-          isSlash = false;
-          break;
-        default:
-          sb.append(ch);
-          isSlash = false;
-      }
+    for (int i = 0; i < end; ++i) {
+      if (data[i] != '/' || !isSlash)
+        data[length++] = data[i];
+
+      isSlash = data[i] == '/';
     }
     
-    return sb.toString();
+    return new String(data, 0, length, UTF8);
   }
 
   /**
@@ -451,18 +523,90 @@ final class HTTPRequestHandler implements ReaderListener {
     return null;
   }
   
+  /**
+   * Find the context of an URI. If there is no context registered for the URI itself, its parent directories
+   * are tried up to the root.
+   * 
+   * @param contexts Registered contexts.
+   * @param uri Decoded request URI.
+   * 
+   * @return The context, or null.
+   * 
+   */
+  static HTTPContext findContext(final Map<String, HTTPContext> contexts, final String uri) {
+    String      tmp = uri;
+    HTTPContext ctx = null;
+    while (!tmp.isEmpty()) {
+      if ((ctx = contexts.get(tmp)) != null)
+        break;
+      
+      int idx;
+      for(idx =  tmp.length() - 2; idx >= 0; --idx)
+        if (tmp.charAt(idx) == '/') break;
+      
+      tmp = (idx >= 0) ? tmp.substring(0, idx) + '/' : "";
+    }
+
+    return ctx;
+  }
+
+  /**
+   * Parse a request header held in memory, without reading from the channel. Used to measure the parser.
+   * 
+   * @param data Request header octets.
+   * 
+   * @return True if the header is complete.
+   * 
+   * @throws IOException, BadRequestException
+   * 
+   */
+  boolean parseHeader(final ByteBuffer data) throws IOException, BadRequestException {
+    resetHeader();
+    if (buffer != null)
+      BUFFERS.release(buffer);
+
+    buffer = BUFFERS.acquire();
+    buffer.put(data);
+
+    return readHeader();
+  }
+
   /**
    * Restart this class to be used when the connection is keep-alive.
    * 
    */
   private void reset() {
+    resetHeader();
+    os          = new HTTPOutputStream(channel, manager);
+  }
+
+  /**
+   * Restart the header parser state. The buffer is kept, it may already hold the next request.
+   * 
+   */
+  private void resetHeader() {
     uri         = null;
     type        = HeaderType.METHOD;
     headerField = "";
-    buffer      = ByteBuffer.allocate(BUFFER_SIZE);  
-    cookies     = new Hashtable<>();
-    params      = null;
-    header      = new Hashtable<>();
-    os          = new HTTPOutputStream(channel, manager);
+    cookies     = NO_COOKIES;
+    query       = null;
+    header      = NO_HEADER;
+    timeline    = new RequestTimeline(System.nanoTime());
+  }
+
+  Hashtable<String, String> getHeader() {
+    return header;
+  }
+
+  Hashtable<String, Cookie> getCookies() {
+    return cookies;
+  }
+
+  boolean hasBuffer() {
+    return buffer != null;
+  }
+
+  static int getPooledBuffers() {
+    return BUFFERS.getPooledCount();
   }
 }
@@ -0,0 +1,988 @@
+/* Copyright (C) 2013 Leonardo Bispo de Oliveira
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package br.com.is.http.server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import br.com.is.metrics.Counter;
+import br.com.is.metrics.Gauge;
+import br.com.is.metrics.MetricsRegistry;
+
+/**
+ * Shared in-process cache of GET responses, placed in front of the {@link HTTPContext} handlers. Only responses that
+ * ask to be cached are kept: a 200 without cookies whose Cache-Control has s-maxage or max-age, and none of no-store,
+ * no-cache or private. s-maxage wins over max-age, as for any shared cache.
+ * 
+ * Entries are keyed by the URI, the query, the negotiated content encoding and the request headers named by the
+ * response Vary header, and hold the response as it was written to the socket, compressed and chunked included, so a
+ * hit replays the bytes without running the handler or the encoder. HEAD requests are served from the GET entry.
+ * 
+ * A request with If-None-Match matching the cached ETag gets a 304. A stale entry with an ETag is revalidated: the
+ * handler sees the ETag in If-None-Match and, if it answers 304, the entry is refreshed and replayed. Requests with
+ * Cache-Control no-cache, Pragma no-cache or a max-age older than the entry revalidate too, and no-store skips the
+ * cache.
+ * 
+ * Contexts with a coalesce timeout also share misses: while a GET runs the handler, identical GETs wait for it and
+ * get a copy of its response, unless it sets cookies or is marked private or no-store. Requests with Authorization
+ * or Cookie headers are never coalesced. A request that waits longer than the timeout runs the handler itself.
+ * 
+ * The bodies live in direct memory pages taken from a pool sized by the byte budget. Eviction follows W-TinyLFU: new
+ * entries go to a small LRU window, and when the window overflows its oldest entry only enters the main segmented
+ * LRU if it was requested more often than the entry it would evict, according to a frequency sketch. The sketch counts
+ * every lookup of a URI, misses included, so a URI requested often but rarely cacheable long enough still wins
+ * admission.
+ * 
+ * @author Leonardo Bispo de Oliveira.
+ *
+ */
+public final class HTTPResponseCache {
+  private static final String AGE               = "Age";
+  private static final String CACHE_CONTROL     = "cache-control";
+  private static final String CONTENT_ENCODING  = "Content-Encoding";
+  private static final String ETAG              = "etag";
+  private static final String IF_NONE_MATCH     = "if-none-match";
+  private static final String PRAGMA            = "pragma";
+  private static final String AUTHORIZATION     = "authorization";
+  private static final String COOKIE            = "cookie";
+  private static final String RANGE             = "range";
+  private static final String TRANSFER_ENCODING = "Transfer-Encoding";
+  private static final String VARY              = "vary";
+
+  private static final List<String> NOT_STORED       = Arrays.asList("age", "connection", "date", "set-cookie");
+  private static final List<String> NOT_MODIFIED    = Arrays.asList("cache-control", "content-location", "etag",
+    "expires", "last-modified", "vary");
+
+  private static final int  EVICTION_RETRIES    = 8;
+  private static final int  DEFAULT_MAX_ENTRY   = 1024 * 1024;
+
+  private final PagePool                          pool;
+  private final FrequencySketch                   sketch;
+  private final ConcurrentMap<String, CachedResponse> data     = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, Variants>       variants = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, Flight>         flights  = new ConcurrentHashMap<>();
+  private final int                               maxEntrySize;
+
+  private final Object      lock      = new Object();
+  private final AccessOrder window    = new AccessOrder();
+  private final AccessOrder probation = new AccessOrder();
+  private final AccessOrder protect   = new AccessOrder();
+  private final long        maximum;
+  private final long        windowMaximum;
+  private final long        mainMaximum;
+  private final long        protectedMaximum;
+
+  private Counter hits        = new Counter();
+  private Counter misses      = new Counter();
+  private Counter revalidated = new Counter();
+  private Counter bypassed    = new Counter();
+  private Counter evictions   = new Counter();
+  private Counter coalesced   = new Counter();
+  private Counter timeouts    = new Counter();
+
+  /**
+   * Constructor. Responses bigger than 1 MiB, or than an eighth of the budget, are not cached.
+   * 
+   * @param budget Maximum number of bytes kept, rounded down to pages of 4 KiB.
+   * 
+   */
+  public HTTPResponseCache(final long budget) {
+    this(budget, (int) Math.min(DEFAULT_MAX_ENTRY, budget / 8));
+  }
+
+  /**
+   * Constructor.
+   * 
+   * @param budget Maximum number of bytes kept, rounded down to pages of 4 KiB.
+   * @param maxEntrySize Size of the biggest response cached, headers excluded.
+   * 
+   */
+  public HTTPResponseCache(final long budget, final int maxEntrySize) {
+    pool = new PagePool(budget);
+
+    maximum          = (long) pool.capacity() * PagePool.PAGE_SIZE;
+    windowMaximum    = Math.max(PagePool.PAGE_SIZE, maximum / 100);
+    mainMaximum      = maximum - windowMaximum;
+    protectedMaximum = mainMaximum * 8 / 10;
+
+    if (maxEntrySize <= 0 || maxEntrySize > mainMaximum)
+      throw new IllegalArgumentException("The max entry size must be positive and fit in the cache budget");
+
+    this.maxEntrySize = maxEntrySize;
+    this.sketch       = new FrequencySketch(pool.capacity());
+  }
+
+  /**
+   * Register the cache metrics, replacing the counters kept by the cache itself.
+   * 
+   * @param registry Registry to receive the metrics.
+   * 
+   */
+  public void registerMetrics(final MetricsRegistry registry) {
+    final String name = "tinyhttp_response_cache_requests_total";
+    final String help = "Cacheable requests by result: hit, revalidated, coalesced, miss or bypass.";
+
+    hits        = registry.counter(name, help, "result", "hit");
+    revalidated = registry.counter(name, help, "result", "revalidated");
+    coalesced   = registry.counter(name, help, "result", "coalesced");
+    misses      = registry.counter(name, help, "result", "miss");
+    bypassed    = registry.counter(name, help, "result", "bypass");
+    evictions   = registry.counter("tinyhttp_response_cache_evictions_total", "Responses evicted from the cache.");
+    timeouts    = registry.counter("tinyhttp_response_cache_coalesce_timeouts_total",
+      "Requests that stopped waiting for an identical request and ran the handler.");
+
+    registry.gauge("tinyhttp_response_cache_bytes", "Bytes of direct memory held by cached responses.", new Gauge() {
+      @Override
+      public long get() {
+        return (long) pool.used() * PagePool.PAGE_SIZE;
+      }
+    });
+
+    registry.gauge("tinyhttp_response_cache_entries", "Responses in the cache.", new Gauge() {
+      @Override
+      public long get() {
+        return data.size();
+      }
+    });
+  }
+
+  /**
+   * Returns the fraction of the cacheable requests answered from the cache, revalidations included.
+   * 
+   * @return Hit ratio between 0 and 1.
+   * 
+   */
+  public double getHitRatio() {
+    final long served = hits.sum() + revalidated.sum();
+    final long total  = served + misses.sum();
+
+    return total == 0 ? 0 : (double) served / total;
+  }
+
+  /**
+   * Returns the number of responses in the cache.
+   * 
+   * @return Number of entries.
+   * 
+   */
+  public int size() {
+    return data.size();
+  }
+
+  /**
+   * Returns the estimated number of recent lookups of a URI.
+   * 
+   * @param uri Request URI, with the query string.
+   * 
+   * @return Estimated lookups.
+   * 
+   */
+  int getFrequency(final String uri) {
+    synchronized (lock) {
+      return sketch.frequency(CachedResponse.spread(uri.hashCode()));
+    }
+  }
+
+  /**
+   * Start the cache lookup of a request.
+   * 
+   * @param method Request method.
+   * @param uri Request URI.
+   * @param query Request query, or null.
+   * @param header Request header, with lower case names. The If-None-Match header is added when the entry must be
+   *               revalidated.
+   * @param encoding Content encoding negotiated for the response, or null.
+   * @param coalesceTimeout Time a GET waits for an identical request already running the handler, in milliseconds.
+   *                        Zero runs the handler for every miss.
+   * 
+   * @return The exchange, or null if the request cannot use the cache.
+   * 
+   */
+  Exchange begin(final HTTPRequest.RequestMethod method, final String uri, final String query,
+    final Map<String, String> header, final String encoding, final long coalesceTimeout) {
+    if (method != HTTPRequest.RequestMethod.GET && method != HTTPRequest.RequestMethod.HEAD)
+      return null;
+
+    final Directives request = new Directives(header.get(CACHE_CONTROL));
+    if (request.noStore || header.containsKey(RANGE)) {
+      bypassed.increment();
+      return null;
+    }
+
+    final String primary = query == null ? uri : uri + '?' + query;
+    final Exchange exchange = new Exchange(method, primary, header, encoding == null ? "" : encoding);
+
+    final Variants current = variants.get(primary);
+    CachedResponse entry = current == null ? null : data.get(key(primary, current.names, header, exchange.encoding));
+    if (entry != null && !entry.retain())
+      entry = null;
+
+    synchronized (lock) {
+      sketch.increment(CachedResponse.spread(primary.hashCode()));
+      if (entry != null && entry.queue != null)
+        onAccess(entry);
+    }
+
+    if (entry != null) {
+      final long now = System.nanoTime();
+      final boolean noCache = request.noCache || (header.get(CACHE_CONTROL) == null && "no-cache".equalsIgnoreCase(header.get(PRAGMA)));
+      final boolean young = request.maxAge < 0 || entry.age(now) <= TimeUnit.SECONDS.toNanos(request.maxAge);
+      if (entry.isFresh(now) && !noCache && young) {
+        exchange.fresh = entry;
+        return exchange;
+      }
+    }
+
+    // A response to credentials or cookies may be personal, so it is never handed to another client.
+    if (coalesceTimeout > 0 && method == HTTPRequest.RequestMethod.GET && !header.containsKey(AUTHORIZATION)
+      && !header.containsKey(COOKIE)) {
+      final Flight flight = new Flight(primary + '\n' + exchange.encoding);
+      final Flight running = flights.putIfAbsent(flight.key, flight);
+      if (running == null)
+        exchange.flight = flight;
+      else if (running.join()) {
+        exchange.joined  = running;
+        exchange.timeout = TimeUnit.MILLISECONDS.toNanos(coalesceTimeout);
+        if (entry != null)
+          entry.release();
+
+        return exchange;
+      }
+    }
+
+    if (entry == null)
+      return exchange;
+
+    if (entry.etag != null && !header.containsKey(IF_NONE_MATCH)) {
+      header.put(IF_NONE_MATCH, entry.etag);
+      exchange.stale = entry;
+    }
+    else
+      entry.release();
+
+    return exchange;
+  }
+
+  /**
+   * One request going through the cache: it either replays a fresh entry, waits for an identical request already
+   * running the handler, revalidates a stale entry with the handler, or records the handler response to store it
+   * and to hand it to the requests waiting for it.
+   * 
+   * @author Leonardo Bispo de Oliveira.
+   *
+   */
+  final class Exchange {
+    private final HTTPRequest.RequestMethod method;
+    private final String                    primary;
+    private final Map<String, String>       header;
+    private final String                    encoding;
+
+    private CachedResponse fresh    = null;
+    private CachedResponse stale    = null;
+    private Recorder       recorder = null;
+    private Flight         flight   = null;
+    private Flight         joined   = null;
+    private long           timeout  = 0;
+
+    private Exchange(final HTTPRequest.RequestMethod method, final String primary, final Map<String, String> header,
+      final String encoding) {
+      this.method   = method;
+      this.primary  = primary;
+      this.header   = header;
+      this.encoding = encoding;
+    }
+
+    /**
+     * Replay the cached response if it is fresh, otherwise prepare the output stream to record the handler response.
+     * 
+     * @param os Output stream of the request.
+     * @param status Response status.
+     * @param responseHeader Response header.
+     * 
+     * @return True if the response was served from the cache and the handler must not run.
+     * 
+     */
+    boolean serve(final HTTPOutputStream os, final AtomicInteger status, final Map<String, String> responseHeader) {
+      if (fresh != null) {
+        hits.increment();
+        replay(fresh, os, status, responseHeader, header.get(IF_NONE_MATCH), method == HTTPRequest.RequestMethod.HEAD);
+        fresh.release();
+        fresh = null;
+        return true;
+      }
+
+      if (joined != null && coalesce(os, status, responseHeader))
+        return true;
+
+      if (stale == null)
+        misses.increment();
+
+      if (method == HTTPRequest.RequestMethod.GET) {
+        recorder = new Recorder();
+        os.setRecorder(recorder);
+      }
+
+      return false;
+    }
+
+    /**
+     * Check if the handler answered the revalidation of a stale entry with a 304, and replay the entry if so.
+     * 
+     * @param os Output stream of the request.
+     * @param status Response status set by the handler.
+     * @param responseHeader Response header set by the handler.
+     * 
+     * @return True if the cached response was sent in place of the handler response.
+     * 
+     */
+    boolean revalidated(final HTTPOutputStream os, final AtomicInteger status, final Map<String, String> responseHeader) {
+      if (stale == null)
+        return false;
+
+      final CachedResponse entry = stale;
+      stale = null;
+
+      if (status.get() != HTTPStatus.NOT_MODIFIED.getValue() || os.isHeaderCreated()) {
+        misses.increment();
+        entry.release();
+        return false;
+      }
+
+      revalidated.increment();
+      complete(entry, entry.variants.names);
+
+      final Directives directives = new Directives(find(responseHeader, CACHE_CONTROL));
+      final long freshness = directives.freshness(header.containsKey(AUTHORIZATION));
+      if (freshness > 0) {
+        final long now = System.nanoTime();
+        entry.refresh(now, now + TimeUnit.SECONDS.toNanos(freshness));
+      }
+
+      os.setRecorder(null);
+      discard();
+
+      responseHeader.clear();
+      header.remove(IF_NONE_MATCH);
+      replay(entry, os, status, responseHeader, null, method == HTTPRequest.RequestMethod.HEAD);
+      entry.release();
+      return true;
+    }
+
+    /**
+     * Store the recorded response if it may be cached. Must be called after the output stream was closed.
+     * 
+     * @param status Response status.
+     * @param responseHeader Response header.
+     * @param cookies Response cookies.
+     * 
+     */
+    void finish(final int status, final Map<String, String> responseHeader, final List<Cookie> cookies) {
+      if (stale != null) {
+        misses.increment();
+        stale.release();
+        stale = null;
+      }
+
+      if (recorder == null) {
+        complete(null, null);
+        return;
+      }
+
+      final Directives directives = new Directives(find(responseHeader, CACHE_CONTROL));
+      final long freshness = directives.freshness(header.containsKey(AUTHORIZATION));
+      final String vary = find(responseHeader, VARY);
+      final boolean shared = !recorder.aborted && status < HTTPStatus.BAD_REQUEST.getValue() && cookies.isEmpty()
+        && !directives.noStore && !directives.isPrivate && (vary == null || !vary.trim().equals("*"));
+      final boolean stored = shared && status == HTTPStatus.OK.getValue() && freshness > 0;
+      if (!stored && (!shared || flight == null)) {
+        discard();
+        complete(null, null);
+        return;
+      }
+
+      final String names[] = varyNames(vary);
+      final List<String> headers = new ArrayList<>();
+      for (Map.Entry<String, String> entry : responseHeader.entrySet()) {
+        if (!NOT_STORED.contains(entry.getKey().toLowerCase(Locale.ROOT))) {
+          headers.add(entry.getKey());
+          headers.add(entry.getValue());
+        }
+      }
+
+      if (!encoding.isEmpty() && find(responseHeader, CONTENT_ENCODING) == null) {
+        headers.add(CONTENT_ENCODING);
+        headers.add(encoding);
+        headers.add(TRANSFER_ENCODING);
+        headers.add("chunked");
+      }
+
+      final long now = System.nanoTime();
+      final CachedResponse entry = new CachedResponse(key(primary, names, header, encoding), status,
+        headers.toArray(new String[headers.size()]), find(responseHeader, ETAG), pool,
+        Arrays.copyOf(recorder.pages, recorder.count), recorder.length, now,
+        now + TimeUnit.SECONDS.toNanos(Math.max(0, freshness)));
+      recorder = null;
+
+      if (stored) {
+        entry.retain();
+        insert(primary, names, entry);
+      }
+
+      complete(entry, names);
+      entry.release();
+    }
+
+    /**
+     * Give up an exchange that was not finished, because the handler failed. The recorded pages go back to the pool
+     * and the requests waiting for this one run their own handler. Does nothing after finish.
+     * 
+     */
+    void abort() {
+      if (fresh != null) {
+        fresh.release();
+        fresh = null;
+      }
+
+      if (stale != null) {
+        stale.release();
+        stale = null;
+      }
+
+      discard();
+      complete(null, null);
+    }
+
+    /**
+     * Wait for the request running the handler and replay its response.
+     * 
+     * @return True if the response of the other request was sent.
+     * 
+     */
+    private boolean coalesce(final HTTPOutputStream os, final AtomicInteger status,
+      final Map<String, String> responseHeader) {
+      final Flight running = joined;
+      joined = null;
+
+      if (!running.await(timeout)) {
+        timeouts.increment();
+        return false;
+      }
+
+      final CachedResponse entry = running.result;
+      if (entry == null)
+        return false;
+
+      if (!entry.key.equals(key(primary, running.names, header, encoding))) {
+        entry.release();
+        return false;
+      }
+
+      coalesced.increment();
+      replay(entry, os, status, responseHeader, header.get(IF_NONE_MATCH), false);
+      entry.release();
+      return true;
+    }
+
+    private void complete(final CachedResponse entry, final String names[]) {
+      if (flight == null)
+        return;
+
+      flights.remove(flight.key, flight);
+      flight.complete(entry, names);
+      flight = null;
+    }
+
+    private void discard() {
+      if (recorder != null) {
+        recorder.abort();
+        recorder = null;
+      }
+    }
+  }
+
+  /**
+   * Copy of the handler output taken while it is written to the socket, in pages of the pool. The recording is
+   * aborted, and the pages returned, when the response gets too big or the pool has no page left.
+   * 
+   * @author Leonardo Bispo de Oliveira.
+   *
+   */
+  final class Recorder {
+    private int        pages[] = new int[4];
+    private int        count   = 0;
+    private int        length  = 0;
+    private ByteBuffer current = null;
+    private boolean    aborted = false;
+
+    /**
+     * Append bytes to the recording.
+     * 
+     * @param source Bytes written.
+     * @param offset Offset of the first byte.
+     * @param size Number of bytes.
+     * 
+     * @return False if the recording was aborted.
+     * 
+     */
+    boolean write(final byte source[], int offset, int size) {
+      if (aborted)
+        return false;
+
+      if ((long) length + size > maxEntrySize) {
+        abort();
+        return false;
+      }
+
+      length += size;
+      while (size > 0) {
+        if (current == null || !current.hasRemaining()) {
+          final int page = allocate();
+          if (page < 0) {
+            abort();
+            return false;
+          }
+
+          if (count == pages.length)
+            pages = Arrays.copyOf(pages, count * 2);
+
+          pages[count++] = page;
+          current = pool.page(page);
+        }
+
+        final int chunk = Math.min(size, current.remaining());
+        current.put(source, offset, chunk);
+        offset += chunk;
+        size   -= chunk;
+      }
+
+      return true;
+    }
+
+    /**
+     * Stop recording and return the pages to the pool.
+     * 
+     */
+    void abort() {
+      if (aborted)
+        return;
+
+      aborted = true;
+      current = null;
+      pool.release(pages, count);
+      count = 0;
+    }
+  }
+
+  private int allocate() {
+    for (int i = 0; i < EVICTION_RETRIES; i++) {
+      final int page = pool.allocate();
+      if (page >= 0)
+        return page;
+
+      synchronized (lock) {
+        CachedResponse victim = probation.last();
+        if (victim == null)
+          victim = window.last();
+        if (victim == null)
+          victim = protect.last();
+        if (victim == null)
+          return -1;
+
+        evict(victim);
+      }
+    }
+
+    return -1;
+  }
+
+  private void replay(final CachedResponse entry, final HTTPOutputStream os, final AtomicInteger status,
+    final Map<String, String> responseHeader, final String ifNoneMatch, final boolean head) {
+    final boolean notModified = entry.etag != null && ifNoneMatch != null && matches(ifNoneMatch, entry.etag);
+
+    status.set(notModified ? HTTPStatus.NOT_MODIFIED.getValue() : entry.status);
+    for (int i = 0; i < entry.headers.length; i += 2) {
+      if (!notModified || NOT_MODIFIED.contains(entry.headers[i].toLowerCase(Locale.ROOT)))
+        responseHeader.put(entry.headers[i], entry.headers[i + 1]);
+    }
+    responseHeader.put(AGE, Long.toString(TimeUnit.NANOSECONDS.toSeconds(entry.age(System.nanoTime()))));
+
+    os.setEncoder(null);
+    if (notModified || head)
+      os.setIgnoreData(true);
+
+    os.writeRaw(entry.body());
+  }
+
+  private void insert(final String primary, final String names[], final CachedResponse entry) {
+    synchronized (lock) {
+      Variants current = variants.get(primary);
+      if (current == null || !Arrays.equals(current.names, names)) {
+        current = new Variants(names);
+        variants.put(primary, current);
+      }
+
+      entry.primary  = primary;
+      entry.variants = current;
+      current.count++;
+
+      final CachedResponse old = data.put(entry.key, entry);
+      if (old != null)
+        remove(old);
+
+      window.addFirst(entry);
+      entry.queue = CachedResponse.Queue.WINDOW;
+
+      while (window.weight > windowMaximum && window.last() != entry)
+        admit(window.last());
+
+      while (window.weight + probation.weight + protect.weight > maximum) {
+        CachedResponse victim = probation.last();
+        if (victim == null)
+          victim = protect.last();
+        if (victim == null)
+          victim = window.last();
+
+        evict(victim);
+      }
+    }
+  }
+
+  private void admit(final CachedResponse candidate) {
+    window.remove(candidate);
+    while (probation.weight + protect.weight + candidate.weight > mainMaximum) {
+      CachedResponse victim = probation.last();
+      if (victim == null)
+        victim = protect.last();
+      if (victim == null)
+        break;
+
+      if (frequency(candidate) > frequency(victim))
+        evict(victim);
+      else {
+        evict(candidate);
+        return;
+      }
+    }
+
+    probation.addFirst(candidate);
+    candidate.queue = CachedResponse.Queue.PROBATION;
+  }
+
+  private int frequency(final CachedResponse entry) {
+    return sketch.frequency(CachedResponse.spread(entry.primary.hashCode()));
+  }
+
+  private void onAccess(final CachedResponse entry) {
+    switch (entry.queue) {
+      case WINDOW:
+        window.remove(entry);
+        window.addFirst(entry);
+      break;
+      case PROBATION:
+        probation.remove(entry);
+        protect.addFirst(entry);
+        entry.queue = CachedResponse.Queue.PROTECTED;
+
+        while (protect.weight > protectedMaximum) {
+          final CachedResponse demoted = protect.last();
+          protect.remove(demoted);
+          probation.addFirst(demoted);
+          demoted.queue = CachedResponse.Queue.PROBATION;
+        }
+      break;
+      case PROTECTED:
+        protect.remove(entry);
+        protect.addFirst(entry);
+      break;
+    }
+  }
+
+  private void evict(final CachedResponse victim) {
+    remove(victim);
+    evictions.increment();
+  }
+
+  private void remove(final CachedResponse entry) {
+    if (entry.queue == CachedResponse.Queue.WINDOW)
+      window.remove(entry);
+    else if (entry.queue == CachedResponse.Queue.PROBATION)
+      probation.remove(entry);
+    else if (entry.queue == CachedResponse.Queue.PROTECTED)
+      protect.remove(entry);
+
+    entry.queue = null;
+    data.remove(entry.key, entry);
+    detach(entry);
+    entry.release();
+  }
+
+  private void detach(final CachedResponse entry) {
+    if (--entry.variants.count == 0)
+      variants.remove(entry.primary, entry.variants);
+  }
+
+  private static String key(final String primary, final String names[], final Map<String, String> header,
+    final String encoding) {
+    final StringBuilder sb = new StringBuilder(primary.length() + 32).append(primary).append('\n').append(encoding);
+    for (String name : names) {
+      final String value = header.get(name);
+      sb.append('\n').append(name).append(':').append(value == null ? "" : value.trim());
+    }
+
+    return sb.toString();
+  }
+
+  private static String[] varyNames(final String vary) {
+    if (vary == null)
+      return new String[0];
+
+    final List<String> names = new ArrayList<>();
+    final StringTokenizer st = new StringTokenizer(vary, ",");
+    while (st.hasMoreTokens()) {
+      final String name = st.nextToken().trim().toLowerCase(Locale.ROOT);
+      if (!name.isEmpty() && !names.contains(name))
+        names.add(name);
+    }
+
+    final String sorted[] = names.toArray(new String[names.size()]);
+    Arrays.sort(sorted);
+    return sorted;
+  }
+
+  static boolean matches(final String ifNoneMatch, final String etag) {
+    final String tag = weak(etag);
+    final StringTokenizer st = new StringTokenizer(ifNoneMatch, ",");
+    while (st.hasMoreTokens()) {
+      final String candidate = st.nextToken().trim();
+      if (candidate.equals("*") || weak(candidate).equals(tag))
+        return true;
+    }
+
+    return false;
+  }
+
+  private static String weak(final String etag) {
+    return etag.startsWith("W/") ? etag.substring(2) : etag;
+  }
+
+  private static String find(final Map<String, String> header, final String name) {
+    for (Map.Entry<String, String> entry : header.entrySet()) {
+      if (entry.getKey().equalsIgnoreCase(name))
+        return entry.getValue();
+    }
+
+    return null;
+  }
+
+  /**
+   * Handler execution shared by identical concurrent GET requests. The first request runs the handler and the ones
+   * arriving while it runs wait for its response, each one receiving its own reference to it.
+   * 
+   */
+  private static final class Flight {
+    final String key;
+
+    private CachedResponse result    = null;
+    private String         names[]   = null;
+    private boolean        done      = false;
+    private int            followers = 0;
+
+    Flight(final String key) {
+      this.key = key;
+    }
+
+    synchronized boolean join() {
+      if (done)
+        return false;
+
+      followers++;
+      return true;
+    }
+
+    synchronized void complete(final CachedResponse entry, final String names[]) {
+      done = true;
+      if (entry != null) {
+        for (int i = 0; i < followers; i++)
+          entry.retain();
+
+        result     = entry;
+        this.names = names;
+      }
+
+      notifyAll();
+    }
+
+    /**
+     * Wait for the response. When it returns true, the caller owns a reference to the result, if any.
+     * 
+     * @param timeout Maximum time to wait, in nanoseconds.
+     * 
+     * @return False if the response did not arrive in time.
+     * 
+     */
+    synchronized boolean await(final long timeout) {
+      final long deadline = System.nanoTime() + timeout;
+      try {
+        for (long left = timeout; !done && left > 0; left = deadline - System.nanoTime())
+          TimeUnit.NANOSECONDS.timedWait(this, left);
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+
+      if (!done)
+        followers--;
+
+      return done;
+    }
+  }
+
+  /**
+   * Vary header names of the responses stored for one URI, shared by all its entries.
+   * 
+   */
+  static final class Variants {
+    final String names[];
+    int          count = 0;
+
+    Variants(final String names[]) {
+      this.names = names;
+    }
+  }
+
+  /**
+   * Cache-Control directives of a request or a response.
+   * 
+   */
+  private static final class Directives {
+    boolean noStore        = false;
+    boolean noCache        = false;
+    boolean isPrivate      = false;
+    boolean isPublic       = false;
+    boolean mustRevalidate = false;
+    long    maxAge         = -1;
+    long    sMaxAge        = -1;
+
+    Directives(final String value) {
+      if (value == null)
+        return;
+
+      final StringTokenizer st = new StringTokenizer(value, ",");
+      while (st.hasMoreTokens()) {
+        final String token = st.nextToken().trim();
+        final int idx = token.indexOf('=');
+        final String name = (idx == -1 ? token : token.substring(0, idx).trim()).toLowerCase(Locale.ROOT);
+        final String argument = idx == -1 ? null : token.substring(idx + 1).trim().replace("\"", "");
+
+        switch (name) {
+          case "no-store":
+            noStore = true;
+          break;
+          case "no-cache":
+            noCache = true;
+          break;
+          case "private":
+            isPrivate = true;
+          break;
+          case "public":
+            isPublic = true;
+          break;
+          case "must-revalidate":
+          case "proxy-revalidate":
+            mustRevalidate = true;
+          break;
+          case "max-age":
+            maxAge = seconds(argument);
+          break;
+          case "s-maxage":
+            sMaxAge = seconds(argument);
+          break;
+        }
+      }
+    }
+
+    /**
+     * Returns how long a response with these directives stays fresh in a shared cache.
+     * 
+     * @param authorized True if the request carried credentials.
+     * 
+     * @return Freshness in seconds, zero or less if the response must not be stored.
+     * 
+     */
+    long freshness(final boolean authorized) {
+      if (noStore || noCache || isPrivate)
+        return -1;
+
+      if (authorized && !isPublic && !mustRevalidate && sMaxAge < 0)
+        return -1;
+
+      return sMaxAge >= 0 ? sMaxAge : maxAge;
+    }
+
+    private static long seconds(final String argument) {
+      try {
+        return argument == null ? -1 : Math.max(0, Long.parseLong(argument));
+      }
+      catch (NumberFormatException e) {
+        return 0;
+      }
+    }
+  }
+
+  /**
+   * Doubly linked list of entries, most recently used first, with the total weight of its entries.
+   * 
+   */
+  private static final class AccessOrder {
+    private final CachedResponse head = new CachedResponse("", 0, new String[0], null, null, new int[0], 0, 0, 0);
+    long                         weight = 0;
+
+    AccessOrder() {
+      head.previous = head;
+      head.next     = head;
+    }
+
+    void addFirst(final CachedResponse entry) {
+      entry.previous      = head;
+      entry.next          = head.next;
+      head.next.previous  = entry;
+      head.next           = entry;
+      weight             += entry.weight;
+    }
+
+    void remove(final CachedResponse entry) {
+      entry.previous.next = entry.next;
+      entry.next.previous = entry.previous;
+      entry.previous      = null;
+      entry.next          = null;
+      weight             -= entry.weight;
+    }
+
+    CachedResponse last() {
+      return head.previous == head ? null : head.previous;
+    }
+  }
+}
@@ -16,33 +16,53 @@
  */
 package br.com.is.http.server;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Method;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.URL;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.security.KeyStore;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Enumeration;
 import java.util.Hashtable;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.TrustManagerFactory;
 
 import org.reflections.Reflections;
 
+import br.com.is.http.server.accesslog.AccessLog;
 import br.com.is.http.server.annotation.Context;
+import br.com.is.http.server.annotation.ContextIndexProcessor;
+import br.com.is.http.server.session.MemorySessionStore;
+import br.com.is.http.server.session.SecureSessionIdGenerator;
+import br.com.is.http.server.session.SessionIdGenerator;
+import br.com.is.http.server.session.SessionStore;
+import br.com.is.metrics.Gauge;
+import br.com.is.metrics.MetricsRegistry;
 import br.com.is.nio.EventLoop;
 import br.com.is.nio.listener.AcceptListener;
+import br.com.is.nio.listener.TimerListener;
 
 /**
  * Provides a simple high-level asynchronous Http server API, which can be used to build embedded HTTP servers.
@@ -57,7 +77,13 @@ public final class HTTPServer implements Runnable, AcceptListener {
   
   private final static Logger LOGGER = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
   
-  private final ConcurrentHashMap<String, HTTPSession> sessions      = new ConcurrentHashMap<>();
+  private static final int SESSION_SWEEP_INTERVAL_MS = 1000;
+  private static final int ACCEPT_BUDGET             = 64;
+  private static final int MIN_ACCEPT_BACKOFF_MS     = 10;
+  private static final int MAX_ACCEPT_BACKOFF_MS     = 1000;
+  
+  private SessionStore                                 sessions       = new MemorySessionStore();
+  private SessionIdGenerator                           sessionIds     = new SecureSessionIdGenerator();
   private final EventLoop                              loop;
   private final Type                                   type;
   private final File                                   sslCertificate;
@@ -67,6 +93,14 @@ public final class HTTPServer implements Runnable, AcceptListener {
   private final Hashtable<String, HTTPContext>         contexts       = new Hashtable<>();
   private boolean                                      running        = false;
   private ServerSocketChannel                          serverChannel  = null;
+  private final ServerMetrics                          metrics        = new ServerMetrics(new MetricsRegistry());
+  private ObjectName                                   mbeanName      = null;
+  private AccessLog                                    accessLog      = null;
+  private HTTPResponseCache                            responseCache  = null;
+  private final ConnectionLimiter                      connections    = new ConnectionLimiter(metrics.getRegistry());
+  private final AcceptResumer                          resumer        = new AcceptResumer();
+  private final ConnectionTimeouts                     timeouts;
+  private int                                          acceptBackoff  = MIN_ACCEPT_BACKOFF_MS;
   
   /**
    * Constructor.
@@ -89,9 +123,14 @@ public final class HTTPServer implements Runnable, AcceptListener {
     this.sslCertificate  = sslCertificate;
     this.passphrase      = passphrase;
     this.loop            = new EventLoop(backlog);
+    this.timeouts        = new ConnectionTimeouts(loop, metrics.getRegistry());
+
+    loop.registerMetrics(metrics.getRegistry());
 
     if (staticLocation != null)
       contexts.put("/", new HTTPStaticContext(staticLocation));
+
+    registerGauges();
   }
   
   /**
@@ -181,16 +220,11 @@ public final class HTTPServer implements Runnable, AcceptListener {
   @Override
   public void run() {
     try {
-      Reflections reflections = new Reflections("");
-      Set<Class<?>> annotated = reflections.getTypesAnnotatedWith(br.com.is.http.server.annotation.Context.class);
-      for (Class<?> clazz : annotated) {
+      for (Class<?> clazz : getContextClasses()) {
         final Object newInstance    = (Object) clazz.newInstance();
-        final String urlPattern     = getClassAnnotationStringValue(clazz , Context.class, "urlPattern");
-        final String tempDirectory  = getClassAnnotationStringValue(clazz , Context.class, "tempDirectory");
-        final Long maxContentLength = getClassAnnotationLongValue(clazz   , Context.class, "maxContentLength");
-        final Boolean acceptEncode  = getClassAnnotationBooleanValue(clazz, Context.class, "acceptEncode");
+        final Context annotation    = clazz.getAnnotation(Context.class);
 
-        HTTPAnnotatedContext ctx = new HTTPAnnotatedContext(newInstance,
+        HTTPAnnotatedContext ctx = new HTTPAnnotatedContext(newInstance, annotation.urlPattern(),
           getMethod(clazz, br.com.is.http.server.annotation.GET.class),
           getMethod(clazz, br.com.is.http.server.annotation.POST.class),
           getMethod(clazz, br.com.is.http.server.annotation.DELETE.class),
@@ -198,16 +232,16 @@ public final class HTTPServer implements Runnable, AcceptListener {
           getMethod(clazz, br.com.is.http.server.annotation.PUT.class)
         );
         
-        if (!tempDirectory.equals(""))
-          ctx.setTempDirectory(tempDirectory);
+        if (!annotation.tempDirectory().equals(""))
+          ctx.setTempDirectory(annotation.tempDirectory());
 
-        if (maxContentLength != null)
-          ctx.setMaxContentLength(maxContentLength);
+        ctx.setMaxContentLength(annotation.maxContentLength());
+        ctx.setUseCodeEncoding(annotation.acceptEncode());
+        ctx.setCoalesceTimeout(annotation.coalesceTimeout());
+        ctx.setAutoETagLimit(annotation.autoETagLimit());
+        ctx.setRateLimit(annotation.rateLimit(), annotation.rateLimitBurst(), annotation.rateLimitHeader());
 
-        if (acceptEncode != null)
-          ctx.setUseCodeEncoding(acceptEncode);
-
-        contexts.put(urlPattern, ctx);
+        contexts.put(ctx.getRegistrationPattern(), ctx);
       }
       
       if (LOGGER.isLoggable(Level.INFO))
@@ -218,6 +252,23 @@ public final class HTTPServer implements Runnable, AcceptListener {
       serverChannel.socket().bind(addr, backlog);
       
       loop.registerAcceptListener(serverChannel, this);
+      loop.registerTimer(SESSION_SWEEP_INTERVAL_MS, new SessionSweeper(sessions));
+      timeouts.start();
+
+      for (Map.Entry<String, HTTPContext> entry : contexts.entrySet()) {
+        metrics.register(entry.getKey(), entry.getValue());
+
+        if (entry.getValue().getRateLimiter() != null)
+          entry.getValue().getRateLimiter().registerMetrics(metrics.getRegistry(), entry.getKey());
+
+        if (entry.getValue().getCoalesceTimeout() > 0 && responseCache == null && LOGGER.isLoggable(Level.WARNING))
+          LOGGER.warning("The context " + entry.getKey() + " coalesces requests, but there is no response cache");
+      }
+
+      registerMBean();
+
+      if (accessLog != null)
+        accessLog.start();
     }
     catch (IOException | InstantiationException | IllegalAccessException e) {
       if (LOGGER.isLoggable(Level.SEVERE))
@@ -246,12 +297,19 @@ public final class HTTPServer implements Runnable, AcceptListener {
       }
     }
     catch (InterruptedException e) {}
+
+    unregisterMBean();
+
+    if (accessLog != null)
+      accessLog.close();
     
     running = false;
   }
 
   /**
-   * Called when the server start a new connection.
+   * Called when the server has connections to accept. Up to {@link #ACCEPT_BUDGET} connections are accepted per
+   * event. The accept interest is paused when the server reaches its connection limit or cannot accept (usually out of
+   * file descriptors), and resumed by a timer with an exponential backoff.
    * 
    * @param channel The server socket channel.
    * @param manager Event loop instance used to register the new socket to the event loop.
@@ -259,30 +317,144 @@ public final class HTTPServer implements Runnable, AcceptListener {
    */
   @Override
   public void accept(final ServerSocketChannel channel, final EventLoop manager) {
-    SocketChannel socket;
+    for (int i = 0; i < ACCEPT_BUDGET; ++i) {
+      if (connections.isFull()) {
+        if (LOGGER.isLoggable(Level.FINE))
+          LOGGER.fine("Connection limit reached, pausing the accept for " + acceptBackoff + " ms");
+
+        pauseAccept(channel, manager);
+        return;
+      }
+
+      final SocketChannel socket;
+      try {
+        socket = channel.accept();
+      }
+      catch (IOException e) {
+        if (LOGGER.isLoggable(Level.WARNING))
+          LOGGER.log(Level.WARNING, "Problems to accept a new HTTP connection, pausing the accept for " + acceptBackoff
+            + " ms", e);
+
+        pauseAccept(channel, manager);
+        return;
+      }
+
+      if (socket == null)
+        return;
+
+      acceptBackoff = MIN_ACCEPT_BACKOFF_MS;
+      register(socket, manager);
+    }
+  }
+
+  /**
+   * Register an accepted connection to the event loop, or close it if its address reached the connection limit.
+   * 
+   * @param socket The accepted socket.
+   * @param manager Event loop instance.
+   * 
+   */
+  private void register(final SocketChannel socket, final EventLoop manager) {
+    final InetAddress remote  = socket.socket().getInetAddress();
+    final String      address = remote == null ? "" : remote.getHostAddress();
+
+    if (LOGGER.isLoggable(Level.FINE))
+      LOGGER.fine("Accepting a new connection from: " + socket.socket().toString());
+
+    if (!connections.acquire(address)) {
+      if (LOGGER.isLoggable(Level.FINE))
+        LOGGER.fine("Connection limit reached for: " + address);
+
+      close(socket);
+      return;
+    }
+
+    HTTPChannel httpChannel = null;
     try {
-      socket = channel.accept();
       socket.socket().setTcpNoDelay(true);
-      
-      if (LOGGER.isLoggable(Level.FINE))
-        LOGGER.fine("Accepting a new connection from: " + socket.socket().toString());
+      httpChannel = new HTTPChannel(socket, createSSLContext(type), manager, metrics, connections, timeouts);
+      manager.registerReaderListener(socket, new HTTPRequestHandler(httpChannel, contexts, sessions, sessionIds,
+        manager, metrics, accessLog, responseCache));
     }
-    catch (IOException e) {
+    catch (Exception e) {
       if (LOGGER.isLoggable(Level.SEVERE))
         LOGGER.log(Level.SEVERE, "Problems to accept a new HTTP connection", e);
 
-      throw new RuntimeException("Problems to accept a new HTTP connection", e);
+      if (httpChannel == null) {
+        connections.release(address);
+        close(socket);
+      }
+      else {
+        try {
+          httpChannel.close();
+        }
+        catch (IOException ie) {
+          if (LOGGER.isLoggable(Level.WARNING))
+            LOGGER.log(Level.WARNING, "Problems to close the channel", ie);
+        }
+      }
     }
-    
+  }
+
+  private static void close(final SocketChannel socket) {
     try {
-      manager.registerReaderListener(socket, new HTTPRequestHandler(new HTTPChannel(socket, createSSLContext(type), manager),
-        contexts, sessions, manager));
+      socket.close();
     }
-    catch (Exception e) {
+    catch (IOException e) {
+      if (LOGGER.isLoggable(Level.WARNING))
+        LOGGER.log(Level.WARNING, "Problems to close the socket", e);
+    }
+  }
+
+  /**
+   * Stop accepting connections for the current backoff, and double the backoff for the next pause.
+   * 
+   * @param channel The server socket channel.
+   * @param manager Event loop instance.
+   * 
+   */
+  private void pauseAccept(final ServerSocketChannel channel, final EventLoop manager) {
+    if (!manager.pauseAcceptListener(channel))
+      return;
+
+    resumer.pausedAt = System.nanoTime();
+    manager.registerTimer(acceptBackoff, resumer);
+    acceptBackoff = Math.min(acceptBackoff * 2, MAX_ACCEPT_BACKOFF_MS);
+  }
+
+  /**
+   * Set the maximum number of open connections. Once it is reached the server stops accepting, and the connections
+   * wait in the socket backlog.
+   * 
+   * @param max Maximum connections, zero for no limit.
+   * 
+   */
+  public void setMaxConnections(final int max) {
+    if (!running)
+      connections.setMaxConnections(max);
+    else {
       if (LOGGER.isLoggable(Level.SEVERE))
-        LOGGER.log(Level.SEVERE, "Problems to accept a new HTTP connection", e);
+        LOGGER.severe("Cannot change the maximum connections while the server is running");
 
-      throw new RuntimeException("Problems to accept a new HTTP connection", e);
+      throw new RuntimeException("Cannot change the maximum connections while the server is running");
+    }
+  }
+
+  /**
+   * Set the maximum number of open connections from one client address. Connections over the limit are closed as
+   * soon as they are accepted, and counted in the tinyhttp_connections_rejected_total metric.
+   * 
+   * @param max Maximum connections per address, zero for no limit.
+   * 
+   */
+  public void setMaxConnectionsPerAddress(final int max) {
+    if (!running)
+      connections.setMaxConnectionsPerAddress(max);
+    else {
+      if (LOGGER.isLoggable(Level.SEVERE))
+        LOGGER.severe("Cannot change the maximum connections per address while the server is running");
+
+      throw new RuntimeException("Cannot change the maximum connections per address while the server is running");
     }
   }
 
@@ -304,6 +476,209 @@ public final class HTTPServer implements Runnable, AcceptListener {
     }
   } 
   
+  /**
+   * Returns the registry that keeps the server metrics. Register a {@link MetricsContext} to export it over HTTP,
+   * the same metrics are also exported over JMX while the server is running.
+   * 
+   * @return Metrics registry.
+   * 
+   */
+  public MetricsRegistry getMetrics() {
+    return metrics.getRegistry();
+  }
+
+  /**
+   * Set the duration above which a request is logged as slow, with the time it spent in each phase (accept,
+   * parse, queue, handler and write), its URI and the client address. The log is disabled by default.
+   * 
+   * @param millis Threshold in milliseconds, zero disables the slow request log.
+   * 
+   */
+  public void setSlowRequestThreshold(final long millis) {
+    if (millis < 0)
+      throw new IllegalArgumentException("Slow request threshold cannot be negative");
+
+    metrics.setSlowThreshold(TimeUnit.MILLISECONDS.toNanos(millis));
+  }
+
+  /**
+   * Set the time an event loop iteration may run before it is reported as a stall. A watchdog thread logs the stall
+   * with the stack of the event loop thread and the listener it is running, and counts it in the
+   * tinyhttp_event_loop_stalls_total metric. The watchdog is disabled by default.
+   * 
+   * @param millis Threshold in milliseconds, zero disables the watchdog.
+   * 
+   */
+  public void setStallThreshold(final long millis) {
+    if (!running)
+      loop.setStallThreshold(millis);
+    else {
+      if (LOGGER.isLoggable(Level.SEVERE))
+        LOGGER.severe("Cannot change the stall threshold while the server is running");
+
+      throw new RuntimeException("Cannot change the stall threshold while the server is running");
+    }
+  }
+
+  /**
+   * Set the time a connection may stay open without sending a request. Expired connections are closed.
+   * 
+   * @param millis Timeout in milliseconds, zero disables it. The default is 60 seconds.
+   * 
+   */
+  public void setIdleTimeout(final long millis) {
+    setTimeout(ConnectionTimeouts.Type.IDLE, millis);
+  }
+
+  /**
+   * Set the time a client has to send the whole request header, from its first byte. Expired connections receive a
+   * 408 and are closed.
+   * 
+   * @param millis Timeout in milliseconds, zero disables it. The default is 20 seconds.
+   * 
+   */
+  public void setHeaderTimeout(final long millis) {
+    setTimeout(ConnectionTimeouts.Type.HEADER, millis);
+  }
+
+  /**
+   * Set the throughput a client must keep while the request body is read. It is checked on windows of the given
+   * duration, and connections that received less than the minimum in a window are closed. The window only runs while
+   * the context is waiting for the body.
+   * 
+   * @param millis Window in milliseconds, zero disables the check. The default is 20 seconds.
+   * @param minBytesPerSecond Minimum throughput, zero only requires some progress on each window. The default is
+   * 100 bytes per second.
+   * 
+   */
+  public void setBodyTimeout(final long millis, final long minBytesPerSecond) {
+    setTimeout(ConnectionTimeouts.Type.BODY, millis);
+    timeouts.setMinBodyRate(minBytesPerSecond);
+  }
+
+  /**
+   * Set the time a write of the response may wait for the client to read. Expired connections are closed.
+   * 
+   * @param millis Timeout in milliseconds, zero disables it. The default is 60 seconds.
+   * 
+   */
+  public void setWriteTimeout(final long millis) {
+    setTimeout(ConnectionTimeouts.Type.WRITE, millis);
+  }
+
+  private void setTimeout(final ConnectionTimeouts.Type type, final long millis) {
+    if (!running)
+      timeouts.setTimeout(type, millis);
+    else {
+      if (LOGGER.isLoggable(Level.SEVERE))
+        LOGGER.severe("Cannot change the connection timeouts while the server is running");
+
+      throw new RuntimeException("Cannot change the connection timeouts while the server is running");
+    }
+  }
+
+  /**
+   * Set the response cache shared by all contexts. Only GET responses that allow it through Cache-Control are kept.
+   * 
+   * @param cache Response cache, or null to disable it.
+   * 
+   */
+  public void setResponseCache(final HTTPResponseCache cache) {
+    if (!running) {
+      if (cache != null)
+        cache.registerMetrics(metrics.getRegistry());
+
+      responseCache = cache;
+    }
+    else {
+      if (LOGGER.isLoggable(Level.SEVERE))
+        LOGGER.severe("Cannot change the response cache while the server is running");
+
+      throw new RuntimeException("Cannot change the response cache while the server is running");
+    }
+  }
+
+  /**
+   * Set the access log. The server starts the log when it starts running, and closes it when it stops.
+   * 
+   * @param log Access log, or null to disable it.
+   * 
+   */
+  public void setAccessLog(final AccessLog log) {
+    if (!running) {
+      if (log != null)
+        log.registerMetrics(metrics.getRegistry());
+
+      accessLog = log;
+    }
+    else {
+      if (LOGGER.isLoggable(Level.SEVERE))
+        LOGGER.severe("Cannot change the access log while the server is running");
+      
+      throw new RuntimeException("Cannot change the access log while the server is running");
+    }
+  }
+
+  /**
+   * Set the store used to keep the HTTP Sessions. The default store keeps the sessions in memory.
+   * 
+   * @param store Session store.
+   * 
+   */
+  public void setSessionStore(final SessionStore store) {
+    if (store == null)
+      throw new IllegalArgumentException("Cannot have invalid session store");
+
+    if (!running)
+      sessions = store;
+    else {
+      if (LOGGER.isLoggable(Level.SEVERE))
+        LOGGER.severe("Cannot change the session store while the server is running");
+      
+      throw new RuntimeException("Cannot change the session store while the server is running");
+    }
+  }
+  
+  /**
+   * Returns the store used to keep the HTTP Sessions.
+   * 
+   * @return Session store.
+   * 
+   */
+  public SessionStore getSessionStore() {
+    return sessions;
+  }
+  
+  /**
+   * Set the generator used to create the HTTP Session ids.
+   * 
+   * @param generator Session id generator.
+   * 
+   */
+  public void setSessionIdGenerator(final SessionIdGenerator generator) {
+    if (generator == null)
+      throw new IllegalArgumentException("Cannot have invalid session id generator");
+
+    if (!running)
+      sessionIds = generator;
+    else {
+      if (LOGGER.isLoggable(Level.SEVERE))
+        LOGGER.severe("Cannot change the session id generator while the server is running");
+      
+      throw new RuntimeException("Cannot change the session id generator while the server is running");
+    }
+  }
+  
+  /**
+   * Returns the generator used to create the HTTP Session ids.
+   * 
+   * @return Session id generator.
+   * 
+   */
+  public SessionIdGenerator getSessionIdGenerator() {
+    return sessionIds;
+  }
+  
   /**
    * Create a new SSL Context.
    * 
@@ -336,43 +711,52 @@ public final class HTTPServer implements Runnable, AcceptListener {
     return sslContext;
   }
   
-  private String getClassAnnotationStringValue(final Class<?> clazz, final Class<? extends Annotation> annotationType, final String attributeName) {
-    String value = null;
-
-    final Annotation annotation = clazz.getAnnotation(annotationType);
-    if (annotation != null) {
-      try {
-        value = (String) annotation.annotationType().getMethod(attributeName).invoke(annotation);
-      } catch (Exception e) {}
-    }
+  /**
+   * Return the classes annotated with {@link Context}. The index written by {@link ContextIndexProcessor} is
+   * used when it is on the classpath, otherwise the whole classpath is scanned.
+   * 
+   * @return The context classes.
+   * 
+   * @throws IOException If the index cannot be read.
+   * 
+   */
+  private static Set<Class<?>> getContextClasses() throws IOException {
+    ClassLoader loader = Thread.currentThread().getContextClassLoader();
+    if (loader == null)
+      loader = HTTPServer.class.getClassLoader();
 
-    return value;
-  }
-  
-  private Long getClassAnnotationLongValue(final Class<?> clazz, final Class<? extends Annotation> annotationType, final String attributeName) {
-    Long value = null;
+    final Enumeration<URL> indexes = loader.getResources(ContextIndexProcessor.INDEX);
+    if (!indexes.hasMoreElements()) {
+      if (LOGGER.isLoggable(Level.INFO))
+        LOGGER.info("No context index found, scanning the classpath for @Context classes");
 
-    final Annotation annotation = clazz.getAnnotation(annotationType);
-    if (annotation != null) {
-      try {
-        value = (Long) annotation.annotationType().getMethod(attributeName).invoke(annotation);
-      } catch (Exception e) {}
+      return new Reflections("").getTypesAnnotatedWith(Context.class);
     }
 
-    return value;
-  }
-  
-  private Boolean getClassAnnotationBooleanValue(final Class<?> clazz, final Class<? extends Annotation> annotationType, final String attributeName) {
-    Boolean value = null;
+    final Set<Class<?>> classes = new LinkedHashSet<>();
+    while (indexes.hasMoreElements()) {
+      final URL index = indexes.nextElement();
+      try (BufferedReader reader = new BufferedReader(new InputStreamReader(index.openStream(), "UTF-8"))) {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          line = line.trim();
+          if (line.isEmpty())
+            continue;
 
-    final Annotation annotation = clazz.getAnnotation(annotationType);
-    if (annotation != null) {
-      try {
-        value = (Boolean) annotation.annotationType().getMethod(attributeName).invoke(annotation);
-      } catch (Exception e) {}
+          try {
+            final Class<?> clazz = Class.forName(line, false, loader);
+            if (clazz.isAnnotationPresent(Context.class))
+              classes.add(clazz);
+          }
+          catch (ClassNotFoundException e) {
+            if (LOGGER.isLoggable(Level.WARNING))
+              LOGGER.log(Level.WARNING, "Context " + line + " listed in " + index + " was not found");
+          }
+        }
+      }
     }
 
-    return value;
+    return classes;
   }
 
   private static List<Method> getMethodsAnnotatedWith(final Class<?> clazz, final Class<? extends Annotation> annotationType) {
@@ -397,32 +781,109 @@ public final class HTTPServer implements Runnable, AcceptListener {
 
       throw new RuntimeException("Problems to create a context. Context has more than 1 "  + annotationType.toString() + " method");
     }
-    else if (getMethods.size() == 1) {
-      final java.lang.reflect.Type parameterTypes[] = getMethods.get(0).getGenericParameterTypes();
-      if (parameterTypes.length != 2) {
-        if (LOGGER.isLoggable(Level.SEVERE))
-          LOGGER.log(Level.SEVERE, "Incorrect number of parameters for "  + annotationType.toString() + " method");
-        
-        throw new RuntimeException("Incorrect number of parameters for "  + annotationType.toString() + " method");
+    else if (getMethods.size() == 1)
+      method = getMethods.get(0);
+    
+    return method;
+  }
+  
+  /**
+   * Register the gauges that read the server state on each scrape.
+   * 
+   */
+  private void registerGauges() {
+    final MetricsRegistry registry = metrics.getRegistry();
+
+    registry.gauge("tinyhttp_executor_queue_depth", "Tasks waiting for a worker thread.", new Gauge() {
+      @Override
+      public long get() {
+        return loop.getQueueSize();
       }
-      
-      if (parameterTypes[0] != HTTPRequest.class) {
-        if (LOGGER.isLoggable(Level.SEVERE))
-          LOGGER.log(Level.SEVERE, "First parameter must be HTTPRequest");
-        
-        throw new RuntimeException("First parameter must be HTTPRequest");
+    });
+
+    registry.gauge("tinyhttp_executor_active_threads", "Worker threads running a task.", new Gauge() {
+      @Override
+      public long get() {
+        return loop.getActiveCount();
       }
-      
-      if (parameterTypes[1] != HTTPResponse.class) {
-        if (LOGGER.isLoggable(Level.SEVERE))
-          LOGGER.log(Level.SEVERE, "First parameter must be HTTPResponse");
-        
-        throw new RuntimeException("First parameter must be HTTPResponse");
+    });
+
+    registry.gauge("tinyhttp_sessions", "Live HTTP sessions.", new Gauge() {
+      @Override
+      public long get() {
+        return sessions.size();
       }
-      
-      method = getMethods.get(0);
+    });
+  }
+
+  /**
+   * Export the metrics to the platform MBean server. A failure here must not prevent the server from starting.
+   * 
+   */
+  private void registerMBean() {
+    try {
+      final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      final ObjectName name    = new ObjectName("br.com.is.http.server:type=Metrics,name="
+        + ObjectName.quote(addr.getHostString() + ":" + addr.getPort()));
+
+      server.registerMBean(metrics.getRegistry().asMBean(), name);
+      mbeanName = name;
+    }
+    catch (JMException e) {
+      if (LOGGER.isLoggable(Level.WARNING))
+        LOGGER.log(Level.WARNING, "Problems to register the metrics MBean", e);
+    }
+  }
+
+  private void unregisterMBean() {
+    if (mbeanName == null)
+      return;
+
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+    }
+    catch (JMException e) {
+      if (LOGGER.isLoggable(Level.WARNING))
+        LOGGER.log(Level.WARNING, "Problems to unregister the metrics MBean", e);
+    }
+
+    mbeanName = null;
+  }
+
+  /**
+   * Timer that resumes the accept after a pause, and accounts the time it was paused.
+   * 
+   * @author Leonardo Bispo de Oliveira.
+   *
+   */
+  private final class AcceptResumer implements TimerListener {
+    private long pausedAt = 0;
+
+    @Override
+    public void timeout() {
+      connections.paused.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - pausedAt));
+      if (serverChannel != null)
+        loop.resumeAcceptListener(serverChannel);
+    }
+  }
+
+  /**
+   * Timer that periodically asks the session store to reclaim the expired sessions.
+   * 
+   * @author Leonardo Bispo de Oliveira.
+   *
+   */
+  private final class SessionSweeper implements TimerListener {
+    private final SessionStore store;
+    
+    SessionSweeper(final SessionStore store) {
+      this.store = store;
     }
     
-    return method;
-  } 
+    @Override
+    public void timeout() {
+      store.expire(System.currentTimeMillis());
+      loop.registerTimer(SESSION_SWEEP_INTERVAL_MS, this);
+    }
+  }
 }
@@ -16,40 +16,65 @@
  */
 package br.com.is.http.server;
 
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
-import br.com.is.nio.EventLoop;
-import br.com.is.nio.listener.TimerListener;
+import br.com.is.http.server.session.SessionStore;
 
 /**
  * This class will store information related to an HTTP Session. Since HTTP is a stateless protocol, we
  * are storing a Cookie ISSESSIONID in the client and reversing the id to keep the session alive. To not
- * keep the session forever, it will have an expiration time.
+ * keep the session forever, it will have an expiration time, enforced by the session store.
  * 
  * @author Leonardo Bispo de Oliveira
  *
  */
-public class HTTPSession implements TimerListener {
-  private final Hashtable<String, Object>              attributes = new Hashtable<>();
-  private final ConcurrentHashMap<String, HTTPSession> sessions;
+public class HTTPSession {
+  private final Hashtable<String, Object> attributes = new Hashtable<>();
+  private final SessionStore              store;
   
-  private long         lastAccessTime = System.currentTimeMillis();
-  private final long   creationTime   = System.currentTimeMillis();
-  private final String id;
-  private final EventLoop manager;
+  private final Set<String> modified = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  
+  private volatile long lastAccessTime;
+  private final long    creationTime;
+  private final String  id;
   
   /**
    * Constructor.
    * 
    * @param id HTTP Session unique id.
+   * @param store Session store that keeps this session.
+   * 
+   */
+  public HTTPSession(final String id, final SessionStore store) {
+    this.id             = id;
+    this.store          = store;
+    this.creationTime   = System.currentTimeMillis();
+    this.lastAccessTime = creationTime;
+  }
+  
+  /**
+   * Constructor used by the session stores to restore a session that was kept outside of the memory.
+   * 
+   * @param id HTTP Session unique id.
+   * @param creationTime Session creation time.
+   * @param lastAccessTime Last session access time.
+   * @param attributes Session attributes.
+   * @param store Session store that keeps this session.
    * 
    */
-  HTTPSession(final String id, final ConcurrentHashMap<String, HTTPSession> sessions, final EventLoop manager) {
-    this.id       = id;
-    this.sessions = sessions;
-    this.manager  = manager;
+  public HTTPSession(final String id, final long creationTime, final long lastAccessTime, final Map<String, Object> attributes,
+    final SessionStore store) {
+    this.id             = id;
+    this.store          = store;
+    this.creationTime   = creationTime;
+    this.lastAccessTime = lastAccessTime;
+    this.attributes.putAll(attributes);
   }
   
   /**
@@ -71,6 +96,7 @@ public class HTTPSession implements TimerListener {
    */
   public void setAttribute(final String name, final Object value) {
     attributes.put(name, value);
+    modified.add(name);
   }
 
   /**
@@ -102,6 +128,7 @@ public class HTTPSession implements TimerListener {
    */
   public void removeAttribute(final String name) {
     attributes.remove(name);
+    modified.add(name);
   }
   
   /**
@@ -129,26 +156,60 @@ public class HTTPSession implements TimerListener {
    * 
    */
   public void invalidate() {
-    manager.cancelTimer(this);
-    sessions.remove(this);
+    store.remove(id);
   }
   
   /**
-   * Internal method used to set the last access time.
+   * Returns if the attributes of this session were changed since the last time it was saved in the session store.
    * 
-   * @param lastAccessTime Last access time.
+   * @return True if the attributes were changed, otherwise false.
    * 
    */
-  void setLastAccessTime(final long lastAccessTime) {
-    this.lastAccessTime = lastAccessTime;
+  public boolean isModified() {
+    return !modified.isEmpty();
+  }
+  
+  /**
+   * Returns the name of the attributes that were set or removed since the last time this session was saved in the
+   * session store.
+   * 
+   * @return Set with the modified attribute names.
+   * 
+   */
+  public Set<String> getModifiedAttributes() {
+    return new HashSet<>(modified);
+  }
+  
+  /**
+   * Set or remove an attribute without marking it as modified. It is used by the session stores to apply the changes
+   * that were made by another server.
+   * 
+   * @param name Attribute name.
+   * @param value Attribute value, or null to remove the attribute.
+   * 
+   */
+  public void restoreAttribute(final String name, final Object value) {
+    if (value == null)
+      attributes.remove(name);
+    else
+      attributes.put(name, value);
+  }
+  
+  /**
+   * Internal method called after the session is saved in the session store.
+   * 
+   */
+  void clearModified() {
+    modified.clear();
   }
 
   /**
-   * This method will be called by the Event Loop when this session be expired by timeout.
+   * Set the last access time. It is used by the session store whenever this session is looked up.
+   * 
+   * @param lastAccessTime Last access time.
    * 
    */
-  @Override
-  public void timeout() {
-    invalidate();
+  public void setLastAccessTime(final long lastAccessTime) {
+    this.lastAccessTime = lastAccessTime;
   }
 }
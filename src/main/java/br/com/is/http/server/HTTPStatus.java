@@ -191,6 +191,11 @@ public enum HTTPStatus {
       return "Requested range not satisfiable";
     }
   },
+  TOO_MANY_REQUESTS(429) {
+    public String toString() {
+      return "Too Many Requests";
+    }
+  },
   INTERNAL_SERVER_ERROR(500) {
     public String toString() {
       return "Internal Server Error";
@@ -0,0 +1,356 @@
+/* Copyright (C) 2013 Leonardo Bispo de Oliveira
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package br.com.is.http.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import br.com.is.http.server.annotation.Body;
+import br.com.is.http.server.annotation.Header;
+import br.com.is.http.server.annotation.PathParam;
+import br.com.is.http.server.annotation.QueryParam;
+import br.com.is.http.server.exception.BadRequestException;
+import br.com.is.http.server.exception.HTTPRequestException;
+import br.com.is.http.server.exception.InternalServerErrorException;
+import br.com.is.http.server.exception.RequestEntityTooLargeException;
+
+/**
+ * Build the invoker of an annotated handler method.
+ * 
+ * Every parameter gets an extractor of type <code>(HTTPRequest)T</code>, which is filtered into the method
+ * handle once at registration. Primitives are converted by extractors returning the primitive type itself, so
+ * a request does no reflection and no boxing. The final handle has the type
+ * <code>(HTTPRequest, HTTPResponse)void</code>.
+ * 
+ * @author Leonardo Bispo de Oliveira.
+ *
+ */
+final class HandlerBinder {
+  static final MethodType HANDLER_TYPE = MethodType.methodType(void.class, HTTPRequest.class, HTTPResponse.class);
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+  private static final int BODY_BUFFER_SIZE = 4096;
+
+  private HandlerBinder() {
+  }
+
+  /**
+   * Create the invoker.
+   * 
+   * @param instance Context instance.
+   * @param method Annotated method, or null.
+   * @param template Url pattern of the context, or null if it has no variables.
+   * @param context Context that limits the size of the bodies read by the handler.
+   * 
+   * @return A handle of type <code>(HTTPRequest, HTTPResponse)void</code>, or null.
+   * 
+   */
+  static MethodHandle bind(final Object instance, final Method method, final PathTemplate template,
+    final HTTPContext context) {
+    if (method == null)
+      return null;
+
+    try {
+      method.setAccessible(true);
+
+      MethodHandle handle = LOOKUP.unreflect(method);
+      if (!Modifier.isStatic(method.getModifiers()))
+        handle = handle.bindTo(instance);
+
+      handle = handle.asType(handle.type().changeReturnType(void.class));
+
+      final Class<?> types[]             = method.getParameterTypes();
+      final Annotation annotations[][]   = method.getParameterAnnotations();
+      final int reorder[]                = new int[types.length];
+      for (int i = 0; i < types.length; ++i) {
+        final MethodHandle extractor = extractor(method, types[i], annotations[i], template, context);
+        if (extractor != null)
+          handle = MethodHandles.filterArguments(handle, i, extractor);
+        else if (types[i] == HTTPResponse.class)
+          reorder[i] = 1;
+        else if (types[i] != HTTPRequest.class)
+          throw new IllegalArgumentException("Parameter " + i + " of " + method + " must be HTTPRequest, HTTPResponse"
+            + " or annotated with @PathParam, @QueryParam, @Header or @Body");
+      }
+
+      return MethodHandles.permuteArguments(handle, HANDLER_TYPE, reorder);
+    }
+    catch (IllegalAccessException | NoSuchMethodException | SecurityException e) {
+      throw new RuntimeException("Problems to access the annotated method " + method, e);
+    }
+  }
+
+  /**
+   * @param method Annotated method, or null.
+   * 
+   * @return True if the method has a parameter annotated with @Body.
+   * 
+   */
+  static boolean readsBody(final Method method) {
+    if (method == null)
+      return false;
+
+    for (final Annotation annotations[] : method.getParameterAnnotations()) {
+      for (final Annotation annotation : annotations) {
+        if (annotation instanceof Body)
+          return true;
+      }
+    }
+
+    return false;
+  }
+
+  private static MethodHandle extractor(final Method method, final Class<?> type, final Annotation annotations[],
+    final PathTemplate template, final HTTPContext context) throws IllegalAccessException, NoSuchMethodException {
+    for (final Annotation annotation : annotations) {
+      if (annotation instanceof QueryParam) {
+        final String name = ((QueryParam) annotation).value();
+        return convert(source("query", String.class, name), type, name);
+      }
+      else if (annotation instanceof Header) {
+        final String name = ((Header) annotation).value();
+        return convert(source("header", String.class, name.toLowerCase()), type, name);
+      }
+      else if (annotation instanceof PathParam) {
+        final String name = ((PathParam) annotation).value();
+        final int index   = template == null ? -1 : template.indexOf(name);
+        if (index == -1)
+          throw new IllegalArgumentException("@PathParam(\"" + name + "\") of " + method + " is not in the url pattern");
+
+        return convert(MethodHandles.insertArguments(LOOKUP.findStatic(HandlerBinder.class, "path",
+          MethodType.methodType(String.class, PathTemplate.class, int.class, HTTPRequest.class)), 0, template, index),
+          type, name);
+      }
+      else if (annotation instanceof Body) {
+        if (type == InputStream.class)
+          return source("bodyStream", InputStream.class);
+        if (type == byte[].class)
+          return body("bodyBytes", byte[].class, context);
+        if (type == ByteBuffer.class)
+          return body("bodyBuffer", ByteBuffer.class, context);
+
+        return convert(body("bodyString", String.class, context), type, "body");
+      }
+    }
+
+    return null;
+  }
+
+  private static MethodHandle source(final String name, final Class<?> type, final Object... arguments)
+    throws IllegalAccessException, NoSuchMethodException {
+    final Class<?> parameters[] = new Class<?>[arguments.length + 1];
+    for (int i = 0; i < arguments.length; ++i)
+      parameters[i] = arguments[i].getClass();
+    parameters[arguments.length] = HTTPRequest.class;
+
+    return MethodHandles.insertArguments(LOOKUP.findStatic(HandlerBinder.class, name,
+      MethodType.methodType(type, parameters)), 0, arguments);
+  }
+
+  private static MethodHandle body(final String name, final Class<?> type, final HTTPContext context)
+    throws IllegalAccessException, NoSuchMethodException {
+    return MethodHandles.insertArguments(LOOKUP.findStatic(HandlerBinder.class, name,
+      MethodType.methodType(type, HTTPContext.class, HTTPRequest.class)), 0, context);
+  }
+
+  private static MethodHandle convert(final MethodHandle source, final Class<?> type, final String name)
+    throws IllegalAccessException, NoSuchMethodException {
+    if (type == String.class)
+      return source;
+
+    if (!type.isPrimitive() || type == void.class)
+      throw new IllegalArgumentException("Cannot bind " + name + " to " + type.getName());
+
+    final String converter = "to" + Character.toUpperCase(type.getName().charAt(0)) + type.getName().substring(1);
+    return MethodHandles.filterReturnValue(source, MethodHandles.insertArguments(LOOKUP.findStatic(HandlerBinder.class,
+      converter, MethodType.methodType(type, String.class, String.class)), 0, name));
+  }
+
+  static String query(final String name, final HTTPRequest req) {
+    return req.getParameter(name);
+  }
+
+  static String header(final String name, final HTTPRequest req) {
+    return req.getHeader(name);
+  }
+
+  static String path(final PathTemplate template, final int index, final HTTPRequest req) {
+    return template.segment(req.getRequestURI(), index);
+  }
+
+  static InputStream bodyStream(final HTTPRequest req) {
+    return req.getInputStream();
+  }
+
+  /**
+   * Read the whole body. The buffer starts small and grows as the bytes arrive, so a forged Content-Length does not
+   * allocate memory by itself, and the body is limited by the max content length of the context.
+   * 
+   */
+  static byte[] bodyBytes(final HTTPContext context, final HTTPRequest req) throws HTTPRequestException {
+    final long max = context.getMaxContentLenght();
+    int size = BODY_BUFFER_SIZE;
+    try {
+      final String length = req.getHeader("content-length");
+      if (length != null) {
+        final long declared = Long.parseLong(length);
+        if (declared > max)
+          throw new RequestEntityTooLargeException("Content-Length " + declared + " is bigger than " + max);
+
+        size = (int) Math.max(0, Math.min(BODY_BUFFER_SIZE, declared));
+      }
+    }
+    catch (NumberFormatException e) {
+      throw new BadRequestException("Invalid Content-Length " + req.getHeader("content-length"));
+    }
+
+    final int limit = (int) Math.max(0, Math.min(Integer.MAX_VALUE - 8, max));
+    byte body[] = new byte[Math.min(size, limit)];
+    int length  = 0;
+    try {
+      final InputStream is = req.getInputStream();
+      for (;;) {
+        if (length == body.length) {
+          if (length >= limit) {
+            if (is.read(new byte[1], 0, 1) > 0)
+              throw new RequestEntityTooLargeException("Request body is bigger than " + max);
+
+            break;
+          }
+
+          final byte tmp[] = new byte[(int) Math.min(limit, Math.max(BODY_BUFFER_SIZE, body.length * 2L))];
+          System.arraycopy(body, 0, tmp, 0, length);
+          body = tmp;
+        }
+
+        final int read = is.read(body, length, body.length - length);
+        if (read < 0)
+          break;
+
+        length += read;
+      }
+    }
+    catch (IOException e) {
+      throw new InternalServerErrorException("Problems to read the request body", e);
+    }
+
+    if (length == body.length)
+      return body;
+
+    final byte ret[] = new byte[length];
+    System.arraycopy(body, 0, ret, 0, length);
+    return ret;
+  }
+
+  static ByteBuffer bodyBuffer(final HTTPContext context, final HTTPRequest req) throws HTTPRequestException {
+    return ByteBuffer.wrap(bodyBytes(context, req));
+  }
+
+  static String bodyString(final HTTPContext context, final HTTPRequest req) throws HTTPRequestException {
+    return new String(bodyBytes(context, req), UTF8);
+  }
+
+  static int toInt(final String name, final String value) throws HTTPRequestException {
+    try {
+      return Integer.parseInt(required(name, value));
+    }
+    catch (NumberFormatException e) {
+      throw new BadRequestException("Invalid value for " + name + ": " + value);
+    }
+  }
+
+  static long toLong(final String name, final String value) throws HTTPRequestException {
+    try {
+      return Long.parseLong(required(name, value));
+    }
+    catch (NumberFormatException e) {
+      throw new BadRequestException("Invalid value for " + name + ": " + value);
+    }
+  }
+
+  static short toShort(final String name, final String value) throws HTTPRequestException {
+    try {
+      return Short.parseShort(required(name, value));
+    }
+    catch (NumberFormatException e) {
+      throw new BadRequestException("Invalid value for " + name + ": " + value);
+    }
+  }
+
+  static byte toByte(final String name, final String value) throws HTTPRequestException {
+    try {
+      return Byte.parseByte(required(name, value));
+    }
+    catch (NumberFormatException e) {
+      throw new BadRequestException("Invalid value for " + name + ": " + value);
+    }
+  }
+
+  static double toDouble(final String name, final String value) throws HTTPRequestException {
+    try {
+      return Double.parseDouble(required(name, value));
+    }
+    catch (NumberFormatException e) {
+      throw new BadRequestException("Invalid value for " + name + ": " + value);
+    }
+  }
+
+  static float toFloat(final String name, final String value) throws HTTPRequestException {
+    try {
+      return Float.parseFloat(required(name, value));
+    }
+    catch (NumberFormatException e) {
+      throw new BadRequestException("Invalid value for " + name + ": " + value);
+    }
+  }
+
+  static boolean toBoolean(final String name, final String value) throws HTTPRequestException {
+    final String tmp = required(name, value);
+    if ("true".equalsIgnoreCase(tmp))
+      return true;
+    if ("false".equalsIgnoreCase(tmp))
+      return false;
+
+    throw new BadRequestException("Invalid value for " + name + ": " + value);
+  }
+
+  static char toChar(final String name, final String value) throws HTTPRequestException {
+    final String tmp = required(name, value);
+    if (tmp.length() != 1)
+      throw new BadRequestException("Invalid value for " + name + ": " + value);
+
+    return tmp.charAt(0);
+  }
+
+  private static String required(final String name, final String value) throws HTTPRequestException {
+    if (value == null)
+      throw new BadRequestException("Missing value for " + name);
+
+    return value.trim();
+  }
+}
@@ -0,0 +1,61 @@
+/* Copyright (C) 2013 Leonardo Bispo de Oliveira
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package br.com.is.http.server;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+import br.com.is.metrics.MetricsRegistry;
+
+/**
+ * Context that serves a metrics registry in the Prometheus text format. Register it on the server it measures:
+ * 
+ * <pre>
+ *   server.addContext("/metrics", new MetricsContext(server.getMetrics()));
+ * </pre>
+ * 
+ * @author Leonardo Bispo de Oliveira.
+ *
+ */
+public final class MetricsContext extends HTTPContext {
+  private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+  private final MetricsRegistry registry;
+
+  public MetricsContext(final MetricsRegistry registry) {
+    if (registry == null)
+      throw new IllegalArgumentException("Registry cannot be null");
+
+    this.registry = registry;
+  }
+
+  @Override
+  public void doGet(final HTTPRequest req, final HTTPResponse resp) {
+    resp.addHeader("Content-Type", CONTENT_TYPE);
+
+    final Writer writer = new OutputStreamWriter(resp.getOutputStream(), StandardCharsets.UTF_8);
+    try {
+      registry.writePrometheus(writer);
+      writer.flush();
+    }
+    catch (IOException e) {
+      throw new RuntimeException("Problems to write the metrics", e);
+    }
+  }
+}
@@ -0,0 +1,132 @@
+/* Copyright (C) 2013 Leonardo Bispo de Oliveira
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package br.com.is.http.server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Fixed size pages carved out of direct memory slabs. Slabs are allocated on demand until the budget is reached and
+ * are never returned to the system, freed pages go back to the pool.
+ * 
+ * @author Leonardo Bispo de Oliveira.
+ *
+ */
+final class PagePool {
+  static final int PAGE_SIZE = 4096;
+
+  private static final int SLAB_PAGES = 256;
+
+  private final List<ByteBuffer> slabs = new ArrayList<>();
+  private final int              capacity;
+
+  private int free[];
+  private int freeCount = 0;
+  private int allocated = 0;
+
+  /**
+   * Constructor.
+   * 
+   * @param budget Maximum number of bytes, rounded down to whole pages.
+   * 
+   */
+  PagePool(final long budget) {
+    if (budget < PAGE_SIZE)
+      throw new IllegalArgumentException("The budget must hold at least one page of " + PAGE_SIZE + " bytes");
+
+    capacity = (int) Math.min(budget / PAGE_SIZE, Integer.MAX_VALUE - SLAB_PAGES);
+    free     = new int[Math.min(capacity, SLAB_PAGES)];
+  }
+
+  /**
+   * Take a free page.
+   * 
+   * @return Page index, or -1 if the budget is exhausted.
+   * 
+   */
+  synchronized int allocate() {
+    if (freeCount == 0) {
+      if (allocated == capacity)
+        return -1;
+
+      final int pages = Math.min(SLAB_PAGES, capacity - allocated);
+      slabs.add(ByteBuffer.allocateDirect(pages * PAGE_SIZE));
+      if (free.length < allocated + pages)
+        free = Arrays.copyOf(free, Math.min(Math.max(free.length * 2, allocated + pages), capacity));
+
+      for (int i = allocated + pages - 1; i >= allocated; i--)
+        free[freeCount++] = i;
+
+      allocated += pages;
+    }
+
+    return free[--freeCount];
+  }
+
+  /**
+   * Return pages to the pool.
+   * 
+   * @param pages Page indexes.
+   * @param count Number of pages to return, from the beginning of the array.
+   * 
+   */
+  synchronized void release(final int pages[], final int count) {
+    for (int i = 0; i < count; i++)
+      free[freeCount++] = pages[i];
+  }
+
+  /**
+   * Return a view over a page. The view has its own position and limit, so several threads can read the same page.
+   * 
+   * @param page Page index.
+   * 
+   * @return Buffer with the page bytes, position zero and limit at the end of the page.
+   * 
+   */
+  ByteBuffer page(final int page) {
+    final ByteBuffer slab;
+    synchronized (this) {
+      slab = slabs.get(page / SLAB_PAGES).duplicate();
+    }
+
+    final int offset = (page % SLAB_PAGES) * PAGE_SIZE;
+    slab.limit(offset + PAGE_SIZE).position(offset);
+    return slab.slice();
+  }
+
+  /**
+   * Returns the number of pages the pool may hand out.
+   * 
+   * @return Number of pages.
+   * 
+   */
+  int capacity() {
+    return capacity;
+  }
+
+  /**
+   * Returns the number of pages in use.
+   * 
+   * @return Number of pages.
+   * 
+   */
+  synchronized int used() {
+    return allocated - freeCount;
+  }
+}
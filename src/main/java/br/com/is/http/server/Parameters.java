@@ -0,0 +1,274 @@
+/* Copyright (C) 2013 Leonardo Bispo de Oliveira
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package br.com.is.http.server;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import br.com.is.http.server.exception.BadRequestException;
+import br.com.is.http.server.exception.HTTPRequestException;
+import br.com.is.http.server.exception.RequestEntityTooLargeException;
+
+/**
+ * Request parameters coming from the query string and from application/x-www-form-urlencoded bodies.
+ * 
+ * The encoded octets are copied once and split in a single pass that only records the offsets of every
+ * name/value pair. The percent decoding is done in place, and the UTF-8 Strings are only created when the
+ * parameters are accessed for the first time. Repeated names keep all their values in arrival order.
+ * 
+ * The number of pairs and the amount of encoded data are bounded, so a request cannot force the server
+ * to build a huge (or hash colliding) parameter map.
+ * 
+ * @author Leonardo Bispo de Oliveira.
+ *
+ */
+public final class Parameters {
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private final int           maxCount;
+  private final int           maxSize;
+
+  private byte[]              data    = null;
+  private int                 size    = 0;
+  private int[]               pairs   = null;
+  private int                 parsed  = 0;
+  private int                 decoded = 0;
+  private int                 count   = 0;
+  private Map<String, Object> values  = null;
+
+  /**
+   * Constructor.
+   * 
+   * @param maxCount Maximum number of parameters accepted.
+   * @param maxSize Maximum number of encoded octets accepted.
+   * 
+   */
+  public Parameters(final int maxCount, final int maxSize) {
+    this.maxCount = maxCount;
+    this.maxSize  = maxSize;
+  }
+
+  /**
+   * Split the encoded parameters. Pairs are separated by '&' and the name is separated from the value by
+   * the first '='. A pair without '=' is a parameter with an empty value.
+   * 
+   * @param src Encoded octets.
+   * @param offset Offset of the first octet.
+   * @param length Number of octets.
+   * 
+   * @throws HTTPRequestException If the data or the number of parameters exceed the limits.
+   * 
+   */
+  public synchronized void parse(final byte[] src, final int offset, final int length) throws HTTPRequestException {
+    if (length <= 0)
+      return;
+
+    if (length > maxSize - size)
+      throw new RequestEntityTooLargeException("Parameters are bigger than " + maxSize + " bytes");
+
+    if (data == null || data.length - size < length) {
+      final byte[] tmp = new byte[Math.max(size + length, data == null ? 0 : Math.min(maxSize, data.length * 2))];
+      if (data != null)
+        System.arraycopy(data, 0, tmp, 0, size);
+      data = tmp;
+    }
+
+    System.arraycopy(src, offset, data, size, length);
+
+    int start = size;
+    int eq    = -1;
+    size     += length;
+    for (int i = start; i <= size; ++i) {
+      if (i == size || data[i] == '&') {
+        if (i > start)
+          addPair(start, eq == -1 ? i : eq, i);
+
+        start = i + 1;
+        eq    = -1;
+      }
+      else if (eq == -1 && data[i] == '=')
+        eq = i;
+    }
+  }
+
+  /**
+   * Add an already decoded parameter.
+   * 
+   * @param name Parameter name.
+   * @param value Parameter value.
+   * 
+   * @throws HTTPRequestException If the number of parameters exceed the limit.
+   * 
+   */
+  public synchronized void add(final String name, final String value) throws HTTPRequestException {
+    if (count >= maxCount)
+      throw new BadRequestException("More than " + maxCount + " parameters");
+
+    ++count;
+    materialize();
+    put(name, value);
+  }
+
+  /**
+   * Return the first value of a parameter.
+   * 
+   * @param name Parameter name.
+   * 
+   * @return The first value, or null if the parameter does not exist.
+   * 
+   */
+  public synchronized String get(final String name) {
+    materialize();
+
+    final Object value = values.get(name);
+    if (value instanceof String)
+      return (String) value;
+
+    return value == null ? null : ((List<?>) value).get(0).toString();
+  }
+
+  /**
+   * Return all values of a parameter.
+   * 
+   * @param name Parameter name.
+   * 
+   * @return The values in arrival order, or null if the parameter does not exist.
+   * 
+   */
+  @SuppressWarnings("unchecked")
+  public synchronized String[] getValues(final String name) {
+    materialize();
+
+    final Object value = values.get(name);
+    if (value instanceof String)
+      return new String[] { (String) value };
+
+    if (value == null)
+      return null;
+
+    final List<String> list = (List<String>) value;
+    return list.toArray(new String[list.size()]);
+  }
+
+  public synchronized Enumeration<String> getNames() {
+    materialize();
+
+    return Collections.enumeration(new ArrayList<>(values.keySet()));
+  }
+
+  public synchronized int size() {
+    return count;
+  }
+
+  /**
+   * Decode the %XX and '+' escapes in place.
+   * 
+   * @param buf Buffer holding the encoded octets.
+   * @param from First octet.
+   * @param to Last octet (exclusive).
+   * 
+   * @return The end of the decoded octets.
+   * 
+   */
+  static int decode(final byte[] buf, final int from, final int to) {
+    int n = from;
+    for (int i = from; i < to; ++i) {
+      final byte b = buf[i];
+      if (b == '+')
+        buf[n++] = ' ';
+      else if (b == '%' && i + 2 < to && hex(buf[i + 1]) >= 0 && hex(buf[i + 2]) >= 0) {
+        buf[n++] = (byte) ((hex(buf[i + 1]) << 4) | hex(buf[i + 2]));
+        i += 2;
+      }
+      else
+        buf[n++] = b;
+    }
+
+    return n;
+  }
+
+  static int hex(final byte b) {
+    if (b >= '0' && b <= '9')
+      return b - '0';
+    if (b >= 'a' && b <= 'f')
+      return b - 'a' + 10;
+    if (b >= 'A' && b <= 'F')
+      return b - 'A' + 10;
+
+    return -1;
+  }
+
+  private void addPair(final int start, final int nameEnd, final int end) throws HTTPRequestException {
+    if (count >= maxCount)
+      throw new BadRequestException("More than " + maxCount + " parameters");
+
+    if (pairs == null)
+      pairs = new int[24];
+    else if (pairs.length < (parsed + 1) * 3) {
+      final int[] tmp = new int[pairs.length * 2];
+      System.arraycopy(pairs, 0, tmp, 0, pairs.length);
+      pairs = tmp;
+    }
+
+    pairs[parsed * 3]     = start;
+    pairs[parsed * 3 + 1] = nameEnd;
+    pairs[parsed * 3 + 2] = end;
+    ++parsed;
+    ++count;
+  }
+
+  private void materialize() {
+    if (values == null)
+      values = new LinkedHashMap<>();
+
+    for (; decoded < parsed; ++decoded) {
+      final int start   = pairs[decoded * 3];
+      final int nameEnd = pairs[decoded * 3 + 1];
+      final int end     = pairs[decoded * 3 + 2];
+
+      final String name = new String(data, start, decode(data, start, nameEnd) - start, UTF8).trim();
+      final String value;
+      if (nameEnd < end)
+        value = new String(data, nameEnd + 1, decode(data, nameEnd + 1, end) - nameEnd - 1, UTF8);
+      else
+        value = "";
+
+      if (!name.isEmpty())
+        put(name, value);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private void put(final String name, final String value) {
+    final Object current = values.get(name);
+    if (current == null)
+      values.put(name, value);
+    else if (current instanceof String) {
+      final List<String> list = new ArrayList<>(2);
+      list.add((String) current);
+      list.add(value);
+      values.put(name, list);
+    }
+    else
+      ((List<String>) current).add(value);
+  }
+}
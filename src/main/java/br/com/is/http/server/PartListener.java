@@ -0,0 +1,71 @@
+/* Copyright (C) 2013 Leonardo Bispo de Oliveira
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package br.com.is.http.server;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+import br.com.is.http.server.exception.HTTPRequestException;
+
+/**
+ * Receives the parts of a multipart/form-data POST request while they are still arriving. When a context has a part
+ * listener, the parts are not kept in memory or in temporary files, and HTTPRequest.getPart will return null. The
+ * form fields are still added to the request parameters when they end. The doPost method is called after the last
+ * part, to send the response.
+ * 
+ * The body is only read from the socket while the listener consumes it, so a slow listener slows down the client
+ * instead of buffering the request in the server.
+ * 
+ * @author Leonardo Bispo de Oliveira.
+ *
+ */
+public interface PartListener {
+  /**
+   * Called when a new part begins.
+   * 
+   * @param request The HTTP request.
+   * @param name Name of the part.
+   * @param fileName Name of the file stored in the multipart header, or null if the part is a form field.
+   * @param header The part header, with the field names in lower case.
+   * 
+   * @throws HTTPRequestException To reject the request with the exception status.
+   * 
+   */
+  public void partBegin(final HTTPRequest request, final String name, final String fileName,
+    final Map<String, String> header) throws HTTPRequestException;
+  
+  /**
+   * Called for each chunk of the part content. The buffer is only valid during this call, and it must not be kept.
+   * 
+   * @param request The HTTP request.
+   * @param data Chunk of the part content.
+   * 
+   * @throws HTTPRequestException To reject the request with the exception status.
+   * 
+   */
+  public void partData(final HTTPRequest request, final ByteBuffer data) throws HTTPRequestException;
+  
+  /**
+   * Called when the current part ends.
+   * 
+   * @param request The HTTP request.
+   * 
+   * @throws HTTPRequestException To reject the request with the exception status.
+   * 
+   */
+  public void partEnd(final HTTPRequest request) throws HTTPRequestException;
+}
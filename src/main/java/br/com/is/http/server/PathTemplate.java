@@ -0,0 +1,146 @@
+/* Copyright (C) 2013 Leonardo Bispo de Oliveira
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package br.com.is.http.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Context url pattern with <code>{name}</code> segments, like <code>/users/{id}/orders</code>.
+ * 
+ * The context is registered under the literal prefix before the first variable segment (<code>/users/</code>),
+ * so the request handler finds it with the usual parent directory lookup, and the full template is matched
+ * against the request URI before calling the handler.
+ * 
+ * @author Leonardo Bispo de Oliveira.
+ *
+ */
+final class PathTemplate {
+  private final String   pattern;
+  private final String   prefix;
+  private final String[] segments;
+  private final String[] names;
+
+  PathTemplate(final String pattern) {
+    final List<String> segments = new ArrayList<>();
+    final List<String> names    = new ArrayList<>();
+
+    int start = 0;
+    for (int i = 0; i <= pattern.length(); ++i) {
+      if (i == pattern.length() || pattern.charAt(i) == '/') {
+        final String segment = pattern.substring(start, i);
+        if (segment.startsWith("{") && segment.endsWith("}") && segment.length() > 2) {
+          segments.add(null);
+          names.add(segment.substring(1, segment.length() - 1));
+        }
+        else if (segment.indexOf('{') != -1 || segment.indexOf('}') != -1)
+          throw new IllegalArgumentException("Invalid segment " + segment + " in the url pattern " + pattern);
+        else {
+          segments.add(segment);
+          names.add(null);
+        }
+
+        start = i + 1;
+      }
+    }
+
+    final int idx = pattern.indexOf('{');
+
+    this.pattern  = pattern;
+    this.prefix   = idx == -1 ? pattern : pattern.substring(0, idx);
+    this.segments = segments.toArray(new String[segments.size()]);
+    this.names    = names.toArray(new String[names.size()]);
+  }
+
+  static boolean isTemplate(final String pattern) {
+    return pattern.indexOf('{') != -1;
+  }
+
+  String getPattern() {
+    return pattern;
+  }
+
+  /**
+   * @return The literal part of the pattern, used to register the context.
+   * 
+   */
+  String getPrefix() {
+    return prefix;
+  }
+
+  /**
+   * @param name Variable name.
+   * 
+   * @return The segment index of the variable, or -1.
+   * 
+   */
+  int indexOf(final String name) {
+    for (int i = 0; i < names.length; ++i) {
+      if (name.equals(names[i]))
+        return i;
+    }
+
+    return -1;
+  }
+
+  /**
+   * Check the URI against the template, segment by segment, without splitting it.
+   * 
+   * @param uri Decoded request URI.
+   * 
+   * @return True if every literal segment matches and the number of segments is the same.
+   * 
+   */
+  boolean matches(final String uri) {
+    int start = 0;
+    for (int i = 0; i < segments.length; ++i) {
+      if (start > uri.length())
+        return false;
+
+      int end = uri.indexOf('/', start);
+      if (end == -1)
+        end = uri.length();
+
+      if (segments[i] == null) {
+        if (end == start)
+          return false;
+      }
+      else if (segments[i].length() != end - start || !uri.startsWith(segments[i], start))
+        return false;
+
+      start = end + 1;
+    }
+
+    return start == uri.length() + 1;
+  }
+
+  /**
+   * @param uri Decoded request URI, already matched.
+   * @param index Segment index.
+   * 
+   * @return The segment value.
+   * 
+   */
+  String segment(final String uri, final int index) {
+    int start = 0;
+    for (int i = 0; i < index; ++i)
+      start = uri.indexOf('/', start) + 1;
+
+    final int end = uri.indexOf('/', start);
+    return end == -1 ? uri.substring(start) : uri.substring(start, end);
+  }
+}
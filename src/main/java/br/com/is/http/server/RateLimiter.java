@@ -0,0 +1,217 @@
+/* Copyright (C) 2013 Leonardo Bispo de Oliveira
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package br.com.is.http.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import br.com.is.metrics.Counter;
+import br.com.is.metrics.MetricsRegistry;
+
+/**
+ * Token bucket rate limiter keyed by client, checked on the event loop before a request is dispatched. The buckets
+ * live in a fixed table of 4-way sets indexed by the key hash, so the memory is bounded and no lock is taken: each
+ * slot holds a key fingerprint and the bucket state (last refill time and tokens) packed in a long updated by CAS.
+ * A new key takes an empty slot of its set, or a slot whose bucket is full again (an idle key), or else the slot
+ * used least recently.
+ * 
+ * With a header, the key is the remote address and the header value, and all the values sent from one address also
+ * share a bucket HEADER_KEYS times bigger and faster, so a client cannot escape the limit by rotating the header value.
+ * 
+ * @author Leonardo Bispo de Oliveira.
+ *
+ */
+final class RateLimiter {
+  private static final int  WAYS          = 4;
+  private static final int  TOKEN_SHIFT   = 24;
+  private static final long TOKEN_MASK    = (1L << TOKEN_SHIFT) - 1;
+  private static final int  ONE           = 256;
+  private static final int  MAX_BURST     = (int) (TOKEN_MASK / ONE);
+  private static final int  CACHED_RETRY  = 60;
+  private static final int  HEADER_KEYS   = 16;
+
+  private static final Charset ASCII = Charset.forName("US-ASCII");
+
+  private static final AtomicReferenceArray<ByteBuffer> responses = new AtomicReferenceArray<>(CACHED_RETRY + 1);
+
+  private final double          rate;
+  private final long            capacity;
+  private final double          sharedRate;
+  private final long            sharedCapacity;
+  private final long            idle;
+  private final String          header;
+  private final int             mask;
+  private final AtomicLongArray slots;
+  private final long            origin = System.nanoTime();
+
+  private Counter limited = new Counter();
+
+  /**
+   * Constructor.
+   * 
+   * @param permitsPerSecond Sustained requests per second allowed to each client.
+   * @param burst Requests a client may send at once after being idle.
+   * @param header Request header identifying the client behind a remote address, or null to use the remote address
+   *        only.
+   * @param keys Number of clients tracked at the same time, rounded up to a power of two.
+   * 
+   */
+  RateLimiter(final double permitsPerSecond, final int burst, final String header, final int keys) {
+    if (!(permitsPerSecond > 0))
+      throw new IllegalArgumentException("Rate limit must be bigger than zero");
+
+    if (burst < 1 || burst > MAX_BURST)
+      throw new IllegalArgumentException("Rate limit burst must be between 1 and " + MAX_BURST);
+
+    if (keys < WAYS)
+      throw new IllegalArgumentException("Rate limiter must track at least " + WAYS + " keys");
+
+    this.rate     = permitsPerSecond * ONE / 1000;
+    this.capacity = (long) burst * ONE;
+    this.idle     = (long) Math.ceil(burst * 1000 / permitsPerSecond);
+    this.header   = header == null ? null : header.toLowerCase();
+
+    this.sharedRate     = rate * HEADER_KEYS;
+    this.sharedCapacity = Math.min((long) MAX_BURST * ONE, capacity * HEADER_KEYS);
+
+    final int sets = Integer.highestOneBit(keys / WAYS - 1 > 0 ? keys / WAYS - 1 : 1) << 1;
+    this.mask  = sets - 1;
+    this.slots = new AtomicLongArray(sets * WAYS * 2);
+  }
+
+  void registerMetrics(final MetricsRegistry registry, final String context) {
+    limited = registry.counter("tinyhttp_rate_limited_total", "Requests refused with 429 by the rate limiter.",
+      "context", context);
+  }
+
+  /**
+   * Take a token from the bucket of the client.
+   * 
+   * @param address Remote address of the client.
+   * @param value Value of the configured header in the request, or null.
+   * 
+   * @return Zero if the request may go on, otherwise the milliseconds until the client gets a token.
+   * 
+   */
+  long acquire(final String address, final String value) {
+    final long now = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - origin);
+    if (value == null)
+      return acquire(fingerprint(address), now, rate, capacity);
+
+    final long retryAfter = acquire(fingerprint(address + '\n' + value), now, rate, capacity);
+    if (retryAfter > 0)
+      return retryAfter;
+
+    return acquire(fingerprint(address), now, sharedRate, sharedCapacity);
+  }
+
+  private long acquire(final long key, final long now, final double rate, final long capacity) {
+    final int set = ((int) (key ^ (key >>> 32)) & mask) * WAYS;
+
+    for (int way = 0; way < WAYS; way++) {
+      if (slots.get((set + way) << 1) == key)
+        return take((set + way) << 1, now, rate, capacity);
+    }
+
+    int victim = set;
+    long oldest = Long.MAX_VALUE;
+    for (int way = 0; way < WAYS; way++) {
+      final int  slot = (set + way) << 1;
+      final long time = slots.get(slot + 1) >>> TOKEN_SHIFT;
+      if (slots.get(slot) == 0 || now - time >= idle) {
+        victim = set + way;
+        break;
+      }
+
+      if (time < oldest) {
+        oldest = time;
+        victim = set + way;
+      }
+    }
+
+    final int slot = victim << 1;
+    slots.set(slot + 1, (now << TOKEN_SHIFT) | (capacity - ONE));
+    slots.set(slot, key);
+    return 0;
+  }
+
+  private long take(final int slot, final long now, final double rate, final long capacity) {
+    for (;;) {
+      final long state  = slots.get(slot + 1);
+      final long time   = state >>> TOKEN_SHIFT;
+      final long tokens = Math.min(capacity, (state & TOKEN_MASK) + (long) (Math.max(0, now - time) * rate));
+
+      if (tokens < ONE) {
+        limited.increment();
+        return Math.max(1, (long) Math.ceil((ONE - tokens) / rate));
+      }
+
+      if (slots.compareAndSet(slot + 1, state, (now << TOKEN_SHIFT) | (tokens - ONE)))
+        return 0;
+    }
+  }
+
+  String getHeader() {
+    return header;
+  }
+
+  /**
+   * Return the 429 response telling the client when to retry. The responses up to one minute are rendered once and
+   * shared.
+   * 
+   * @param retryAfter Milliseconds until the client gets a token.
+   * 
+   * @return Buffer with the whole response, ready to be written.
+   * 
+   */
+  static ByteBuffer response(final long retryAfter) {
+    final long seconds = Math.max(1, TimeUnit.MILLISECONDS.toSeconds(retryAfter + 999));
+    if (seconds > CACHED_RETRY)
+      return render(seconds);
+
+    ByteBuffer response = responses.get((int) seconds);
+    if (response == null) {
+      response = render(seconds);
+      responses.set((int) seconds, response);
+    }
+
+    return response.duplicate();
+  }
+
+  private static ByteBuffer render(final long seconds) {
+    final String body = HTTPStatus.TOO_MANY_REQUESTS.getValue() + " " + HTTPStatus.TOO_MANY_REQUESTS + "\n";
+    final String response = "HTTP/1.1 " + HTTPStatus.TOO_MANY_REQUESTS.getValue() + " " + HTTPStatus.TOO_MANY_REQUESTS
+      + "\r\nRetry-After: " + seconds + "\r\nContent-Type: text/plain\r\nContent-Length: " + body.length()
+      + "\r\nConnection: close\r\n\r\n" + body;
+
+    return ByteBuffer.wrap(response.getBytes(ASCII)).asReadOnlyBuffer();
+  }
+
+  private static long fingerprint(final String key) {
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0; i < key.length(); i++) {
+      hash ^= key.charAt(i);
+      hash *= 0x100000001b3L;
+    }
+
+    hash ^= hash >>> 29;
+    return hash == 0 ? 1 : hash;
+  }
+}
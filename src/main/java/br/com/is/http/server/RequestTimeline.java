@@ -0,0 +1,142 @@
+/* Copyright (C) 2013 Leonardo Bispo de Oliveira
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package br.com.is.http.server;
+
+import java.util.Locale;
+
+/**
+ * Timestamps of the phases of one request, taken with System.nanoTime:
+ * 
+ * <ul>
+ *   <li>accept: from the connection accept (or the end of the previous request) to the first request byte;</li>
+ *   <li>parse: from the first request byte to the end of the header;</li>
+ *   <li>queue: from the dispatch to the executor until a worker thread picks the request up;</li>
+ *   <li>handler: time running the context, without the time spent writing to the socket;</li>
+ *   <li>write: time spent draining the response to the socket.</li>
+ * </ul>
+ * 
+ * The loop thread fills the first marks and hands the timeline to the worker thread through the executor, so
+ * no synchronization is needed.
+ * 
+ * @author Leonardo Bispo de Oliveira.
+ *
+ */
+final class RequestTimeline {
+  enum Phase { ACCEPT, PARSE, QUEUE, HANDLER, WRITE }
+
+  private final long accepted;
+  private long       received = 0;
+  private long       parsed   = 0;
+  private long       queued   = 0;
+  private long       started  = 0;
+  private long       finished = 0;
+  private long       written  = 0;
+
+  /**
+   * Constructor.
+   * 
+   * @param accepted Time the connection has been accepted, or the previous request on it has finished.
+   * 
+   */
+  RequestTimeline(final long accepted) {
+    this.accepted = accepted;
+  }
+
+  /**
+   * Mark the first request byte. Only the first call counts.
+   * 
+   */
+  void received() {
+    if (received == 0)
+      received = System.nanoTime();
+  }
+
+  void parsed() {
+    parsed = System.nanoTime();
+  }
+
+  void queued() {
+    queued = System.nanoTime();
+  }
+
+  void started() {
+    started = System.nanoTime();
+  }
+
+  /**
+   * Mark the end of the request.
+   * 
+   * @param written Nanoseconds spent writing the response to the socket.
+   * 
+   */
+  void finished(final long written) {
+    this.finished = System.nanoTime();
+    this.written  = written;
+  }
+
+  /**
+   * Returns the request duration, from the first byte to the end of the response. If the request has not
+   * finished, the duration until now.
+   * 
+   * @return Duration in nanoseconds.
+   * 
+   */
+  long getDuration() {
+    if (received == 0)
+      return 0;
+
+    return (finished == 0 ? System.nanoTime() : finished) - received;
+  }
+
+  /**
+   * Returns the time spent in a phase.
+   * 
+   * @param phase The request phase.
+   * 
+   * @return Duration in nanoseconds, or zero if the phase has not been reached.
+   * 
+   */
+  long get(final Phase phase) {
+    switch (phase) {
+      case ACCEPT:
+        return received == 0 ? 0 : received - accepted;
+      case PARSE:
+        return parsed == 0 ? 0 : parsed - received;
+      case QUEUE:
+        return started == 0 ? 0 : started - queued;
+      case HANDLER:
+        return finished == 0 ? 0 : Math.max(0, finished - started - written);
+      case WRITE:
+        return written;
+    }
+
+    return 0;
+  }
+
+  @Override
+  public String toString() {
+    final StringBuilder sb = new StringBuilder();
+    for (Phase phase : Phase.values())
+      sb.append(phase.name().toLowerCase()).append('=').append(millis(get(phase))).append("ms ");
+
+    return sb.append("total=").append(millis(getDuration())).append("ms").toString();
+  }
+
+  private static String millis(final long nanos) {
+    return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+  }
+}
@@ -29,6 +29,7 @@ import javax.net.ssl.SSLEngineResult.HandshakeStatus;
 import javax.net.ssl.SSLEngineResult.Status;
 import javax.net.ssl.SSLException;
 
+import br.com.is.events.Events;
 import br.com.is.nio.EventLoop;
 import br.com.is.nio.listener.WriterListener;
 
@@ -59,6 +60,7 @@ class SSLChannel implements WriterListener {
   private final Semaphore     sem                = new Semaphore(0);
 
   private boolean             shutdown           = false;
+  private long                handshakeStart     = 0;
 
   /**
    * Constructor.
@@ -106,20 +108,45 @@ class SSLChannel implements WriterListener {
       return true;
     }
 
-    switch (handshakeStatus) {
-      case NEED_UNWRAP:
-        if (!unwrapHandshake())
-          return handshakeCompleted;
-      case NEED_WRAP:
-        wrapHandshake();
-        return handshakeCompleted;
-      default:
-      break;
+    if (handshakeStart == 0)
+      handshakeStart = System.nanoTime();
+
+    try {
+      switch (handshakeStatus) {
+        case NEED_UNWRAP:
+          if (!unwrapHandshake())
+            return handshakeFinished();
+        case NEED_WRAP:
+          wrapHandshake();
+          return handshakeFinished();
+        default:
+        break;
+      }
+    }
+    catch (SSLException e) {
+      Events.get().tlsHandshake(channel.socket().getRemoteSocketAddress(), sslEngine.getHandshakeSession(),
+        System.nanoTime() - handshakeStart, false);
+      throw e;
     }
 
     throw new IllegalStateException("The code reached an impossible state");
   }
 
+  /**
+   * Notify the end of the handshake, if it has just completed.
+   * 
+   * @return True if the handshake is done, otherwise false.
+   * 
+   */
+  private boolean handshakeFinished() {
+    if (handshakeCompleted) {
+      Events.get().tlsHandshake(channel.socket().getRemoteSocketAddress(), sslEngine.getSession(),
+        System.nanoTime() - handshakeStart, true);
+    }
+
+    return handshakeCompleted;
+  }
+
   /**
    * Read N bytes from the channel and add it to the dst ByteBuffer.
    * 
@@ -0,0 +1,149 @@
+/* Copyright (C) 2013 Leonardo Bispo de Oliveira
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package br.com.is.http.server;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import br.com.is.metrics.Counter;
+import br.com.is.metrics.Gauge;
+import br.com.is.metrics.Histogram;
+import br.com.is.metrics.MetricsRegistry;
+import br.com.is.nio.ByteBufferFifo;
+
+/**
+ * Metrics of one HTTP server: connection and traffic counters plus the per context request metrics. Requests
+ * that do not reach a context (bad headers, unknown URIs) are accounted to the unmatched context.
+ * 
+ * @author Leonardo Bispo de Oliveira.
+ *
+ */
+final class ServerMetrics {
+  private static final String UNMATCHED = "unmatched";
+
+  private final MetricsRegistry                          registry;
+  private final ConcurrentMap<HTTPContext, ContextMetrics> contexts = new ConcurrentHashMap<>();
+
+  final Counter        bytesReceived;
+  final Counter        bytesSent;
+  final Counter        connections;
+  final Counter        activeConnections;
+  final ContextMetrics unmatched;
+
+  private final Histogram phases[]      = new Histogram[RequestTimeline.Phase.values().length];
+  private volatile long   slowThreshold = 0;
+
+  /**
+   * Constructor.
+   * 
+   * @param registry Registry that receives the server metrics.
+   * 
+   */
+  ServerMetrics(final MetricsRegistry registry) {
+    this.registry     = registry;
+    bytesReceived     = registry.counter("tinyhttp_received_bytes_total", "Bytes read from the connections.");
+    bytesSent         = registry.counter("tinyhttp_sent_bytes_total", "Bytes written to the connections.");
+    connections       = registry.counter("tinyhttp_connections_total", "Accepted connections.");
+    activeConnections = new Counter();
+    unmatched         = new ContextMetrics(registry, UNMATCHED);
+
+    for (RequestTimeline.Phase phase : RequestTimeline.Phase.values()) {
+      phases[phase.ordinal()] = registry.histogram("tinyhttp_request_phase_seconds",
+        "Time spent by the requests in each phase of their lifecycle.", "phase", phase.name().toLowerCase());
+    }
+
+    registry.gauge("tinyhttp_connections_active", "Open connections.", new Gauge() {
+      @Override
+      public long get() {
+        return activeConnections.sum();
+      }
+    });
+
+    registry.gauge("tinyhttp_fifo_buffers", "Filled buffers waiting to be read, over all connections.", new Gauge() {
+      @Override
+      public long get() {
+        return ByteBufferFifo.getQueuedBuffers();
+      }
+    });
+  }
+
+  MetricsRegistry getRegistry() {
+    return registry;
+  }
+
+  /**
+   * Create the metrics of a context. A context registered under more than one path is accounted to the first one.
+   * 
+   * @param path Registration path, used as the context label.
+   * @param context The HTTP context.
+   * 
+   */
+  void register(final String path, final HTTPContext context) {
+    contexts.putIfAbsent(context, new ContextMetrics(registry, path));
+  }
+
+  /**
+   * Return the metrics of a context.
+   * 
+   * @param context The HTTP context, or null.
+   * 
+   * @return The context metrics, or the unmatched metrics if the context is unknown.
+   * 
+   */
+  ContextMetrics get(final HTTPContext context) {
+    final ContextMetrics metrics = context == null ? null : contexts.get(context);
+    return metrics == null ? unmatched : metrics;
+  }
+
+  /**
+   * Record a request that has been handled by a context.
+   * 
+   * @param context The HTTP context.
+   * @param status Response status.
+   * @param timeline The request phases.
+   * 
+   */
+  void record(final HTTPContext context, final int status, final RequestTimeline timeline) {
+    get(context).record(status, timeline.getDuration());
+
+    for (RequestTimeline.Phase phase : RequestTimeline.Phase.values())
+      phases[phase.ordinal()].record(timeline.get(phase) / 1000);
+  }
+
+  /**
+   * Set the duration above which a request is logged as slow.
+   * 
+   * @param nanos Threshold in nanoseconds, zero disables the slow request log.
+   * 
+   */
+  void setSlowThreshold(final long nanos) {
+    slowThreshold = nanos;
+  }
+
+  /**
+   * Returns if a request must be logged as slow.
+   * 
+   * @param timeline The request phases.
+   * 
+   * @return True if the slow request log is enabled and the request took longer than its threshold.
+   * 
+   */
+  boolean isSlow(final RequestTimeline timeline) {
+    final long threshold = slowThreshold;
+    return threshold > 0 && timeline.getDuration() > threshold;
+  }
+}
@@ -0,0 +1,383 @@
+/* Copyright (C) 2013 Leonardo Bispo de Oliveira
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package br.com.is.http.server.accesslog;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import br.com.is.metrics.Counter;
+import br.com.is.metrics.MetricsRegistry;
+
+/**
+ * Asynchronous access log. The worker threads copy each request into a fixed-layout slot of a lock-free ring buffer
+ * and return; a single writer thread formats the records and writes them to the file in large batches, so the
+ * request path never takes a lock or touches the disk.
+ * 
+ * When the ring is full the record is either dropped (the default) or the worker waits for a free slot, according
+ * to the overflow policy. The dropped records are counted.
+ * 
+ * The file is rotated when it reaches the max file size, and at each multiple of the rotation interval since the
+ * epoch (so a 24 hours interval rotates at midnight UTC). The rotated file is renamed with the rotation time as
+ * suffix. If the file cannot be opened again after a rotation, the records are discarded and the open is retried
+ * every second, so the writer thread keeps draining the ring buffer and the workers are never blocked.
+ * 
+ * @author Leonardo Bispo de Oliveira.
+ *
+ */
+public final class AccessLog implements Closeable {
+  public enum OverflowPolicy { DROP, BLOCK }
+
+  private static final Logger LOGGER = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+
+  private static final int  DEFAULT_CAPACITY   = 8192;
+  private static final int  BATCH_SIZE         = 256 * 1024;
+  private static final long FLUSH_INTERVAL_MS  = 1000;
+  private static final long IDLE_PARK_NS       = 1000000;
+  private static final long BLOCK_PARK_NS      = 50000;
+  private static final int  BLOCK_SPINS        = 64;
+
+  private final File            file;
+  private final AccessLogFormat format;
+  private final RecordRing      ring;
+  private final OverflowPolicy  policy;
+  private final long            maxFileSize;
+  private final long            rotationInterval;
+
+  private Counter logged  = new Counter();
+  private Counter dropped = new Counter();
+
+  private volatile boolean running = false;
+  private Thread           writer  = null;
+
+  private final ByteBuffer out          = ByteBuffer.allocateDirect(BATCH_SIZE);
+  private FileChannel      channel      = null;
+  private long             fileSize     = 0;
+  private long             nextRotation = Long.MAX_VALUE;
+  private long             nextReopen   = 0;
+
+  /**
+   * Constructor. The log is never rotated and the records are dropped when the ring buffer is full.
+   * 
+   * @param file Log file. New lines are appended if it already exists.
+   * @param format Line layout.
+   * 
+   */
+  public AccessLog(final File file, final AccessLogFormat format) {
+    this(file, format, DEFAULT_CAPACITY, OverflowPolicy.DROP, 0, 0);
+  }
+
+  /**
+   * Constructor.
+   * 
+   * @param file Log file. New lines are appended if it already exists.
+   * @param format Line layout.
+   * @param capacity Number of records kept in the ring buffer. It will be rounded up to a power of two.
+   * @param policy What to do with a record when the ring buffer is full.
+   * @param maxFileSize Size in bytes that rotates the file, or zero to never rotate by size.
+   * @param rotationInterval Time in milliseconds between rotations, or zero to never rotate by time.
+   * 
+   */
+  public AccessLog(final File file, final AccessLogFormat format, final int capacity, final OverflowPolicy policy,
+    final long maxFileSize, final long rotationInterval) {
+    if (file == null)
+      throw new IllegalArgumentException("Access log file cannot be null");
+
+    if (format == null || policy == null)
+      throw new IllegalArgumentException("Access log format and overflow policy cannot be null");
+
+    if (capacity <= 0)
+      throw new IllegalArgumentException("Capacity must be bigger than zero");
+
+    if (maxFileSize < 0 || rotationInterval < 0)
+      throw new IllegalArgumentException("Rotation size and interval cannot be negative");
+
+    this.file             = file;
+    this.format           = format;
+    this.ring             = new RecordRing(capacity);
+    this.policy           = policy;
+    this.maxFileSize      = maxFileSize;
+    this.rotationInterval = rotationInterval;
+  }
+
+  /**
+   * Export the written and dropped record counters to a metrics registry. Must be called before start.
+   * 
+   * @param registry Metrics registry.
+   * 
+   */
+  public void registerMetrics(final MetricsRegistry registry) {
+    if (running)
+      throw new IllegalStateException("Cannot register the metrics of a running access log");
+
+    logged  = registry.counter("tinyhttp_access_log_records_total", "Access log records written.");
+    dropped = registry.counter("tinyhttp_access_log_dropped_total", "Access log records dropped on overflow.");
+  }
+
+  /**
+   * Open the log file and start the writer thread.
+   * 
+   * @throws IOException
+   * 
+   */
+  public synchronized void start() throws IOException {
+    if (running)
+      return;
+
+    open(System.currentTimeMillis());
+
+    running = true;
+    writer  = new Thread(new Writer(), "access-log-writer");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * Write the pending records, stop the writer thread and close the file.
+   * 
+   */
+  @Override
+  public synchronized void close() {
+    if (!running)
+      return;
+
+    running = false;
+    LockSupport.unpark(writer);
+    try {
+      writer.join();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Log a request. Can be called by any thread, the record is written later by the writer thread.
+   * 
+   * @param time Time the request has been received, in milliseconds since the epoch.
+   * @param duration Request duration in nanoseconds.
+   * @param bytes Bytes sent to the client, headers included.
+   * @param status Response status.
+   * @param remote Client address.
+   * @param method Request method.
+   * @param uri Request URI, with the query string.
+   * @param protocol Request protocol version.
+   * @param referer Referer header.
+   * @param userAgent User-Agent header.
+   * 
+   * @return False if the record has been dropped.
+   * 
+   */
+  public boolean log(final long time, final long duration, final long bytes, final int status, final String remote,
+    final String method, final String uri, final String protocol, final String referer, final String userAgent) {
+    if (ring.offer(time, duration, bytes, status, remote, method, uri, protocol, referer, userAgent))
+      return true;
+
+    if (policy == OverflowPolicy.BLOCK) {
+      for (int spins = 0; running; ++spins) {
+        if (spins < BLOCK_SPINS)
+          Thread.yield();
+        else
+          LockSupport.parkNanos(BLOCK_PARK_NS);
+
+        if (ring.offer(time, duration, bytes, status, remote, method, uri, protocol, referer, userAgent))
+          return true;
+      }
+    }
+
+    dropped.increment();
+    return false;
+  }
+
+  /**
+   * Returns the number of records written to the file.
+   * 
+   * @return Written records.
+   * 
+   */
+  public long getLogged() {
+    return logged.sum();
+  }
+
+  /**
+   * Returns the number of records dropped because the ring buffer was full.
+   * 
+   * @return Dropped records.
+   * 
+   */
+  public long getDropped() {
+    return dropped.sum();
+  }
+
+  private final class Writer implements Runnable {
+    @Override
+    public void run() {
+      final AccessLogEntry entry = new AccessLogEntry();
+      final StringBuilder  sb    = new StringBuilder(1024);
+
+      long lastFlush = System.currentTimeMillis();
+      for (;;) {
+        int count = 0;
+        while (count < ring.capacity() && ring.poll(entry)) {
+          sb.setLength(0);
+          format.format(entry, sb);
+          append(sb.append('\n'));
+          ++count;
+        }
+
+        if (count > 0)
+          logged.add(count);
+
+        final long now = System.currentTimeMillis();
+        if (count == 0 || now - lastFlush >= FLUSH_INTERVAL_MS) {
+          flush();
+          lastFlush = now;
+        }
+
+        if (now >= nextRotation)
+          rotate(now);
+
+        if (count == 0) {
+          if (!running && ring.isEmpty())
+            break;
+
+          LockSupport.parkNanos(IDLE_PARK_NS);
+        }
+      }
+
+      flush();
+      try {
+        if (channel != null)
+          channel.close();
+      }
+      catch (IOException e) {
+        if (LOGGER.isLoggable(Level.WARNING))
+          LOGGER.log(Level.WARNING, "Problems to close the access log", e);
+      }
+    }
+  }
+
+  private void append(final CharSequence line) {
+    final byte bytes[] = line.toString().getBytes(StandardCharsets.UTF_8);
+    if (maxFileSize > 0 && fileSize + out.position() + bytes.length > maxFileSize && fileSize + out.position() > 0) {
+      flush();
+      rotate(System.currentTimeMillis());
+    }
+
+    if (bytes.length > out.remaining())
+      flush();
+
+    if (bytes.length > out.remaining())
+      write(ByteBuffer.wrap(bytes));
+    else
+      out.put(bytes);
+  }
+
+  private void flush() {
+    if (out.position() == 0)
+      return;
+
+    out.flip();
+    write(out);
+    out.clear();
+  }
+
+  private void write(final ByteBuffer buffer) {
+    if (channel == null) {
+      final long now = System.currentTimeMillis();
+      if (now < nextReopen || !reopen(now)) {
+        buffer.position(buffer.limit());
+        return;
+      }
+    }
+
+    try {
+      while (buffer.hasRemaining())
+        fileSize += channel.write(buffer);
+    }
+    catch (IOException e) {
+      if (LOGGER.isLoggable(Level.SEVERE))
+        LOGGER.log(Level.SEVERE, "Problems to write the access log", e);
+    }
+  }
+
+  private void open(final long now) throws IOException {
+    channel  = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+      StandardOpenOption.APPEND);
+    fileSize = channel.size();
+
+    scheduleRotation(now);
+  }
+
+  private void scheduleRotation(final long now) {
+    if (rotationInterval > 0)
+      nextRotation = (now / rotationInterval + 1) * rotationInterval;
+  }
+
+  private void rotate(final long now) {
+    flush();
+    if (fileSize == 0) {
+      scheduleRotation(now);
+      return;
+    }
+
+    try {
+      if (channel != null)
+        channel.close();
+
+      final String prefix = file.getPath() + "." + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date(now));
+      File target = new File(prefix);
+      for (int i = 1; target.exists(); ++i)
+        target = new File(prefix + "." + i);
+
+      Files.move(file.toPath(), target.toPath());
+    }
+    catch (IOException e) {
+      if (LOGGER.isLoggable(Level.SEVERE))
+        LOGGER.log(Level.SEVERE, "Problems to rotate the access log", e);
+    }
+
+    channel  = null;
+    fileSize = 0;
+    scheduleRotation(now);
+    reopen(now);
+  }
+
+  private boolean reopen(final long now) {
+    nextReopen = now + FLUSH_INTERVAL_MS;
+    try {
+      open(now);
+      return true;
+    }
+    catch (IOException e) {
+      if (LOGGER.isLoggable(Level.SEVERE))
+        LOGGER.log(Level.SEVERE, "Problems to reopen the access log, the records are discarded until it is opened", e);
+
+      return false;
+    }
+  }
+}
@@ -0,0 +1,93 @@
+/* Copyright (C) 2013 Leonardo Bispo de Oliveira
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package br.com.is.http.server.accesslog;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * One access log record decoded from the ring buffer. A single instance is reused by the writer thread for all the
+ * records, so it also keeps the date formatters and the last formatted second.
+ * 
+ * @author Leonardo Bispo de Oliveira.
+ *
+ */
+final class AccessLogEntry {
+  long   time;
+  long   duration;
+  long   bytes;
+  int    status;
+  String remote;
+  String method;
+  String uri;
+  String protocol;
+  String referer;
+  String userAgent;
+
+  private final SimpleDateFormat clf = new SimpleDateFormat("dd/MMM/yyyy:HH:mm:ss Z", Locale.US);
+  private final SimpleDateFormat iso = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss", Locale.US);
+
+  private long   clfSecond = -1;
+  private String clfTime   = null;
+  private long   isoSecond = -1;
+  private String isoTime   = null;
+
+  AccessLogEntry() {
+    iso.setTimeZone(TimeZone.getTimeZone("UTC"));
+  }
+
+  /**
+   * Returns the request time in the Common Log Format, without the brackets.
+   * 
+   * @return Formatted time.
+   * 
+   */
+  String getCommonTime() {
+    final long second = time / 1000;
+    if (second != clfSecond) {
+      clfTime   = clf.format(new Date(second * 1000));
+      clfSecond = second;
+    }
+
+    return clfTime;
+  }
+
+  /**
+   * Returns the request time in ISO 8601, UTC and with milliseconds.
+   * 
+   * @return Formatted time.
+   * 
+   */
+  String getIsoTime() {
+    final long second = time / 1000;
+    if (second != isoSecond) {
+      isoTime   = iso.format(new Date(second * 1000));
+      isoSecond = second;
+    }
+
+    final int millis = (int) (time % 1000);
+    final StringBuilder sb = new StringBuilder(isoTime.length() + 5).append(isoTime).append('.');
+    if (millis < 100)
+      sb.append('0');
+    if (millis < 10)
+      sb.append('0');
+
+    return sb.append(millis).append('Z').toString();
+  }
+}
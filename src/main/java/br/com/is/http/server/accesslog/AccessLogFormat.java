@@ -0,0 +1,141 @@
+/* Copyright (C) 2013 Leonardo Bispo de Oliveira
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package br.com.is.http.server.accesslog;
+
+/**
+ * Layout of the access log lines.
+ * 
+ * @author Leonardo Bispo de Oliveira.
+ *
+ */
+public enum AccessLogFormat {
+  /**
+   * NCSA Common Log Format: host ident user [time] "request" status bytes.
+   */
+  COMMON {
+    @Override
+    void format(final AccessLogEntry entry, final StringBuilder sb) {
+      common(entry, sb);
+    }
+  },
+
+  /**
+   * NCSA Combined Log Format: the common format followed by the quoted referer and user agent.
+   */
+  COMBINED {
+    @Override
+    void format(final AccessLogEntry entry, final StringBuilder sb) {
+      common(entry, sb);
+      sb.append(" \"");
+      quoted(sb, entry.referer);
+      sb.append("\" \"");
+      quoted(sb, entry.userAgent);
+      sb.append('"');
+    }
+  },
+
+  /**
+   * One JSON object per line.
+   */
+  JSON {
+    @Override
+    void format(final AccessLogEntry entry, final StringBuilder sb) {
+      sb.append("{\"time\":\"").append(entry.getIsoTime()).append('"');
+      field(sb, "remote", entry.remote);
+      field(sb, "method", entry.method);
+      field(sb, "uri", entry.uri);
+      field(sb, "protocol", entry.protocol);
+      sb.append(",\"status\":").append(entry.status);
+      sb.append(",\"bytes\":").append(entry.bytes);
+      sb.append(",\"duration_us\":").append(entry.duration / 1000);
+      field(sb, "referer", entry.referer);
+      field(sb, "user_agent", entry.userAgent);
+      sb.append('}');
+    }
+  };
+
+  /**
+   * Append one log line, without the line separator.
+   * 
+   * @param entry Record to be formatted.
+   * @param sb Destination.
+   * 
+   */
+  abstract void format(final AccessLogEntry entry, final StringBuilder sb);
+
+  private static void common(final AccessLogEntry entry, final StringBuilder sb) {
+    sb.append(entry.remote.isEmpty() ? "-" : entry.remote).append(" - - [").append(entry.getCommonTime()).append("] \"");
+    quoted(sb, entry.method);
+    sb.append(' ');
+    quoted(sb, entry.uri);
+    if (!entry.protocol.isEmpty()) {
+      sb.append(' ');
+      quoted(sb, entry.protocol);
+    }
+    sb.append("\" ").append(entry.status).append(' ');
+    if (entry.bytes > 0)
+      sb.append(entry.bytes);
+    else
+      sb.append('-');
+  }
+
+  /**
+   * Append a value inside a quoted field, escaping the quotes, backslashes and control characters like Apache does.
+   * 
+   */
+  private static void quoted(final StringBuilder sb, final String value) {
+    if (value.isEmpty()) {
+      sb.append('-');
+      return;
+    }
+
+    for (int i = 0; i < value.length(); i++) {
+      final char c = value.charAt(i);
+      if (c == '"' || c == '\\')
+        sb.append('\\').append(c);
+      else if (c < 0x20 || c == 0x7f)
+        hex(sb.append("\\x"), c, 2);
+      else
+        sb.append(c);
+    }
+  }
+
+  private static void field(final StringBuilder sb, final String name, final String value) {
+    sb.append(",\"").append(name).append("\":");
+    if (value.isEmpty()) {
+      sb.append("null");
+      return;
+    }
+
+    sb.append('"');
+    for (int i = 0; i < value.length(); i++) {
+      final char c = value.charAt(i);
+      if (c == '"' || c == '\\')
+        sb.append('\\').append(c);
+      else if (c < 0x20)
+        hex(sb.append("\\u"), c, 4);
+      else
+        sb.append(c);
+    }
+    sb.append('"');
+  }
+
+  private static void hex(final StringBuilder sb, final int value, final int digits) {
+    for (int shift = (digits - 1) * 4; shift >= 0; shift -= 4)
+      sb.append(Character.forDigit((value >> shift) & 0xf, 16));
+  }
+}
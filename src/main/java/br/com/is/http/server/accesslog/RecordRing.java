@@ -0,0 +1,233 @@
+/* Copyright (C) 2013 Leonardo Bispo de Oliveira
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package br.com.is.http.server.accesslog;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded multi-producer, single-consumer ring of fixed-layout access log records. The slots live in one heap
+ * buffer and each one has a sequence number (Vyukov's bounded queue): a producer claims a slot with a CAS on the
+ * tail, fills it with absolute puts and publishes it by advancing the slot sequence, and the consumer reads the
+ * slot once its sequence says it has been published. No lock is taken and nothing is allocated by the producers.
+ * 
+ * Slot layout: time (8), duration (8), bytes (8), status (4), followed by the string fields, each one a 2 bytes
+ * length and its UTF-8 bytes truncated to the field limit.
+ * 
+ * @author Leonardo Bispo de Oliveira.
+ *
+ */
+final class RecordRing {
+  static final int SLOT_SIZE = 1024;
+
+  private static final int TIME     = 0;
+  private static final int DURATION = 8;
+  private static final int BYTES    = 16;
+  private static final int STATUS   = 24;
+  private static final int STRINGS  = 28;
+
+  private static final int REMOTE     = 0;
+  private static final int METHOD     = 1;
+  private static final int URI        = 2;
+  private static final int PROTOCOL   = 3;
+  private static final int REFERER    = 4;
+  private static final int USER_AGENT = 5;
+
+  private static final int LIMITS[]  = { 64, 16, 472, 16, 192, 192 };
+  private static final int OFFSETS[] = new int[LIMITS.length];
+  static {
+    int offset = STRINGS;
+    for (int i = 0; i < LIMITS.length; i++) {
+      OFFSETS[i] = offset;
+      offset    += 2 + LIMITS[i];
+    }
+    assert offset <= SLOT_SIZE;
+  }
+
+  private final int             mask;
+  private final ByteBuffer      data;
+  private final AtomicLongArray sequences;
+  private final AtomicLong      tail = new AtomicLong(0);
+  private long                  head = 0;
+
+  private final byte scratch[] = new byte[SLOT_SIZE];
+
+  /**
+   * Constructor.
+   * 
+   * @param capacity Number of records. It will be rounded up to a power of two.
+   * 
+   */
+  RecordRing(final int capacity) {
+    int size = 1;
+    while (size < capacity)
+      size <<= 1;
+
+    mask      = size - 1;
+    data      = ByteBuffer.allocate(size * SLOT_SIZE);
+    sequences = new AtomicLongArray(size);
+    for (int i = 0; i < size; i++)
+      sequences.set(i, i);
+  }
+
+  /**
+   * Returns the number of slots.
+   * 
+   * @return Ring capacity.
+   * 
+   */
+  int capacity() {
+    return mask + 1;
+  }
+
+  /**
+   * Add a record to the ring. Can be called by any thread.
+   * 
+   * @return False if the ring is full.
+   * 
+   */
+  boolean offer(final long time, final long duration, final long bytes, final int status, final String remote,
+    final String method, final String uri, final String protocol, final String referer, final String userAgent) {
+    long pos;
+    for (;;) {
+      pos = tail.get();
+      final long diff = sequences.get((int) (pos & mask)) - pos;
+      if (diff == 0) {
+        if (tail.compareAndSet(pos, pos + 1))
+          break;
+      }
+      else if (diff < 0)
+        return false;
+    }
+
+    final int slot = (int) (pos & mask);
+    final int base = slot * SLOT_SIZE;
+    data.putLong(base + TIME, time);
+    data.putLong(base + DURATION, duration);
+    data.putLong(base + BYTES, bytes);
+    data.putInt(base + STATUS, status);
+    putString(base, REMOTE, remote);
+    putString(base, METHOD, method);
+    putString(base, URI, uri);
+    putString(base, PROTOCOL, protocol);
+    putString(base, REFERER, referer);
+    putString(base, USER_AGENT, userAgent);
+
+    sequences.set(slot, pos + 1);
+    return true;
+  }
+
+  /**
+   * Move the oldest record to the entry. Must be called only by the consumer thread.
+   * 
+   * @param entry Entry that receives the record.
+   * 
+   * @return False if the ring is empty.
+   * 
+   */
+  boolean poll(final AccessLogEntry entry) {
+    final int slot = (int) (head & mask);
+    if (sequences.get(slot) != head + 1)
+      return false;
+
+    final int base  = slot * SLOT_SIZE;
+    entry.time      = data.getLong(base + TIME);
+    entry.duration  = data.getLong(base + DURATION);
+    entry.bytes     = data.getLong(base + BYTES);
+    entry.status    = data.getInt(base + STATUS);
+    entry.remote    = getString(base, REMOTE);
+    entry.method    = getString(base, METHOD);
+    entry.uri       = getString(base, URI);
+    entry.protocol  = getString(base, PROTOCOL);
+    entry.referer   = getString(base, REFERER);
+    entry.userAgent = getString(base, USER_AGENT);
+
+    sequences.set(slot, head + mask + 1);
+    head++;
+    return true;
+  }
+
+  /**
+   * Returns if there is no published record. Must be called only by the consumer thread.
+   * 
+   * @return True if the ring is empty.
+   * 
+   */
+  boolean isEmpty() {
+    return sequences.get((int) (head & mask)) != head + 1;
+  }
+
+  /**
+   * Write a string as UTF-8, stopping at the last character that fits in the field.
+   * 
+   */
+  private void putString(final int base, final int field, final String value) {
+    final int start = base + OFFSETS[field];
+    final int limit = LIMITS[field];
+
+    int length = 0;
+    if (value != null) {
+      for (int i = 0; i < value.length(); i++) {
+        char c = value.charAt(i);
+        if (Character.isSurrogate(c) && !(Character.isHighSurrogate(c) && i + 1 < value.length()
+          && Character.isLowSurrogate(value.charAt(i + 1))))
+          c = '?';
+
+        if (c < 0x80) {
+          if (length + 1 > limit)
+            break;
+          data.put(start + 2 + length++, (byte) c);
+        }
+        else if (c < 0x800) {
+          if (length + 2 > limit)
+            break;
+          data.put(start + 2 + length++, (byte) (0xc0 | (c >> 6)));
+          data.put(start + 2 + length++, (byte) (0x80 | (c & 0x3f)));
+        }
+        else if (Character.isHighSurrogate(c)) {
+          if (length + 4 > limit)
+            break;
+          final int cp = Character.toCodePoint(c, value.charAt(++i));
+          data.put(start + 2 + length++, (byte) (0xf0 | (cp >> 18)));
+          data.put(start + 2 + length++, (byte) (0x80 | ((cp >> 12) & 0x3f)));
+          data.put(start + 2 + length++, (byte) (0x80 | ((cp >> 6) & 0x3f)));
+          data.put(start + 2 + length++, (byte) (0x80 | (cp & 0x3f)));
+        }
+        else {
+          if (length + 3 > limit)
+            break;
+          data.put(start + 2 + length++, (byte) (0xe0 | (c >> 12)));
+          data.put(start + 2 + length++, (byte) (0x80 | ((c >> 6) & 0x3f)));
+          data.put(start + 2 + length++, (byte) (0x80 | (c & 0x3f)));
+        }
+      }
+    }
+
+    data.putShort(start, (short) length);
+  }
+
+  private String getString(final int base, final int field) {
+    final int start  = base + OFFSETS[field];
+    final int length = data.getShort(start);
+    for (int i = 0; i < length; i++)
+      scratch[i] = data.get(start + 2 + i);
+
+    return new String(scratch, 0, length, StandardCharsets.UTF_8);
+  }
+}
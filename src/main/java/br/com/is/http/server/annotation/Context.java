@@ -32,4 +32,9 @@ public @interface Context {
   String tempDirectory() default "";
   long maxContentLength() default Long.MAX_VALUE;
   boolean acceptEncode() default false;
+  long coalesceTimeout() default 0;
+  int autoETagLimit() default 0;
+  double rateLimit() default 0;
+  int rateLimitBurst() default 0;
+  String rateLimitHeader() default "";
 }
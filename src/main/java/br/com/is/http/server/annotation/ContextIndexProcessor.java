@@ -0,0 +1,119 @@
+/* Copyright (C) 2013 Leonardo Bispo de Oliveira
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package br.com.is.http.server.annotation;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+
+/**
+ * Annotation processor that writes the list of {@link Context} classes to {@link #INDEX}, so the server
+ * can load its contexts at startup without scanning the classpath.
+ * 
+ * The index holds one binary class name per line. Entries left by a previous (incremental) compilation are
+ * kept as long as the class still exists and is still annotated.
+ * 
+ * @author Leonardo Bispo de Oliveira.
+ *
+ */
+@SupportedAnnotationTypes("br.com.is.http.server.annotation.Context")
+public final class ContextIndexProcessor extends AbstractProcessor {
+  public static final String INDEX = "META-INF/br.com.is.http.server.annotation.Context";
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private final Set<String> contexts = new TreeSet<>();
+
+  @Override
+  public SourceVersion getSupportedSourceVersion() {
+    return SourceVersion.latestSupported();
+  }
+
+  @Override
+  public boolean process(final Set<? extends TypeElement> annotations, final RoundEnvironment roundEnv) {
+    if (roundEnv.processingOver()) {
+      if (!contexts.isEmpty())
+        writeIndex();
+
+      return false;
+    }
+
+    for (final Element element : roundEnv.getElementsAnnotatedWith(Context.class)) {
+      if (element.getKind() != ElementKind.CLASS || element.getModifiers().contains(Modifier.ABSTRACT)) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "@Context must be placed on a concrete class",
+          element);
+        continue;
+      }
+
+      contexts.add(processingEnv.getElementUtils().getBinaryName((TypeElement) element).toString());
+    }
+
+    return false;
+  }
+
+  /**
+   * Merge the collected contexts with the previous index and write it.
+   * 
+   */
+  private void writeIndex() {
+    try {
+      final FileObject previous = processingEnv.getFiler().getResource(StandardLocation.CLASS_OUTPUT, "", INDEX);
+      try (BufferedReader reader = new BufferedReader(new InputStreamReader(previous.openInputStream(), UTF8))) {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          line = line.trim();
+          if (!line.isEmpty() && !contexts.contains(line)) {
+            final TypeElement type = processingEnv.getElementUtils().getTypeElement(line.replace('$', '.'));
+            if (type != null && type.getAnnotation(Context.class) != null)
+              contexts.add(line);
+          }
+        }
+      }
+    }
+    catch (IOException | IllegalArgumentException e) {
+      // No previous index, it is a full compilation.
+    }
+
+    try {
+      final FileObject index = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", INDEX);
+      try (Writer writer = new OutputStreamWriter(index.openOutputStream(), UTF8)) {
+        for (final String context : contexts)
+          writer.write(context + "\n");
+      }
+    }
+    catch (IOException e) {
+      processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Problems to write " + INDEX + ": " + e.getMessage());
+    }
+  }
+}
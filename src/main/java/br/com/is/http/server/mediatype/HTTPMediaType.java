@@ -21,6 +21,7 @@ import java.util.Hashtable;
 import br.com.is.http.server.HTTPContext;
 import br.com.is.http.server.HTTPRequest;
 import br.com.is.http.server.HTTPResponse;
+import br.com.is.http.server.Parameters;
 import br.com.is.http.server.Part;
 import br.com.is.http.server.exception.HTTPRequestException;
 
@@ -32,6 +33,6 @@ import br.com.is.http.server.exception.HTTPRequestException;
  */
 public interface HTTPMediaType {
   void process(final HTTPContext context, final HTTPRequest request,final HTTPResponse response,
-    final String parameter, final Hashtable<String, String> requestParams, 
+    final String parameter, final Parameters requestParams, 
     final Hashtable<String, Part> parts) throws HTTPRequestException;
 }
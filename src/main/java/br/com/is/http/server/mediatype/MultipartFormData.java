@@ -16,149 +16,55 @@
  */
 package br.com.is.http.server.mediatype;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.Hashtable;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.StringTokenizer;
 
 import br.com.is.http.server.HTTPContext;
 import br.com.is.http.server.HTTPRequest;
 import br.com.is.http.server.HTTPResponse;
+import br.com.is.http.server.Parameters;
 import br.com.is.http.server.Part;
+import br.com.is.http.server.PartListener;
 import br.com.is.http.server.exception.BadRequestException;
 import br.com.is.http.server.exception.HTTPRequestException;
 import br.com.is.http.server.exception.InternalServerErrorException;
-import br.com.is.http.server.exception.RequestEntityTooLargeException;
+import br.com.is.nio.ByteBufferPool;
 
 public class MultipartFormData implements HTTPMediaType {
-  private enum Type { BEGIN, FORM, FILE };
-  private enum BoundaryCheck { NOT_BOUNDARY, NOT_SURE, BOUNDARY };
-  private static int BUFFER_SIZE                            = 8192; // Must be power of two!
-
-  private static final int    MASK                          = BUFFER_SIZE - 1;
-  private static final String CONTENT_TYPE                  = "content-type";
-  private static final String CONTENT_DISPOSITION           = "content-disposition";
-  private static final String CONTENT_DISPOSITION_NAME      = "name";
-  private static final String CONTENT_DISPOSITION_FILE_NAME = "filename";
+  private static final Charset UTF8                          = Charset.forName("UTF-8");
+  private static final String  CONTENT_TYPE                  = "content-type";
+  private static final String  CONTENT_DISPOSITION           = "content-disposition";
+  private static final String  CONTENT_DISPOSITION_NAME      = "name";
+  private static final String  CONTENT_DISPOSITION_FILE_NAME = "filename";
   
-  private static final String BOUNDARY                      = "boundary";
+  private static final String  BOUNDARY                      = "boundary";
   
-  private int readPtr          = 0;
-  private int available        = BUFFER_SIZE;
-  private final byte cbuffer[] = new byte[BUFFER_SIZE];
+  private static final ByteBufferPool POOL = new ByteBufferPool(16384, 1024);
   
   @Override
   public void process(final HTTPContext context, final HTTPRequest request, final HTTPResponse response,
-    final String parameter, final Hashtable<String, String> requestParams,
+    final String parameter, final Parameters requestParams,
     final Hashtable<String, Part> parts) throws HTTPRequestException {
     
-    final String boundaryAttribute[] = parameter.split("=");
-    
-    if (boundaryAttribute.length != 2 || !boundaryAttribute[0].trim().equalsIgnoreCase(BOUNDARY))
-      throw new BadRequestException("Invalid media type parameter: " + parameter);
-    
-    final String boundary       = "--" + boundaryAttribute[1].trim();
-    final String boundaryMiddle = "\r\n" + boundary;
-    final InputStream is  = request.getInputStream();
-    
-    Type type   = Type.BEGIN;
-    boolean end = false;
-    
-    String name = null;
-    PartImpl currPart = null;
-    boolean dumpEnded = false;
-    int currPtr = 0;
+    final String boundary = parseBoundary(parameter);
+    final PartCollector collector = new PartCollector(context, request, requestParams, parts);
     try {
-      while (!end || (available < BUFFER_SIZE)) {
-        if (end && (available < BUFFER_SIZE && currPtr == readPtr))
-          throw new BadRequestException("Malformed Request Body");
-
-        currPtr = readPtr;
-        if (available == 0)
-          throw new RequestEntityTooLargeException("Cannot keep more than " + BUFFER_SIZE + " in buffer");
-        try {
-          int count = 0;
-          while (!end && available > 0 && count++ < 2) {
-            int writePtr = ((BUFFER_SIZE - available) + readPtr) & MASK;
-            int read     = is.read(cbuffer, writePtr, (BUFFER_SIZE - writePtr) >= available ? available : (BUFFER_SIZE - writePtr));
-            if (read != -1)
-              available -= read;
-            else
-              end = true;
-          }
-        }
-        catch (IOException e) {
-          throw new InternalServerErrorException("Problems to read data from the HTTP Channel", e);
-        }
-
-        if (type == Type.BEGIN) {
-          final Hashtable<String, String> header = parseBoundary(boundary);
-          if (header == null && end)
-            throw new BadRequestException("Problems to parse the Multipart-Form");
-          else if (header != null) {
-            if (!header.isEmpty()) {
-              String cDisposition = header.get(CONTENT_DISPOSITION);
-              if (cDisposition == null)
-                throw new BadRequestException("Wrong form-data. No valid content disposition");
-
-              final Hashtable<String, String> disposition = parseDisposition(cDisposition);
-
-              name = disposition.get(CONTENT_DISPOSITION_NAME);
-              if (name == null)
-                throw new BadRequestException("Wrong form-data. No valid content disposition");
-
-              name = name.replaceAll("\"", "");
-              if (header.containsKey(CONTENT_TYPE)) {
-                String fileName = disposition.get(CONTENT_DISPOSITION_FILE_NAME);
-                if (fileName != null) {
-                  fileName = fileName.replaceAll("\"", "");
-                  if (!fileName.isEmpty()) {
-                    try {
-                      type = Type.FILE;
-                      currPart = new PartImpl(name, fileName, header, context.getTempDirectory());
-                    }
-                    catch (IOException ie) {
-                      throw new InternalServerErrorException("Problem to create the temporary file", ie);
-                    }
-                  }
-                }
-              }
-              else
-                type = Type.FORM;
-            }
-            else //This means that I found the end of the boundary. just stop the processing
-              end = true;
-          }
-        }
-        else if (type == Type.FORM)
-          parseForm(name, requestParams);
-        else 
-          dumpEnded = dumpTempData(currPart, boundaryMiddle);
-
-        if (dumpEnded || (type != Type.FILE && isBoundary(readPtr, boundaryMiddle) == BoundaryCheck.BOUNDARY)) {
-          dumpEnded = false;
-          discardBuffer(2);
-          type = Type.BEGIN;
-          if (currPart != null) {
-            try {
-              currPart.os.close();
-              parts.put(currPart.name, currPart);
-              currPart = null;
-            }
-            catch (IOException e) {
-              throw new InternalServerErrorException("Problem to close the temporary file", e);
-            }
-          }
-          name = null;
-        }
-      }
-
+      new MultipartParser(boundary, request.getInputStream(), context.getMultipartBufferSize()).parse(collector);
       context.doPost(request, response);
     }
     finally {
@@ -169,182 +75,166 @@ public class MultipartFormData implements HTTPMediaType {
 
         if (entry.getKey() != null)
           ((PartImpl) entry.getValue()).deleteTempFile();
-        
-        if (currPart != null)
-          currPart.deleteTempFile();
       }
+      
+      if (collector.part != null)
+        collector.part.deleteTempFile();
     }
   }
   
-  private void parseForm(final String name, final Hashtable<String, String> requestParams) {
-    StringBuilder builder = new StringBuilder();
-    
-    int bytesRead = 0;
-    int currPtr   = readPtr;
-    int availableRead = (BUFFER_SIZE - available);
-    while (availableRead-- >= 2) {
-      if (cbuffer[currPtr & MASK] == '\r' && cbuffer[(currPtr + 1) & MASK] == '\n') {
-        requestParams.put(name, builder.toString());
-        discardBuffer(bytesRead);
-        return;
-      }
-      else {
-        ++bytesRead;
-        builder.append((char) cbuffer[currPtr++ & MASK]);
+  private static String parseBoundary(final String parameter) throws HTTPRequestException {
+    if (parameter != null) {
+      final StringTokenizer st = new StringTokenizer(parameter, ";");
+      while (st.hasMoreTokens()) {
+        final String token = st.nextToken().trim();
+        final int idx = token.indexOf('=');
+        if (idx != -1 && token.substring(0, idx).trim().equalsIgnoreCase(BOUNDARY)) {
+          final String boundary = token.substring(idx + 1).trim().replaceAll("\"", "");
+          if (!boundary.isEmpty())
+            return boundary;
+        }
       }
     }
+    
+    throw new BadRequestException("Invalid media type parameter: " + parameter);
   }
   
-  private Hashtable<String, String> parseBoundary(final String boundary) {
-    if (isBoundary(readPtr, boundary) != BoundaryCheck.BOUNDARY || (BUFFER_SIZE - (available + boundary.length()) < 2))
-      return null; 
-    
-    int bytesRead = 0;
-    final Hashtable<String, String> header = new Hashtable<>();
-    int currPtr = (readPtr + boundary.length());
-    if (cbuffer[currPtr & MASK] == '-' && cbuffer[(currPtr + 1) & MASK] == '-') { // End of the boundaries
-      discardBuffer(boundary.length() + 4);
-      return header;
+  private static Hashtable<String, String> parseDisposition(String disposition) {
+    final Hashtable<String, String> ret = new Hashtable<>();
+    final StringTokenizer st = new StringTokenizer(disposition, ";");
+    while (st.hasMoreTokens()) {
+      String token = st.nextToken().trim();
+      int idx = token.indexOf('=');
+      if (idx != -1)
+        ret.put(token.substring(0, idx).trim().toLowerCase(), token.substring(idx + 1).trim());
     }
-
-    currPtr   += 2;
-    bytesRead += 2 + boundary.length();
-    int availableRead = (BUFFER_SIZE - (available + boundary.length()));
-    boolean isNewLine = false;
     
-    StringBuilder builder = new StringBuilder();
-    String headerField = "";
-    while (availableRead-- >= 2) {
-      if (cbuffer[currPtr & MASK] == '\r' && cbuffer[(currPtr + 1) & MASK] == '\n') {
-        if (isNewLine) {
-          if (!headerField.isEmpty()) {
-            int idx = headerField.indexOf(':');
-            if (idx != -1)
-              header.put(headerField.substring(0, idx).trim().toLowerCase(), headerField.substring(idx + 1).trim());
-          }
-            
-          discardBuffer(bytesRead + 2);
-          return header;
-        }
-
-        String line = builder.toString();
-        if (!line.isEmpty()) {         
-          if (line.indexOf(' ') != 0 && line.indexOf('\t') != 0) {
-            if (!headerField.isEmpty()) {
-              int idx = headerField.indexOf(':');
-              if (idx != -1)
-                header.put(headerField.substring(0, idx).trim().toLowerCase(), headerField.substring(idx + 1).trim());
-            }
-            headerField = line;
-          }
-          else
-            headerField += line;
-
-          builder = new StringBuilder();
-        }
-        currPtr   += 2;
-        bytesRead += 2;
-        isNewLine = true;
-      }
-      else {
-        ++bytesRead;
-        builder.append((char) cbuffer[currPtr++ & MASK]);
-        isNewLine = false;
-      }
-    }
-
-    return null;
+    return ret;
   }
   
-  private BoundaryCheck isBoundary(int ptr, final String boundary) {
-    byte b[] = boundary.getBytes();
-    if (b.length > (BUFFER_SIZE - available))
-      return BoundaryCheck.NOT_SURE;
+  /**
+   * Store the form fields in the request parameters and the files in parts, or stream all the parts to the part
+   * listener of the context.
+   * 
+   * @author Leonardo Bispo de Oliveira.
+   *
+   */
+  private static final class PartCollector implements MultipartParser.Handler {
+    private final HTTPContext               context;
+    private final HTTPRequest               request;
+    private final PartListener              listener;
+    private final Parameters                requestParams;
+    private final Hashtable<String, Part>   parts;
+    private final ByteArrayOutputStream     field = new ByteArrayOutputStream();
     
-    for (int i = 0; i < b.length; ++i) {
-      if (b[i] != cbuffer[(ptr + i) & MASK])
-        return BoundaryCheck.NOT_BOUNDARY;
-    }
+    private String   name = null;
+    private boolean  file = false;
+    private PartImpl part = null;
     
-    return BoundaryCheck.BOUNDARY;
-  }
+    PartCollector(final HTTPContext context, final HTTPRequest request, final Parameters requestParams,
+      final Hashtable<String, Part> parts) {
+      this.context       = context;
+      this.request       = request;
+      this.listener      = context.getPartListener();
+      this.requestParams = requestParams;
+      this.parts         = parts;
+    }
 
-  private boolean dumpTempData(final PartImpl part, final String boundary) throws HTTPRequestException {
-    if (part == null)
-      throw new InternalServerErrorException("Problems to create a temporary file to store the incomming files");
+    @Override
+    public void partBegin(final Hashtable<String, String> header) throws HTTPRequestException {
+      final String cDisposition = header.get(CONTENT_DISPOSITION);
+      if (cDisposition == null)
+        throw new BadRequestException("Wrong form-data. No valid content disposition");
 
-    int bytesRead = 0;
-    int currPtr   = readPtr;
-    int availableRead = (BUFFER_SIZE - available);
-    while (availableRead-- >= 2) {
-      if (cbuffer[currPtr & MASK] == '\r' && cbuffer[(currPtr + 1) & MASK] == '\n') {
-        BoundaryCheck check = isBoundary(currPtr, boundary);
-        if (check == BoundaryCheck.BOUNDARY) {
-          flushBuffer(bytesRead, part);
-          return true;
-        }
+      final Hashtable<String, String> disposition = parseDisposition(cDisposition);
 
-        if (check == BoundaryCheck.NOT_SURE)
-          break;
-        currPtr   += 2;
-        bytesRead += 2;
-      }
-      else {
-        ++bytesRead;
-        ++currPtr;
+      name = disposition.get(CONTENT_DISPOSITION_NAME);
+      if (name == null)
+        throw new BadRequestException("Wrong form-data. No valid content disposition");
+
+      name = name.replaceAll("\"", "");
+      
+      String fileName = disposition.get(CONTENT_DISPOSITION_FILE_NAME);
+      if (fileName != null) {
+        fileName = fileName.replaceAll("\"", "");
+        if (fileName.isEmpty())
+          fileName = null;
       }
+      
+      file = fileName != null;
+      field.reset();
+      
+      if (listener != null)
+        listener.partBegin(request, name, fileName, Collections.unmodifiableMap(header));
+      else if (file)
+        part = new PartImpl(name, fileName, header, context.getTempDirectory(), context.getMultipartMemoryThreshold());
     }
-    
-    flushBuffer(bytesRead, part);
-    return false;
-  }
-  
-  private void flushBuffer(int bytesRead, final PartImpl part) throws HTTPRequestException {
-    while (bytesRead > 0) {
-      int write = ((BUFFER_SIZE - (readPtr & MASK)) < bytesRead) ? (BUFFER_SIZE - (readPtr & MASK)) : bytesRead;
+
+    @Override
+    public void partData(final ByteBuffer data) throws HTTPRequestException {
+      if (!file)
+        field.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+      
+      if (listener != null) {
+        listener.partData(request, data);
+        return;
+      }
+      
+      if (part == null)
+        return;
+      
       try {
-        part.os.write(cbuffer, readPtr & MASK, write);
+        part.append(data);
       }
       catch (IOException e) {
-        throw new InternalServerErrorException("Problems to write to the temporary file");
+        throw new InternalServerErrorException("Problems to write to the temporary file", e);
       }
-      bytesRead -= write;
-      discardBuffer(write);
     }
-  }
-  
-  private void discardBuffer(int size) {
-    readPtr    = (readPtr + size);
-    available += size;
-  }
-  
-  private Hashtable<String, String> parseDisposition(String disposition) {
-    final Hashtable<String, String> ret = new Hashtable<>();
-    final StringTokenizer st = new StringTokenizer(disposition, ";");
-    while (st.hasMoreTokens()) {
-      String token = st.nextToken().trim();
-      int idx = token.indexOf('=');
-      if (idx != -1)
-        ret.put(token.substring(0, idx).trim().toLowerCase(), token.substring(idx + 1).trim());
+
+    @Override
+    public void partEnd() throws HTTPRequestException {
+      if (!file)
+        requestParams.add(name, new String(field.toByteArray(), UTF8));
+      
+      if (listener != null) {
+        listener.partEnd(request);
+        return;
+      }
+      
+      if (part == null)
+        return;
+      
+      try {
+        part.finish();
+        parts.put(part.name, part);
+        part = null;
+      }
+      catch (IOException e) {
+        throw new InternalServerErrorException("Problem to close the temporary file", e);
+      }
     }
-    
-    return ret;
   }
 
   /**
    * This class represents a part or form item that was received within a multipart/form-data POST request.
+   * The content is kept in pooled buffers until it reaches the memory threshold of the context, and then it is
+   * moved to a temporary file.
    * 
    * @author Leonardo Bispo de Oliveira.
    *
    */
-  private class PartImpl implements Part {
+  private static final class PartImpl implements Part {
     private final Hashtable<String, String> header;
-    private final File                      tempFile;
     private final String                    name;
     private final String                    fileName;
+    private final String                    tempDirectory;
+    private final int                       threshold;
+    private final List<ByteBuffer>          chunks = new ArrayList<>();
     
-    private FileInputStream                 is = null;
-    private final FileOutputStream          os;
+    private File            tempFile = null;
+    private FileChannel     channel  = null;
+    private FileInputStream is       = null;
+    private long            size     = 0;
     
     private boolean moved = false;
     
@@ -353,18 +243,18 @@ public class MultipartFormData implements HTTPMediaType {
      * 
      * @param name Name of this part.
      * @param fileName Name of the file stored in the multipart header.
-     * @param tempFile Name of the temporary file.
      * @param header The part header.
+     * @param tempDirectory Directory used when the part is bigger than the threshold.
+     * @param threshold Max number of bytes kept in memory.
      * 
      */
-    public PartImpl(final String name, final String fileName, final Hashtable<String, String> header, final String tempDirectory) throws IOException {
-      this.name     = name;
-      this.fileName = fileName;
-      this.tempFile = File.createTempFile(fileName, ".tmp", new File(tempDirectory)); 
-      this.os       = new FileOutputStream(tempFile);
-      this.header   = header;
-      
-      tempFile.deleteOnExit();
+    public PartImpl(final String name, final String fileName, final Hashtable<String, String> header,
+      final String tempDirectory, final int threshold) {
+      this.name          = name;
+      this.fileName      = fileName;
+      this.header        = header;
+      this.tempDirectory = tempDirectory;
+      this.threshold     = threshold;
     }
     
     /**
@@ -407,7 +297,7 @@ public class MultipartFormData implements HTTPMediaType {
      */
     @Override
     public long getSize() {
-      return tempFile.length();
+      return size;
     }
     
     /**
@@ -416,7 +306,9 @@ public class MultipartFormData implements HTTPMediaType {
      */
     @Override
     public void delete() {
-      tempFile.delete();
+      releaseChunks();
+      if (tempFile != null)
+        tempFile.delete();
     }
     
     /**
@@ -448,13 +340,16 @@ public class MultipartFormData implements HTTPMediaType {
     }
     
     /**
-     * Gets the content of this part as an InputStream.
+     * Gets the content of this part as an InputStream. A part kept in memory is read straight from its buffers.
      * 
      * @return The content of this part as an InputStream.
      * 
      */
     @Override
     public InputStream getInputStream() throws IOException {
+      if (tempFile == null)
+        return new BuffersInputStream(duplicateChunks());
+      
       if (is == null)
         is = new FileInputStream(tempFile);
       
@@ -466,6 +361,8 @@ public class MultipartFormData implements HTTPMediaType {
      * 
      * This method is not guaranteed to succeed if called more than once for the same part. This allows a particular implementation to use,
      * for example, file renaming, where possible, rather than copying all of the underlying data, thus gaining a significant performance benefit.
+     * The temporary file is renamed when possible, otherwise it is transfered by the file system. A part kept in memory is written with
+     * a single gathering write.
      * 
      * @param fileName The name of the file to which the stream will be written.
      * 
@@ -473,11 +370,109 @@ public class MultipartFormData implements HTTPMediaType {
      */
     @Override
     public void write(String fileName) throws IOException {
-      moved = true;
-      tempFile.renameTo(new File(fileName));
+      final File destination = new File(fileName);
+      if (tempFile == null) {
+        try (FileChannel out = new FileOutputStream(destination).getChannel()) {
+          final ByteBuffer buffers[] = duplicateChunks();
+          long remaining = size;
+          while (remaining > 0)
+            remaining -= out.write(buffers);
+        }
+        
+        return;
+      }
+      
+      if (tempFile.renameTo(destination)) {
+        moved = true;
+        return;
+      }
+      
+      try (FileChannel in = new FileInputStream(tempFile).getChannel();
+           FileChannel out = new FileOutputStream(destination).getChannel()) {
+        long position = 0;
+        while (position < size)
+          position += in.transferTo(position, size - position, out);
+      }
+    }
+    
+    private void append(final ByteBuffer data) throws IOException {
+      size += data.remaining();
+      if (channel == null && size > threshold)
+        spill();
+      
+      if (channel != null) {
+        while (data.hasRemaining())
+          channel.write(data);
+        
+        return;
+      }
+      
+      while (data.hasRemaining()) {
+        ByteBuffer chunk = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+        if (chunk == null || !chunk.hasRemaining()) {
+          chunk = POOL.acquire();
+          chunks.add(chunk);
+        }
+        
+        final ByteBuffer slice = data.duplicate();
+        slice.limit(slice.position() + Math.min(chunk.remaining(), data.remaining()));
+        chunk.put(slice);
+        data.position(slice.position());
+      }
+    }
+    
+    private void spill() throws IOException {
+      tempFile = File.createTempFile("multipart", ".tmp", new File(tempDirectory));
+      tempFile.deleteOnExit();
+      channel  = new FileOutputStream(tempFile).getChannel();
+      
+      final ByteBuffer buffers[] = chunks.toArray(new ByteBuffer[chunks.size()]);
+      long remaining = 0;
+      for (ByteBuffer buffer : buffers) {
+        buffer.flip();
+        remaining += buffer.remaining();
+      }
+      
+      while (remaining > 0)
+        remaining -= channel.write(buffers);
+      
+      releaseChunks();
+    }
+    
+    private void finish() throws IOException {
+      if (channel != null)
+        channel.close();
+      else {
+        for (ByteBuffer chunk : chunks)
+          chunk.flip();
+      }
+    }
+    
+    private ByteBuffer[] duplicateChunks() {
+      final ByteBuffer buffers[] = new ByteBuffer[chunks.size()];
+      for (int i = 0; i < buffers.length; ++i)
+        buffers[i] = chunks.get(i).duplicate();
+      
+      return buffers;
+    }
+    
+    private void releaseChunks() {
+      for (ByteBuffer chunk : chunks)
+        POOL.release(chunk);
+      
+      chunks.clear();
     }
     
     private void deleteTempFile() {
+      releaseChunks();
+      
+      if (channel != null) {
+        try {
+          channel.close();
+        }
+        catch (IOException e) {}
+      }
+      
       if (is != null) {
         try {
           is.close();
@@ -485,8 +480,56 @@ public class MultipartFormData implements HTTPMediaType {
         catch (IOException e) {}
       }
       
-      if (!moved)
+      if (!moved && tempFile != null)
         tempFile.delete();
     }
   }
+  
+  /**
+   * InputStream that reads a set of buffers in sequence.
+   * 
+   * @author Leonardo Bispo de Oliveira.
+   *
+   */
+  private static final class BuffersInputStream extends InputStream {
+    private final ByteBuffer buffers[];
+    private int              current = 0;
+    
+    BuffersInputStream(final ByteBuffer buffers[]) {
+      this.buffers = buffers;
+    }
+
+    @Override
+    public int read() {
+      while (current < buffers.length) {
+        if (buffers[current].hasRemaining())
+          return buffers[current].get() & 0xFF;
+        
+        ++current;
+      }
+      
+      return -1;
+    }
+    
+    @Override
+    public int read(final byte dest[], final int offset, final int length) {
+      if (length == 0)
+        return 0;
+      
+      while (current < buffers.length && !buffers[current].hasRemaining())
+        ++current;
+      
+      if (current == buffers.length)
+        return -1;
+      
+      final int size = Math.min(length, buffers[current].remaining());
+      buffers[current].get(dest, offset, size);
+      return size;
+    }
+    
+    @Override
+    public int available() {
+      return current < buffers.length ? buffers[current].remaining() : 0;
+    }
+  }
 }
@@ -0,0 +1,315 @@
+/* Copyright (C) 2013 Leonardo Bispo de Oliveira
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package br.com.is.http.server.mediatype;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Hashtable;
+
+import br.com.is.http.server.exception.BadRequestException;
+import br.com.is.http.server.exception.HTTPRequestException;
+import br.com.is.http.server.exception.InternalServerErrorException;
+import br.com.is.http.server.exception.RequestEntityTooLargeException;
+
+/**
+ * Streaming multipart/form-data parser. The body is read in bulk into a ByteBuffer and the part delimiter is found
+ * with a Boyer-Moore-Horspool search, using a skip table computed once per request. The part contents are handed to
+ * the handler as slices of the buffer, so no byte is copied until the handler writes it to its destination.
+ * 
+ * @author Leonardo Bispo de Oliveira.
+ *
+ */
+final class MultipartParser {
+  private static final Charset ISO_8859_1      = Charset.forName("ISO-8859-1");
+  private static final int     MIN_BUFFER_SIZE = 256;
+  
+  /**
+   * Receives the parts found by the parser.
+   * 
+   * @author Leonardo Bispo de Oliveira.
+   *
+   */
+  interface Handler {
+    /**
+     * Called when a new part begins.
+     * 
+     * @param header Part header, with the field names in lower case.
+     * 
+     */
+    void partBegin(final Hashtable<String, String> header) throws HTTPRequestException;
+    
+    /**
+     * Called for each chunk of the part content. The buffer is only valid during this call.
+     * 
+     * @param data Chunk of the part content.
+     * 
+     */
+    void partData(final ByteBuffer data) throws HTTPRequestException;
+    
+    /**
+     * Called when the current part ends.
+     * 
+     */
+    void partEnd() throws HTTPRequestException;
+  }
+  
+  private final InputStream is;
+  private final ByteBuffer  buffer;
+  private final byte        delimiter[];
+  private final int         skip[] = new int[256];
+  private boolean           eof    = false;
+  
+  /**
+   * Constructor.
+   * 
+   * @param boundary Boundary defined in the content type parameter.
+   * @param is Request body.
+   * @param bufferSize Size of the read buffer. It also limits the size of the part headers.
+   * 
+   */
+  MultipartParser(final String boundary, final InputStream is, final int bufferSize) {
+    this.is        = is;
+    this.delimiter = ("\r\n--" + boundary).getBytes(ISO_8859_1);
+    this.buffer    = ByteBuffer.allocate(Math.max(bufferSize, Math.max(MIN_BUFFER_SIZE, delimiter.length * 2)));
+    
+    final int last = delimiter.length - 1;
+    for (int i = 0; i < skip.length; ++i)
+      skip[i] = delimiter.length;
+    
+    for (int i = 0; i < last; ++i)
+      skip[delimiter[i] & 0xFF] = last - i;
+  }
+  
+  /**
+   * Parse the whole body, calling the handler for each part found.
+   * 
+   * @param handler Part handler.
+   * 
+   * @throws HTTPRequestException If the body is malformed or the handler fails.
+   * 
+   */
+  void parse(final Handler handler) throws HTTPRequestException {
+    // The first delimiter is not preceded by a CRLF, so add one to find all of them with the same search.
+    buffer.put((byte) '\r').put((byte) '\n').flip();
+    
+    if (!skipPreamble())
+      throw new BadRequestException("Problems to parse the Multipart-Form");
+    
+    for (;;) {
+      if (!require(2))
+        throw new BadRequestException("Malformed Request Body");
+      
+      final int position = buffer.position();
+      if (buffer.get(position) == '-' && buffer.get(position + 1) == '-')
+        return;
+      
+      skipLineEnd();
+      handler.partBegin(parseHeader());
+      
+      while (!body(handler)) {
+        if (!fill())
+          throw new BadRequestException("Malformed Request Body");
+      }
+      
+      handler.partEnd();
+    }
+  }
+  
+  /**
+   * Find the first delimiter in the array range passed as parameter.
+   * 
+   * @param data Array to be searched.
+   * @param from First index to be searched.
+   * @param to Index after the last one to be searched.
+   * 
+   * @return The delimiter index or -1 if it was not found.
+   * 
+   */
+  int indexOf(final byte data[], final int from, final int to) {
+    final int last = delimiter.length - 1;
+    final byte end = delimiter[last];
+    
+    int i = from;
+    while (i + last < to) {
+      final byte b = data[i + last];
+      if (b == end) {
+        int j = last - 1;
+        while (j >= 0 && data[i + j] == delimiter[j])
+          --j;
+        
+        if (j < 0)
+          return i;
+      }
+      
+      i += skip[b & 0xFF];
+    }
+    
+    return -1;
+  }
+  
+  private boolean skipPreamble() throws HTTPRequestException {
+    for (;;) {
+      final int start = buffer.arrayOffset() + buffer.position();
+      final int idx   = indexOf(buffer.array(), start, buffer.arrayOffset() + buffer.limit());
+      if (idx != -1) {
+        buffer.position(idx - buffer.arrayOffset() + delimiter.length);
+        return true;
+      }
+      
+      buffer.position(Math.max(buffer.position(), buffer.limit() - (delimiter.length - 1)));
+      if (!fill())
+        return false;
+    }
+  }
+  
+  private boolean body(final Handler handler) throws HTTPRequestException {
+    final int offset = buffer.arrayOffset();
+    final int start  = buffer.position();
+    final int idx    = indexOf(buffer.array(), offset + start, offset + buffer.limit());
+    
+    final int end = idx != -1 ? idx - offset : Math.max(start, buffer.limit() - (delimiter.length - 1));
+    if (end > start) {
+      final ByteBuffer data = buffer.duplicate();
+      data.position(start).limit(end);
+      handler.partData(data);
+    }
+    
+    if (idx == -1) {
+      buffer.position(end);
+      return false;
+    }
+    
+    buffer.position(end + delimiter.length);
+    return true;
+  }
+  
+  private void skipLineEnd() throws HTTPRequestException {
+    for (;;) {
+      if (!require(2))
+        throw new BadRequestException("Malformed Request Body");
+      
+      final byte b = buffer.get(buffer.position());
+      if (b == ' ' || b == '\t')
+        buffer.get();
+      else if (b == '\r' && buffer.get(buffer.position() + 1) == '\n') {
+        buffer.position(buffer.position() + 2);
+        return;
+      }
+      else
+        throw new BadRequestException("Malformed Request Body");
+    }
+  }
+  
+  private Hashtable<String, String> parseHeader() throws HTTPRequestException {
+    final Hashtable<String, String> header = new Hashtable<>();
+    
+    String field = null;
+    for (;;) {
+      final String line = readLine();
+      if (line.isEmpty())
+        break;
+      
+      if (line.charAt(0) == ' ' || line.charAt(0) == '\t') {
+        if (field != null)
+          field += line;
+      }
+      else {
+        addHeaderField(header, field);
+        field = line;
+      }
+    }
+    
+    addHeaderField(header, field);
+    return header;
+  }
+  
+  private String readLine() throws HTTPRequestException {
+    int from = buffer.position();
+    for (;;) {
+      final byte data[] = buffer.array();
+      final int offset  = buffer.arrayOffset();
+      for (int i = offset + from; i + 1 < offset + buffer.limit(); ++i) {
+        if (data[i] == '\r' && data[i + 1] == '\n') {
+          final String line = new String(data, offset + buffer.position(), i - offset - buffer.position(), ISO_8859_1);
+          buffer.position(i - offset + 2);
+          return line;
+        }
+      }
+      
+      from = Math.max(0, buffer.limit() - buffer.position() - 1);
+      if (!fill())
+        throw new BadRequestException("Malformed Request Body");
+    }
+  }
+  
+  private static void addHeaderField(final Hashtable<String, String> header, final String field) {
+    if (field == null)
+      return;
+    
+    final int idx = field.indexOf(':');
+    if (idx != -1)
+      header.put(field.substring(0, idx).trim().toLowerCase(), field.substring(idx + 1).trim());
+  }
+  
+  private boolean require(final int size) throws HTTPRequestException {
+    while (buffer.remaining() < size) {
+      if (!fill())
+        return false;
+    }
+    
+    return true;
+  }
+  
+  /**
+   * Read more data from the request body, keeping the unread bytes at the start of the buffer.
+   * 
+   * @return False if the body ended.
+   * 
+   */
+  private boolean fill() throws HTTPRequestException {
+    if (eof)
+      return false;
+    
+    buffer.compact();
+    try {
+      if (!buffer.hasRemaining())
+        throw new RequestEntityTooLargeException("Cannot keep more than " + buffer.capacity() + " in buffer");
+      
+      int read;
+      do {
+        read = is.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+      }
+      while (read == 0);
+      
+      if (read == -1) {
+        eof = true;
+        return false;
+      }
+      
+      buffer.position(buffer.position() + read);
+      return true;
+    }
+    catch (IOException e) {
+      throw new InternalServerErrorException("Problems to read data from the HTTP Channel", e);
+    }
+    finally {
+      buffer.flip();
+    }
+  }
+}
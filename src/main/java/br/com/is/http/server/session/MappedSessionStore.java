@@ -0,0 +1,652 @@
+/* Copyright (C) 2013 Leonardo Bispo de Oliveira
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package br.com.is.http.server.session;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import br.com.is.events.Events;
+import br.com.is.http.server.HTTPSession;
+
+/**
+ * Persistent session store. The sessions are appended to a log of memory mapped segment files, so they survive a
+ * server restart, and only a small index entry for each session is kept in the heap. The attributes are read back
+ * from the mapped file every time the session is looked up, and the last access time is updated in place.
+ * 
+ * Each record carries a CRC32, so a record that was partially written when the process died is discarded when the
+ * segments are scanned during the startup. The segments with more than half of dead records are compacted in
+ * background, moving the live records to the active segment and deleting the old file.
+ * 
+ * The session attributes must be Serializable to be kept by this store. The store must be closed when it is not
+ * used anymore, to flush the mapped segments.
+ * 
+ * @author Leonardo Bispo de Oliveira.
+ *
+ */
+public final class MappedSessionStore implements SessionStore, Closeable {
+  private static final Logger LOGGER = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+  
+  private static final int     DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+  private static final long    DEFAULT_MAX_INACTIVE = 600000;
+  private static final int     SWEEP_BATCH          = 1024;
+  private static final String  SEGMENT_PREFIX       = "sessions-";
+  private static final String  SEGMENT_SUFFIX       = ".seg";
+  private static final Charset UTF8                 = Charset.forName("UTF-8");
+  
+  private static final byte PUT    = 1;
+  private static final byte REMOVE = 2;
+  
+  // Record layout: int length | long lastAccessTime | int crc | byte type | long creationTime | short idLength | id |
+  // attributes. The CRC covers everything after it, so the last access time can be updated in place.
+  private static final int LAST_ACCESS_OFFSET   = 4;
+  private static final int CRC_OFFSET           = 12;
+  private static final int TYPE_OFFSET          = 16;
+  private static final int CREATION_TIME_OFFSET = 17;
+  private static final int ID_LENGTH_OFFSET     = 25;
+  private static final int HEADER_SIZE          = 27;
+  
+  private final ConcurrentHashMap<String, Location>      index    = new ConcurrentHashMap<>();
+  private final ConcurrentSkipListMap<Integer, Segment>  segments = new ConcurrentSkipListMap<>();
+  private final File                                     directory;
+  private final int                                      segmentSize;
+  private final long                                     maxInactiveInterval;
+  private final ExecutorService                          compactor;
+  
+  private volatile Segment active      = null;
+  private int              nextSegment = 0;
+  private boolean          closed      = false;
+  
+  private Iterator<Map.Entry<String, Location>> sweeper = null;
+  
+  /**
+   * Constructor.
+   * 
+   * @param directory Directory where the segment files are kept.
+   * 
+   * @throws IOException If the segment files cannot be read or created.
+   * 
+   */
+  public MappedSessionStore(final File directory) throws IOException {
+    this(directory, DEFAULT_MAX_INACTIVE, DEFAULT_SEGMENT_SIZE);
+  }
+  
+  /**
+   * Constructor.
+   * 
+   * @param directory Directory where the segment files are kept.
+   * @param maxInactiveInterval Time in milliseconds that a session can stay without being accessed.
+   * @param segmentSize Size in bytes of each segment file.
+   * 
+   * @throws IOException If the segment files cannot be read or created.
+   * 
+   */
+  public MappedSessionStore(final File directory, final long maxInactiveInterval, final int segmentSize) throws IOException {
+    if (maxInactiveInterval <= 0)
+      throw new IllegalArgumentException("Max inactive interval must be bigger than zero");
+    
+    if (segmentSize < HEADER_SIZE)
+      throw new IllegalArgumentException("Segment size must be bigger than " + HEADER_SIZE);
+    
+    if (!directory.isDirectory() && !directory.mkdirs())
+      throw new IOException("Cannot create the session directory: " + directory);
+    
+    this.directory           = directory;
+    this.segmentSize         = segmentSize;
+    this.maxInactiveInterval = maxInactiveInterval;
+    this.compactor           = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(final Runnable r) {
+        final Thread thread = new Thread(r, "session-compactor");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    
+    recover();
+  }
+
+  /**
+   * Returns the session linked to the id passed as parameter, refreshing its last access time.
+   * 
+   * @param id HTTP Session unique id.
+   * 
+   * @return The HTTP Session or null if there is no valid session for this id.
+   * 
+   */
+  @Override
+  public HTTPSession get(final String id) {
+    Location location = index.get(id);
+    if (location == null)
+      return null;
+    
+    final long now = System.currentTimeMillis();
+    if (now - location.lastAccessTime > maxInactiveInterval) {
+      if (index.remove(id, location)) {
+        release(location);
+        Events.get().sessionExpired(id);
+      }
+      
+      return null;
+    }
+    
+    // The compactor copies the records under the store lock, so the access time is written to the current copy.
+    synchronized (this) {
+      location = index.get(id);
+      if (location == null || closed)
+        return null;
+
+      location.lastAccessTime = now;
+      location.segment.buffer.putLong(location.offset + LAST_ACCESS_OFFSET, now);
+    }
+    
+    final Map<String, Object> attributes = readAttributes(location);
+    if (attributes == null)
+      return null;
+
+    return new HTTPSession(id, location.creationTime, now, attributes, this);
+  }
+
+  /**
+   * Add a new session to this store.
+   * 
+   * @param session Session to be added.
+   * 
+   */
+  @Override
+  public void add(final HTTPSession session) {
+    final byte record[] = encode(PUT, session.getId(), session.getCreationTime(), session.getLastAccessTime(),
+      writeAttributes(session));
+    
+    synchronized (this) {
+      final Location previous = index.put(session.getId(), append(record, session.getCreationTime(),
+        session.getLastAccessTime()));
+      if (previous != null)
+        release(previous);
+    }
+  }
+
+  /**
+   * Save the session attributes. The session is ignored if it was already removed from this store.
+   * 
+   * @param session Session to be saved.
+   * 
+   */
+  @Override
+  public void save(final HTTPSession session) {
+    final byte record[] = encode(PUT, session.getId(), session.getCreationTime(), session.getLastAccessTime(),
+      writeAttributes(session));
+    
+    synchronized (this) {
+      final Location previous = index.get(session.getId());
+      if (previous == null)
+        return;
+      
+      index.put(session.getId(), append(record, session.getCreationTime(), session.getLastAccessTime()));
+      release(previous);
+    }
+  }
+
+  /**
+   * Remove the session linked to the id passed as parameter. A remove record is appended, so the session is not
+   * restored when the store is opened again.
+   * 
+   * @param id HTTP Session unique id.
+   * 
+   */
+  @Override
+  public void remove(final String id) {
+    final byte record[] = encode(REMOVE, id, 0, 0, new byte[0]);
+    
+    synchronized (this) {
+      final Location previous = index.remove(id);
+      if (previous == null)
+        return;
+      
+      release(previous);
+      release(append(record, 0, 0));
+    }
+  }
+
+  /**
+   * Sweep the next batch of sessions, removing the expired ones. The expired sessions do not need a remove record,
+   * because they are also discarded by the last access time when the store is opened again.
+   * 
+   * @param now Current time in milliseconds.
+   * 
+   */
+  @Override
+  public void expire(final long now) {
+    if (sweeper == null || !sweeper.hasNext())
+      sweeper = index.entrySet().iterator();
+    
+    for (int i = 0; i < SWEEP_BATCH && sweeper.hasNext(); ++i) {
+      final Map.Entry<String, Location> entry = sweeper.next();
+      final Location location = entry.getValue();
+      if (now - location.lastAccessTime > maxInactiveInterval && index.remove(entry.getKey(), location)) {
+        release(location);
+        Events.get().sessionExpired(entry.getKey());
+      }
+    }
+  }
+
+  /**
+   * Returns the number of live sessions kept by this store.
+   * 
+   * @return Number of live sessions.
+   * 
+   */
+  @Override
+  public int size() {
+    return index.size();
+  }
+  
+  /**
+   * Stop the background compaction and flush all the segments to the disk.
+   * 
+   */
+  @Override
+  public void close() throws IOException {
+    compactor.shutdown();
+    try {
+      compactor.awaitTermination(1, TimeUnit.MINUTES);
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    
+    synchronized (this) {
+      closed = true;
+      for (Segment segment : segments.values())
+        segment.buffer.force();
+    }
+  }
+  
+  /**
+   * Returns the number of segment files kept by this store.
+   * 
+   * @return Number of segment files.
+   * 
+   */
+  public int getSegmentCount() {
+    return segments.size();
+  }
+  
+  /**
+   * Compact all the segments but the active one, waiting for the compaction to finish. It is used by the unit tests.
+   * 
+   */
+  void compactNow() {
+    for (Segment segment : segments.values()) {
+      if (segment != active && segment.compacting.compareAndSet(false, true))
+        compact(segment);
+    }
+  }
+  
+  private void recover() throws IOException {
+    final File files[] = directory.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(final File dir, final String name) {
+        return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+      }
+    });
+    
+    final int ids[] = new int[files.length];
+    for (int i = 0; i < files.length; ++i) {
+      final String name = files[i].getName();
+      ids[i] = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+    Arrays.sort(ids);
+    
+    final long now = System.currentTimeMillis();
+    for (int id : ids) {
+      final File file = segmentFile(id);
+      final Segment segment = new Segment(id, file, map(file, (int) file.length()));
+      segments.put(id, segment);
+      scan(segment, now);
+      nextSegment = id + 1;
+    }
+    
+    if (!segments.isEmpty())
+      active = segments.lastEntry().getValue();
+    
+    for (Segment segment : segments.values())
+      compactIfNeeded(segment);
+    
+    if (LOGGER.isLoggable(Level.INFO))
+      LOGGER.info("Restored " + index.size() + " sessions from " + directory);
+  }
+  
+  private void scan(final Segment segment, final long now) {
+    final ByteBuffer buffer = segment.buffer;
+    final int capacity      = buffer.capacity();
+    
+    int position = 0;
+    while (position + HEADER_SIZE <= capacity) {
+      final int length = buffer.getInt(position);
+      if (length < HEADER_SIZE || position + length > capacity)
+        break;
+      
+      final byte data[] = new byte[length - TYPE_OFFSET];
+      final ByteBuffer view = buffer.duplicate();
+      view.position(position + TYPE_OFFSET);
+      view.get(data);
+      
+      final CRC32 crc = new CRC32();
+      crc.update(data, 0, data.length);
+      if ((int) crc.getValue() != buffer.getInt(position + CRC_OFFSET)) {
+        if (LOGGER.isLoggable(Level.WARNING))
+          LOGGER.warning("Discarding the corrupted tail of the session segment " + segment.file);
+        break;
+      }
+      
+      final String id             = readId(buffer, position);
+      final long   lastAccessTime = buffer.getLong(position + LAST_ACCESS_OFFSET);
+      final Location previous;
+      if (buffer.get(position + TYPE_OFFSET) == PUT && now - lastAccessTime <= maxInactiveInterval) {
+        previous = index.put(id, new Location(segment, position, length,
+          buffer.getLong(position + CREATION_TIME_OFFSET), lastAccessTime));
+      }
+      else {
+        previous = index.remove(id);
+        segment.garbage.addAndGet(length);
+      }
+      
+      if (previous != null)
+        previous.segment.garbage.addAndGet(previous.length);
+      
+      position += length;
+    }
+    
+    segment.position = position;
+  }
+  
+  private Location append(final byte record[], final long creationTime, final long lastAccessTime) {
+    if (closed)
+      throw new IllegalStateException("Session store is closed");
+    
+    if (record.length > segmentSize)
+      throw new IllegalArgumentException("Session is bigger than the segment size: " + record.length);
+    
+    Segment segment = active;
+    if (segment == null || segment.position + record.length > segment.buffer.capacity()) {
+      final int id    = nextSegment++;
+      final File file = segmentFile(id);
+      try {
+        segment = new Segment(id, file, map(file, segmentSize));
+      }
+      catch (IOException e) {
+        if (LOGGER.isLoggable(Level.SEVERE))
+          LOGGER.log(Level.SEVERE, "Problems to create the session segment " + file, e);
+        
+        throw new RuntimeException("Problems to create the session segment " + file, e);
+      }
+      
+      final Segment previous = active;
+      segments.put(id, segment);
+      active = segment;
+      if (previous != null)
+        compactIfNeeded(previous);
+    }
+    
+    final int position = segment.position;
+    final ByteBuffer view = segment.buffer.duplicate();
+    view.position(position + LAST_ACCESS_OFFSET);
+    view.put(record, LAST_ACCESS_OFFSET, record.length - LAST_ACCESS_OFFSET);
+    segment.buffer.putInt(position, record.length);
+    segment.position = position + record.length;
+    
+    return new Location(segment, position, record.length, creationTime, lastAccessTime);
+  }
+  
+  private void release(final Location location) {
+    location.segment.garbage.addAndGet(location.length);
+    compactIfNeeded(location.segment);
+  }
+  
+  private void compactIfNeeded(final Segment segment) {
+    if (segment == active || segment.garbage.get() * 2L < segment.position)
+      return;
+    
+    if (!segment.compacting.compareAndSet(false, true))
+      return;
+    
+    try {
+      compactor.execute(new Runnable() {
+        @Override
+        public void run() {
+          compact(segment);
+        }
+      });
+    }
+    catch (RejectedExecutionException e) {
+      segment.compacting.set(false);
+    }
+  }
+  
+  private void compact(final Segment segment) {
+    final ByteBuffer buffer = segment.buffer;
+    final int end           = segment.position;
+    
+    int moved    = 0;
+    int position = 0;
+    while (position < end) {
+      final int length = buffer.getInt(position);
+      final String id  = readId(buffer, position);
+      
+      synchronized (this) {
+        if (closed)
+          return;
+        
+        final Location location = index.get(id);
+        if (buffer.get(position + TYPE_OFFSET) == PUT) {
+          if (location != null && location.segment == segment && location.offset == position) {
+            final byte record[] = new byte[length];
+            final ByteBuffer view = buffer.duplicate();
+            view.position(position);
+            view.get(record);
+            ByteBuffer.wrap(record).putLong(LAST_ACCESS_OFFSET, location.lastAccessTime);
+            
+            index.put(id, append(record, location.creationTime, location.lastAccessTime));
+            ++moved;
+          }
+        }
+        else if (location == null && segments.firstKey() < segment.id) {
+          // An older segment can still have a record for this session, so the remove record must be kept.
+          final byte record[] = new byte[length];
+          final ByteBuffer view = buffer.duplicate();
+          view.position(position);
+          view.get(record);
+          release(append(record, 0, 0));
+        }
+      }
+      
+      position += length;
+    }
+    
+    synchronized (this) {
+      segments.remove(segment.id);
+    }
+    
+    if (!segment.file.delete() && LOGGER.isLoggable(Level.WARNING))
+      LOGGER.warning("Problems to delete the session segment " + segment.file);
+    
+    if (LOGGER.isLoggable(Level.FINE))
+      LOGGER.fine("Compacted the session segment " + segment.file + ", " + moved + " sessions moved");
+  }
+  
+  private File segmentFile(final int id) {
+    return new File(directory, SEGMENT_PREFIX + String.format("%010d", id) + SEGMENT_SUFFIX);
+  }
+  
+  private static MappedByteBuffer map(final File file, final int size) throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+  }
+  
+  private static String readId(final ByteBuffer buffer, final int position) {
+    final byte id[] = new byte[buffer.getShort(position + ID_LENGTH_OFFSET)];
+    final ByteBuffer view = buffer.duplicate();
+    view.position(position + HEADER_SIZE);
+    view.get(id);
+    
+    return new String(id, UTF8);
+  }
+  
+  private static byte[] encode(final byte type, final String id, final long creationTime, final long lastAccessTime,
+    final byte attributes[]) {
+    final byte idBytes[] = id.getBytes(UTF8);
+    final byte record[]  = new byte[HEADER_SIZE + idBytes.length + attributes.length];
+    
+    final ByteBuffer buffer = ByteBuffer.wrap(record);
+    buffer.putInt(record.length);
+    buffer.putLong(lastAccessTime);
+    buffer.putInt(0);
+    buffer.put(type);
+    buffer.putLong(creationTime);
+    buffer.putShort((short) idBytes.length);
+    buffer.put(idBytes);
+    buffer.put(attributes);
+    
+    final CRC32 crc = new CRC32();
+    crc.update(record, TYPE_OFFSET, record.length - TYPE_OFFSET);
+    buffer.putInt(CRC_OFFSET, (int) crc.getValue());
+    
+    return record;
+  }
+  
+  private static byte[] writeAttributes(final HTTPSession session) {
+    final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    final ByteArrayOutputStream value = new ByteArrayOutputStream();
+    try (DataOutputStream dos = new DataOutputStream(bos)) {
+      final Enumeration<String> names = session.getAttributeNames();
+      while (names.hasMoreElements()) {
+        final String name = names.nextElement();
+        value.reset();
+        try (ObjectOutputStream oos = new ObjectOutputStream(value)) {
+          oos.writeObject(session.getAttribute(name));
+        }
+        catch (IOException e) {
+          if (LOGGER.isLoggable(Level.WARNING))
+            LOGGER.log(Level.WARNING, "Session attribute " + name + " is not serializable and will not be saved", e);
+          
+          continue;
+        }
+        
+        dos.writeUTF(name);
+        dos.writeInt(value.size());
+        value.writeTo(dos);
+      }
+    }
+    catch (IOException e) {
+      throw new RuntimeException("Problems to write the session attributes", e);
+    }
+    
+    return bos.toByteArray();
+  }
+  
+  private Map<String, Object> readAttributes(final Location location) {
+    final ByteBuffer buffer = location.segment.buffer.duplicate();
+    final int start = location.offset + HEADER_SIZE + buffer.getShort(location.offset + ID_LENGTH_OFFSET);
+    final byte data[] = new byte[location.offset + location.length - start];
+    buffer.position(start);
+    buffer.get(data);
+    
+    final Map<String, Object> attributes = new HashMap<>();
+    try (DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data))) {
+      while (dis.available() > 0) {
+        final String name = dis.readUTF();
+        final byte value[] = new byte[dis.readInt()];
+        dis.readFully(value);
+        
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(value))) {
+          attributes.put(name, ois.readObject());
+        }
+      }
+    }
+    catch (IOException | ClassNotFoundException e) {
+      if (LOGGER.isLoggable(Level.WARNING))
+        LOGGER.log(Level.WARNING, "Problems to read the session attributes", e);
+      
+      return null;
+    }
+    
+    return attributes;
+  }
+  
+  private static final class Segment {
+    private final int              id;
+    private final File             file;
+    private final MappedByteBuffer buffer;
+    private final AtomicInteger    garbage    = new AtomicInteger();
+    private final AtomicBoolean    compacting = new AtomicBoolean();
+    private volatile int           position   = 0;
+    
+    private Segment(final int id, final File file, final MappedByteBuffer buffer) {
+      this.id     = id;
+      this.file   = file;
+      this.buffer = buffer;
+    }
+  }
+  
+  private static final class Location {
+    private final Segment segment;
+    private final int     offset;
+    private final int     length;
+    private final long    creationTime;
+    private volatile long lastAccessTime;
+    
+    private Location(final Segment segment, final int offset, final int length, final long creationTime,
+      final long lastAccessTime) {
+      this.segment        = segment;
+      this.offset         = offset;
+      this.length         = length;
+      this.creationTime   = creationTime;
+      this.lastAccessTime = lastAccessTime;
+    }
+  }
+}
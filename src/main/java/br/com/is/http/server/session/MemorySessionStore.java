@@ -0,0 +1,265 @@
+/* Copyright (C) 2013 Leonardo Bispo de Oliveira
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package br.com.is.http.server.session;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import br.com.is.events.Events;
+import br.com.is.http.server.HTTPSession;
+
+/**
+ * Default in memory session store. The sessions are spread between a set of stripes, each one guarded by its own lock
+ * and kept in access order. A session is expired lazily when it is looked up, and the expire method sweeps one stripe
+ * per call, from the least recently accessed session, stopping at the first one that is still alive.
+ * When a stripe is full, the least recently accessed session is evicted.
+ * 
+ * @author Leonardo Bispo de Oliveira.
+ *
+ */
+public final class MemorySessionStore implements SessionStore {
+  private static final int  DEFAULT_CAPACITY     = 100000;
+  private static final int  DEFAULT_STRIPES      = 16;
+  private static final long DEFAULT_MAX_INACTIVE = 600000;
+  
+  private final Stripe     stripes[];
+  private final int        mask;
+  private final long       maxInactiveInterval;
+  private final AtomicLong expired = new AtomicLong();
+  private final AtomicLong evicted = new AtomicLong();
+  
+  private int sweepIndex = 0;
+  
+  /**
+   * Constructor.
+   * 
+   */
+  public MemorySessionStore() {
+    this(DEFAULT_CAPACITY, DEFAULT_MAX_INACTIVE);
+  }
+  
+  /**
+   * Constructor.
+   * 
+   * @param capacity Max number of sessions kept by this store.
+   * @param maxInactiveInterval Time in milliseconds that a session can stay without being accessed.
+   * 
+   */
+  public MemorySessionStore(final int capacity, final long maxInactiveInterval) {
+    this(capacity, maxInactiveInterval, DEFAULT_STRIPES);
+  }
+  
+  /**
+   * Constructor.
+   * 
+   * @param capacity Max number of sessions kept by this store.
+   * @param maxInactiveInterval Time in milliseconds that a session can stay without being accessed.
+   * @param concurrency Number of stripes. It will be rounded up to a power of two.
+   * 
+   */
+  public MemorySessionStore(final int capacity, final long maxInactiveInterval, final int concurrency) {
+    if (capacity <= 0)
+      throw new IllegalArgumentException("Capacity must be bigger than zero");
+    
+    if (maxInactiveInterval <= 0)
+      throw new IllegalArgumentException("Max inactive interval must be bigger than zero");
+    
+    int size = 1;
+    while (size < concurrency && size < capacity)
+      size <<= 1;
+    
+    this.stripes             = new Stripe[size];
+    this.mask                = size - 1;
+    this.maxInactiveInterval = maxInactiveInterval;
+    
+    final int stripeCapacity = (capacity + size - 1) / size;
+    for (int i = 0; i < size; ++i)
+      stripes[i] = new Stripe(stripeCapacity);
+  }
+
+  /**
+   * Returns the session linked to the id passed as parameter, refreshing its last access time.
+   * 
+   * @param id HTTP Session unique id.
+   * 
+   * @return The HTTP Session or null if there is no valid session for this id.
+   * 
+   */
+  @Override
+  public HTTPSession get(final String id) {
+    final Stripe stripe = stripeFor(id);
+    final long now      = System.currentTimeMillis();
+    synchronized (stripe) {
+      final HTTPSession session = stripe.get(id);
+      if (session == null)
+        return null;
+      
+      if (now - session.getLastAccessTime() > maxInactiveInterval) {
+        stripe.remove(id);
+        expired.incrementAndGet();
+        Events.get().sessionExpired(id);
+        return null;
+      }
+      
+      session.setLastAccessTime(now);
+      return session;
+    }
+  }
+
+  /**
+   * Add a new session to this store.
+   * 
+   * @param session Session to be added.
+   * 
+   */
+  @Override
+  public void add(final HTTPSession session) {
+    final Stripe stripe = stripeFor(session.getId());
+    synchronized (stripe) {
+      stripe.put(session.getId(), session);
+    }
+  }
+
+  /**
+   * The sessions are kept in memory, so there is nothing to be saved.
+   * 
+   * @param session Session to be saved.
+   * 
+   */
+  @Override
+  public void save(final HTTPSession session) {
+  }
+
+  /**
+   * Remove the session linked to the id passed as parameter.
+   * 
+   * @param id HTTP Session unique id.
+   * 
+   */
+  @Override
+  public void remove(final String id) {
+    final Stripe stripe = stripeFor(id);
+    synchronized (stripe) {
+      stripe.remove(id);
+    }
+  }
+
+  /**
+   * Sweep the expired sessions of the next stripe.
+   * 
+   * @param now Current time in milliseconds.
+   * 
+   */
+  @Override
+  public void expire(final long now) {
+    final Stripe stripe = stripes[sweepIndex++ & mask];
+    synchronized (stripe) {
+      final Iterator<HTTPSession> it = stripe.values().iterator();
+      while (it.hasNext()) {
+        final HTTPSession session = it.next();
+        if (now - session.getLastAccessTime() <= maxInactiveInterval)
+          break;
+
+        it.remove();
+        expired.incrementAndGet();
+        Events.get().sessionExpired(session.getId());
+      }
+    }
+  }
+
+  /**
+   * Returns the number of live sessions kept by this store.
+   * 
+   * @return Number of live sessions.
+   * 
+   */
+  @Override
+  public int size() {
+    int size = 0;
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        size += stripe.size();
+      }
+    }
+    
+    return size;
+  }
+  
+  /**
+   * Returns how many sessions were removed because they were not accessed for a while.
+   * 
+   * @return Number of expired sessions.
+   * 
+   */
+  public long getExpiredCount() {
+    return expired.get();
+  }
+  
+  /**
+   * Returns how many sessions were removed because the store was full.
+   * 
+   * @return Number of evicted sessions.
+   * 
+   */
+  public long getEvictedCount() {
+    return evicted.get();
+  }
+  
+  /**
+   * Returns the time in milliseconds that a session can stay without being accessed.
+   * 
+   * @return Max inactive interval in milliseconds.
+   * 
+   */
+  public long getMaxInactiveInterval() {
+    return maxInactiveInterval;
+  }
+  
+  private Stripe stripeFor(final String id) {
+    final int h = id.hashCode();
+    return stripes[(h ^ (h >>> 16)) & mask];
+  }
+  
+  /**
+   * A set of sessions kept in access order. The eldest entry is the least recently accessed session.
+   * 
+   * @author Leonardo Bispo de Oliveira.
+   *
+   */
+  private final class Stripe extends LinkedHashMap<String, HTTPSession> {
+    private static final long serialVersionUID = -2418530617741049233L;
+
+    private final int capacity;
+    
+    Stripe(final int capacity) {
+      super(16, 0.75f, true);
+      this.capacity = capacity;
+    }
+    
+    @Override
+    protected boolean removeEldestEntry(final Map.Entry<String, HTTPSession> eldest) {
+      if (size() > capacity) {
+        evicted.incrementAndGet();
+        return true;
+      }
+      
+      return false;
+    }
+  }
+}
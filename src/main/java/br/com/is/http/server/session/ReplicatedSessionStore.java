@@ -0,0 +1,388 @@
+/* Copyright (C) 2013 Leonardo Bispo de Oliveira
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package br.com.is.http.server.session;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import br.com.is.http.server.HTTPSession;
+
+/**
+ * Session store that replicates the sessions to a set of peer nodes, so a session created in one server can be used
+ * by any other server behind a load balancer. The sessions are kept by a local store that must keep the session
+ * instances added to it, like the MemorySessionStore, and only the changed attributes are shipped to the peers,
+ * asynchronously. The changes are batched and the repeated writes of the same attribute are coalesced before each
+ * flush.
+ * 
+ * The conflicts are resolved by last writer wins: a change received from a peer is ignored if the local session was
+ * changed by a request that accessed it later. The attribute values must be Serializable to be replicated.
+ * 
+ * The replicated values are only deserialized if their classes are allowed: the strings, the boxed primitives, the
+ * dates, the big numbers and the common java.util collections are allowed by default, and the application classes
+ * must be allowed with the allowClasses method. The values of any other class are dropped.
+ * 
+ * @author Leonardo Bispo de Oliveira.
+ *
+ */
+public final class ReplicatedSessionStore implements SessionStore, Closeable {
+  private static final Logger LOGGER = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+  
+  private static final int  DEFAULT_FLUSH_INTERVAL = 50;
+  private static final long DEFAULT_MAX_INACTIVE   = 600000;
+  private static final int  SWEEP_BATCH            = 1024;
+  
+  private static final List<Class<?>> DEFAULT_CLASSES = Arrays.<Class<?>>asList(String.class, Boolean.class,
+    Character.class, Byte.class, Short.class, Integer.class, Long.class, Float.class, Double.class, Number.class,
+    BigInteger.class, BigDecimal.class, Date.class, ArrayList.class, LinkedList.class, HashMap.class,
+    LinkedHashMap.class, TreeMap.class, HashSet.class, LinkedHashSet.class, TreeSet.class);
+  
+  private final SessionStore                      local;
+  private final SessionReplicator                 replicator;
+  private final long                              maxInactiveInterval;
+  private final Map<String, SessionDelta>         pending  = new LinkedHashMap<>();
+  private final ConcurrentHashMap<String, Long>   versions = new ConcurrentHashMap<>();
+  private final Set<String>                       allowed  = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  
+  private Iterator<Map.Entry<String, Long>> sweeper = null;
+  
+  /**
+   * Constructor.
+   * 
+   * @param local Store that keeps the sessions of this node.
+   * @param addr Address to listen on for the peer connections.
+   * @param peers Address of the peer nodes.
+   * 
+   */
+  public ReplicatedSessionStore(final SessionStore local, final InetSocketAddress addr, final List<InetSocketAddress> peers) {
+    this(local, addr, peers, DEFAULT_FLUSH_INTERVAL, DEFAULT_MAX_INACTIVE);
+  }
+  
+  /**
+   * Constructor.
+   * 
+   * @param local Store that keeps the sessions of this node.
+   * @param addr Address to listen on for the peer connections.
+   * @param peers Address of the peer nodes.
+   * @param flushInterval Time in milliseconds between each batch sent to the peers.
+   * @param maxInactiveInterval Time in milliseconds that the last writer of a session is remembered. It should be the
+   *        same used by the local store.
+   * 
+   */
+  public ReplicatedSessionStore(final SessionStore local, final InetSocketAddress addr, final List<InetSocketAddress> peers,
+    final int flushInterval, final long maxInactiveInterval) {
+    if (flushInterval <= 0)
+      throw new IllegalArgumentException("Flush interval must be bigger than zero");
+    
+    if (maxInactiveInterval <= 0)
+      throw new IllegalArgumentException("Max inactive interval must be bigger than zero");
+    
+    this.local               = local;
+    this.maxInactiveInterval = maxInactiveInterval;
+    this.replicator          = new SessionReplicator(this, addr, peers, flushInterval);
+    
+    for (Class<?> clazz : DEFAULT_CLASSES)
+      allowed.add(clazz.getName());
+  }
+  
+  /**
+   * Allow the classes passed as parameter to be deserialized from the replicated values. The classes of the fields of
+   * these classes must be allowed as well.
+   * 
+   * @param classes Classes of the session attribute values.
+   * 
+   */
+  public void allowClasses(final Class<?>... classes) {
+    for (Class<?> clazz : classes)
+      allowed.add(clazz.getName());
+  }
+  
+  /**
+   * Start the replication.
+   * 
+   * @throws IOException If the listen address cannot be bound.
+   * 
+   */
+  public void start() throws IOException {
+    replicator.start();
+  }
+  
+  InetSocketAddress getAddress() {
+    return replicator.getAddress();
+  }
+
+  void addPeer(final InetSocketAddress peer) {
+    replicator.addPeer(peer);
+  }
+
+  /**
+   * Stop the replication. The changes not sent yet are lost.
+   * 
+   */
+  @Override
+  public void close() {
+    replicator.stop();
+  }
+
+  /**
+   * Returns the session linked to the id passed as parameter.
+   * 
+   * @param id HTTP Session unique id.
+   * 
+   * @return The HTTP Session or null if there is no valid session for this id.
+   * 
+   */
+  @Override
+  public HTTPSession get(final String id) {
+    return local.get(id);
+  }
+
+  /**
+   * Add a new session to this store and announce it to the peers.
+   * 
+   * @param session Session to be added.
+   * 
+   */
+  @Override
+  public void add(final HTTPSession session) {
+    local.add(session);
+    advance(session.getId(), session.getLastAccessTime());
+    publish(SessionDelta.update(session, Collections.list(session.getAttributeNames())));
+  }
+
+  /**
+   * Save the session and ship the modified attributes to the peers.
+   * 
+   * @param session Session to be saved.
+   * 
+   */
+  @Override
+  public void save(final HTTPSession session) {
+    local.save(session);
+    advance(session.getId(), session.getLastAccessTime());
+    publish(SessionDelta.update(session, session.getModifiedAttributes()));
+  }
+
+  /**
+   * Remove the session linked to the id passed as parameter, in this node and in the peers.
+   * 
+   * @param id HTTP Session unique id.
+   * 
+   */
+  @Override
+  public void remove(final String id) {
+    local.remove(id);
+    versions.remove(id);
+    publish(SessionDelta.remove(id));
+  }
+
+  /**
+   * Sweep the expired sessions of the local store, and forget the last writer of the sessions that were not changed
+   * for longer than the max inactive interval.
+   * 
+   * @param now Current time in milliseconds.
+   * 
+   */
+  @Override
+  public void expire(final long now) {
+    local.expire(now);
+    
+    if (sweeper == null || !sweeper.hasNext())
+      sweeper = versions.entrySet().iterator();
+    
+    for (int i = 0; i < SWEEP_BATCH && sweeper.hasNext(); ++i) {
+      final Map.Entry<String, Long> entry = sweeper.next();
+      if (now - entry.getValue() > maxInactiveInterval)
+        versions.remove(entry.getKey(), entry.getValue());
+    }
+  }
+
+  /**
+   * Returns the number of live sessions kept by the local store.
+   * 
+   * @return Number of live sessions.
+   * 
+   */
+  @Override
+  public int size() {
+    return local.size();
+  }
+  
+  /**
+   * Returns the pending deltas, in the order they were changed, clearing the pending list.
+   * 
+   * @return List with the pending deltas.
+   * 
+   */
+  List<SessionDelta> drain() {
+    synchronized (pending) {
+      if (pending.isEmpty())
+        return Collections.emptyList();
+      
+      final List<SessionDelta> deltas = new ArrayList<>(pending.values());
+      pending.clear();
+      return deltas;
+    }
+  }
+  
+  /**
+   * Apply a delta received from a peer in the local store.
+   * 
+   * @param delta Session delta.
+   * 
+   */
+  void apply(final SessionDelta delta) {
+    if (delta.removed) {
+      versions.remove(delta.id);
+      local.remove(delta.id);
+      return;
+    }
+    
+    if (!advance(delta.id, delta.lastAccessTime)) {
+      if (LOGGER.isLoggable(Level.FINE))
+        LOGGER.fine("Ignoring an older replicated change of the session " + delta.id);
+      
+      return;
+    }
+    
+    final Map<String, Object> values = new HashMap<>();
+    for (Map.Entry<String, byte[]> entry : delta.attributes.entrySet()) {
+      if (entry.getValue() == null)
+        values.put(entry.getKey(), null);
+      else {
+        final Object value = readValue(entry.getKey(), entry.getValue());
+        if (value != null)
+          values.put(entry.getKey(), value);
+      }
+    }
+    
+    final HTTPSession session = local.get(delta.id);
+    if (session == null) {
+      values.values().removeAll(Collections.singleton(null));
+      local.add(new HTTPSession(delta.id, delta.creationTime, delta.lastAccessTime, values, this));
+      return;
+    }
+    
+    for (Map.Entry<String, Object> entry : values.entrySet())
+      session.restoreAttribute(entry.getKey(), entry.getValue());
+    
+    if (delta.lastAccessTime > session.getLastAccessTime())
+      session.setLastAccessTime(delta.lastAccessTime);
+    
+    local.save(session);
+  }
+  
+  private void publish(final SessionDelta delta) {
+    synchronized (pending) {
+      final SessionDelta current = pending.get(delta.id);
+      if (current == null)
+        pending.put(delta.id, delta);
+      else
+        current.merge(delta);
+    }
+  }
+  
+  /**
+   * Record the last write of a session.
+   * 
+   * @return False if the session was already written by a request that accessed it later.
+   * 
+   */
+  private boolean advance(final String id, final long lastAccessTime) {
+    for (;;) {
+      final Long current = versions.get(id);
+      if (current == null) {
+        if (versions.putIfAbsent(id, lastAccessTime) == null)
+          return true;
+      }
+      else if (current > lastAccessTime)
+        return false;
+      else if (versions.replace(id, current, lastAccessTime))
+        return true;
+    }
+  }
+  
+  private Object readValue(final String name, final byte value[]) {
+    try (ObjectInputStream ois = new AllowedObjectInputStream(value)) {
+      return ois.readObject();
+    }
+    catch (IOException | ClassNotFoundException e) {
+      if (LOGGER.isLoggable(Level.WARNING))
+        LOGGER.log(Level.WARNING, "Problems to read the replicated session attribute " + name, e);
+      
+      return null;
+    }
+  }
+  
+  /**
+   * Object input stream that only resolves the allowed classes, and the arrays of them.
+   * 
+   */
+  private final class AllowedObjectInputStream extends ObjectInputStream {
+    AllowedObjectInputStream(final byte value[]) throws IOException {
+      super(new ByteArrayInputStream(value));
+    }
+    
+    @Override
+    protected Class<?> resolveClass(final ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+      String name = desc.getName();
+      int i = 0;
+      while (i < name.length() && name.charAt(i) == '[')
+        ++i;
+      
+      if (i > 0 && name.length() == i + 1)
+        return super.resolveClass(desc);
+      
+      if (i > 0 && name.charAt(i) == 'L' && name.endsWith(";"))
+        name = name.substring(i + 1, name.length() - 1);
+      
+      if (!allowed.contains(name))
+        throw new InvalidClassException(name, "Class not allowed in the replicated session attributes");
+      
+      return super.resolveClass(desc);
+    }
+    
+    @Override
+    protected Class<?> resolveProxyClass(final String interfaces[]) throws IOException, ClassNotFoundException {
+      throw new InvalidClassException("Proxy classes are not allowed in the replicated session attributes");
+    }
+  }
+}
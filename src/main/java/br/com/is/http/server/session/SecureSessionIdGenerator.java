@@ -0,0 +1,129 @@
+/* Copyright (C) 2013 Leonardo Bispo de Oliveira
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package br.com.is.http.server.session;
+
+import java.security.SecureRandom;
+
+/**
+ * Default session id generator. Each thread keeps its own self seeded SecureRandom and a batch of random bytes,
+ * so the CSPRNG is called once per batch of ids. The bytes are encoded straight to the URL safe Base64 alphabet
+ * (RFC 4648) without padding.
+ * 
+ * @author Leonardo Bispo de Oliveira.
+ *
+ */
+public final class SecureSessionIdGenerator implements SessionIdGenerator {
+  private static final int DEFAULT_LENGTH = 18;
+  private static final int IDS_PER_BATCH  = 64;
+  
+  private static final char ALPHABET[] = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+  
+  private final int length;
+  
+  private final ThreadLocal<Batch> batches = new ThreadLocal<Batch>() {
+    @Override
+    protected Batch initialValue() {
+      return new Batch(length * IDS_PER_BATCH);
+    }
+  };
+  
+  /**
+   * Constructor. The ids will have 144 random bits, encoded in 24 characters.
+   * 
+   */
+  public SecureSessionIdGenerator() {
+    this(DEFAULT_LENGTH);
+  }
+  
+  /**
+   * Constructor.
+   * 
+   * @param length Number of random bytes of each id. It must be at least 16 bytes (128 bits).
+   * 
+   */
+  public SecureSessionIdGenerator(final int length) {
+    if (length < 16)
+      throw new IllegalArgumentException("Session ids must have at least 16 random bytes");
+    
+    this.length = length;
+  }
+  
+  /**
+   * Create a new unique session id.
+   * 
+   * @return A new session id.
+   * 
+   */
+  @Override
+  public String generate() {
+    final Batch batch = batches.get();
+    if (batch.position == batch.bytes.length) {
+      batch.random.nextBytes(batch.bytes);
+      batch.position = 0;
+    }
+    
+    final byte src[] = batch.bytes;
+    final char dst[] = new char[(length * 4 + 2) / 3];
+    
+    int s = batch.position;
+    int d = 0;
+    final int end = s + (length / 3) * 3;
+    while (s < end) {
+      final int bits = (src[s++] & 0xff) << 16 | (src[s++] & 0xff) << 8 | (src[s++] & 0xff);
+      dst[d++] = ALPHABET[(bits >>> 18) & 0x3f];
+      dst[d++] = ALPHABET[(bits >>> 12) & 0x3f];
+      dst[d++] = ALPHABET[(bits >>> 6) & 0x3f];
+      dst[d++] = ALPHABET[bits & 0x3f];
+    }
+    
+    switch (length % 3) {
+      case 1: {
+        final int bits = (src[s] & 0xff);
+        dst[d++] = ALPHABET[bits >>> 2];
+        dst[d++] = ALPHABET[(bits << 4) & 0x3f];
+      }
+      break;
+      case 2: {
+        final int bits = (src[s] & 0xff) << 8 | (src[s + 1] & 0xff);
+        dst[d++] = ALPHABET[bits >>> 10];
+        dst[d++] = ALPHABET[(bits >>> 4) & 0x3f];
+        dst[d++] = ALPHABET[(bits << 2) & 0x3f];
+      }
+      break;
+    }
+    
+    batch.position += length;
+    return new String(dst);
+  }
+  
+  /**
+   * Random bytes kept by each thread.
+   * 
+   * @author Leonardo Bispo de Oliveira.
+   *
+   */
+  private static final class Batch {
+    private final SecureRandom random = new SecureRandom();
+    private final byte         bytes[];
+    private int                position;
+    
+    Batch(final int size) {
+      bytes    = new byte[size];
+      position = size;
+    }
+  }
+}
@@ -0,0 +1,217 @@
+/* Copyright (C) 2013 Leonardo Bispo de Oliveira
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package br.com.is.http.server.session;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import br.com.is.http.server.HTTPSession;
+
+/**
+ * Set of changes made in a session, shipped to the peer nodes by the ReplicatedSessionStore. The attribute values are
+ * kept serialized, and a null value means that the attribute was removed. Frame layout:
+ * byte type | long creationTime | long lastAccessTime | short idLength | id | int count | (short nameLength | name |
+ * int valueLength | value)*. The value length is -1 for a removed attribute.
+ * 
+ * @author Leonardo Bispo de Oliveira.
+ *
+ */
+final class SessionDelta {
+  private static final Logger LOGGER = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  
+  private static final byte UPDATE = 1;
+  private static final byte REMOVE = 2;
+  
+  final String              id;
+  final Map<String, byte[]> attributes = new LinkedHashMap<>();
+  long                      creationTime;
+  long                      lastAccessTime;
+  boolean                   removed;
+  
+  private SessionDelta(final String id, final long creationTime, final long lastAccessTime, final boolean removed) {
+    this.id             = id;
+    this.creationTime   = creationTime;
+    this.lastAccessTime = lastAccessTime;
+    this.removed        = removed;
+  }
+  
+  /**
+   * Create a delta with the attributes passed as parameter.
+   * 
+   * @param session Changed session.
+   * @param names Name of the changed attributes.
+   * 
+   * @return The session delta.
+   * 
+   */
+  static SessionDelta update(final HTTPSession session, final Iterable<String> names) {
+    final SessionDelta delta = new SessionDelta(session.getId(), session.getCreationTime(), session.getLastAccessTime(),
+      false);
+    
+    final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    for (String name : names) {
+      final Object value = session.getAttribute(name);
+      if (value == null) {
+        delta.attributes.put(name, null);
+        continue;
+      }
+      
+      bos.reset();
+      try (ObjectOutputStream oos = new ObjectOutputStream(bos)) {
+        oos.writeObject(value);
+      }
+      catch (IOException e) {
+        if (LOGGER.isLoggable(Level.WARNING))
+          LOGGER.log(Level.WARNING, "Session attribute " + name + " is not serializable and will not be replicated", e);
+        
+        continue;
+      }
+      
+      delta.attributes.put(name, bos.toByteArray());
+    }
+    
+    return delta;
+  }
+  
+  /**
+   * Create a delta that removes the session.
+   * 
+   * @param id HTTP Session unique id.
+   * 
+   * @return The session delta.
+   * 
+   */
+  static SessionDelta remove(final String id) {
+    return new SessionDelta(id, 0, 0, true);
+  }
+  
+  /**
+   * Coalesce a newer delta of the same session into this one. Only the last value of each attribute is kept.
+   * 
+   * @param other Newer delta.
+   * 
+   */
+  void merge(final SessionDelta other) {
+    if (other.removed) {
+      attributes.clear();
+      removed = true;
+      return;
+    }
+    
+    if (removed) {
+      removed      = false;
+      creationTime = other.creationTime;
+    }
+    
+    lastAccessTime = Math.max(lastAccessTime, other.lastAccessTime);
+    for (Map.Entry<String, byte[]> entry : other.attributes.entrySet()) {
+      attributes.remove(entry.getKey());
+      attributes.put(entry.getKey(), entry.getValue());
+    }
+  }
+  
+  /**
+   * Returns the size of the encoded delta.
+   * 
+   * @return Size in bytes.
+   * 
+   */
+  int size() {
+    int size = 1 + 8 + 8 + 2 + id.getBytes(UTF8).length + 4;
+    for (Map.Entry<String, byte[]> entry : attributes.entrySet())
+      size += 2 + entry.getKey().getBytes(UTF8).length + 4 + (entry.getValue() == null ? 0 : entry.getValue().length);
+    
+    return size;
+  }
+  
+  /**
+   * Write this delta in the buffer.
+   * 
+   * @param buffer Destination buffer. It must have at least size() bytes remaining.
+   * 
+   */
+  void encode(final ByteBuffer buffer) {
+    buffer.put(removed ? REMOVE : UPDATE);
+    buffer.putLong(creationTime);
+    buffer.putLong(lastAccessTime);
+    putString(buffer, id);
+    buffer.putInt(attributes.size());
+    for (Map.Entry<String, byte[]> entry : attributes.entrySet()) {
+      putString(buffer, entry.getKey());
+      if (entry.getValue() == null)
+        buffer.putInt(-1);
+      else {
+        buffer.putInt(entry.getValue().length);
+        buffer.put(entry.getValue());
+      }
+    }
+  }
+  
+  /**
+   * Read a delta from the frame passed as parameter.
+   * 
+   * @param frame Buffer containing exactly one encoded delta.
+   * 
+   * @return The session delta.
+   * 
+   */
+  static SessionDelta decode(final ByteBuffer frame) {
+    final byte type = frame.get();
+    if (type != UPDATE && type != REMOVE)
+      throw new IllegalArgumentException("Invalid session delta type: " + type);
+    
+    final long creationTime   = frame.getLong();
+    final long lastAccessTime = frame.getLong();
+    final SessionDelta delta  = new SessionDelta(getString(frame), creationTime, lastAccessTime, type == REMOVE);
+    
+    for (int count = frame.getInt(); count > 0; --count) {
+      final String name = getString(frame);
+      final int length  = frame.getInt();
+      byte value[] = null;
+      if (length >= 0) {
+        value = new byte[length];
+        frame.get(value);
+      }
+      
+      delta.attributes.put(name, value);
+    }
+    
+    return delta;
+  }
+  
+  private static void putString(final ByteBuffer buffer, final String value) {
+    final byte bytes[] = value.getBytes(UTF8);
+    buffer.putShort((short) bytes.length);
+    buffer.put(bytes);
+  }
+  
+  private static String getString(final ByteBuffer buffer) {
+    final byte bytes[] = new byte[buffer.getShort() & 0xFFFF];
+    buffer.get(bytes);
+    
+    return new String(bytes, UTF8);
+  }
+}
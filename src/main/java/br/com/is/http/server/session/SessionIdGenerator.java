@@ -0,0 +1,34 @@
+/* Copyright (C) 2013 Leonardo Bispo de Oliveira
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package br.com.is.http.server.session;
+
+/**
+ * This interface must be implemented whenever you want to provide a new way to create the HTTP Session ids.
+ * Implementations must be thread safe, since the ids are created by the worker threads.
+ * 
+ * @author Leonardo Bispo de Oliveira.
+ *
+ */
+public interface SessionIdGenerator {
+  /**
+   * Create a new unique session id. The id will be sent as a cookie value, so it must be URL safe.
+   * 
+   * @return A new session id.
+   * 
+   */
+  public String generate();
+}
@@ -0,0 +1,451 @@
+/* Copyright (C) 2013 Leonardo Bispo de Oliveira
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package br.com.is.http.server.session;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import br.com.is.nio.EventLoop;
+import br.com.is.nio.listener.AcceptListener;
+import br.com.is.nio.listener.ReaderListener;
+import br.com.is.nio.listener.TimerListener;
+import br.com.is.nio.listener.WriterListener;
+
+/**
+ * Transport used by the ReplicatedSessionStore. Each node accepts connections from its peers to receive the session
+ * deltas, and opens one connection to each peer to send them. All the sockets are handled by an EventLoop running
+ * in its own thread, and the pending deltas are flushed to the peers in batches, by a timer.
+ * 
+ * Each delta is sent as a frame prefixed by its length. While a peer is not reachable, the batches are kept in a
+ * bounded queue and the connection is retried in the next flush. Only connections from the hosts of the configured
+ * peers are accepted.
+ * 
+ * @author Leonardo Bispo de Oliveira.
+ *
+ */
+final class SessionReplicator implements AcceptListener, TimerListener {
+  private static final Logger LOGGER = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+  
+  private static final int EXECUTOR_THREADS  = 10;
+  private static final int READ_BUFFER_SIZE  = 8192;
+  private static final int MAX_FRAME_SIZE    = 16 * 1024 * 1024;
+  private static final int MAX_QUEUED_BYTES  = 4 * 1024 * 1024;
+  private static final int STOP_DELAY_MS     = 1000;
+  
+  private final ReplicatedSessionStore store;
+  private final InetSocketAddress      addr;
+  private final List<Peer>             peers = new CopyOnWriteArrayList<>();
+  private final int                    flushInterval;
+  private final EventLoop              loop  = new EventLoop(EXECUTOR_THREADS);
+  
+  private ServerSocketChannel serverChannel = null;
+  private volatile boolean    running       = false;
+  
+  /**
+   * Constructor.
+   * 
+   * @param store Store that produces and applies the session deltas.
+   * @param addr Address to listen on for the peer connections.
+   * @param peers Address of the peer nodes.
+   * @param flushInterval Time in milliseconds between each batch.
+   * 
+   */
+  SessionReplicator(final ReplicatedSessionStore store, final InetSocketAddress addr, final List<InetSocketAddress> peers,
+    final int flushInterval) {
+    this.store         = store;
+    this.addr          = addr;
+    this.flushInterval = flushInterval;
+    
+    for (InetSocketAddress peer : peers)
+      this.peers.add(new Peer(peer));
+  }
+  
+  /**
+   * Start listening for the peer connections and flushing the deltas.
+   * 
+   * @throws IOException If the listen address cannot be bound.
+   * 
+   */
+  void start() throws IOException {
+    serverChannel = ServerSocketChannel.open();
+    serverChannel.socket().setReuseAddress(true);
+    serverChannel.socket().bind(addr);
+    
+    running = true;
+    loop.registerAcceptListener(serverChannel, this);
+    loop.registerTimer(flushInterval, this);
+    
+    final Thread thread = new Thread(loop, "session-replicator");
+    thread.setDaemon(true);
+    thread.start();
+  }
+  
+  /**
+   * Returns the address this node is listening on, with the port actually bound.
+   * 
+   * @return Listen address, or null if the replication is not started.
+   * 
+   */
+  InetSocketAddress getAddress() {
+    return serverChannel == null ? null : (InetSocketAddress) serverChannel.socket().getLocalSocketAddress();
+  }
+
+  /**
+   * Add a peer node, to send it the next batches.
+   * 
+   * @param peer Address of the peer node.
+   * 
+   */
+  void addPeer(final InetSocketAddress peer) {
+    peers.add(new Peer(peer));
+  }
+
+  /**
+   * Stop the event loop and close all the peer connections. The deltas not flushed yet are lost.
+   * 
+   */
+  void stop() {
+    running = false;
+    try {
+      loop.stop(STOP_DELAY_MS);
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    
+    try {
+      if (serverChannel != null)
+        serverChannel.close();
+    }
+    catch (IOException e) {
+      if (LOGGER.isLoggable(Level.WARNING))
+        LOGGER.log(Level.WARNING, "Problems to close the session replication channel", e);
+    }
+    
+    for (Peer peer : peers)
+      peer.close();
+  }
+
+  /**
+   * Called when a peer node opens a new connection.
+   * 
+   * @param channel The server socket channel.
+   * @param manager Event loop instance used to register the new socket to the event loop.
+   * 
+   */
+  @Override
+  public void accept(final ServerSocketChannel channel, final EventLoop manager) {
+    try {
+      final SocketChannel socket = channel.accept();
+      if (socket == null)
+        return;
+      
+      if (!isPeer(socket.socket().getInetAddress())) {
+        if (LOGGER.isLoggable(Level.WARNING))
+          LOGGER.warning("Refusing a session replication connection from a host that is not a peer: "
+            + socket.socket().getInetAddress());
+
+        socket.close();
+        return;
+      }
+
+      if (LOGGER.isLoggable(Level.FINE))
+        LOGGER.fine("Accepting a new session replication connection from: " + socket.socket().toString());
+      
+      manager.registerReaderListener(socket, new Inbound(socket));
+    }
+    catch (IOException e) {
+      if (LOGGER.isLoggable(Level.WARNING))
+        LOGGER.log(Level.WARNING, "Problems to accept a new session replication connection", e);
+    }
+  }
+
+  private boolean isPeer(final InetAddress remote) {
+    for (Peer peer : peers) {
+      for (InetAddress host : peer.hosts) {
+        if (host.equals(remote))
+          return true;
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * Flush the pending deltas to all the peers.
+   * 
+   */
+  @Override
+  public void timeout() {
+    if (!running)
+      return;
+    
+    final ByteBuffer batch = encode(store.drain());
+    for (Peer peer : peers) {
+      peer.connect();
+      if (batch != null)
+        peer.enqueue(batch.duplicate());
+      
+      peer.flush();
+    }
+    
+    loop.registerTimer(flushInterval, this);
+  }
+  
+  private static ByteBuffer encode(final List<SessionDelta> deltas) {
+    if (deltas.isEmpty())
+      return null;
+    
+    final int sizes[] = new int[deltas.size()];
+    int total = 0;
+    for (int i = 0; i < sizes.length; ++i) {
+      sizes[i] = deltas.get(i).size();
+      total   += 4 + sizes[i];
+    }
+    
+    final ByteBuffer batch = ByteBuffer.allocate(total);
+    for (int i = 0; i < sizes.length; ++i) {
+      batch.putInt(sizes[i]);
+      deltas.get(i).encode(batch);
+    }
+    batch.flip();
+    
+    return batch;
+  }
+  
+  /**
+   * Outgoing connection to a peer node.
+   * 
+   * @author Leonardo Bispo de Oliveira.
+   *
+   */
+  private final class Peer implements WriterListener {
+    private final InetSocketAddress      addr;
+    private final InetAddress            hosts[];
+    private final ArrayDeque<ByteBuffer> queue     = new ArrayDeque<>();
+    private SocketChannel                channel   = null;
+    private boolean                      connected = false;
+    private boolean                      dropping  = false;
+    private int                          queued    = 0;
+    
+    Peer(final InetSocketAddress addr) {
+      this.addr  = addr;
+      this.hosts = resolve(addr);
+    }
+
+    private InetAddress[] resolve(final InetSocketAddress addr) {
+      if (addr.getAddress() != null && !addr.getAddress().isLoopbackAddress())
+        return new InetAddress[] { addr.getAddress() };
+
+      try {
+        return InetAddress.getAllByName(addr.getHostString());
+      }
+      catch (UnknownHostException e) {
+        if (LOGGER.isLoggable(Level.WARNING))
+          LOGGER.log(Level.WARNING, "Cannot resolve the session replication peer " + addr, e);
+
+        return addr.getAddress() == null ? new InetAddress[0] : new InetAddress[] { addr.getAddress() };
+      }
+    }
+    
+    void connect() {
+      if (connected)
+        return;
+      
+      try {
+        if (channel == null) {
+          channel = SocketChannel.open();
+          channel.configureBlocking(false);
+          channel.socket().setTcpNoDelay(true);
+          connected = channel.connect(addr);
+        }
+        else
+          connected = channel.finishConnect();
+        
+        if (connected && LOGGER.isLoggable(Level.INFO))
+          LOGGER.info("Connected to the session replication peer " + addr);
+      }
+      catch (IOException e) {
+        if (LOGGER.isLoggable(Level.FINE))
+          LOGGER.log(Level.FINE, "Session replication peer " + addr + " is not reachable", e);
+        
+        close();
+      }
+    }
+    
+    void enqueue(final ByteBuffer batch) {
+      if (queued + batch.remaining() > MAX_QUEUED_BYTES) {
+        if (!dropping && LOGGER.isLoggable(Level.WARNING))
+          LOGGER.warning("Session replication queue for " + addr + " is full, dropping the session changes");
+        
+        dropping = true;
+        return;
+      }
+      
+      dropping = false;
+      queue.add(batch);
+      queued += batch.remaining();
+    }
+    
+    void flush() {
+      if (!connected)
+        return;
+      
+      try {
+        ByteBuffer batch;
+        while ((batch = queue.peek()) != null) {
+          final int remaining = batch.remaining();
+          channel.write(batch);
+          queued -= remaining - batch.remaining();
+          
+          if (batch.hasRemaining()) {
+            loop.registerWriterListener(channel, this);
+            return;
+          }
+          
+          queue.poll();
+        }
+        
+        loop.unregisterWriterListener(channel);
+      }
+      catch (IOException e) {
+        if (LOGGER.isLoggable(Level.WARNING))
+          LOGGER.log(Level.WARNING, "Lost the connection to the session replication peer " + addr, e);
+        
+        close();
+      }
+    }
+
+    @Override
+    public void write(final SelectableChannel ch, final EventLoop manager) {
+      flush();
+    }
+    
+    void close() {
+      if (channel != null) {
+        loop.unregisterWriterListener(channel);
+        try {
+          channel.close();
+        }
+        catch (IOException e) {
+          if (LOGGER.isLoggable(Level.FINE))
+            LOGGER.log(Level.FINE, "Problems to close the session replication channel", e);
+        }
+      }
+      
+      // A batch that was partially sent cannot be resumed in a new connection.
+      final ByteBuffer head = queue.peek();
+      if (head != null && head.position() > 0) {
+        queue.poll();
+        queued -= head.remaining();
+      }
+      
+      channel   = null;
+      connected = false;
+    }
+  }
+  
+  /**
+   * Incoming connection from a peer node.
+   * 
+   * @author Leonardo Bispo de Oliveira.
+   *
+   */
+  private final class Inbound implements ReaderListener {
+    private final SocketChannel channel;
+    private ByteBuffer          buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    
+    Inbound(final SocketChannel channel) {
+      this.channel = channel;
+    }
+    
+    @Override
+    public void read(final SelectableChannel ch, final EventLoop manager) {
+      try {
+        if (channel.read(buffer) < 0) {
+          close(manager);
+          return;
+        }
+      }
+      catch (IOException e) {
+        if (LOGGER.isLoggable(Level.FINE))
+          LOGGER.log(Level.FINE, "Problems to read from the session replication channel", e);
+        
+        close(manager);
+        return;
+      }
+      
+      buffer.flip();
+      while (buffer.remaining() >= 4) {
+        final int length = buffer.getInt(buffer.position());
+        if (length <= 0 || length > MAX_FRAME_SIZE) {
+          if (LOGGER.isLoggable(Level.WARNING))
+            LOGGER.warning("Invalid session replication frame size: " + length);
+          
+          close(manager);
+          return;
+        }
+        
+        if (buffer.remaining() < 4 + length)
+          break;
+        
+        buffer.position(buffer.position() + 4);
+        final ByteBuffer frame = buffer.slice();
+        frame.limit(length);
+        buffer.position(buffer.position() + length);
+        
+        try {
+          store.apply(SessionDelta.decode(frame));
+        }
+        catch (RuntimeException e) {
+          if (LOGGER.isLoggable(Level.WARNING))
+            LOGGER.log(Level.WARNING, "Problems to apply a replicated session change", e);
+        }
+      }
+      
+      if (buffer.remaining() >= 4 && buffer.capacity() < 4 + buffer.getInt(buffer.position())) {
+        final ByteBuffer bigger = ByteBuffer.allocate(4 + buffer.getInt(buffer.position()));
+        bigger.put(buffer);
+        buffer = bigger;
+      }
+      else
+        buffer.compact();
+    }
+    
+    private void close(final EventLoop manager) {
+      manager.unregisterReaderListener(channel);
+      try {
+        channel.close();
+      }
+      catch (IOException e) {
+        if (LOGGER.isLoggable(Level.FINE))
+          LOGGER.log(Level.FINE, "Problems to close the session replication channel", e);
+      }
+    }
+  }
+}
@@ -0,0 +1,80 @@
+/* Copyright (C) 2013 Leonardo Bispo de Oliveira
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package br.com.is.http.server.session;
+
+import br.com.is.http.server.HTTPSession;
+
+/**
+ * This interface must be implemented whenever you want to provide a new place to keep the HTTP Sessions.
+ * The store is responsible to expire the sessions that are not accessed for a while. The HTTP Server
+ * will call the expire method periodically, so implementations can reclaim the expired sessions incrementally.
+ * 
+ * @author Leonardo Bispo de Oliveira.
+ *
+ */
+public interface SessionStore {
+  /**
+   * Returns the session linked to the id passed as parameter, refreshing its last access time.
+   * 
+   * @param id HTTP Session unique id.
+   * 
+   * @return The HTTP Session or null if there is no valid session for this id.
+   * 
+   */
+  public HTTPSession get(final String id);
+  
+  /**
+   * Add a new session to this store.
+   * 
+   * @param session Session to be added.
+   * 
+   */
+  public void add(final HTTPSession session);
+  
+  /**
+   * Save the session attributes. It is called at the end of each request that changed the session attributes.
+   * 
+   * @param session Session to be saved.
+   * 
+   */
+  public void save(final HTTPSession session);
+  
+  /**
+   * Remove the session linked to the id passed as parameter.
+   * 
+   * @param id HTTP Session unique id.
+   * 
+   */
+  public void remove(final String id);
+  
+  /**
+   * Reclaim part of the expired sessions. This method is called periodically by the event loop, so it
+   * must not block.
+   * 
+   * @param now Current time in milliseconds.
+   * 
+   */
+  public void expire(final long now);
+  
+  /**
+   * Returns the number of live sessions kept by this store.
+   * 
+   * @return Number of live sessions.
+   * 
+   */
+  public int size();
+}
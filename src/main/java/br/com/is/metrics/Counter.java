@@ -0,0 +1,75 @@
+/* Copyright (C) 2013 Leonardo Bispo de Oliveira
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package br.com.is.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Striped counter. Each thread adds to one of a few cells padded to their own cache line, so threads updating
+ * the same counter do not fight for it; the cells are only summed when the counter is read.
+ * 
+ * @author Leonardo Bispo de Oliveira.
+ *
+ */
+public final class Counter {
+  private static final int PADDING = 8;
+  private static final int STRIPES;
+
+  static {
+    int stripes = 1;
+    while (stripes < Runtime.getRuntime().availableProcessors() && stripes < 64)
+      stripes <<= 1;
+
+    STRIPES = stripes;
+  }
+
+  private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+  public void increment() {
+    add(1);
+  }
+
+  public void decrement() {
+    add(-1);
+  }
+
+  public void add(final long value) {
+    cells.getAndAdd(cell(), value);
+  }
+
+  /**
+   * Return the current value. Concurrent updates may or may not be included.
+   * 
+   * @return Sum of all cells.
+   * 
+   */
+  public long sum() {
+    long sum = 0;
+    for (int i = 0; i < STRIPES; i++)
+      sum += cells.get(i * PADDING);
+
+    return sum;
+  }
+
+  private static int cell() {
+    final long id = Thread.currentThread().getId();
+    int hash = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+    hash ^= hash >>> 16;
+
+    return (hash & (STRIPES - 1)) * PADDING;
+  }
+}
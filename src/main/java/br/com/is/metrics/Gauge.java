@@ -0,0 +1,33 @@
+/* Copyright (C) 2013 Leonardo Bispo de Oliveira
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package br.com.is.metrics;
+
+/**
+ * Value read when the metrics are collected, like a queue size or the number of open sessions.
+ * 
+ * @author Leonardo Bispo de Oliveira.
+ *
+ */
+public interface Gauge {
+  /**
+   * Return the current value.
+   * 
+   * @return Gauge value.
+   * 
+   */
+  public long get();
+}
@@ -0,0 +1,171 @@
+/* Copyright (C) 2013 Leonardo Bispo de Oliveira
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package br.com.is.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free log-linear latency histogram, in microseconds. Values up to 255 are counted exactly and every power
+ * of two above that is split into 128 linear buckets, which keeps each value within 1% of its bucket. Recording
+ * is one atomic increment on the bucket plus the striped sum.
+ * 
+ * @author Leonardo Bispo de Oliveira.
+ *
+ */
+public final class Histogram {
+  private static final int  SUB_BUCKET_HALF_COUNT_MAGNITUDE = 7;
+  private static final int  SUB_BUCKET_HALF_COUNT           = 1 << SUB_BUCKET_HALF_COUNT_MAGNITUDE;
+  private static final long SUB_BUCKET_MASK                 = (SUB_BUCKET_HALF_COUNT << 1) - 1;
+
+  /** Highest value tracked, one hour. Bigger values are counted as this one. */
+  public static final long HIGHEST_TRACKABLE_VALUE = 3600L * 1000 * 1000;
+
+  private static final int LENGTH = countsIndex(HIGHEST_TRACKABLE_VALUE) + 1;
+
+  private final AtomicLongArray counts = new AtomicLongArray(LENGTH);
+  private final Counter         sum    = new Counter();
+
+  /**
+   * Record a value.
+   * 
+   * @param micros Value in microseconds. Negative values are recorded as zero.
+   * 
+   */
+  public void record(long micros) {
+    if (micros < 0)
+      micros = 0;
+    else if (micros > HIGHEST_TRACKABLE_VALUE)
+      micros = HIGHEST_TRACKABLE_VALUE;
+
+    counts.incrementAndGet(countsIndex(micros));
+    sum.add(micros);
+  }
+
+  /**
+   * Take a copy of the bucket counts. Recording goes on while the copy is taken, so the copy is not atomic, but
+   * every count and percentile derived from one snapshot is consistent with the others.
+   * 
+   * @return The histogram snapshot.
+   * 
+   */
+  public Snapshot snapshot() {
+    final long copy[] = new long[LENGTH];
+    long total = 0;
+    for (int i = 0; i < LENGTH; i++) {
+      copy[i] = counts.get(i);
+      total  += copy[i];
+    }
+
+    return new Snapshot(copy, total, sum.sum());
+  }
+
+  private static int countsIndex(final long value) {
+    final int bucketIndex    = 63 - SUB_BUCKET_HALF_COUNT_MAGNITUDE - Long.numberOfLeadingZeros(value | SUB_BUCKET_MASK);
+    final int subBucketIndex = (int) (value >>> bucketIndex);
+
+    return ((bucketIndex + 1) << SUB_BUCKET_HALF_COUNT_MAGNITUDE) + (subBucketIndex - SUB_BUCKET_HALF_COUNT);
+  }
+
+  private static long highestEquivalentValue(final int index) {
+    int bucketIndex    = (index >> SUB_BUCKET_HALF_COUNT_MAGNITUDE) - 1;
+    int subBucketIndex = (index & (SUB_BUCKET_HALF_COUNT - 1)) + SUB_BUCKET_HALF_COUNT;
+    if (bucketIndex < 0) {
+      subBucketIndex -= SUB_BUCKET_HALF_COUNT;
+      bucketIndex     = 0;
+    }
+
+    return ((long) subBucketIndex << bucketIndex) + (1L << bucketIndex) - 1;
+  }
+
+  /**
+   * Point in time copy of a histogram.
+   * 
+   * @author Leonardo Bispo de Oliveira.
+   *
+   */
+  public static final class Snapshot {
+    private final long counts[];
+    private final long count;
+    private final long sum;
+
+    private Snapshot(final long counts[], final long count, final long sum) {
+      this.counts = counts;
+      this.count  = count;
+      this.sum    = sum;
+    }
+
+    public long getCount() {
+      return count;
+    }
+
+    /**
+     * Return the sum of the recorded values, in microseconds.
+     * 
+     * @return Sum of the values.
+     * 
+     */
+    public long getSum() {
+      return sum;
+    }
+
+    /**
+     * Return the number of values smaller or equivalent to the given value. The bucket holding the value is
+     * counted as a whole, so the bound is as precise as the histogram.
+     * 
+     * @param micros Upper bound in microseconds.
+     * 
+     * @return Cumulative count.
+     * 
+     */
+    public long getCountAtOrBelow(final long micros) {
+      if (micros < 0)
+        return 0;
+
+      final int last = countsIndex(Math.min(micros, HIGHEST_TRACKABLE_VALUE));
+      long total = 0;
+      for (int i = 0; i <= last; i++)
+        total += counts[i];
+
+      return total;
+    }
+
+    /**
+     * Return the value that the given percentage of the recorded values are smaller or equivalent to.
+     * 
+     * @param percentile Percentile between 0 and 100.
+     * 
+     * @return Value in microseconds, or 0 if nothing was recorded.
+     * 
+     */
+    public long getValueAtPercentile(final double percentile) {
+      if (count == 0)
+        return 0;
+
+      final double requested = Math.min(Math.max(percentile, 0), 100);
+      final long   target    = Math.max(1, (long) Math.ceil(requested / 100 * count));
+
+      long total = 0;
+      for (int i = 0; i < counts.length; i++) {
+        total += counts[i];
+        if (total >= target)
+          return highestEquivalentValue(i);
+      }
+
+      return HIGHEST_TRACKABLE_VALUE;
+    }
+  }
+}
@@ -0,0 +1,345 @@
+/* Copyright (C) 2013 Leonardo Bispo de Oliveira
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package br.com.is.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+
+/**
+ * Named metrics with labels. Metrics are created once and kept by the instrumented code, the registry is only
+ * walked when the metrics are collected, either in the Prometheus text format or through JMX.
+ * 
+ * @author Leonardo Bispo de Oliveira.
+ *
+ */
+public final class MetricsRegistry {
+  private enum Type { COUNTER, GAUGE, HISTOGRAM, DISTRIBUTION }
+
+  private static final long   BUCKETS[]      = { 500, 1000, 2500, 5000, 10000, 25000, 50000, 100000, 250000, 500000,
+    1000000, 2500000, 5000000, 10000000 };
+  private static final String BUCKET_NAMES[] = { "0.0005", "0.001", "0.0025", "0.005", "0.01", "0.025", "0.05", "0.1",
+    "0.25", "0.5", "1", "2.5", "5", "10" };
+
+  private static final long DISTRIBUTION_BUCKETS[] = { 0, 1, 2, 4, 8, 16, 32, 64, 128, 256, 512, 1024, 4096 };
+
+  private static final double PERCENTILES[]      = { 50, 90, 99, 99.9 };
+  private static final String PERCENTILE_NAMES[] = { "p50", "p90", "p99", "p999" };
+
+  private final ConcurrentMap<String, Family> families = new ConcurrentSkipListMap<>();
+
+  /**
+   * Return the counter with the given name and labels, creating it on the first call.
+   * 
+   * @param name Metric name.
+   * @param help Metric description.
+   * @param labels Label names and values, alternated.
+   * 
+   * @return The counter.
+   * 
+   */
+  public Counter counter(final String name, final String help, final String... labels) {
+    return (Counter) family(name, help, Type.COUNTER).get(labels(labels), new Counter());
+  }
+
+  /**
+   * Return the histogram with the given name and labels, creating it on the first call. Values are recorded in
+   * microseconds and exported in seconds.
+   * 
+   * @param name Metric name.
+   * @param help Metric description.
+   * @param labels Label names and values, alternated.
+   * 
+   * @return The histogram.
+   * 
+   */
+  public Histogram histogram(final String name, final String help, final String... labels) {
+    return (Histogram) family(name, help, Type.HISTOGRAM).get(labels(labels), new Histogram());
+  }
+
+  /**
+   * Return the histogram of plain values (sizes, counts) with the given name and labels, creating it on the first
+   * call. Values are exported as they are recorded, in power of two buckets.
+   * 
+   * @param name Metric name.
+   * @param help Metric description.
+   * @param labels Label names and values, alternated.
+   * 
+   * @return The histogram.
+   * 
+   */
+  public Histogram distribution(final String name, final String help, final String... labels) {
+    return (Histogram) family(name, help, Type.DISTRIBUTION).get(labels(labels), new Histogram());
+  }
+
+  /**
+   * Register a gauge. A gauge already registered with the same name and labels is replaced.
+   * 
+   * @param name Metric name.
+   * @param help Metric description.
+   * @param gauge Gauge to be read when the metrics are collected.
+   * @param labels Label names and values, alternated.
+   * 
+   */
+  public void gauge(final String name, final String help, final Gauge gauge, final String... labels) {
+    if (gauge == null)
+      throw new IllegalArgumentException("Gauge cannot be null");
+
+    family(name, help, Type.GAUGE).series.put(labels(labels), gauge);
+  }
+
+  /**
+   * Write all metrics in the Prometheus text exposition format (version 0.0.4).
+   * 
+   * @param out Writer to receive the metrics.
+   * 
+   * @throws IOException
+   * 
+   */
+  public void writePrometheus(final Writer out) throws IOException {
+    final StringBuilder sb = new StringBuilder(4096);
+    for (final Family family : families.values()) {
+      sb.append("# HELP ").append(family.name).append(' ').append(escape(family.help, false)).append('\n');
+      sb.append("# TYPE ").append(family.name).append(' ')
+        .append(family.type == Type.DISTRIBUTION ? "histogram" : family.type.name().toLowerCase()).append('\n');
+
+      for (final Map.Entry<String, Object> entry : family.series.entrySet()) {
+        final String labels = entry.getKey();
+        switch (family.type) {
+          case COUNTER:
+            sample(sb, family.name, labels, null, Long.toString(((Counter) entry.getValue()).sum()));
+          break;
+          case GAUGE:
+            sample(sb, family.name, labels, null, Long.toString(((Gauge) entry.getValue()).get()));
+          break;
+          case HISTOGRAM:
+            final Histogram.Snapshot snapshot = ((Histogram) entry.getValue()).snapshot();
+            for (int i = 0; i < BUCKETS.length; i++) {
+              sample(sb, family.name + "_bucket", labels, BUCKET_NAMES[i],
+                Long.toString(snapshot.getCountAtOrBelow(BUCKETS[i])));
+            }
+            sample(sb, family.name + "_bucket", labels, "+Inf", Long.toString(snapshot.getCount()));
+            sample(sb, family.name + "_sum", labels, null, Double.toString(snapshot.getSum() / 1e6));
+            sample(sb, family.name + "_count", labels, null, Long.toString(snapshot.getCount()));
+          break;
+          case DISTRIBUTION:
+            final Histogram.Snapshot values = ((Histogram) entry.getValue()).snapshot();
+            for (long bucket : DISTRIBUTION_BUCKETS) {
+              sample(sb, family.name + "_bucket", labels, Long.toString(bucket),
+                Long.toString(values.getCountAtOrBelow(bucket)));
+            }
+            sample(sb, family.name + "_bucket", labels, "+Inf", Long.toString(values.getCount()));
+            sample(sb, family.name + "_sum", labels, null, Long.toString(values.getSum()));
+            sample(sb, family.name + "_count", labels, null, Long.toString(values.getCount()));
+          break;
+        }
+      }
+    }
+
+    out.write(sb.toString());
+  }
+
+  /**
+   * Return a read only MBean with one attribute per counter and gauge, and the count and percentiles of each
+   * histogram (in seconds for the latency histograms).
+   * 
+   * @return The metrics MBean.
+   * 
+   */
+  public DynamicMBean asMBean() {
+    return new MetricsMBean();
+  }
+
+  private Family family(final String name, final String help, final Type type) {
+    Family family = families.get(name);
+    if (family == null) {
+      final Family created = new Family(name, help, type);
+      family = families.putIfAbsent(name, created);
+      if (family == null)
+        family = created;
+    }
+
+    if (family.type != type)
+      throw new IllegalArgumentException("Metric " + name + " is already registered as a " + family.type);
+
+    return family;
+  }
+
+  private Map<String, Object> values() {
+    final Map<String, Object> values = new LinkedHashMap<>();
+    for (final Family family : families.values()) {
+      for (final Map.Entry<String, Object> entry : family.series.entrySet()) {
+        final String name = family.name + entry.getKey();
+        switch (family.type) {
+          case COUNTER:
+            values.put(name, ((Counter) entry.getValue()).sum());
+          break;
+          case GAUGE:
+            values.put(name, ((Gauge) entry.getValue()).get());
+          break;
+          case HISTOGRAM:
+            final Histogram.Snapshot snapshot = ((Histogram) entry.getValue()).snapshot();
+            values.put(name + ".count", snapshot.getCount());
+            for (int i = 0; i < PERCENTILES.length; i++)
+              values.put(name + "." + PERCENTILE_NAMES[i], snapshot.getValueAtPercentile(PERCENTILES[i]) / 1e6);
+          break;
+          case DISTRIBUTION:
+            final Histogram.Snapshot distribution = ((Histogram) entry.getValue()).snapshot();
+            values.put(name + ".count", distribution.getCount());
+            for (int i = 0; i < PERCENTILES.length; i++)
+              values.put(name + "." + PERCENTILE_NAMES[i], distribution.getValueAtPercentile(PERCENTILES[i]));
+          break;
+        }
+      }
+    }
+
+    return values;
+  }
+
+  private static void sample(final StringBuilder sb, final String name, final String labels, final String le,
+    final String value) {
+    sb.append(name);
+    if (le != null) {
+      if (labels.isEmpty())
+        sb.append("{le=\"").append(le).append("\"}");
+      else
+        sb.append(labels, 0, labels.length() - 1).append(",le=\"").append(le).append("\"}");
+    }
+    else
+      sb.append(labels);
+
+    sb.append(' ').append(value).append('\n');
+  }
+
+  private static String labels(final String labels[]) {
+    if (labels.length % 2 != 0)
+      throw new IllegalArgumentException("Labels must be name and value pairs");
+
+    if (labels.length == 0)
+      return "";
+
+    final StringBuilder sb = new StringBuilder("{");
+    for (int i = 0; i < labels.length; i += 2) {
+      if (i > 0)
+        sb.append(',');
+
+      sb.append(labels[i]).append("=\"").append(escape(labels[i + 1], true)).append('"');
+    }
+
+    return sb.append('}').toString();
+  }
+
+  private static String escape(final String value, final boolean quote) {
+    final StringBuilder sb = new StringBuilder(value.length());
+    for (int i = 0; i < value.length(); i++) {
+      final char c = value.charAt(i);
+      if (c == '\\')
+        sb.append("\\\\");
+      else if (c == '\n')
+        sb.append("\\n");
+      else if (c == '"' && quote)
+        sb.append("\\\"");
+      else
+        sb.append(c);
+    }
+
+    return sb.toString();
+  }
+
+  private static final class Family {
+    final String name;
+    final String help;
+    final Type   type;
+
+    final ConcurrentMap<String, Object> series = new ConcurrentSkipListMap<>();
+
+    Family(final String name, final String help, final Type type) {
+      this.name = name;
+      this.help = help;
+      this.type = type;
+    }
+
+    Object get(final String labels, final Object created) {
+      final Object current = series.putIfAbsent(labels, created);
+      return current == null ? created : current;
+    }
+  }
+
+  private final class MetricsMBean implements DynamicMBean {
+    @Override
+    public Object getAttribute(final String attribute) throws AttributeNotFoundException {
+      final Object value = values().get(attribute);
+      if (value == null)
+        throw new AttributeNotFoundException(attribute);
+
+      return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(final String attributes[]) {
+      final Map<String, Object> values = values();
+      final AttributeList list = new AttributeList();
+      for (final String attribute : attributes) {
+        final Object value = values.get(attribute);
+        if (value != null)
+          list.add(new Attribute(attribute, value));
+      }
+
+      return list;
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+      final List<MBeanAttributeInfo> attributes = new ArrayList<>();
+      for (final Map.Entry<String, Object> entry : values().entrySet()) {
+        attributes.add(new MBeanAttributeInfo(entry.getKey(), entry.getValue().getClass().getName(), entry.getKey(),
+          true, false, false));
+      }
+
+      return new MBeanInfo(MetricsRegistry.class.getName(), "HTTP server metrics",
+        attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, new MBeanOperationInfo[0], null);
+    }
+
+    @Override
+    public Object invoke(final String action, final Object params[], final String signature[]) {
+      throw new UnsupportedOperationException("The metrics MBean has no operations");
+    }
+
+    @Override
+    public void setAttribute(final Attribute attribute) throws AttributeNotFoundException {
+      throw new AttributeNotFoundException("The metrics MBean is read only");
+    }
+
+    @Override
+    public AttributeList setAttributes(final AttributeList attributes) {
+      return new AttributeList();
+    }
+  }
+}
@@ -23,6 +23,8 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 
+import br.com.is.metrics.Counter;
+
 /**
  * This class is store a set of ByteBuffers read from the NIO object.
  * 
@@ -31,18 +33,20 @@ import java.util.concurrent.atomic.AtomicReference;
  */
 public final class ByteBufferFifo {
   private static final int BUFFER_SIZE = 4096;
+
+  private static final Counter QUEUED = new Counter();
   
   private final AtomicReference<ByteBuffer> currentBuffer = new AtomicReference<>();
   private final BlockingDeque<ByteBuffer> readBuffers     = new LinkedBlockingDeque<>();
   
-  private AtomicBoolean ignoreData = new AtomicBoolean(false);
+  private AtomicBoolean    ignoreData = new AtomicBoolean(false);
+  private volatile boolean discarded  = false;
   
   /**
-   * Constructor.
+   * Constructor. The first buffer is only allocated when it is requested to be written.
    * 
    */
   public ByteBufferFifo() {
-    currentBuffer.set(ByteBuffer.allocate(BUFFER_SIZE));
   }
   
   /**
@@ -52,7 +56,18 @@ public final class ByteBufferFifo {
    * 
    */
   public ByteBufferFifo(final ByteBuffer buffer) {
-    readBuffers.add(buffer);
+    enqueue(buffer);
+  }
+
+  /**
+   * Return the number of filled buffers waiting to be read, over all FIFOs. A FIFO dropped by its owner must be
+   * discarded, otherwise its unread buffers are counted forever.
+   * 
+   * @return Number of queued buffers.
+   * 
+   */
+  public static long getQueuedBuffers() {
+    return QUEUED.sum();
   }
   
   /**
@@ -65,7 +80,7 @@ public final class ByteBufferFifo {
       ByteBuffer buffer = currentBuffer.get();
       if (currentBuffer.compareAndSet(buffer, null) && buffer != null) {
         buffer.flip();
-        readBuffers.add(buffer);
+        enqueue(buffer);
       }
     }
   }
@@ -86,7 +101,7 @@ public final class ByteBufferFifo {
       if (buffer == null || !buffer.hasRemaining()) {
         if (currentBuffer.compareAndSet(buffer, ByteBuffer.allocate(BUFFER_SIZE)) && buffer != null) {
           buffer.flip();
-          readBuffers.add(buffer);
+          enqueue(buffer);
         }
 
         buffer = null;
@@ -95,7 +110,7 @@ public final class ByteBufferFifo {
     while (buffer == null);
     
     if (ignoreData.get())
-      readBuffers.add(buffer);
+      enqueue(buffer);
 
     return buffer;
   }
@@ -108,17 +123,17 @@ public final class ByteBufferFifo {
     if (ignoreData.get())
       return;
     
-    ByteBuffer buffer = null;
+    final ByteBuffer next = ByteBuffer.allocate(BUFFER_SIZE);
+    ByteBuffer buffer     = null;
     do {
       buffer = currentBuffer.get();
-      if (currentBuffer.compareAndSet(buffer, ByteBuffer.allocate(BUFFER_SIZE)) && buffer != null) {
-        buffer.flip();
-        readBuffers.add(buffer);
-      }
+    }
+    while (!currentBuffer.compareAndSet(buffer, next));
 
-      buffer = null;
+    if (buffer != null) {
+      buffer.flip();
+      enqueue(buffer);
     }
-    while (buffer == null);
   }
   
   /**
@@ -131,7 +146,9 @@ public final class ByteBufferFifo {
     try {
       ByteBuffer ret = readBuffers.poll(100, TimeUnit.MILLISECONDS);
       
-      if (ret == null) {
+      if (ret != null)
+        QUEUED.decrement();
+      else {
         ret = currentBuffer.getAndSet(null);
         if (ret != null)
           ret.flip();
@@ -152,6 +169,9 @@ public final class ByteBufferFifo {
    */
   public void prependByteBuffer(final ByteBuffer buffer) {
     readBuffers.push(buffer);
+    QUEUED.increment();
+    if (discarded)
+      drain();
   }
   
   /**
@@ -159,7 +179,32 @@ public final class ByteBufferFifo {
    * 
    */
   public void clear() {
-    readBuffers.clear();
+    drain();
     currentBuffer.set(ByteBuffer.allocate(BUFFER_SIZE));
   }
+
+  /**
+   * Drop all the buffers of this FIFO, and the ones queued after this call, when its owner does not use it anymore.
+   * 
+   */
+  public void discard() {
+    ignoreData.set(true);
+    discarded = true;
+    currentBuffer.set(null);
+    drain();
+  }
+
+  private void drain() {
+    while (readBuffers.poll() != null)
+      QUEUED.decrement();
+  }
+
+  private void enqueue(final ByteBuffer buffer) {
+    readBuffers.add(buffer);
+    QUEUED.increment();
+
+    // A buffer queued while the FIFO is discarded is dropped by whichever of the two sees the other.
+    if (discarded)
+      drain();
+  }
 }
\ No newline at end of file
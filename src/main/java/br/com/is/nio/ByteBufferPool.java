@@ -0,0 +1,104 @@
+/* Copyright (C) 2013 Leonardo Bispo de Oliveira
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package br.com.is.nio;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded pool of heap ByteBuffers, all with the same capacity. The buffers released when the pool is full are left
+ * to the garbage collector.
+ * 
+ * @author Leonardo Bispo de Oliveira
+ *
+ */
+public final class ByteBufferPool {
+  private final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger                     pooled  = new AtomicInteger();
+  private final int                               bufferSize;
+  private final int                               maxBuffers;
+  
+  /**
+   * Constructor.
+   * 
+   * @param bufferSize Capacity of each buffer.
+   * @param maxBuffers Max number of buffers kept by this pool.
+   * 
+   */
+  public ByteBufferPool(final int bufferSize, final int maxBuffers) {
+    if (bufferSize <= 0)
+      throw new IllegalArgumentException("Buffer size must be bigger than zero");
+    
+    this.bufferSize = bufferSize;
+    this.maxBuffers = maxBuffers;
+  }
+  
+  /**
+   * Returns a cleared buffer, reusing a pooled one if there is any.
+   * 
+   * @return A buffer with bufferSize bytes remaining.
+   * 
+   */
+  public ByteBuffer acquire() {
+    final ByteBuffer buffer = buffers.poll();
+    if (buffer == null)
+      return ByteBuffer.allocate(bufferSize);
+    
+    pooled.decrementAndGet();
+    buffer.clear();
+    return buffer;
+  }
+  
+  /**
+   * Return a buffer to this pool. The buffer must not be used after this call.
+   * 
+   * @param buffer Buffer acquired from this pool.
+   * 
+   */
+  public void release(final ByteBuffer buffer) {
+    if (buffer.capacity() != bufferSize || buffer.isDirect())
+      return;
+    
+    if (pooled.incrementAndGet() > maxBuffers) {
+      pooled.decrementAndGet();
+      return;
+    }
+    
+    buffers.offer(buffer);
+  }
+  
+  /**
+   * Returns the capacity of the buffers of this pool.
+   * 
+   * @return Buffer capacity.
+   * 
+   */
+  public int getBufferSize() {
+    return bufferSize;
+  }
+  
+  /**
+   * Returns the number of buffers waiting to be reused.
+   * 
+   * @return Number of pooled buffers.
+   * 
+   */
+  public int getPooledCount() {
+    return pooled.get();
+  }
+}
@@ -22,6 +22,7 @@ import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.Iterator;
 import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
@@ -30,10 +31,17 @@ import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import br.com.is.nio.listener.AcceptListener;
+import br.com.is.events.Events;
+import br.com.is.metrics.Counter;
+import br.com.is.metrics.Histogram;
+import br.com.is.metrics.MetricsRegistry;
+import br.com.is.nio.listener.ConnectListener;
 import br.com.is.nio.listener.ReaderListener;
 import br.com.is.nio.listener.TimerListener;
 import br.com.is.nio.listener.WriterListener;
@@ -41,8 +49,10 @@ import br.com.is.nio.listener.WriterListener;
 public final class EventLoop implements Runnable {
   private static final Logger LOGGER = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
   
-  private static final int READ  = 0;
-  private static final int WRITE = 1;
+  private static final int READ      = 0;
+  private static final int WRITE     = 1;
+  private static final int CONNECT   = 2;
+  private static final int LISTENERS = 3;
   
   private static Object    sync    = new Object();
   private volatile boolean running = false;
@@ -53,6 +63,15 @@ public final class EventLoop implements Runnable {
 
   private final ThreadPoolExecutor executor;
 
+  private final AtomicLong             busySince   = new AtomicLong(0);
+  private final AtomicReference<Object> dispatching = new AtomicReference<>();
+  private volatile Thread              loopThread  = null;
+  private long                         stallThreshold = 0;
+
+  private Histogram iterationTime = new Histogram();
+  private Histogram selectedKeys  = new Histogram();
+  private Counter   stalls        = new Counter();
+
   public EventLoop(int simultaneousConnection) {
     executor = new ThreadPoolExecutor(10, simultaneousConnection, 20, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(20));
     try {
@@ -67,24 +86,60 @@ public final class EventLoop implements Runnable {
     if (running)
       return;
     
-    running = true;
+    running    = true;
+    loopThread = Thread.currentThread();
+
+    Thread watchdog = null;
+    if (stallThreshold > 0) {
+      watchdog = new Thread(new Watchdog(stallThreshold), "event-loop-watchdog");
+      watchdog.setDaemon(true);
+      watchdog.start();
+    }
 
     long timeout = 0;
-    while (running) {
-      try {
+    try {
+      while (running) {
+        long timersTime = 0;
+        final int keys;
         if (timers.isEmpty())
-          selector.select(); 
+          keys = selector.select(); 
         else {
+          final long start = System.nanoTime();
+          busySince.lazySet(start);
           timeout = triggerExpiredTimers(System.currentTimeMillis());
-          selector.select(timeout);
+          busySince.lazySet(0);
+
+          timersTime = System.nanoTime() - start;
+          keys       = selector.select(timeout);
         }
 
+        final long selected = System.nanoTime();
+        busySince.lazySet(selected);
+
         dispatchThreads();
         dispatchSelectionKeys();
+
+        busySince.lazySet(0);
+        dispatching.lazySet(null);
+        iterationTime.record((timersTime + System.nanoTime() - selected) / 1000);
+        selectedKeys.record(keys);
       }
-      catch(IOException e) {
-        throw new RuntimeException("Problems to dispatch the selector", e);
-      }
+    }
+    catch(IOException e) {
+      throw new RuntimeException("Problems to dispatch the selector", e);
+    }
+    catch(RuntimeException | Error e) {
+      if (LOGGER.isLoggable(Level.SEVERE))
+        LOGGER.log(Level.SEVERE, "Event loop terminated while dispatching " + dispatching.get(), e);
+
+      throw e;
+    }
+    finally {
+      busySince.set(0);
+      dispatching.set(null);
+      loopThread = null;
+      if (watchdog != null)
+        watchdog.interrupt();
     }
 
     synchronized(sync) {
@@ -127,7 +182,7 @@ public final class EventLoop implements Runnable {
   public boolean unregisterAcceptListener(final ServerSocketChannel channel) {
     synchronized (sync) {
       SelectionKey key = channel.keyFor(selector);
-      if (key != null && (key.interestOps() & SelectionKey.OP_ACCEPT) != 0) {
+      if (key != null && key.isValid()) {
         key.cancel();
         return true;
       }
@@ -136,6 +191,26 @@ public final class EventLoop implements Runnable {
     }
   }
 
+  public boolean pauseAcceptListener(final ServerSocketChannel channel) {
+    return setAcceptInterest(channel, 0);
+  }
+
+  public boolean resumeAcceptListener(final ServerSocketChannel channel) {
+    return setAcceptInterest(channel, SelectionKey.OP_ACCEPT);
+  }
+
+  private boolean setAcceptInterest(final ServerSocketChannel channel, final int ops) {
+    synchronized (sync) {
+      SelectionKey key = channel.keyFor(selector);
+      if (key == null || !key.isValid() || key.interestOps() == ops)
+        return false;
+
+      key.interestOps(ops);
+      selector.wakeup();
+      return true;
+    }
+  }
+
   public ReaderListener registerReaderListener(final SelectableChannel channel, final ReaderListener listener) {
     ReaderListener oldListener = null;
     synchronized (sync) {
@@ -146,7 +221,7 @@ public final class EventLoop implements Runnable {
 
           selector.wakeup();
 
-          Object listeners[] = new Object[2];
+          Object listeners[] = new Object[LISTENERS];
           listeners[READ]  = listener;
           listeners[WRITE] = null;
           channel.register(selector, SelectionKey.OP_READ, listeners); 
@@ -176,11 +251,37 @@ public final class EventLoop implements Runnable {
     }
   }
   
+  public void registerConnectListener(final SocketChannel channel, final ConnectListener listener) {
+    synchronized (sync) {
+      SelectionKey key = channel.keyFor(selector);
+      if (key == null || !key.isValid()) {
+        try {
+          channel.configureBlocking(false);
+
+          selector.wakeup();
+
+          Object listeners[] = new Object[LISTENERS];
+          listeners[CONNECT] = listener;
+          channel.register(selector, SelectionKey.OP_CONNECT, listeners);
+        }
+        catch (IOException e) {
+          throw new RuntimeException("Problems to register a selector", e);
+        }
+      }
+      else {
+        ((Object[]) key.attachment())[CONNECT] = listener;
+        key.interestOps(key.interestOps() | SelectionKey.OP_CONNECT);
+        selector.wakeup();
+      }
+    }
+  }
+
   public void registerThreadListener(final Runnable thread) {
     try {
       executor.execute(thread);
     }
     catch (RejectedExecutionException e) {
+      Events.get().executorRejected();
       threads.add(thread);
       selector.wakeup();
     }
@@ -211,7 +312,7 @@ public final class EventLoop implements Runnable {
 
           selector.wakeup();
 
-          Object listeners[] = new Object[2];
+          Object listeners[] = new Object[LISTENERS];
           listeners[WRITE] = listener;
           listeners[READ]  = null;
           channel.register(selector, SelectionKey.OP_WRITE, listeners); 
@@ -257,6 +358,29 @@ public final class EventLoop implements Runnable {
     }
   }
   
+  public int getQueueSize() {
+    return executor.getQueue().size() + threads.size();
+  }
+
+  public int getActiveCount() {
+    return executor.getActiveCount();
+  }
+
+  public void setStallThreshold(final long millis) {
+    if (millis < 0)
+      throw new IllegalArgumentException("Stall threshold cannot be negative");
+
+    stallThreshold = millis;
+  }
+
+  public void registerMetrics(final MetricsRegistry registry) {
+    iterationTime = registry.histogram("tinyhttp_event_loop_iteration_seconds",
+      "Time the event loop spends in each iteration, outside of select.");
+    selectedKeys  = registry.distribution("tinyhttp_event_loop_selected_keys", "Keys ready after each select.");
+    stalls        = registry.counter("tinyhttp_event_loop_stalls_total",
+      "Event loop iterations that took longer than the stall threshold.");
+  }
+
   public void registerTimer(int msecs, final TimerListener listener) {
     if (msecs < 0)
       throw new IllegalArgumentException("Cannot have milliseconds in the past");
@@ -301,6 +425,7 @@ public final class EventLoop implements Runnable {
       if (trigger.expireMS <= now) {
         timers.poll();
 
+        dispatching.lazySet(trigger.handler);
         trigger.handler.timeout();
       } else {
         long timeoutMs = trigger.expireMS - now;
@@ -334,14 +459,77 @@ public final class EventLoop implements Runnable {
 
       it.remove();
 
-      if (key.isValid() && key.isReadable() && ((Object[]) key.attachment())[READ] != null)
-        ((ReaderListener)((Object[]) key.attachment())[READ]).read(key.channel(), this);
+      if (key.isValid() && key.isConnectable() && ((Object[]) key.attachment())[CONNECT] != null) {
+        final ConnectListener listener = (ConnectListener) ((Object[]) key.attachment())[CONNECT];
+        ((Object[]) key.attachment())[CONNECT] = null;
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_CONNECT);
+        dispatching.lazySet(listener);
+        listener.connect((SocketChannel) key.channel(), this);
+      }
+
+      if (key.isValid() && key.isReadable() && ((Object[]) key.attachment())[READ] != null) {
+        final ReaderListener listener = (ReaderListener)((Object[]) key.attachment())[READ];
+        dispatching.lazySet(listener);
+        listener.read(key.channel(), this);
+      }
       
-      if (key.isValid() && key.isWritable() && ((Object[]) key.attachment())[WRITE] != null)
-        ((WriterListener)((Object[]) key.attachment())[WRITE]).write(key.channel(), this);
+      if (key.isValid() && key.isWritable() && ((Object[]) key.attachment())[WRITE] != null) {
+        final WriterListener listener = (WriterListener)((Object[]) key.attachment())[WRITE];
+        dispatching.lazySet(listener);
+        listener.write(key.channel(), this);
+      }
       
-      if (key.isValid() && key.isAcceptable())
-        ((AcceptListener) key.attachment()).accept((ServerSocketChannel) key.channel(), this);
+      if (key.isValid() && key.isAcceptable()) {
+        final AcceptListener listener = (AcceptListener) key.attachment();
+        dispatching.lazySet(listener);
+        listener.accept((ServerSocketChannel) key.channel(), this);
+      }
+    }
+  }
+
+  private final class Watchdog implements Runnable {
+    private final long threshold;
+
+    Watchdog(final long threshold) {
+      this.threshold = TimeUnit.MILLISECONDS.toNanos(threshold);
+    }
+
+    @Override
+    public void run() {
+      final long period = Math.max(TimeUnit.NANOSECONDS.toMillis(threshold) / 4, 1);
+
+      long reported = 0;
+      while (!Thread.currentThread().isInterrupted()) {
+        try {
+          Thread.sleep(period);
+        }
+        catch (InterruptedException e) {
+          return;
+        }
+
+        final long since  = busySince.get();
+        final Thread loop = loopThread;
+        if (since == 0 || since == reported || loop == null || System.nanoTime() - since <= threshold)
+          continue;
+
+        final Object listener = dispatching.get();
+        final StackTraceElement stack[] = loop.getStackTrace();
+        if (busySince.get() != since)
+          continue;
+
+        reported = since;
+        stalls.increment();
+
+        if (LOGGER.isLoggable(Level.WARNING)) {
+          final StringBuilder sb = new StringBuilder("Event loop stalled for ")
+            .append(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - since)).append(" ms in ")
+            .append(listener == null ? "the loop itself" : listener.getClass().getName() + " (" + listener + ")");
+          for (StackTraceElement element : stack)
+            sb.append("\n\tat ").append(element);
+
+          LOGGER.warning(sb.toString());
+        }
+      }
     }
   }
   
@@ -0,0 +1,41 @@
+/* Copyright (C) 2013 Leonardo Bispo de Oliveira
+ *
+ * This library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2 of
+ * the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package br.com.is.nio.listener;
+
+import java.nio.channels.SocketChannel;
+
+import br.com.is.nio.EventLoop;
+
+/**
+ * This Interface will be used as a callback for the NIO connect events.
+ * Register an implemented class inside the EventLoop after starting a non
+ * blocking connect. When the OP_CONNECT event occur, the connect method
+ * will be called once and must call finishConnect on the channel.
+ * 
+ * @author Leonardo Bispo de Oliveira.
+ *
+ */
+public interface ConnectListener {
+  /**
+   * This method will be called when the OP_CONNECT event occur.
+   * 
+   * @param channel Channel that is ready to finish the connection.
+   * @param manager The event loop manager.
+   * 
+   */
+  public void connect(final SocketChannel channel, final EventLoop manager);
+}
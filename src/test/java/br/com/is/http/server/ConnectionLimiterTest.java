@@ -0,0 +1,55 @@
+package br.com.is.http.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import br.com.is.metrics.MetricsRegistry;
+
+public final class ConnectionLimiterTest {
+  @Test
+  public void testGlobalLimit() {
+    final ConnectionLimiter limiter = new ConnectionLimiter(new MetricsRegistry());
+    limiter.setMaxConnections(2);
+
+    assertTrue(limiter.acquire("10.0.0.1"));
+    assertFalse(limiter.isFull());
+    assertTrue(limiter.acquire("10.0.0.2"));
+    assertTrue(limiter.isFull());
+
+    limiter.release("10.0.0.1");
+    assertFalse(limiter.isFull());
+    assertEquals(1, limiter.getOpenConnections());
+  }
+
+  @Test
+  public void testAddressLimit() {
+    final ConnectionLimiter limiter = new ConnectionLimiter(new MetricsRegistry());
+    limiter.setMaxConnectionsPerAddress(2);
+
+    assertTrue(limiter.acquire("10.0.0.1"));
+    assertTrue(limiter.acquire("10.0.0.1"));
+    assertFalse(limiter.acquire("10.0.0.1"));
+    assertTrue(limiter.acquire("10.0.0.2"));
+    assertEquals(1, limiter.rejected.sum());
+    assertEquals(3, limiter.getOpenConnections());
+
+    limiter.release("10.0.0.1");
+    assertTrue(limiter.acquire("10.0.0.1"));
+
+    limiter.release("10.0.0.1");
+    limiter.release("10.0.0.1");
+    limiter.release("10.0.0.2");
+    assertEquals(0, limiter.getOpenConnections());
+
+    assertTrue(limiter.acquire("10.0.0.1"));
+    assertTrue(limiter.acquire("10.0.0.1"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNegativeLimit() {
+    new ConnectionLimiter(new MetricsRegistry()).setMaxConnections(-1);
+  }
+}
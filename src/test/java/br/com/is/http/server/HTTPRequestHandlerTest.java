@@ -0,0 +1,157 @@
+package br.com.is.http.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Hashtable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import br.com.is.http.server.session.MemorySessionStore;
+import br.com.is.http.server.session.SecureSessionIdGenerator;
+import br.com.is.metrics.MetricsRegistry;
+import br.com.is.nio.EventLoop;
+
+public final class HTTPRequestHandlerTest {
+  private static final int CONNECTIONS = 100000;
+
+  @Test
+  public void testIdleConnectionFootprint() throws Exception {
+    final Hashtable<String, HTTPContext> contexts = new Hashtable<>();
+    final MemorySessionStore sessions = new MemorySessionStore();
+    final SecureSessionIdGenerator sessionIds = new SecureSessionIdGenerator();
+    final EventLoop loop = new EventLoop(10);
+    final ConnectionTimeouts timeouts = new ConnectionTimeouts(loop, new MetricsRegistry());
+    final ConnectionLimiter limiter = new ConnectionLimiter(new MetricsRegistry());
+
+    try (final SocketChannel socket = SocketChannel.open()) {
+      final Object connections[] = new Object[CONNECTIONS];
+      final long before = usedHeap();
+
+      for (int i = 0; i < CONNECTIONS; ++i) {
+        connections[i] = new HTTPRequestHandler(new HTTPChannel(socket, null, loop, null, limiter, timeouts), contexts,
+          sessions, sessionIds, loop, null, null, null);
+      }
+
+      final long retained = (usedHeap() - before) / CONNECTIONS;
+      assertTrue(retained + " bytes retained per idle connection", retained < 1024);
+      assertTrue(connections[CONNECTIONS - 1] != null);
+    }
+    finally {
+      loop.stop(1);
+    }
+  }
+
+  @Test
+  public void testLazyRequestState() throws Exception {
+    final CountDownLatch entered = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final Hashtable<String, HTTPContext> contexts = new Hashtable<>();
+    contexts.put("/test.html", new HTTPContext() {
+      @Override
+      public void doGet(final HTTPRequest req, final HTTPResponse resp) {
+        try {
+          entered.countDown();
+          release.await(5, TimeUnit.SECONDS);
+          resp.getOutputStream().write("ok".getBytes());
+        }
+        catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      }
+    });
+
+    // The loop only starts after the requests are read, otherwise the reader of the dispatched request would take
+    // the bytes of the next one.
+    final EventLoop loop = new EventLoop(10);
+    try (final ServerSocketChannel server = ServerSocketChannel.open()) {
+      server.socket().bind(new InetSocketAddress("localhost", 0));
+      try (final Socket client = new Socket("localhost", server.socket().getLocalPort());
+        final SocketChannel socket = server.accept()) {
+        socket.configureBlocking(false);
+        client.setSoTimeout(5000);
+        final OutputStream out = client.getOutputStream();
+
+        final HTTPRequestHandler handler = new HTTPRequestHandler(new HTTPChannel(socket, null, loop, null, null, null),
+          contexts, new MemorySessionStore(), new SecureSessionIdGenerator(), loop, null, null, null);
+        final Hashtable<String, String> noHeader = handler.getHeader();
+        final Hashtable<String, Cookie> noCookies = handler.getCookies();
+
+        // Nothing to read: the buffer is borrowed and given back.
+        handler.read(null, loop);
+        assertFalse(handler.hasBuffer());
+        final int pooled = HTTPRequestHandler.getPooledBuffers();
+        assertTrue(pooled > 0);
+
+        // Part of the header: the buffer is kept and only the header table is created.
+        out.write("GET /test.html HTTP/1.1\r\nHost: loc".getBytes());
+        read(handler, loop);
+        assertTrue(handler.hasBuffer());
+        assertEquals(pooled - 1, HTTPRequestHandler.getPooledBuffers());
+        assertNotSame(noHeader, handler.getHeader());
+        assertSame(noCookies, handler.getCookies());
+
+        // The whole header: the buffer goes back to the pool at the dispatch.
+        out.write("alhost\r\nConnection: keep-alive\r\nCookie: user=leo\r\nX-Request: 1\r\n\r\n".getBytes());
+        read(handler, loop);
+        assertFalse(handler.hasBuffer());
+        assertEquals(pooled, HTTPRequestHandler.getPooledBuffers());
+        assertEquals("1", handler.getHeader().get("x-request"));
+        assertEquals("leo", handler.getCookies().get("user").getValue());
+
+        // The next request on the keep-alive connection is parsed from the bytes read before the reset.
+        assertTrue(entered.await(5, TimeUnit.SECONDS));
+        out.write("GET /test.html HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\nX-Request: 2\r\n\r\n".getBytes());
+        read(handler, loop);
+        assertEquals("2", handler.getHeader().get("x-request"));
+        assertSame(noCookies, handler.getCookies());
+        assertFalse(handler.hasBuffer());
+
+        new Thread(loop).start();
+        release.countDown();
+        final InputStream in = client.getInputStream();
+        final byte response[] = new byte[15];
+        int length = 0;
+        while (length < response.length) {
+          final int read = in.read(response, length, response.length - length);
+          if (read < 0)
+            break;
+
+          length += read;
+        }
+
+        assertEquals("HTTP/1.1 200 OK", new String(response, 0, length));
+      }
+    }
+    finally {
+      release.countDown();
+      loop.stop(1);
+    }
+  }
+
+  private static void read(final HTTPRequestHandler handler, final EventLoop loop) throws InterruptedException {
+    Thread.sleep(100);
+    handler.read(null, loop);
+  }
+
+  private static long usedHeap() throws InterruptedException {
+    final Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; ++i) {
+      System.gc();
+      Thread.sleep(50);
+    }
+
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
@@ -0,0 +1,108 @@
+package br.com.is.http.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Hashtable;
+
+import org.junit.Test;
+
+public final class HTTPResponseCacheTest {
+  @Test
+  public void testFrequencySketch() {
+    final FrequencySketch sketch = new FrequencySketch(512);
+    for (int i = 0; i < 10; ++i)
+      sketch.increment(42);
+    sketch.increment(7);
+
+    assertEquals(10, sketch.frequency(42));
+    assertEquals(1, sketch.frequency(7));
+    assertEquals(0, sketch.frequency(99));
+
+    for (int i = 0; i < 20; ++i)
+      sketch.increment(42);
+    assertEquals(15, sketch.frequency(42));
+  }
+
+  @Test
+  public void testFrequencySketchAging() {
+    final FrequencySketch sketch = new FrequencySketch(16);
+    for (int i = 0; i < 8; ++i)
+      sketch.increment(42);
+
+    for (int i = 0; i < 10 * 16; ++i)
+      sketch.increment(CachedResponse.spread(i + 1000));
+
+    assertTrue(sketch.frequency(42) < 8);
+  }
+
+  @Test
+  public void testPagePool() {
+    final PagePool pool = new PagePool(3 * PagePool.PAGE_SIZE);
+    assertEquals(3, pool.capacity());
+
+    final int pages[] = { pool.allocate(), pool.allocate(), pool.allocate() };
+    assertEquals(-1, pool.allocate());
+    assertEquals(3, pool.used());
+
+    final ByteBuffer first = pool.page(pages[0]);
+    final ByteBuffer last  = pool.page(pages[2]);
+    assertEquals(PagePool.PAGE_SIZE, first.remaining());
+    first.put((byte) 1);
+    last.put((byte) 2);
+    assertEquals(1, pool.page(pages[0]).get(0));
+    assertEquals(2, pool.page(pages[2]).get(0));
+
+    pool.release(pages, 2);
+    assertEquals(1, pool.used());
+    assertTrue(pool.allocate() >= 0);
+  }
+
+  @Test
+  public void testRecorderLimit() {
+    final HTTPResponseCache cache = new HTTPResponseCache(64 * PagePool.PAGE_SIZE, 2 * PagePool.PAGE_SIZE);
+    final HTTPResponseCache.Recorder recorder = cache.new Recorder();
+
+    assertTrue(recorder.write(new byte[PagePool.PAGE_SIZE + 10], 0, PagePool.PAGE_SIZE + 10));
+    assertFalse(recorder.write(new byte[PagePool.PAGE_SIZE], 0, PagePool.PAGE_SIZE));
+    assertFalse(recorder.write(new byte[1], 0, 1));
+  }
+
+  @Test
+  public void testBypass() {
+    final HTTPResponseCache cache = new HTTPResponseCache(64 * PagePool.PAGE_SIZE);
+    final Hashtable<String, String> header = new Hashtable<>();
+
+    assertNull(cache.begin(HTTPRequest.RequestMethod.POST, "/a", null, header, null, 0));
+    assertNotNull(cache.begin(HTTPRequest.RequestMethod.GET, "/a", null, header, null, 0));
+    assertNotNull(cache.begin(HTTPRequest.RequestMethod.HEAD, "/a", null, header, "gzip", 0));
+
+    header.put("range", "bytes=0-10");
+    assertNull(cache.begin(HTTPRequest.RequestMethod.GET, "/a", null, header, null, 0));
+
+    header.clear();
+    header.put("cache-control", "max-age=0, no-store");
+    assertNull(cache.begin(HTTPRequest.RequestMethod.GET, "/a", null, header, null, 0));
+  }
+
+  @Test
+  public void testMissesCounted() {
+    final HTTPResponseCache cache = new HTTPResponseCache(64 * PagePool.PAGE_SIZE);
+    final Hashtable<String, String> header = new Hashtable<>();
+
+    for (int i = 0; i < 3; ++i)
+      assertNotNull(cache.begin(HTTPRequest.RequestMethod.GET, "/a", "b=1", header, null, 0));
+
+    assertEquals(3, cache.getFrequency("/a?b=1"));
+    assertEquals(0, cache.getFrequency("/a"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testEntryBiggerThanBudget() {
+    new HTTPResponseCache(4 * PagePool.PAGE_SIZE, 8 * PagePool.PAGE_SIZE);
+  }
+}
@@ -1,6 +1,7 @@
 package br.com.is.http.server;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import java.io.File;
 import java.io.FileInputStream;
@@ -8,15 +9,30 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.net.HttpURLConnection;
 import java.net.InetSocketAddress;
+import java.net.Socket;
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.security.DigestInputStream;
 import java.security.KeyStore;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Scanner;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.GZIPInputStream;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
 
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.KeyManagerFactory;
@@ -28,6 +44,8 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import br.com.is.http.server.accesslog.AccessLog;
+import br.com.is.http.server.accesslog.AccessLogFormat;
 import br.com.is.http.server.annotation.Context;
 import br.com.is.http.server.annotation.GET;
 import br.com.is.http.server.annotation.POST;
@@ -57,6 +75,49 @@ final class MultipartTest {
   }
 }
 
+final class StreamingContext extends HTTPContext implements PartListener {
+  private MessageDigest md;
+  private String        digest;
+  
+  StreamingContext() {
+    setPartListener(this);
+  }
+  
+  @Override
+  public void partBegin(HTTPRequest request, String name, String fileName, Map<String, String> header) {
+    try {
+      md = MessageDigest.getInstance("MD5");
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
+  
+  @Override
+  public void partData(HTTPRequest request, ByteBuffer data) {
+    md.update(data);
+    try {
+      Thread.sleep(1);
+    }
+    catch (InterruptedException e) {}
+  }
+  
+  @Override
+  public void partEnd(HTTPRequest request) {
+    digest = (new HexBinaryAdapter()).marshal(md.digest());
+  }
+  
+  @Override
+  public void doPost(HTTPRequest req, HTTPResponse resp) {
+    try {
+      resp.getOutputStream().write(digest.getBytes());
+    }
+    catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+}
+
 @Context(urlPattern="/test/annotation.html")
 final class AnnotationTest {
   @GET
@@ -101,6 +162,11 @@ public final class HTTPTest {
   private String     content = null;
   private HTTPServer http    = null;
   private HTTPServer https   = null;
+  private File       accessLog;
+
+  private final AtomicInteger     cachedCalls    = new AtomicInteger();
+  private final AtomicInteger     coalescedCalls = new AtomicInteger();
+  private final HTTPResponseCache responseCache  = new HTTPResponseCache(4 * 1024 * 1024);
   
   static {  
     javax.net.ssl.HttpsURLConnection.setDefaultHostnameVerifier(new javax.net.ssl.HostnameVerifier() {  
@@ -215,6 +281,109 @@ public final class HTTPTest {
    
     http.addContext("/testerror1.html", ctxTestError);
     
+    http.addContext("/streaming.html", new StreamingContext());
+    http.addContext("/metrics", new MetricsContext(http.getMetrics()));
+
+    http.addContext("/cached.html", new HTTPContext() {
+      @Override
+      public void doGet(HTTPRequest req, HTTPResponse resp) {
+        final int calls = cachedCalls.incrementAndGet();
+        if ("\"v1\"".equals(req.getHeader("if-none-match")) && req.getParameter("revalidate") != null) {
+          resp.addHeader("Cache-Control", "max-age=60");
+          resp.setStatus(HTTPStatus.NOT_MODIFIED);
+          return;
+        }
+
+        resp.addHeader("Cache-Control", req.getParameter("revalidate") != null ? "max-age=1" : "max-age=60");
+        resp.addHeader("ETag", "\"v1\"");
+        resp.addHeader("Vary", "X-Variant");
+        try {
+          final OutputStream os = resp.getOutputStream();
+          os.write(("call " + calls + " ").getBytes());
+          os.write(content.getBytes());
+          os.flush();
+        }
+        catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+    });
+    final HTTPContext coalesced = new HTTPContext() {
+      @Override
+      public void doGet(HTTPRequest req, HTTPResponse resp) {
+        final int calls = coalescedCalls.incrementAndGet();
+        try {
+          Thread.sleep(500);
+
+          final OutputStream os = resp.getOutputStream();
+          os.write(("call " + calls + " ").getBytes());
+          if (req.getHeader("authorization") != null)
+            os.write(("private data of " + req.getHeader("authorization") + " ").getBytes());
+          os.write(content.getBytes());
+          os.flush();
+        }
+        catch (IOException | InterruptedException e) {
+          e.printStackTrace();
+        }
+      }
+    };
+    coalesced.setCoalesceTimeout(5000);
+    http.addContext("/coalesced.html", coalesced);
+
+    final HTTPContext failed = new HTTPContext() {
+      @Override
+      public void doGet(HTTPRequest req, HTTPResponse resp) {
+        final int calls = coalescedCalls.incrementAndGet();
+        try {
+          Thread.sleep(500);
+          if (calls == 1)
+            throw new Error("Handler failure");
+
+          resp.getOutputStream().write(("call " + calls).getBytes());
+        }
+        catch (IOException | InterruptedException e) {
+          e.printStackTrace();
+        }
+      }
+    };
+    failed.setCoalesceTimeout(5000);
+    http.addContext("/failed.html", failed);
+
+    final HTTPContext etag = new HTTPContext() {
+      @Override
+      public void doGet(HTTPRequest req, HTTPResponse resp) {
+        final PrintWriter writer = resp.getWriter();
+        writer.print(req.getParameter("param1"));
+        writer.flush();
+        writer.print(content);
+      }
+    };
+    etag.setAutoETagLimit(1024 * 1024);
+    http.addContext("/etag.html", etag);
+
+    final HTTPContext noETag = new HTTPContext() {
+      @Override
+      public void doGet(HTTPRequest req, HTTPResponse resp) {
+        resp.getWriter().print(content);
+      }
+    };
+    noETag.setAutoETagLimit(16);
+    http.addContext("/noetag.html", noETag);
+
+    final HTTPContext limited = new HTTPContext() {
+      @Override
+      public void doGet(HTTPRequest req, HTTPResponse resp) {
+        resp.getWriter().print(content);
+      }
+    };
+    limited.setRateLimit(0.1, 2, "X-Client");
+    http.addContext("/limited.html", limited);
+
+    http.setResponseCache(responseCache);
+
+    accessLog = File.createTempFile("access", ".log");
+    http.setAccessLog(new AccessLog(accessLog, AccessLogFormat.COMBINED));
+    
     (new Thread(http)).start();
     (new Thread(https)).start();
     
@@ -225,6 +394,8 @@ public final class HTTPTest {
   public final void tearDown() throws Exception {
     http.stop(10);
     https.stop(10);
+
+    accessLog.delete();
   }
 
   @Test
@@ -366,6 +537,35 @@ public final class HTTPTest {
     is.close();
   }
   
+  @Test
+  public void testMultipartStreaming() throws Exception {
+    final String header = "--boundary\r\nContent-Disposition: form-data; name=\"file\";filename=\"file.bin\"\r\nContent-Type: application/octet-stream\r\n\r\n";
+    final String footer = "\r\n--boundary--";
+    
+    final byte data[] = new byte[2 * 1024 * 1024];
+    new Random(42).nextBytes(data);
+    
+    final URL url = new URL("http://localhost:9999/streaming.html"); 
+    final HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+    
+    conn.setDoInput(true);
+    conn.setDoOutput(true);
+    conn.setRequestMethod("POST"); 
+    conn.setRequestProperty("Content-Type", "multipart/form-data;boundary=boundary");
+    conn.setFixedLengthStreamingMode(header.length() + data.length + footer.length());
+    
+    conn.getOutputStream().write(header.getBytes());
+    conn.getOutputStream().write(data);
+    conn.getOutputStream().write(footer.getBytes());
+    
+    final String hex = (new HexBinaryAdapter()).marshal(MessageDigest.getInstance("MD5").digest(data));
+
+    final InputStream is = conn.getInputStream();
+    
+    assertEquals(hex, readInputStream(is));
+    is.close();
+  }
+  
   @Test
   public void testStaticContextDirectory() throws Exception {
     final URL url = new URL("http://localhost:9999");
@@ -515,6 +715,422 @@ public final class HTTPTest {
     assertEquals(404, conn.getResponseCode());
   }
   
+  @Test
+  public void testMetrics() throws Exception {
+    readInputStream(new URL("http://localhost:9999/test.html?param1=test&param2=this+is+a+test").openStream());
+    final HttpURLConnection notFound = (HttpURLConnection) new URL("http://localhost:9999/notfound.html").openConnection();
+    assertEquals(404, notFound.getResponseCode());
+    readInputStream(notFound.getErrorStream());
+
+    final URL url = new URL("http://localhost:9999/metrics");
+    final HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+    assertTrue(conn.getContentType().startsWith("text/plain; version=0.0.4"));
+
+    final String metrics = readInputStream(conn.getInputStream());
+    assertTrue(metrics, metrics.contains("tinyhttp_request_duration_seconds_count{context=\"/test.html\",class=\"2xx\"} 1\n"));
+    assertTrue(metrics, metrics.contains("tinyhttp_request_duration_seconds_count{context=\"/\",class=\"4xx\"} 1\n"));
+    assertTrue(metrics, metrics.contains("tinyhttp_connections_total 3\n"));
+    assertTrue(metrics, metrics.contains("# TYPE tinyhttp_received_bytes_total counter\n"));
+    assertTrue(metrics, metrics.contains("# TYPE tinyhttp_sessions gauge\n"));
+    assertTrue(metrics, metrics.contains("tinyhttp_request_phase_seconds_count{phase=\"handler\"} 2\n"));
+    assertTrue(metrics, metrics.contains("tinyhttp_request_phase_seconds_count{phase=\"write\"} 2\n"));
+  }
+
+  @Test
+  public void testResponseCache() throws Exception {
+    final URL url = new URL("http://localhost:9999/cached.html");
+    assertEquals("call 1 " + content, readInputStream(url.openStream()));
+
+    HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+    assertEquals("call 1 " + content, readInputStream(conn.getInputStream()));
+    assertEquals("\"v1\"", conn.getHeaderField("ETag"));
+    assertTrue(conn.getHeaderField("Age") != null);
+
+    conn = (HttpURLConnection) url.openConnection();
+    conn.setRequestProperty("If-None-Match", "\"v1\"");
+    assertEquals(304, conn.getResponseCode());
+
+    conn = (HttpURLConnection) url.openConnection();
+    conn.setRequestProperty("X-Variant", "other");
+    assertEquals("call 2 " + content, readInputStream(conn.getInputStream()));
+
+    for (int i = 0; i < 2; ++i) {
+      conn = (HttpURLConnection) url.openConnection();
+      conn.setRequestProperty("Accept-Encoding", "gzip");
+      assertEquals("gzip", conn.getContentEncoding());
+      assertEquals("call 3 " + content, readInputStream(new GZIPInputStream(conn.getInputStream())));
+
+      // The chunked response is complete before the server stores it.
+      for (int j = 0; j < 100 && responseCache.size() < 3; ++j)
+        Thread.sleep(20);
+    }
+
+    conn = (HttpURLConnection) url.openConnection();
+    conn.setRequestProperty("Cache-Control", "no-store");
+    assertEquals("call 4 " + content, readInputStream(conn.getInputStream()));
+    assertEquals(4, cachedCalls.get());
+
+    final String metrics = readInputStream(new URL("http://localhost:9999/metrics").openStream());
+    assertTrue(metrics, metrics.contains("tinyhttp_response_cache_requests_total{result=\"hit\"} 3\n"));
+    assertTrue(metrics, metrics.contains("tinyhttp_response_cache_requests_total{result=\"miss\"} 4\n"));
+    assertTrue(metrics, metrics.contains("tinyhttp_response_cache_requests_total{result=\"bypass\"} 1\n"));
+    assertTrue(metrics, metrics.contains("tinyhttp_response_cache_entries 3\n"));
+  }
+
+  @Test
+  public void testResponseCacheRevalidation() throws Exception {
+    final URL url = new URL("http://localhost:9999/cached.html?revalidate=1");
+    assertEquals("call 1 " + content, readInputStream(url.openStream()));
+
+    Thread.sleep(1100);
+
+    final HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+    assertEquals("call 1 " + content, readInputStream(conn.getInputStream()));
+    assertEquals(2, cachedCalls.get());
+
+    assertEquals("call 1 " + content, readInputStream(url.openStream()));
+    assertEquals(2, cachedCalls.get());
+  }
+
+  @Test
+  public void testRequestCoalescing() throws Exception {
+    final URL url = new URL("http://localhost:9999/coalesced.html");
+    final List<String> bodies = Collections.synchronizedList(new ArrayList<String>());
+    final List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < 5; ++i) {
+      threads.add(new Thread() {
+        @Override
+        public void run() {
+          try {
+            bodies.add(readInputStream(url.openStream()));
+          }
+          catch (Exception e) {
+            e.printStackTrace();
+          }
+        }
+      });
+    }
+
+    for (Thread thread : threads)
+      thread.start();
+    for (Thread thread : threads)
+      thread.join();
+
+    assertEquals(5, bodies.size());
+    for (String body : bodies)
+      assertEquals("call 1 " + content, body);
+    assertEquals(1, coalescedCalls.get());
+
+    assertEquals("call 2 " + content, readInputStream(url.openStream()));
+    assertEquals(0, responseCache.size());
+  }
+
+  @Test
+  public void testRequestCoalescingCredentials() throws Exception {
+    final URL url = new URL("http://localhost:9999/coalesced.html");
+    final List<String> bodies = Collections.synchronizedList(new ArrayList<String>());
+    final List<Thread> threads = new ArrayList<>();
+    for (final String user : new String[] { "alice", "bob" }) {
+      threads.add(new Thread() {
+        @Override
+        public void run() {
+          try {
+            final HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+            conn.setRequestProperty("Authorization", "Basic " + user);
+            bodies.add(user + ": " + readInputStream(conn.getInputStream()));
+          }
+          catch (Exception e) {
+            e.printStackTrace();
+          }
+        }
+      });
+    }
+
+    for (Thread thread : threads)
+      thread.start();
+    for (Thread thread : threads)
+      thread.join();
+
+    assertEquals(2, bodies.size());
+    for (String body : bodies) {
+      final String user = body.substring(0, body.indexOf(':'));
+      assertTrue(body, body.contains("private data of Basic " + user + " "));
+    }
+    assertEquals(2, coalescedCalls.get());
+  }
+
+  @Test
+  public void testRequestCoalescingError() throws Exception {
+    final URL url = new URL("http://localhost:9999/failed.html");
+    final Thread leader = new Thread() {
+      @Override
+      public void run() {
+        try {
+          final HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+          conn.setReadTimeout(2000);
+          readInputStream(conn.getInputStream());
+        }
+        catch (Exception e) {
+        }
+      }
+    };
+    leader.start();
+    Thread.sleep(100);
+
+    final long start = System.currentTimeMillis();
+    assertEquals("call 2", readInputStream(url.openStream()));
+    assertTrue(System.currentTimeMillis() - start < 3000);
+    assertEquals(2, coalescedCalls.get());
+
+    leader.join();
+  }
+
+  @Test
+  public void testAutoETag() throws Exception {
+    final URL url = new URL("http://localhost:9999/etag.html?param1=test");
+    HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+    assertEquals("test" + content, readInputStream(conn.getInputStream()));
+
+    final String etag = conn.getHeaderField("ETag");
+    assertTrue(etag, etag.matches("\"[0-9a-f]+-[0-9a-f]+\""));
+    assertEquals(("test" + content).getBytes().length, conn.getContentLength());
+    assertEquals(null, conn.getHeaderField("Transfer-Encoding"));
+
+    conn = (HttpURLConnection) url.openConnection();
+    conn.setRequestProperty("If-None-Match", etag);
+    assertEquals(304, conn.getResponseCode());
+    assertEquals(etag, conn.getHeaderField("ETag"));
+
+    conn = (HttpURLConnection) new URL("http://localhost:9999/etag.html?param1=other").openConnection();
+    conn.setRequestProperty("If-None-Match", etag);
+    assertEquals(200, conn.getResponseCode());
+    assertEquals("other" + content, readInputStream(conn.getInputStream()));
+
+    conn = (HttpURLConnection) url.openConnection();
+    conn.setRequestProperty("Accept-Encoding", "gzip");
+    assertEquals("gzip", conn.getContentEncoding());
+    assertTrue(conn.getContentLength() > 0);
+    assertTrue(!etag.equals(conn.getHeaderField("ETag")));
+    assertEquals("test" + content, readInputStream(new GZIPInputStream(conn.getInputStream())));
+
+    conn = (HttpURLConnection) new URL("http://localhost:9999/noetag.html").openConnection();
+    assertEquals(content, readInputStream(conn.getInputStream()));
+    assertEquals(null, conn.getHeaderField("ETag"));
+  }
+
+  @Test
+  public void testRateLimit() throws Exception {
+    final URL url = new URL("http://localhost:9999/limited.html");
+    for (int i = 0; i < 2; ++i) {
+      final HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+      conn.setRequestProperty("X-Client", "first");
+      assertEquals(content, readInputStream(conn.getInputStream()));
+    }
+
+    HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+    conn.setRequestProperty("X-Client", "first");
+    assertEquals(429, conn.getResponseCode());
+    final int retryAfter = Integer.parseInt(conn.getHeaderField("Retry-After"));
+    assertTrue(Integer.toString(retryAfter), retryAfter > 0 && retryAfter <= 10);
+
+    conn = (HttpURLConnection) url.openConnection();
+    conn.setRequestProperty("X-Client", "second");
+    assertEquals(content, readInputStream(conn.getInputStream()));
+  }
+
+  @Test
+  public void testMaxConnectionsPerAddress() throws Exception {
+    final HTTPServer limited = new HTTPServer(new InetSocketAddress("localhost", 9996), 10);
+    limited.addContext("/limited.html", new HTTPContext() {
+      @Override
+      public void doGet(HTTPRequest req, HTTPResponse resp) {
+        resp.getWriter().print(content);
+      }
+    });
+    limited.setMaxConnectionsPerAddress(1);
+    (new Thread(limited)).start();
+    Thread.sleep(1000);
+
+    try {
+      final Socket idle = new Socket("localhost", 9996);
+      final Socket refused = new Socket("localhost", 9996);
+      try {
+        assertEquals(-1, refused.getInputStream().read());
+      }
+      catch (IOException e) {
+        // The server may reset the connection instead of closing it.
+      }
+      refused.close();
+      idle.close();
+
+      String response = null;
+      for (int i = 0; i < 100 && response == null; ++i) {
+        try {
+          response = readInputStream(new URL("http://localhost:9996/limited.html").openStream());
+        }
+        catch (IOException e) {
+          Thread.sleep(20);
+        }
+      }
+      assertEquals(content, response);
+
+      final StringWriter metrics = new StringWriter();
+      limited.getMetrics().writePrometheus(metrics);
+      assertTrue(metrics.toString(), metrics.toString().contains("tinyhttp_connections_rejected_total 1\n"));
+    }
+    finally {
+      limited.stop(10);
+    }
+  }
+
+  @Test
+  public void testConnectionTimeouts() throws Exception {
+    final HTTPServer server = new HTTPServer(new InetSocketAddress("localhost", 9995), 10);
+    server.addContext("/upload.html", new HTTPContext() {
+      @Override
+      public void doPost(HTTPRequest req, HTTPResponse resp) {
+        try {
+          readInputStream(req.getInputStream());
+        }
+        catch (Exception e) {
+          e.printStackTrace();
+        }
+      }
+    });
+    server.setIdleTimeout(500);
+    server.setHeaderTimeout(500);
+    server.setBodyTimeout(500, 1000);
+    (new Thread(server)).start();
+    Thread.sleep(1000);
+
+    try {
+      final Socket idle = new Socket("localhost", 9995);
+      idle.setSoTimeout(5000);
+      assertEquals(-1, idle.getInputStream().read());
+      idle.close();
+
+      final Socket slowHeader = new Socket("localhost", 9995);
+      slowHeader.setSoTimeout(5000);
+      slowHeader.getOutputStream().write("GET /upload.html HTTP/1.1\r\nHost: local".getBytes());
+      final String response = readInputStream(slowHeader.getInputStream());
+      assertTrue(response, response.startsWith("HTTP/1.1 408 "));
+      slowHeader.close();
+
+      final Socket slowBody = new Socket("localhost", 9995);
+      slowBody.setSoTimeout(5000);
+      slowBody.getOutputStream().write(("POST /upload.html HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n"
+        + "Content-Type: application/x-www-form-urlencoded\r\nContent-Length: 100000\r\n\r\nparam=0123456789").getBytes());
+      try {
+        readInputStream(slowBody.getInputStream());
+      }
+      catch (IOException e) {
+        // The server may reset the connection instead of closing it.
+      }
+      slowBody.close();
+
+      final StringWriter metrics = new StringWriter();
+      server.getMetrics().writePrometheus(metrics);
+      assertTrue(metrics.toString(), metrics.toString().contains("tinyhttp_connection_timeouts_total{type=\"idle\"} 1\n"));
+      assertTrue(metrics.toString(), metrics.toString().contains("tinyhttp_connection_timeouts_total{type=\"header\"} 1\n"));
+      assertTrue(metrics.toString(), metrics.toString().contains("tinyhttp_connection_timeouts_total{type=\"body\"} 1\n"));
+    }
+    finally {
+      server.stop(10);
+    }
+  }
+
+  @Test
+  public void testUnsupportedMediaType() throws Exception {
+    final URL url = new URL("http://localhost:9999/test.html");
+    final HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+    conn.setDoOutput(true);
+    conn.setRequestMethod("POST");
+    conn.setRequestProperty("Content-Type", "application/json");
+    conn.getOutputStream().write("{}".getBytes());
+    assertEquals(415, conn.getResponseCode());
+  }
+
+  @Test
+  public void testHeaderTimeoutShorterThanIdle() throws Exception {
+    final HTTPServer server = new HTTPServer(new InetSocketAddress("localhost", 9994), 10);
+    server.addContext("/test.html", new HTTPContext() {});
+    server.setIdleTimeout(4000);
+    server.setHeaderTimeout(500);
+    (new Thread(server)).start();
+    Thread.sleep(1000);
+
+    try {
+      final Socket slowHeader = new Socket("localhost", 9994);
+      slowHeader.setSoTimeout(5000);
+      final long start = System.currentTimeMillis();
+      slowHeader.getOutputStream().write("GET /test.html HTTP/1.1\r\nHost: local".getBytes());
+      final String response = readInputStream(slowHeader.getInputStream());
+      final long elapsed = System.currentTimeMillis() - start;
+      slowHeader.close();
+
+      assertTrue(response, response.startsWith("HTTP/1.1 408 "));
+      assertTrue("Header timeout expired after " + elapsed + " ms", elapsed < 2000);
+    }
+    finally {
+      server.stop(10);
+    }
+  }
+
+  @Test
+  public void testAccessLog() throws Exception {
+    final URL url = new URL("http://localhost:9999/test.html?param1=test&param2=this+is+a+test");
+    final HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+    conn.setRequestProperty("User-Agent", "tinyhttp-test");
+    conn.setRequestProperty("Referer", "http://localhost/");
+    readInputStream(conn.getInputStream());
+
+    List<String> lines = Files.readAllLines(accessLog.toPath(), StandardCharsets.UTF_8);
+    for (int i = 0; i < 100 && lines.isEmpty(); ++i) {
+      Thread.sleep(20);
+      lines = Files.readAllLines(accessLog.toPath(), StandardCharsets.UTF_8);
+    }
+
+    assertEquals(1, lines.size());
+    assertTrue(lines.get(0), lines.get(0).matches("127\\.0\\.0\\.1 - - \\[.+\\] \"GET /test.html\\?param1=test&param2=this\\+is\\+a\\+test "
+      + "HTTP/1.1\" 200 \\d+ \"http://localhost/\" \"tinyhttp-test\""));
+  }
+
+  @Test
+  public void testSlowRequestLog() throws Exception {
+    final List<String> messages = Collections.synchronizedList(new ArrayList<String>());
+    final Handler handler = new Handler() {
+      @Override
+      public void publish(LogRecord record) {
+        if (record.getMessage() != null && record.getMessage().startsWith("Slow request"))
+          messages.add(record.getMessage());
+      }
+
+      @Override
+      public void flush() {}
+
+      @Override
+      public void close() {}
+    };
+
+    final Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+    logger.addHandler(handler);
+    try {
+      http.setSlowRequestThreshold(1);
+      readInputStream(new URL("http://localhost:9999/test.html?param1=test&param2=this+is+a+test").openStream());
+    }
+    finally {
+      logger.removeHandler(handler);
+    }
+
+    assertEquals(1, messages.size());
+    final String message = messages.get(0);
+    assertTrue(message, message.startsWith("Slow request: GET /test.html 200 from /127.0.0.1:"));
+    assertTrue(message, message.contains("accept="));
+    assertTrue(message, message.contains("queue="));
+    assertTrue(message, message.contains("handler="));
+    assertTrue(message, message.contains("write="));
+  }
+  
   @Test
   public void test400() throws Exception {
     {
@@ -0,0 +1,260 @@
+package br.com.is.http.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.Map;
+
+import org.junit.Test;
+
+import br.com.is.http.server.annotation.Body;
+import br.com.is.http.server.annotation.Header;
+import br.com.is.http.server.annotation.PathParam;
+import br.com.is.http.server.annotation.QueryParam;
+import br.com.is.http.server.exception.BadRequestException;
+
+public final class HandlerBinderTest {
+  public static final class Users {
+    private HTTPResponse response;
+    private long         id;
+    private String       order;
+    private int          limit;
+    private boolean      verbose;
+    private String       agent;
+    private byte         body[];
+
+    public void get(@PathParam("id") long id, final HTTPResponse response, @PathParam("order") String order,
+      @QueryParam("limit") int limit, @QueryParam("verbose") boolean verbose, @Header("User-Agent") String agent) {
+      this.response = response;
+      this.id       = id;
+      this.order    = order;
+      this.limit    = limit;
+      this.verbose  = verbose;
+      this.agent    = agent;
+    }
+
+    public String post(final HTTPRequest request, @Body byte body[]) throws BadRequestException {
+      if (body.length == 0)
+        throw new BadRequestException("Empty body");
+
+      this.body = body;
+      return "ignored";
+    }
+
+    public void put(@Body ByteBuffer body, @Body InputStream is, @Body String text) {
+    }
+
+    public void wrong(Object value) {
+    }
+  }
+
+  @Test
+  public void testTemplate() {
+    final PathTemplate template = new PathTemplate("/users/{id}/orders/{order}");
+
+    assertEquals("/users/", template.getPrefix());
+    assertEquals(2, template.indexOf("id"));
+    assertEquals(4, template.indexOf("order"));
+    assertEquals(-1, template.indexOf("missing"));
+    assertTrue(template.matches("/users/42/orders/a1"));
+    assertFalse(template.matches("/users/42/orders/"));
+    assertFalse(template.matches("/users/42/orders/a1/"));
+    assertFalse(template.matches("/users/42/items/a1"));
+    assertFalse(template.matches("/users//orders/a1"));
+    assertFalse(template.matches("/users/42"));
+    assertEquals("42", template.segment("/users/42/orders/a1", 2));
+    assertEquals("a1", template.segment("/users/42/orders/a1", 4));
+
+    assertFalse(PathTemplate.isTemplate("/test/annotation.html"));
+  }
+
+  @Test
+  public void testBinding() throws NoSuchMethodException {
+    final Users users = new Users();
+    final HTTPAnnotatedContext context = context(users, "/users/{id}/orders/{order}");
+    assertEquals("/users/", context.getRegistrationPattern());
+
+    final Map<String, String> header = new Hashtable<>();
+    header.put("user-agent", "junit");
+
+    final Recorder response = new Recorder();
+    context.doGet(request("/users/42/orders/a1", "limit=10&verbose=true", header, null), response.proxy());
+
+    assertEquals(0, response.status);
+    assertEquals(42, users.id);
+    assertEquals("a1", users.order);
+    assertEquals(10, users.limit);
+    assertTrue(users.verbose);
+    assertEquals("junit", users.agent);
+    assertTrue(Proxy.isProxyClass(users.response.getClass()));
+  }
+
+  @Test
+  public void testBadRequest() throws NoSuchMethodException {
+    final HTTPAnnotatedContext context = context(new Users(), "/users/{id}/orders/{order}");
+
+    Recorder response = new Recorder();
+    context.doGet(request("/users/42/orders/a1", "verbose=true", new Hashtable<String, String>(), null), response.proxy());
+    assertEquals(400, response.status);
+
+    response = new Recorder();
+    context.doGet(request("/users/abc/orders/a1", "limit=1&verbose=true", new Hashtable<String, String>(), null),
+      response.proxy());
+    assertEquals(400, response.status);
+
+    response = new Recorder();
+    context.doGet(request("/users/42/items/a1", "limit=1&verbose=true", new Hashtable<String, String>(), null),
+      response.proxy());
+    assertEquals(404, response.status);
+  }
+
+  @Test
+  public void testBody() throws NoSuchMethodException {
+    final Users users = new Users();
+    final HTTPAnnotatedContext context = context(users, "/users/{id}/orders/{order}");
+    assertTrue(context.readsPostBody());
+    assertFalse(HandlerBinder.readsBody(Users.class.getMethod("wrong", Object.class)));
+
+    Recorder response = new Recorder();
+    context.doPost(request("/users/1/orders/2", null, new Hashtable<String, String>(), "payload".getBytes()), response.proxy());
+    assertEquals(0, response.status);
+    assertArrayEquals("payload".getBytes(), users.body);
+
+    response = new Recorder();
+    context.doPost(request("/users/1/orders/2", null, new Hashtable<String, String>(), new byte[0]), response.proxy());
+    assertEquals(400, response.status);
+  }
+
+  @Test
+  public void testBodyLimit() throws NoSuchMethodException {
+    final Users users = new Users();
+    final HTTPAnnotatedContext context = context(users, "/users/{id}/orders/{order}");
+
+    final byte large[] = new byte[10000];
+    Arrays.fill(large, (byte) 'a');
+    Recorder response = new Recorder();
+    context.doPost(request("/users/1/orders/2", null, new Hashtable<String, String>(), large), response.proxy());
+    assertEquals(0, response.status);
+    assertArrayEquals(large, users.body);
+
+    context.setMaxContentLength(4);
+    final Map<String, String> header = new Hashtable<>();
+    header.put("content-length", String.valueOf(Integer.MAX_VALUE));
+    response = new Recorder();
+    context.doPost(request("/users/1/orders/2", null, header, "payload".getBytes()), response.proxy());
+    assertEquals(413, response.status);
+
+    response = new Recorder();
+    context.doPost(request("/users/1/orders/2", null, new Hashtable<String, String>(), "payload".getBytes()),
+      response.proxy());
+    assertEquals(413, response.status);
+
+    response = new Recorder();
+    context.doPost(request("/users/1/orders/2", null, new Hashtable<String, String>(), "data".getBytes()),
+      response.proxy());
+    assertEquals(0, response.status);
+    assertArrayEquals("data".getBytes(), users.body);
+
+    // The empty body reaches the handler, which rejects it.
+    context.setMaxContentLength(0);
+    response = new Recorder();
+    context.doPost(request("/users/1/orders/2", null, new Hashtable<String, String>(), new byte[0]), response.proxy());
+    assertEquals(400, response.status);
+
+    response = new Recorder();
+    context.doPost(request("/users/1/orders/2", null, new Hashtable<String, String>(), "d".getBytes()), response.proxy());
+    assertEquals(413, response.status);
+  }
+
+  @Test
+  public void testInvalidSignature() throws NoSuchMethodException {
+    try {
+      new HTTPAnnotatedContext(new Users(), "/users/", null, null, null, null,
+        Users.class.getMethod("wrong", Object.class));
+      fail("Unsupported parameter was accepted");
+    }
+    catch (IllegalArgumentException e) {}
+
+    try {
+      context(new Users(), "/users/{other}/orders/{order}");
+      fail("Unknown @PathParam was accepted");
+    }
+    catch (IllegalArgumentException e) {}
+  }
+
+  private static HTTPAnnotatedContext context(final Users users, final String pattern) throws NoSuchMethodException {
+    return new HTTPAnnotatedContext(users, pattern,
+      Users.class.getMethod("get", long.class, HTTPResponse.class, String.class, int.class, boolean.class, String.class),
+      Users.class.getMethod("post", HTTPRequest.class, byte[].class), null, null,
+      Users.class.getMethod("put", ByteBuffer.class, InputStream.class, String.class));
+  }
+
+  private static HTTPRequest request(final String uri, final String query, final Map<String, String> header,
+    final byte body[]) {
+    final Parameters params = new Parameters(100, 1024);
+    if (query != null) {
+      try {
+        params.parse(query.getBytes(), 0, query.length());
+      }
+      catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    // Like HTTPInputStream, the single byte read is not implemented.
+    final InputStream is = body == null ? null : new ByteArrayInputStream(body) {
+      @Override
+      public synchronized int read() {
+        throw new RuntimeException("Method is not implemented");
+      }
+    };
+    return (HTTPRequest) Proxy.newProxyInstance(HTTPRequest.class.getClassLoader(), new Class<?>[] { HTTPRequest.class },
+      new InvocationHandler() {
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object args[]) {
+          switch (method.getName()) {
+            case "getRequestURI":
+              return uri;
+            case "getParameter":
+              return params.get((String) args[0]);
+            case "getHeader":
+              return header.get(args[0]);
+            case "getInputStream":
+              return is;
+            default:
+              throw new UnsupportedOperationException(method.getName());
+          }
+        }
+      });
+  }
+
+  private static final class Recorder implements InvocationHandler {
+    private int status;
+
+    HTTPResponse proxy() {
+      return (HTTPResponse) Proxy.newProxyInstance(HTTPResponse.class.getClassLoader(), new Class<?>[] { HTTPResponse.class },
+        this);
+    }
+
+    @Override
+    public Object invoke(final Object proxy, final Method method, final Object args[]) {
+      if (method.getName().equals("setStatus")) {
+        status = ((HTTPStatus) args[0]).getValue();
+        return null;
+      }
+
+      throw new UnsupportedOperationException(method.getName());
+    }
+  }
+}
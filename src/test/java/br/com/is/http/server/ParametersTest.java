@@ -0,0 +1,93 @@
+package br.com.is.http.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.Charset;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import br.com.is.http.server.exception.BadRequestException;
+import br.com.is.http.server.exception.HTTPRequestException;
+import br.com.is.http.server.exception.RequestEntityTooLargeException;
+
+public final class ParametersTest {
+  private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+  @Test
+  public void testDecode() throws HTTPRequestException {
+    final Parameters params = parse(1000, 1024, "a=1&b=hello+world&c=%41%62&empty=&flag&&=orphan&bad=%zz%4");
+
+    assertEquals("1", params.get("a"));
+    assertEquals("hello world", params.get("b"));
+    assertEquals("Ab", params.get("c"));
+    assertEquals("", params.get("empty"));
+    assertEquals("", params.get("flag"));
+    assertEquals("%zz%4", params.get("bad"));
+    assertNull(params.get("missing"));
+    assertEquals(6, Collections.list(params.getNames()).size());
+  }
+
+  @Test
+  public void testUTF8() throws HTTPRequestException {
+    final Parameters params = parse(1000, 1024, "name=Jo%C3%A3o&%E2%82%AC=euro");
+
+    assertEquals("Jo\u00e3o", params.get("name"));
+    assertEquals("euro", params.get("\u20ac"));
+  }
+
+  @Test
+  public void testRepeatedKeys() throws HTTPRequestException {
+    final Parameters params = parse(1000, 1024, "k=1&k=2&other=x&k=3");
+    params.add("k", "4");
+
+    assertEquals("1", params.get("k"));
+    assertArrayEquals(new String[] { "1", "2", "3", "4" }, params.getValues("k"));
+    assertArrayEquals(new String[] { "x" }, params.getValues("other"));
+    assertNull(params.getValues("missing"));
+  }
+
+  @Test
+  public void testIncrementalParse() throws HTTPRequestException {
+    final Parameters params = parse(1000, 1024, "a=1");
+    assertEquals("1", params.get("a"));
+
+    final byte[] body = "a=2&b=3".getBytes(ISO_8859_1);
+    params.parse(body, 0, body.length);
+
+    assertArrayEquals(new String[] { "1", "2" }, params.getValues("a"));
+    assertEquals("3", params.get("b"));
+  }
+
+  @Test
+  public void testLimits() throws HTTPRequestException {
+    try {
+      parse(2, 1024, "a=1&b=2&c=3");
+      fail("Parameter count limit was not enforced");
+    }
+    catch (BadRequestException e) {}
+
+    try {
+      parse(1000, 8, "a=1&b=2&c=3");
+      fail("Parameter size limit was not enforced");
+    }
+    catch (RequestEntityTooLargeException e) {}
+
+    final Parameters params = parse(2, 1024, "a=1&b=2");
+    try {
+      params.add("c", "3");
+      fail("Parameter count limit was not enforced");
+    }
+    catch (BadRequestException e) {}
+  }
+
+  private static Parameters parse(final int maxCount, final int maxSize, final String src) throws HTTPRequestException {
+    final Parameters params = new Parameters(maxCount, maxSize);
+    final byte[] data = src.getBytes(ISO_8859_1);
+    params.parse(data, 0, data.length);
+    return params;
+  }
+}
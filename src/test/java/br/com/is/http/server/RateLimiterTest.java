@@ -0,0 +1,86 @@
+package br.com.is.http.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public final class RateLimiterTest {
+  @Test
+  public void testBurst() {
+    final RateLimiter limiter = new RateLimiter(1, 3, null, 64);
+    for (int i = 0; i < 3; ++i)
+      assertEquals(0, limiter.acquire("10.0.0.1", null));
+
+    final long retryAfter = limiter.acquire("10.0.0.1", null);
+    assertTrue(Long.toString(retryAfter), retryAfter > 0 && retryAfter <= 1000);
+    assertEquals(0, limiter.acquire("10.0.0.2", null));
+  }
+
+  @Test
+  public void testRefill() throws Exception {
+    final RateLimiter limiter = new RateLimiter(20, 1, null, 64);
+    assertEquals(0, limiter.acquire("10.0.0.1", null));
+    assertTrue(limiter.acquire("10.0.0.1", null) > 0);
+
+    Thread.sleep(60);
+    assertEquals(0, limiter.acquire("10.0.0.1", null));
+  }
+
+  @Test
+  public void testHeaderKey() {
+    final RateLimiter limiter = new RateLimiter(1, 1, "X-Api-Key", 64);
+    assertEquals("x-api-key", limiter.getHeader());
+
+    assertEquals(0, limiter.acquire("10.0.0.1", "first"));
+    assertEquals(0, limiter.acquire("10.0.0.1", "second"));
+    assertTrue(limiter.acquire("10.0.0.1", "first") > 0);
+  }
+
+  @Test
+  public void testHeaderRotation() {
+    final RateLimiter limiter = new RateLimiter(1, 1, "X-Api-Key", 1024);
+    assertEquals(0, limiter.acquire("10.0.0.2", "first"));
+
+    int accepted = 0;
+    for (int i = 0; i < 100; ++i) {
+      if (limiter.acquire("10.0.0.1", "key-" + i) == 0)
+        ++accepted;
+    }
+
+    assertEquals(16, accepted);
+    assertTrue(limiter.acquire("10.0.0.1", "first") > 0);
+    assertTrue(limiter.acquire("10.0.0.2", "first") > 0);
+    assertEquals(0, limiter.acquire("10.0.0.2", "second"));
+  }
+
+  @Test
+  public void testBoundedKeys() {
+    final RateLimiter limiter = new RateLimiter(1, 1, null, 8);
+    assertEquals(0, limiter.acquire("10.0.0.1", null));
+
+    for (int i = 0; i < 1000; ++i)
+      limiter.acquire("192.168.0." + i, null);
+
+    assertEquals(0, limiter.acquire("10.0.0.1", null));
+  }
+
+  @Test
+  public void testResponse() {
+    final ByteBuffer response = RateLimiter.response(1500);
+    final String text = StandardCharsets.US_ASCII.decode(response).toString();
+
+    assertTrue(text, text.startsWith("HTTP/1.1 429 Too Many Requests\r\n"));
+    assertTrue(text, text.contains("\r\nRetry-After: 2\r\n"));
+    assertEquals(0, RateLimiter.response(1500).position());
+    assertTrue(StandardCharsets.US_ASCII.decode(RateLimiter.response(120000)).toString().contains("\r\nRetry-After: 120\r\n"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidBurst() {
+    new RateLimiter(1, 0, null, 64);
+  }
+}
@@ -0,0 +1,191 @@
+package br.com.is.http.server.accesslog;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class AccessLogTest {
+  private static final long TIME = 1381413336000L;
+
+  private File directory;
+  private File file;
+
+  @Before
+  public void setUp() throws IOException {
+    directory = File.createTempFile("accesslog", "");
+    directory.delete();
+    directory.mkdirs();
+    file = new File(directory, "access.log");
+  }
+
+  @After
+  public void tearDown() {
+    final File files[] = directory.listFiles();
+    if (files != null) {
+      for (File f : files)
+        f.delete();
+    }
+    directory.delete();
+  }
+
+  @Test
+  public void testCommon() throws IOException {
+    final AccessLog log = new AccessLog(file, AccessLogFormat.COMMON);
+    log.start();
+    log.log(TIME, 1500000, 2326, 200, "127.0.0.1", "GET", "/apache_pb.gif?a=1", "HTTP/1.0", null, null);
+    log.log(TIME, 1500000, 0, 404, "::1", "GET", "/\"quoted\"", "HTTP/1.1", null, null);
+    log.close();
+
+    final List<String> lines = lines(file);
+    assertEquals(2, lines.size());
+    assertTrue(lines.get(0), lines.get(0).matches(
+      "127\\.0\\.0\\.1 - - \\[10/Oct/2013:\\d\\d:\\d\\d:36 [+-]\\d{4}\\] \"GET /apache_pb.gif\\?a=1 HTTP/1.0\" 200 2326"));
+    assertTrue(lines.get(1), lines.get(1).endsWith("\"GET /\\\"quoted\\\" HTTP/1.1\" 404 -"));
+    assertEquals(2, log.getLogged());
+  }
+
+  @Test
+  public void testCombined() throws IOException {
+    final AccessLog log = new AccessLog(file, AccessLogFormat.COMBINED);
+    log.start();
+    log.log(TIME, 1500000, 10, 200, "10.0.0.1", "POST", "/form", "HTTP/1.1", "http://example.com/", "curl/8.0");
+    log.log(TIME, 1500000, 10, 200, "10.0.0.1", "GET", "/", "HTTP/1.1", null, null);
+    log.close();
+
+    final List<String> lines = lines(file);
+    assertTrue(lines.get(0), lines.get(0).endsWith("\"POST /form HTTP/1.1\" 200 10 \"http://example.com/\" \"curl/8.0\""));
+    assertTrue(lines.get(1), lines.get(1).endsWith("\"GET / HTTP/1.1\" 200 10 \"-\" \"-\""));
+  }
+
+  @Test
+  public void testJson() throws IOException {
+    final AccessLog log = new AccessLog(file, AccessLogFormat.JSON);
+    log.start();
+    log.log(TIME + 7, 1500000, 10, 201, "10.0.0.1", "PUT", "/a\"b\\c\u00e9", "HTTP/1.1", null, "agent\t1");
+    log.close();
+
+    assertEquals("{\"time\":\"2013-10-10T13:55:36.007Z\",\"remote\":\"10.0.0.1\",\"method\":\"PUT\","
+      + "\"uri\":\"/a\\\"b\\\\c\u00e9\",\"protocol\":\"HTTP/1.1\",\"status\":201,\"bytes\":10,\"duration_us\":1500,"
+      + "\"referer\":null,\"user_agent\":\"agent\\u00091\"}", lines(file).get(0));
+  }
+
+  @Test
+  public void testTruncation() throws IOException {
+    final StringBuilder uri = new StringBuilder("/");
+    for (int i = 0; i < 1000; ++i)
+      uri.append('\u00e9');
+
+    final AccessLog log = new AccessLog(file, AccessLogFormat.JSON);
+    log.start();
+    log.log(TIME, 0, 0, 200, "", "GET", uri.toString(), "", "", "");
+    log.close();
+
+    final String line  = lines(file).get(0);
+    final int    start = line.indexOf("\"uri\":\"") + 7;
+    final String value = line.substring(start, line.indexOf('"', start));
+    assertTrue(value.length() > 200);
+    assertTrue(value.length() < uri.length());
+    assertTrue(uri.toString().startsWith(value));
+  }
+
+  @Test
+  public void testDrop() throws IOException {
+    final AccessLog log = new AccessLog(file, AccessLogFormat.COMMON, 4, AccessLog.OverflowPolicy.DROP, 0, 0);
+    for (int i = 0; i < 4; ++i)
+      assertTrue(log.log(TIME, 0, 0, 200, "", "GET", "/" + i, "", "", ""));
+
+    assertFalse(log.log(TIME, 0, 0, 200, "", "GET", "/4", "", "", ""));
+    assertFalse(log.log(TIME, 0, 0, 200, "", "GET", "/5", "", "", ""));
+    assertEquals(2, log.getDropped());
+
+    log.start();
+    log.close();
+    assertEquals(4, lines(file).size());
+  }
+
+  @Test
+  public void testBlock() throws Exception {
+    final AccessLog log = new AccessLog(file, AccessLogFormat.COMMON, 16, AccessLog.OverflowPolicy.BLOCK, 0, 0);
+    log.start();
+
+    final int perThread = 5000;
+    final List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < 4; ++t) {
+      final int id = t;
+      threads.add(new Thread() {
+        @Override
+        public void run() {
+          for (int i = 0; i < perThread; ++i)
+            log.log(TIME, 0, 0, 200, "", "GET", "/" + id + "/" + i, "", "", "");
+        }
+      });
+    }
+
+    for (Thread thread : threads)
+      thread.start();
+    for (Thread thread : threads)
+      thread.join();
+    log.close();
+
+    final Set<String> unique = new HashSet<>(lines(file));
+    assertEquals(4 * perThread, unique.size());
+    assertEquals(0, log.getDropped());
+    assertEquals(4 * perThread, log.getLogged());
+  }
+
+  @Test
+  public void testRotateBySize() throws IOException {
+    final AccessLog log = new AccessLog(file, AccessLogFormat.COMMON, 1024, AccessLog.OverflowPolicy.BLOCK, 500, 0);
+    log.start();
+    for (int i = 0; i < 20; ++i)
+      log.log(TIME, 0, 0, 200, "127.0.0.1", "GET", "/" + i, "HTTP/1.1", "", "");
+    log.close();
+
+    final File files[] = directory.listFiles();
+    assertTrue(files.length > 2);
+
+    int total = 0;
+    for (File f : files) {
+      assertTrue(f.getName(), f.length() <= 500);
+      total += lines(f).size();
+    }
+    assertEquals(20, total);
+  }
+
+  @Test
+  public void testReopenFailure() throws Exception {
+    final AccessLog log = new AccessLog(file, AccessLogFormat.COMMON, 4, AccessLog.OverflowPolicy.BLOCK, 200, 0);
+    log.start();
+    assertTrue(file.delete());
+    assertTrue(directory.delete());
+
+    for (int i = 0; i < 100; ++i)
+      assertTrue(log.log(TIME, 0, 0, 200, "127.0.0.1", "GET", "/" + i, "HTTP/1.1", "", ""));
+
+    assertTrue(directory.mkdirs());
+    Thread.sleep(1100);
+    assertTrue(log.log(TIME, 0, 0, 200, "127.0.0.1", "GET", "/reopened", "HTTP/1.1", "", ""));
+    log.close();
+
+    final List<String> lines = lines(file);
+    assertFalse(lines.isEmpty());
+    assertTrue(lines.get(lines.size() - 1), lines.get(lines.size() - 1).contains("GET /reopened "));
+  }
+
+  private static List<String> lines(final File file) throws IOException {
+    return Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+  }
+}
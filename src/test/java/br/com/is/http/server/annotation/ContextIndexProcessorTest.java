@@ -0,0 +1,98 @@
+package br.com.is.http.server.annotation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class ContextIndexProcessorTest {
+  private File output;
+
+  @Before
+  public void setUp() throws IOException {
+    output = Files.createTempDirectory("context-index").toFile();
+  }
+
+  @After
+  public void tearDown() {
+    delete(output);
+  }
+
+  @Test
+  public void testIndex() throws IOException {
+    assertTrue(compile(source("a.First", "package a; import br.com.is.http.server.annotation.Context;"
+      + " @Context(urlPattern=\"/first\") public class First {"
+      + " @Context(urlPattern=\"/inner\") public static class Inner {} }"),
+      source("a.Plain", "package a; public class Plain {}")));
+
+    assertEquals(Arrays.asList("a.First", "a.First$Inner"), index());
+  }
+
+  @Test
+  public void testIncrementalMerge() throws IOException {
+    assertTrue(compile(source("a.First", "package a; @br.com.is.http.server.annotation.Context public class First {}")));
+    assertTrue(compile(source("b.Second", "package b; @br.com.is.http.server.annotation.Context public class Second {}")));
+
+    assertEquals(Arrays.asList("a.First", "b.Second"), index());
+  }
+
+  @Test
+  public void testAbstractContext() throws IOException {
+    assertFalse(compile(source("a.Bad", "package a; @br.com.is.http.server.annotation.Context public abstract class Bad {}")));
+  }
+
+  private boolean compile(final JavaFileObject... sources) {
+    final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    Assume.assumeNotNull(compiler);
+
+    final JavaCompiler.CompilationTask task = compiler.getTask(null, null, new DiagnosticCollector<JavaFileObject>(), Arrays.asList("-d", output.getPath(),
+      "-classpath", output.getPath() + File.pathSeparator + System.getProperty("java.class.path")), null,
+      Arrays.asList(sources));
+    task.setProcessors(Arrays.asList(new ContextIndexProcessor()));
+
+    return task.call();
+  }
+
+  private List<String> index() throws IOException {
+    final File index = new File(output, ContextIndexProcessor.INDEX);
+    assertTrue(index.isFile());
+    return Files.readAllLines(index.toPath(), StandardCharsets.UTF_8);
+  }
+
+  private static void delete(final File file) {
+    final File children[] = file.listFiles();
+    if (children != null) {
+      for (final File child : children)
+        delete(child);
+    }
+
+    file.delete();
+  }
+
+  private static JavaFileObject source(final String name, final String code) {
+    return new SimpleJavaFileObject(URI.create("string:///" + name.replace('.', '/') + ".java"), JavaFileObject.Kind.SOURCE) {
+      @Override
+      public CharSequence getCharContent(final boolean ignoreEncodingErrors) {
+        return code;
+      }
+    };
+  }
+}
@@ -0,0 +1,146 @@
+package br.com.is.http.server.mediatype;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.util.Hashtable;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import br.com.is.http.server.HTTPContext;
+import br.com.is.http.server.HTTPRequest;
+import br.com.is.http.server.HTTPResponse;
+import br.com.is.http.server.Parameters;
+import br.com.is.http.server.Part;
+
+public final class MultipartFormDataTest {
+  private File directory;
+
+  @Before
+  public void setUp() throws IOException {
+    directory = Files.createTempDirectory("multipart").toFile();
+  }
+
+  @After
+  public void tearDown() {
+    for (File file : directory.listFiles())
+      file.delete();
+    directory.delete();
+  }
+
+  @Test
+  public void testMemoryPart() throws Exception {
+    final byte content[] = random(1000);
+    final UploadContext context = upload(content, 4096);
+
+    assertArrayEquals(content, context.content);
+    assertArrayEquals(content, context.written);
+    assertEquals(0, context.tempFiles);
+    assertEquals(0, directory.list().length);
+  }
+
+  @Test
+  public void testSpilledPart() throws Exception {
+    final byte content[] = random(200000);
+    final UploadContext context = upload(content, 4096);
+
+    assertArrayEquals(content, context.content);
+    assertArrayEquals(content, context.written);
+    assertEquals(1, context.tempFiles);
+    assertEquals(0, directory.list().length);
+  }
+
+  private UploadContext upload(final byte content[], final int threshold) throws Exception {
+    final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    body.write("--b\r\nContent-Disposition: form-data; name=\"field\"\r\n\r\nvalue\r\n".getBytes());
+    body.write("--b\r\nContent-Disposition: form-data; name=\"file\"; filename=\"f.bin\"\r\n".getBytes());
+    body.write("Content-Type: application/octet-stream\r\n\r\n".getBytes());
+    body.write(content);
+    body.write("\r\n--b--".getBytes());
+
+    final UploadContext context = new UploadContext();
+    context.setTempDirectory(directory.getPath());
+    context.setMultipartMemoryThreshold(threshold);
+    context.setMultipartBufferSize(1024);
+
+    final Parameters params = new Parameters(context.getMaxParameterCount(), context.getMaxParameterSize());
+    final Hashtable<String, Part> parts = new Hashtable<>();
+    new MultipartFormData().process(context, request(body.toByteArray(), params, parts), null, "boundary=b", params,
+      parts);
+
+    assertEquals("value", params.get("field"));
+    return context;
+  }
+
+  private static byte[] random(final int size) {
+    final byte content[] = new byte[size];
+    new Random(size).nextBytes(content);
+    return content;
+  }
+
+  private static HTTPRequest request(final byte body[], final Parameters params,
+    final Hashtable<String, Part> parts) {
+    final InputStream is = new ByteArrayInputStream(body);
+    return (HTTPRequest) Proxy.newProxyInstance(HTTPRequest.class.getClassLoader(), new Class<?>[] { HTTPRequest.class },
+      new InvocationHandler() {
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object args[]) {
+          switch (method.getName()) {
+            case "getInputStream":
+              return is;
+            case "getPart":
+              return parts.get(args[0]);
+            case "getParameter":
+              return params.get((String) args[0]);
+            default:
+              throw new UnsupportedOperationException(method.getName());
+          }
+        }
+      });
+  }
+
+  private final class UploadContext extends HTTPContext {
+    private byte content[];
+    private byte written[];
+    private int  tempFiles;
+
+    @Override
+    public void doPost(final HTTPRequest req, final HTTPResponse resp) {
+      try {
+        final Part part = req.getPart("file");
+        assertNotNull(part);
+        tempFiles = directory.list().length;
+
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        final InputStream is = part.getInputStream();
+        final byte buffer[] = new byte[1000];
+        int read;
+        while ((read = is.read(buffer)) != -1)
+          bos.write(buffer, 0, read);
+        content = bos.toByteArray();
+        assertEquals(content.length, part.getSize());
+
+        final File target = File.createTempFile("target", ".bin");
+        part.write(target.getPath());
+        written = Files.readAllBytes(target.toPath());
+        target.delete();
+      }
+      catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+}
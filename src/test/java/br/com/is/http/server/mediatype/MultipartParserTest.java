@@ -0,0 +1,92 @@
+package br.com.is.http.server.mediatype;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import br.com.is.http.server.exception.BadRequestException;
+import br.com.is.http.server.exception.HTTPRequestException;
+import br.com.is.http.server.exception.RequestEntityTooLargeException;
+
+public final class MultipartParserTest {
+  @Test
+  public void testFieldsAndFile() throws Exception {
+    final byte file[] = new byte[100000];
+    new Random(42).nextBytes(file);
+    // Plant partial delimiters inside the content.
+    System.arraycopy("\r\n--bound".getBytes(), 0, file, 1000, 9);
+    System.arraycopy("\r\n--boundar".getBytes(), 0, file, 50000, 11);
+
+    final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    body.write("preamble\r\n--boundary\r\n".getBytes());
+    body.write("Content-Disposition: form-data; name=\"field\"\r\n\r\nline1\r\nline2".getBytes());
+    body.write("\r\n--boundary  \r\n".getBytes());
+    body.write("Content-Disposition: form-data;\r\n name=\"file\"; filename=\"a.bin\"\r\n".getBytes());
+    body.write("Content-Type: application/octet-stream\r\n\r\n".getBytes());
+    body.write(file);
+    body.write("\r\n--boundary--\r\nepilogue".getBytes());
+
+    final Collector collector = new Collector();
+    new MultipartParser("boundary", new ByteArrayInputStream(body.toByteArray()), 256).parse(collector);
+
+    assertEquals(2, collector.headers.size());
+    assertEquals("form-data; name=\"field\"", collector.headers.get(0).get("content-disposition"));
+    assertEquals("form-data; name=\"file\"; filename=\"a.bin\"", collector.headers.get(1).get("content-disposition"));
+    assertEquals("application/octet-stream", collector.headers.get(1).get("content-type"));
+    assertEquals("line1\r\nline2", new String(collector.contents.get(0).toByteArray()));
+    assertArrayEquals(file, collector.contents.get(1).toByteArray());
+  }
+
+  @Test(expected = BadRequestException.class)
+  public void testMissingCloseDelimiter() throws Exception {
+    final byte body[] = "--boundary\r\nContent-Disposition: form-data; name=\"a\"\r\n\r\nvalue".getBytes();
+    new MultipartParser("boundary", new ByteArrayInputStream(body), 256).parse(new Collector());
+  }
+
+  @Test(expected = RequestEntityTooLargeException.class)
+  public void testHeaderBiggerThanBuffer() throws Exception {
+    final StringBuilder header = new StringBuilder("--boundary\r\nX-Big: ");
+    for (int i = 0; i < 1000; ++i)
+      header.append('x');
+    header.append("\r\n\r\nvalue\r\n--boundary--");
+
+    new MultipartParser("boundary", new ByteArrayInputStream(header.toString().getBytes()), 256).parse(new Collector());
+  }
+
+  private static final class Collector implements MultipartParser.Handler {
+    final List<Hashtable<String, String>> headers  = new ArrayList<>();
+    final List<ByteArrayOutputStream>     contents = new ArrayList<>();
+
+    @Override
+    public void partBegin(final Hashtable<String, String> header) {
+      headers.add(header);
+      contents.add(new ByteArrayOutputStream());
+    }
+
+    @Override
+    public void partData(final ByteBuffer data) throws HTTPRequestException {
+      final byte chunk[] = new byte[data.remaining()];
+      data.get(chunk);
+      try {
+        contents.get(contents.size() - 1).write(chunk);
+      }
+      catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    @Override
+    public void partEnd() {
+    }
+  }
+}
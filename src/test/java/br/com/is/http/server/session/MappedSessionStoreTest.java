@@ -0,0 +1,109 @@
+package br.com.is.http.server.session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import br.com.is.http.server.HTTPSession;
+
+public final class MappedSessionStoreTest {
+  private File directory;
+
+  @Before
+  public void setUp() throws IOException {
+    directory = File.createTempFile("sessions", "");
+    directory.delete();
+  }
+
+  @After
+  public void tearDown() {
+    final File files[] = directory.listFiles();
+    if (files != null) {
+      for (File file : files)
+        file.delete();
+    }
+    directory.delete();
+  }
+
+  @Test
+  public void testSurvivesReopen() throws IOException {
+    MappedSessionStore store = new MappedSessionStore(directory);
+    final HTTPSession session = new HTTPSession("id", store);
+    store.add(session);
+    session.setAttribute("user", "leo");
+    session.setAttribute("count", 10);
+    store.save(session);
+    store.add(new HTTPSession("removed", store));
+    store.remove("removed");
+    store.close();
+
+    store = new MappedSessionStore(directory);
+    assertEquals(1, store.size());
+    assertNull(store.get("removed"));
+
+    final HTTPSession restored = store.get("id");
+    assertNotNull(restored);
+    assertEquals("leo", restored.getAttribute("user"));
+    assertEquals(10, restored.getAttribute("count"));
+    assertEquals(session.getCreationTime(), restored.getCreationTime());
+    store.close();
+  }
+
+  @Test
+  public void testExpiry() throws IOException {
+    final MappedSessionStore store = new MappedSessionStore(directory, 1000, 4096);
+    final HTTPSession session = new HTTPSession("old", store);
+    session.setLastAccessTime(System.currentTimeMillis() - 2000);
+    store.add(session);
+    store.add(new HTTPSession("new", store));
+
+    store.expire(System.currentTimeMillis());
+    assertEquals(1, store.size());
+    assertNull(store.get("old"));
+    assertNotNull(store.get("new"));
+    store.close();
+  }
+
+  @Test
+  public void testSaveAfterRemoveIsIgnored() throws IOException {
+    final MappedSessionStore store = new MappedSessionStore(directory);
+    final HTTPSession session = new HTTPSession("id", store);
+    store.add(session);
+    session.invalidate();
+    session.setAttribute("user", "leo");
+    store.save(session);
+
+    assertNull(store.get("id"));
+    store.close();
+  }
+
+  @Test
+  public void testCompaction() throws IOException {
+    MappedSessionStore store = new MappedSessionStore(directory, 60000, 4096);
+    final HTTPSession session = new HTTPSession("id", store);
+    store.add(session);
+    for (int i = 0; i < 500; ++i) {
+      session.setAttribute("value", i);
+      store.save(session);
+    }
+    store.add(new HTTPSession("removed", store));
+    store.remove("removed");
+
+    store.compactNow();
+    store.close();
+    assertTrue(store.getSegmentCount() <= 2);
+
+    store = new MappedSessionStore(directory, 60000, 4096);
+    assertEquals(1, store.size());
+    assertEquals(499, store.get("id").getAttribute("value"));
+    store.close();
+  }
+}
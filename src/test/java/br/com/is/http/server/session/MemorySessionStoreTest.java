@@ -0,0 +1,64 @@
+package br.com.is.http.server.session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import br.com.is.http.server.HTTPSession;
+
+public final class MemorySessionStoreTest {
+  @Test
+  public void testGetAndInvalidate() {
+    final MemorySessionStore store = new MemorySessionStore(10, 60000);
+    final HTTPSession session = new HTTPSession("id", store);
+    store.add(session);
+
+    assertSame(session, store.get("id"));
+    assertEquals(1, store.size());
+
+    session.invalidate();
+    assertNull(store.get("id"));
+    assertEquals(0, store.size());
+  }
+
+  @Test
+  public void testLazyExpiry() {
+    final MemorySessionStore store = new MemorySessionStore(10, 1000);
+    final HTTPSession session = new HTTPSession("id", store);
+    session.setLastAccessTime(System.currentTimeMillis() - 2000);
+    store.add(session);
+
+    assertNull(store.get("id"));
+    assertEquals(0, store.size());
+    assertEquals(1, store.getExpiredCount());
+  }
+
+  @Test
+  public void testSweep() {
+    final MemorySessionStore store = new MemorySessionStore(100, 1000, 1);
+    for (int i = 0; i < 10; ++i) {
+      final HTTPSession session = new HTTPSession("old" + i, store);
+      session.setLastAccessTime(System.currentTimeMillis() - 2000);
+      store.add(session);
+    }
+    store.add(new HTTPSession("new", store));
+
+    store.expire(System.currentTimeMillis());
+    assertEquals(1, store.size());
+    assertEquals(10, store.getExpiredCount());
+  }
+
+  @Test
+  public void testEviction() {
+    final MemorySessionStore store = new MemorySessionStore(4, 60000, 1);
+    for (int i = 0; i < 6; ++i)
+      store.add(new HTTPSession("id" + i, store));
+
+    assertEquals(4, store.size());
+    assertEquals(2, store.getEvictedCount());
+    assertNull(store.get("id0"));
+    assertNull(store.get("id1"));
+  }
+}
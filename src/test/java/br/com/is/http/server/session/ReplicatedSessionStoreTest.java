@@ -0,0 +1,152 @@
+package br.com.is.http.server.session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import br.com.is.http.server.HTTPSession;
+
+public final class ReplicatedSessionStoreTest {
+  private ReplicatedSessionStore nodeA;
+  private ReplicatedSessionStore nodeB;
+
+  @Before
+  public void setUp() throws IOException {
+    nodeA = new ReplicatedSessionStore(new MemorySessionStore(), new InetSocketAddress("localhost", 0),
+      Collections.<InetSocketAddress>emptyList());
+    nodeB = new ReplicatedSessionStore(new MemorySessionStore(), new InetSocketAddress("localhost", 0),
+      Collections.<InetSocketAddress>emptyList());
+    nodeA.start();
+    nodeB.start();
+    nodeA.addPeer(nodeB.getAddress());
+    nodeB.addPeer(nodeA.getAddress());
+  }
+
+  @After
+  public void tearDown() {
+    nodeA.close();
+    nodeB.close();
+  }
+
+  @Test
+  public void testReplication() throws InterruptedException {
+    final HTTPSession session = new HTTPSession("id", nodeA);
+    nodeA.add(session);
+    session.setAttribute("user", "leo");
+    nodeA.save(session);
+
+    final HTTPSession replica = waitFor(nodeB, "id", "user", "leo");
+    assertEquals(session.getCreationTime(), replica.getCreationTime());
+
+    replica.setAttribute("user", "bispo");
+    nodeB.save(replica);
+    waitFor(nodeA, "id", "user", "bispo");
+
+    replica.invalidate();
+    for (int i = 0; i < 100 && nodeA.get("id") != null; ++i)
+      Thread.sleep(50);
+    assertNull(nodeA.get("id"));
+  }
+
+  @Test
+  public void testCoalescing() {
+    final HTTPSession session = new HTTPSession("id", nodeA);
+    nodeA.add(session);
+    for (int i = 0; i < 10; ++i) {
+      session.setAttribute("count", i);
+      nodeA.save(session);
+    }
+    session.removeAttribute("other");
+    nodeA.save(session);
+
+    final SessionDelta delta = nodeA.drain().get(0);
+    assertEquals(2, delta.attributes.size());
+    assertNotNull(delta.attributes.get("count"));
+    assertNull(delta.attributes.get("other"));
+    assertEquals(0, nodeA.drain().size());
+  }
+
+  @Test
+  public void testLastWriterWins() {
+    final long now = System.currentTimeMillis();
+    final HTTPSession session = new HTTPSession("id", now, now, Collections.<String, Object>emptyMap(), nodeA);
+    session.setAttribute("user", "local");
+    nodeA.add(session);
+
+    final HTTPSession older = new HTTPSession("id", now, now - 1000, Collections.<String, Object>emptyMap(), nodeB);
+    older.setAttribute("user", "remote");
+    nodeA.apply(SessionDelta.update(older, older.getModifiedAttributes()));
+    assertEquals("local", nodeA.get("id").getAttribute("user"));
+
+    final HTTPSession newer = new HTTPSession("id", now, now + 1000, Collections.<String, Object>emptyMap(), nodeB);
+    newer.setAttribute("user", "remote");
+    nodeA.apply(SessionDelta.update(newer, newer.getModifiedAttributes()));
+    assertEquals("remote", nodeA.get("id").getAttribute("user"));
+  }
+
+  @Test
+  public void testAllowedClasses() {
+    final long now = System.currentTimeMillis();
+    final HTTPSession remote = new HTTPSession("id", now, now, Collections.<String, Object>emptyMap(), nodeB);
+    remote.setAttribute("user", "leo");
+    remote.setAttribute("token", new Token("secret"));
+    nodeA.apply(SessionDelta.update(remote, remote.getModifiedAttributes()));
+    assertEquals("leo", nodeA.get("id").getAttribute("user"));
+    assertNull(nodeA.get("id").getAttribute("token"));
+
+    nodeA.allowClasses(Token.class);
+    final HTTPSession newer = new HTTPSession("id", now, now + 1000, Collections.<String, Object>emptyMap(), nodeB);
+    newer.setAttribute("token", new Token("secret"));
+    nodeA.apply(SessionDelta.update(newer, newer.getModifiedAttributes()));
+    assertEquals("secret", ((Token) nodeA.get("id").getAttribute("token")).value);
+  }
+
+  @Test
+  public void testRejectUnknownHost() throws IOException {
+    try (ReplicatedSessionStore node = new ReplicatedSessionStore(new MemorySessionStore(),
+      new InetSocketAddress("localhost", 0), Collections.singletonList(new InetSocketAddress("192.0.2.1", 9)))) {
+      node.start();
+      try (Socket socket = new Socket()) {
+        socket.connect(node.getAddress());
+        socket.setSoTimeout(5000);
+        assertEquals(-1, socket.getInputStream().read());
+      }
+    }
+  }
+
+  private static final class Token implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String value;
+
+    Token(final String value) {
+      this.value = value;
+    }
+  }
+
+  private static HTTPSession waitFor(final SessionStore store, final String id, final String name, final Object value)
+    throws InterruptedException {
+    for (int i = 0; i < 100; ++i) {
+      final HTTPSession session = store.get(id);
+      if (session != null && value.equals(session.getAttribute(name)))
+        return session;
+
+      Thread.sleep(50);
+    }
+
+    final HTTPSession session = store.get(id);
+    assertNotNull(session);
+    assertEquals(value, session.getAttribute(name));
+    return session;
+  }
+}
@@ -0,0 +1,82 @@
+package br.com.is.http.server.session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+public final class SecureSessionIdGeneratorTest {
+  private static final String ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+
+  @Test
+  public void testFormat() {
+    assertEquals(24, new SecureSessionIdGenerator().generate().length());
+    assertEquals(22, new SecureSessionIdGenerator(16).generate().length());
+    assertEquals(23, new SecureSessionIdGenerator(17).generate().length());
+
+    final SessionIdGenerator generator = new SecureSessionIdGenerator();
+    for (int i = 0; i < 1000; ++i) {
+      final String id = generator.generate();
+      for (int j = 0; j < id.length(); ++j)
+        assertTrue("Not URL safe: " + id, ALPHABET.indexOf(id.charAt(j)) >= 0);
+    }
+  }
+
+  @Test
+  public void testUniqueness() throws Exception {
+    final SessionIdGenerator generator = new SecureSessionIdGenerator();
+    final Set<String> ids = Collections.synchronizedSet(new HashSet<String>());
+    final int perThread = 50000;
+
+    final List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < 4; ++t) {
+      threads.add(new Thread() {
+        @Override
+        public void run() {
+          for (int i = 0; i < perThread; ++i)
+            ids.add(generator.generate());
+        }
+      });
+    }
+
+    for (Thread thread : threads)
+      thread.start();
+    for (Thread thread : threads)
+      thread.join();
+
+    assertEquals(4 * perThread, ids.size());
+  }
+
+  @Test
+  public void testEntropy() {
+    final SessionIdGenerator generator = new SecureSessionIdGenerator();
+    final long count[] = new long[64];
+    long total = 0;
+    for (int i = 0; i < 100000; ++i) {
+      final String id = generator.generate();
+      for (int j = 0; j < id.length(); ++j) {
+        ++count[ALPHABET.indexOf(id.charAt(j))];
+        ++total;
+      }
+    }
+
+    final double expected = total / 64.0;
+    double chiSquare = 0;
+    double entropy   = 0;
+    for (long c : count) {
+      chiSquare += (c - expected) * (c - expected) / expected;
+      final double p = (double) c / total;
+      entropy -= p * Math.log(p) / Math.log(2);
+    }
+
+    // 63 degrees of freedom: the 99.99th percentile is about 117.
+    assertTrue("Chi-square too high: " + chiSquare, chiSquare < 117);
+    assertTrue("Entropy too low: " + entropy, entropy > 5.99);
+  }
+}
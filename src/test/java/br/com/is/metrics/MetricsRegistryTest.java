@@ -0,0 +1,144 @@
+package br.com.is.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+
+import org.junit.Test;
+
+public final class MetricsRegistryTest {
+  @Test
+  public void testCounter() throws Exception {
+    final Counter counter = new Counter();
+    final List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < 4; ++t) {
+      threads.add(new Thread() {
+        @Override
+        public void run() {
+          for (int i = 0; i < 100000; ++i)
+            counter.increment();
+        }
+      });
+    }
+
+    for (Thread thread : threads)
+      thread.start();
+    for (Thread thread : threads)
+      thread.join();
+
+    counter.add(10);
+    counter.decrement();
+    assertEquals(400009, counter.sum());
+  }
+
+  @Test
+  public void testHistogram() {
+    final Histogram histogram = new Histogram();
+    for (long i = 1; i <= 10000; ++i)
+      histogram.record(i);
+
+    final Histogram.Snapshot snapshot = histogram.snapshot();
+    assertEquals(10000, snapshot.getCount());
+    assertEquals(50005000, snapshot.getSum());
+    assertEquals(5000, snapshot.getValueAtPercentile(50.0), 50);
+    assertEquals(9900, snapshot.getValueAtPercentile(99.0), 100);
+    assertEquals(127, snapshot.getCountAtOrBelow(127));
+  }
+
+  @Test
+  public void testPrometheus() throws Exception {
+    final MetricsRegistry registry = new MetricsRegistry();
+    registry.counter("requests_total", "Requests.", "context", "/a\"b").add(3);
+    registry.gauge("open", "Open things.", new Gauge() {
+      @Override
+      public long get() {
+        return 7;
+      }
+    });
+
+    final Histogram latency = registry.histogram("latency_seconds", "Latency.", "class", "2xx");
+    latency.record(200);
+    latency.record(700);
+    latency.record(3000);
+
+    final StringWriter out = new StringWriter();
+    registry.writePrometheus(out);
+    final String text = out.toString();
+
+    assertTrue(text, text.contains("# TYPE requests_total counter\n"));
+    assertTrue(text, text.contains("requests_total{context=\"/a\\\"b\"} 3\n"));
+    assertTrue(text, text.contains("# TYPE open gauge\nopen 7\n"));
+    assertTrue(text, text.contains("# TYPE latency_seconds histogram\n"));
+    assertTrue(text, text.contains("latency_seconds_bucket{class=\"2xx\",le=\"0.0005\"} 1\n"));
+    assertTrue(text, text.contains("latency_seconds_bucket{class=\"2xx\",le=\"0.001\"} 2\n"));
+    assertTrue(text, text.contains("latency_seconds_bucket{class=\"2xx\",le=\"0.005\"} 3\n"));
+    assertTrue(text, text.contains("latency_seconds_bucket{class=\"2xx\",le=\"+Inf\"} 3\n"));
+    assertTrue(text, text.contains("latency_seconds_count{class=\"2xx\"} 3\n"));
+  }
+
+  @Test
+  public void testDistribution() throws Exception {
+    final MetricsRegistry registry = new MetricsRegistry();
+    final Histogram keys = registry.distribution("keys", "Keys.");
+    keys.record(0);
+    keys.record(3);
+    keys.record(3);
+    keys.record(2000);
+
+    final StringWriter out = new StringWriter();
+    registry.writePrometheus(out);
+    final String text = out.toString();
+
+    assertTrue(text, text.contains("# TYPE keys histogram\n"));
+    assertTrue(text, text.contains("keys_bucket{le=\"0\"} 1\n"));
+    assertTrue(text, text.contains("keys_bucket{le=\"4\"} 3\n"));
+    assertTrue(text, text.contains("keys_bucket{le=\"1024\"} 3\n"));
+    assertTrue(text, text.contains("keys_bucket{le=\"+Inf\"} 4\n"));
+    assertTrue(text, text.contains("keys_sum 2006\n"));
+  }
+
+  @Test
+  public void testSameSeries() {
+    final MetricsRegistry registry = new MetricsRegistry();
+    final Counter counter = registry.counter("hits_total", "Hits.", "a", "1");
+    assertTrue(counter == registry.counter("hits_total", "Hits.", "a", "1"));
+    assertTrue(counter != registry.counter("hits_total", "Hits.", "a", "2"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testTypeMismatch() {
+    final MetricsRegistry registry = new MetricsRegistry();
+    registry.counter("hits_total", "Hits.");
+    registry.histogram("hits_total", "Hits.");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testOddLabels() {
+    new MetricsRegistry().counter("hits_total", "Hits.", "a");
+  }
+
+  @Test
+  public void testMBean() throws Exception {
+    final MetricsRegistry registry = new MetricsRegistry();
+    registry.counter("hits_total", "Hits.", "a", "1").add(5);
+    registry.histogram("latency_seconds", "Latency.").record(1000);
+
+    final DynamicMBean mbean = registry.asMBean();
+    final List<String> names = new ArrayList<>();
+    for (MBeanAttributeInfo info : mbean.getMBeanInfo().getAttributes())
+      names.add(info.getName());
+
+    assertTrue(names.toString(), names.contains("hits_total{a=\"1\"}"));
+    assertTrue(names.toString(), names.contains("latency_seconds.count"));
+    assertTrue(names.toString(), names.contains("latency_seconds.p99"));
+    assertEquals(5L, mbean.getAttribute("hits_total{a=\"1\"}"));
+    assertEquals(1L, mbean.getAttribute("latency_seconds.count"));
+    assertEquals(0.001, (Double) mbean.getAttribute("latency_seconds.p99"), 0.00001);
+  }
+}
@@ -0,0 +1,28 @@
+package br.com.is.nio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public final class ByteBufferFifoTest {
+  @Test
+  public void testDiscard() {
+    final long before = ByteBufferFifo.getQueuedBuffers();
+
+    final ByteBufferFifo fifo = new ByteBufferFifo(ByteBuffer.wrap("header".getBytes()));
+    fifo.getWriteBuffer().put("body".getBytes());
+    fifo.invalidateWriteBuffer();
+    assertEquals(before + 2, ByteBufferFifo.getQueuedBuffers());
+
+    fifo.discard();
+    assertEquals(before, ByteBufferFifo.getQueuedBuffers());
+
+    fifo.prependByteBuffer(ByteBuffer.wrap("late".getBytes()));
+    assertNull(fifo.getWriteBuffer());
+    assertNull(fifo.getReadBuffer());
+    assertEquals(before, ByteBufferFifo.getQueuedBuffers());
+  }
+}
@@ -0,0 +1,159 @@
+package br.com.is.nio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import org.junit.Test;
+
+import br.com.is.metrics.MetricsRegistry;
+import br.com.is.nio.listener.AcceptListener;
+import br.com.is.nio.listener.TimerListener;
+
+public final class EventLoopTest {
+  private static final class SlowTimer implements TimerListener {
+    final CountDownLatch done = new CountDownLatch(1);
+
+    @Override
+    public void timeout() {
+      try {
+        Thread.sleep(300);
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      done.countDown();
+    }
+
+    @Override
+    public String toString() {
+      return "slow timer";
+    }
+  }
+
+  @Test
+  public void testStallWatchdog() throws Exception {
+    final StringBuilder warning = new StringBuilder();
+    final CountDownLatch logged = new CountDownLatch(1);
+    final Handler handler = new Handler() {
+      @Override
+      public void publish(final LogRecord record) {
+        if (record.getMessage().startsWith("Event loop stalled")) {
+          synchronized (warning) {
+            warning.append(record.getMessage());
+          }
+          logged.countDown();
+        }
+      }
+
+      @Override
+      public void flush() {
+      }
+
+      @Override
+      public void close() {
+      }
+    };
+
+    final Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+    logger.addHandler(handler);
+
+    final MetricsRegistry registry = new MetricsRegistry();
+    final EventLoop loop = new EventLoop(10);
+    loop.registerMetrics(registry);
+    loop.setStallThreshold(50);
+
+    final Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        loop.run();
+      }
+    });
+
+    try {
+      final SlowTimer timer = new SlowTimer();
+      thread.start();
+      loop.registerTimer(10, timer);
+
+      assertTrue(timer.done.await(5, TimeUnit.SECONDS));
+      assertTrue(logged.await(5, TimeUnit.SECONDS));
+      synchronized (warning) {
+        assertTrue(warning.toString(), warning.indexOf(SlowTimer.class.getName() + " (slow timer)") > 0);
+        assertTrue(warning.toString(), warning.indexOf("java.lang.Thread.sleep(") > 0);
+        assertTrue(warning.toString(), warning.indexOf(SlowTimer.class.getName() + ".timeout(") > 0);
+      }
+
+      loop.stop(1000);
+      thread.join(5000);
+      assertEquals(1, registry.counter("tinyhttp_event_loop_stalls_total", null).sum());
+      assertNotNull(registry.histogram("tinyhttp_event_loop_iteration_seconds", null));
+    }
+    finally {
+      logger.removeHandler(handler);
+    }
+  }
+
+  @Test
+  public void testPauseAccept() throws Exception {
+    final CountDownLatch accepted = new CountDownLatch(1);
+    final ServerSocketChannel server = ServerSocketChannel.open();
+    server.socket().bind(new InetSocketAddress("localhost", 0));
+
+    final EventLoop loop = new EventLoop(10);
+    final Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        loop.run();
+      }
+    });
+
+    try {
+      loop.registerAcceptListener(server, new AcceptListener() {
+        @Override
+        public void accept(final ServerSocketChannel channel, final EventLoop manager) {
+          try {
+            final SocketChannel socket = channel.accept();
+            if (socket != null) {
+              socket.close();
+              accepted.countDown();
+            }
+          }
+          catch (Exception e) {
+            throw new RuntimeException(e);
+          }
+        }
+      });
+      thread.start();
+
+      assertTrue(loop.pauseAcceptListener(server));
+      assertFalse(loop.pauseAcceptListener(server));
+
+      final SocketChannel client = SocketChannel.open(server.socket().getLocalSocketAddress());
+      assertFalse(accepted.await(200, TimeUnit.MILLISECONDS));
+
+      assertTrue(loop.resumeAcceptListener(server));
+      assertTrue(accepted.await(5, TimeUnit.SECONDS));
+      client.close();
+    }
+    finally {
+      loop.stop(1000);
+      thread.join(5000);
+      server.close();
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNegativeStallThreshold() {
+    new EventLoop(10).setStallThreshold(-1);
+  }
+}